@@ -0,0 +1,217 @@
+package com.boxalino.cem.client;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.net.URLEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.boxalino.cem.client.json.JsonArray;
+import com.boxalino.cem.client.json.JsonObject;
+
+
+/**
+ * Event encoder microbenchmark.
+ *
+ * Encodes a purchase event body (environment fields, event name, description
+ * with a JSON items payload) with the former string based path (JsonObject,
+ * URLEncoder, StringBuilder) and with EventEncoder, for a retail order (3 lines)
+ * and a B2B order (300 lines), and reports time and heap allocation per event
+ * (allocation requires a HotSpot ThreadMXBean).
+ *
+ * Usage: ant bench
+ *
+ * @author nitro
+ */
+public class EventEncoderBenchmark {
+	/** Warmup iterations (3 lines order) */
+	private static final int WARMUP = 200000;
+
+	/** Measured iterations (3 lines order) */
+	private static final int ITERATIONS = 1000000;
+
+
+	/** Environment fields */
+	private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+	/** Purchased items */
+	private final List<ApiClient.TransactionItem> items = new ArrayList<ApiClient.TransactionItem>();
+
+	/** Warmup iterations */
+	private final int warmup;
+
+	/** Measured iterations */
+	private final int iterations;
+
+	/** Result sink (prevents dead code elimination) */
+	private long sink = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param lines order lines
+	 */
+	private EventEncoderBenchmark(int lines) {
+		warmup = WARMUP * 3 / lines;
+		iterations = ITERATIONS * 3 / lines;
+		parameters.put("connection", new String [] { "https" });
+		parameters.put("clientAddress", new String [] { "192.168.10.20" });
+		parameters.put("clientAgent", new String [] { "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36" });
+		parameters.put("clientReferer", new String [] { "https://shop.example.com/basket?step=2" });
+		parameters.put("serverHost", new String [] { "shop.example.com" });
+		parameters.put("serverUri", new String [] { "/checkout/done" });
+		items.add(new ApiClient.TransactionItem("sku-10042", 59.9, 1, "Trail runner \"Pro\" \u2013 gr\u00fcn", "reco"));
+		items.add(new ApiClient.TransactionItem("sku-20017", 12.5, 3, "Socks", null));
+		items.add(new ApiClient.TransactionItem("sku-30001", 120, 1));
+		for (int i = items.size(); i < lines; i++) {
+			items.add(new ApiClient.TransactionItem("sku-4" + i, 0.35 * i, i % 50 + 1, "Bulk item " + i, null));
+		}
+	}
+
+
+	/**
+	 * Encode with the former string based path.
+	 *
+	 * @return body length
+	 * @throws Exception if encoding fails
+	 */
+	private int legacy() throws Exception {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+		JsonArray json = new JsonArray();
+
+		for (ApiClient.TransactionItem item : items) {
+			JsonObject o = new JsonObject();
+
+			o.setString("id", item.id);
+			o.setDouble("price", item.price);
+			o.setInteger("quantity", item.quantity);
+			if (item.name != null) {
+				o.setString("name", item.name);
+			}
+			if (item.widget != null) {
+				o.setString("widget", item.widget);
+			}
+			json.addJson(o);
+		}
+		description.put("status", "1");
+		description.put("amount", Double.toString(192.4));
+		description.put("items", json.toJson(true));
+
+		String [] list = new String[description.size()];
+		int i = 0;
+
+		for (Map.Entry<String, String> item : description.entrySet()) {
+			list[i++] = URLEncoder.encode(item.getKey(), "UTF-8") + ":" + URLEncoder.encode(item.getValue(), "UTF-8");
+		}
+		list = Arrays.copyOf(list, i);
+
+		StringBuilder raw = new StringBuilder();
+
+		for (String item : list) {
+			if (raw.length() > 0) {
+				raw.append(' ');
+			}
+			raw.append(item);
+		}
+
+		Map<String, String[]> fields = new LinkedHashMap<String, String[]>(parameters);
+		StringBuilder body = new StringBuilder();
+
+		fields.put("eventName", new String [] { "purchaseDone" });
+		fields.put("eventDescription", new String [] { raw.toString() });
+		for (Map.Entry<String, String[]> field : fields.entrySet()) {
+			for (String value : field.getValue()) {
+				if (body.length() > 0) {
+					body.append('&');
+				}
+				body.append(URLEncoder.encode(field.getKey(), "UTF-8"));
+				body.append('=');
+				body.append(URLEncoder.encode(value, "UTF-8"));
+			}
+		}
+		return body.toString().getBytes("UTF-8").length;
+	}
+
+	/**
+	 * Encode with EventEncoder.
+	 *
+	 * @return body length
+	 */
+	private int encoder() {
+		EventEncoder encoder = EventEncoder.get();
+
+		encoder.fields(parameters);
+		encoder.field("eventName", "purchaseDone");
+		encoder.beginDescription(true);
+		encoder.pair("status", "1");
+		encoder.pair("amount", 192.4);
+		encoder.beginJson("items");
+		encoder.beginArray();
+		for (ApiClient.TransactionItem item : items) {
+			encoder.item(item.id, item.price, item.quantity, item.name, item.widget);
+		}
+		encoder.endArray();
+		return encoder.length();
+	}
+
+	/**
+	 * Run one variant.
+	 *
+	 * @param name variant name
+	 * @param legacy true for the former path
+	 * @throws Exception if encoding fails
+	 */
+	private void run(String name, boolean legacy) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspot = (threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null);
+		long thread = Thread.currentThread().getId();
+
+		for (int i = 0; i < warmup; i++) {
+			sink += (legacy ? legacy() : encoder());
+		}
+
+		long allocated = (hotspot != null ? hotspot.getThreadAllocatedBytes(thread) : -1);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			sink += (legacy ? legacy() : encoder());
+		}
+
+		long time = System.nanoTime() - start;
+
+		if (hotspot != null) {
+			allocated = hotspot.getThreadAllocatedBytes(thread) - allocated;
+		}
+		System.out.println(
+			name + ": " +
+			(time / iterations) + " ns/event, " +
+			(allocated >= 0 ? Long.toString(allocated / iterations) : "n/a") + " bytes/event allocated, " +
+			(legacy ? legacy() : encoder()) + " bytes/event encoded"
+		);
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args ignored
+	 * @throws Exception if encoding fails
+	 */
+	public static void main(String [] args) throws Exception {
+		for (int lines : new int [] { 3, 300 }) {
+			EventEncoderBenchmark benchmark = new EventEncoderBenchmark(lines);
+
+			benchmark.run("legacy (JsonObject + URLEncoder), " + lines + " lines", true);
+			benchmark.run("EventEncoder, " + lines + " lines", false);
+			if (benchmark.sink == 0) {
+				System.out.println();
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.boxalino.cem.client;
+
+import java.net.URLEncoder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.boxalino.cem.client.json.JsonArray;
+import com.boxalino.cem.client.json.JsonObject;
+
+
+/**
+ * Event encoder parity checks.
+ *
+ * Encodes randomized events (form fields, description pairs, decimal values
+ * and JSON item payloads; strings mixing ASCII, url and JSON special
+ * characters, control characters, Latin-1, CJK, surrogate pairs and unpaired
+ * surrogates) with EventEncoder and with the former string based path
+ * (URLEncoder, JsonObject.toJson(true)) and checks that both produce the same
+ * bytes. Fails (exception, non-zero exit) on the first mismatch.
+ *
+ * Usage: ant bench (optional argument: random seed)
+ *
+ * @author nitro
+ */
+public class EventEncoderCheck {
+	/** Randomized events */
+	private static final int EVENTS = 20000;
+
+	/** Character pools (ranges: first, last) */
+	private static final char [][] POOLS = {
+		{ ' ', '~' },
+		{ '\0', '\u001f' },
+		{ '\u0080', '\u00ff' },
+		{ '\u2000', '\u2100' },
+		{ '\u4e00', '\u4e40' },
+		{ '\ufff0', '\uffff' }
+	};
+
+	/** Url and JSON special characters */
+	private static final String SPECIALS = " \"\\/<>&=+%:;?#*-._~'";
+
+
+	/** Random source */
+	private final Random random;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param seed random seed
+	 */
+	private EventEncoderCheck(long seed) {
+		this.random = new Random(seed);
+	}
+
+
+	/**
+	 * Check a condition.
+	 *
+	 * @param condition condition
+	 * @param message check description
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("check failed: " + message);
+		}
+	}
+
+	/**
+	 * Build a random string.
+	 *
+	 * @param empty true if the string may be empty
+	 * @return random string
+	 */
+	private String string(boolean empty) {
+		StringBuilder str = new StringBuilder();
+		int length = random.nextInt(24) + (empty ? 0 : 1);
+
+		while (str.length() < length) {
+			int kind = random.nextInt(10);
+
+			if (kind < 3) {
+				str.append(SPECIALS.charAt(random.nextInt(SPECIALS.length())));
+			} else if (kind == 3) {
+				str.appendCodePoint(0x10000 + random.nextInt(0x100000));
+			} else if (kind == 4 && random.nextInt(4) == 0) {
+				// unpaired surrogate
+				str.append((char)(0xd800 + random.nextInt(0x800)));
+			} else {
+				char [] pool = POOLS[random.nextInt(POOLS.length)];
+
+				str.append((char)(pool[0] + random.nextInt(pool[1] - pool[0] + 1)));
+			}
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Build a random decimal value.
+	 *
+	 * @return decimal value
+	 */
+	private double decimal() {
+		switch (random.nextInt(5)) {
+		case 0:
+			return random.nextInt(1000);
+		case 1:
+			return -random.nextInt(100000) / 100.0;
+		case 2:
+			return random.nextDouble() * 1e9;
+		case 3:
+			return (double)random.nextInt(Integer.MAX_VALUE) * 10;
+		default:
+			return random.nextInt(10000000) / 100.0;
+		}
+	}
+
+
+	/**
+	 * Encode a description pair with the former path.
+	 *
+	 * @param raw raw description
+	 * @param key pair key
+	 * @param value pair value
+	 * @throws Exception if encoding fails
+	 */
+	private static void legacyPair(StringBuilder raw, String key, String value) throws Exception {
+		if (key.length() == 0 || value.length() == 0) {
+			return;
+		}
+		if (raw.length() > 0) {
+			raw.append(' ');
+		}
+		raw.append(URLEncoder.encode(key, "UTF-8"));
+		raw.append(':');
+		raw.append(URLEncoder.encode(value, "UTF-8"));
+	}
+
+	/**
+	 * Encode a form field with the former path.
+	 *
+	 * @param body form body
+	 * @param key field name
+	 * @param value field value
+	 * @throws Exception if encoding fails
+	 */
+	private static void legacyField(StringBuilder body, String key, String value) throws Exception {
+		if (body.length() > 0) {
+			body.append('&');
+		}
+		body.append(URLEncoder.encode(key, "UTF-8"));
+		body.append('=');
+		body.append(URLEncoder.encode(value, "UTF-8"));
+	}
+
+	/**
+	 * Check one randomized event (form body and raw description).
+	 *
+	 * @param event event number
+	 * @throws Exception if encoding fails or bytes differ
+	 */
+	private void event(int event) throws Exception {
+		Map<String, String[]> fields = new LinkedHashMap<String, String[]>();
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		String [] ids = new String[random.nextInt(4)];
+		double [] prices = new double[ids.length];
+		int [] quantities = new int[ids.length];
+		String [] names = new String[ids.length];
+		String [] widgets = new String[ids.length];
+		double amount = decimal();
+
+		for (int i = random.nextInt(4); i > 0; i--) {
+			String [] values = new String[random.nextInt(3) + 1];
+
+			for (int j = 0; j < values.length; j++) {
+				values[j] = string(true);
+			}
+			fields.put(string(false), values);
+		}
+		for (int i = random.nextInt(4); i > 0; i--) {
+			pairs.put(string(true), string(true));
+		}
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = string(true);
+			prices[i] = decimal();
+			quantities[i] = random.nextInt(1000) - 10;
+			names[i] = (random.nextBoolean() ? string(true) : null);
+			widgets[i] = (random.nextBoolean() ? string(true) : null);
+		}
+
+		// former path
+		StringBuilder raw = new StringBuilder();
+		StringBuilder body = new StringBuilder();
+		JsonArray json = new JsonArray();
+
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			legacyPair(raw, pair.getKey(), pair.getValue());
+		}
+		legacyPair(raw, "amount", Double.toString(amount));
+		for (int i = 0; i < ids.length; i++) {
+			JsonObject o = new JsonObject();
+
+			o.setString("id", ids[i]);
+			o.setDouble("price", prices[i]);
+			o.setInteger("quantity", quantities[i]);
+			if (names[i] != null) {
+				o.setString("name", names[i]);
+			}
+			if (widgets[i] != null) {
+				o.setString("widget", widgets[i]);
+			}
+			json.addJson(o);
+		}
+		legacyPair(raw, "items", json.toJson(true));
+		for (Map.Entry<String, String[]> field : fields.entrySet()) {
+			for (String value : field.getValue()) {
+				legacyField(body, field.getKey(), value);
+			}
+		}
+		legacyField(body, "eventName", "purchaseDone");
+		legacyField(body, "eventDescription", raw.toString());
+
+		// encoder, form and raw description
+		for (boolean form : new boolean [] { true, false }) {
+			EventEncoder encoder = EventEncoder.get();
+
+			if (form) {
+				encoder.fields(fields);
+				encoder.field("eventName", "purchaseDone");
+			}
+			encoder.beginDescription(form);
+			encoder.pairs(pairs);
+			encoder.pair("amount", amount);
+			encoder.beginJson("items");
+			encoder.beginArray();
+			for (int i = 0; i < ids.length; i++) {
+				encoder.item(ids[i], prices[i], quantities[i], names[i], widgets[i]);
+			}
+			encoder.endArray();
+
+			byte [] expected = (form ? body : raw).toString().getBytes("US-ASCII");
+			byte [] actual = encoder.toByteArray();
+
+			check(
+				Arrays.equals(expected, actual),
+				"event " + event + " (" + (form ? "form" : "raw") + "):\n  expected " + new String(expected, "US-ASCII") + "\n  actual   " + new String(actual, "US-ASCII")
+			);
+		}
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args optional random seed
+	 * @throws Exception if a check fails
+	 */
+	public static void main(String [] args) throws Exception {
+		long seed = (args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime());
+		EventEncoderCheck check = new EventEncoderCheck(seed);
+
+		for (int i = 0; i < EVENTS; i++) {
+			check.event(i);
+		}
+		System.out.println("ok " + EVENTS + " randomized events, EventEncoder bytes equal URLEncoder/toJson(true) (seed " + seed + ")");
+	}
+}
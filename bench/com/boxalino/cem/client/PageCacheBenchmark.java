@@ -0,0 +1,448 @@
+package com.boxalino.cem.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+/**
+ * Page cache replay benchmark.
+ *
+ * Replays page request traces against the page cache (W-TinyLFU) and against
+ * a plain LRU of the same capacity (former PageCache eviction), and reports
+ * hit rate and throughput (lookups per second, a miss stores the page). Also
+ * compares the cost of building a page key (PageKeyNormalizer) with the former
+ * string key, for a typical servlet request (shop, tracking and environment
+ * parameters).
+ *
+ * Without arguments, three seeded synthetic traces are replayed:
+ * - zipf: category and search pages with Zipf popularity (s = 0.9)
+ * - long tail: popular category pages, 40% one-off search queries
+ * - crawler: popular category pages interleaved with sequential scans of the
+ *   product catalog
+ * Trace files contain one page request (uri?query, url-encoded) per line.
+ *
+ * Usage: ant bench (or PageCacheBenchmark [trace file...])
+ *
+ * @author nitro
+ */
+public class PageCacheBenchmark {
+	/** Cache capacity [pages] */
+	private static final int CAPACITY = 2000;
+
+	/** Synthetic trace length [lookups] */
+	private static final int LENGTH = 2000000;
+
+	/** Measured replays per variant */
+	private static final int REPLAYS = 3;
+
+	/** Key building iterations */
+	private static final int KEY_ITERATIONS = 2000000;
+
+
+	/**
+	 * Plain LRU (baseline)
+	 *
+	 * @author nitro
+	 */
+	@SuppressWarnings("serial")
+	private static class Lru extends LinkedHashMap<PageKey, ApiClient.Page> {
+		/** Maximum size */
+		private final int capacity;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param capacity maximum size
+		 */
+		private Lru(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PageKey, ApiClient.Page> eldest) {
+			return (size() > capacity);
+		}
+	}
+
+
+	/** Cached page (shared by all keys) */
+	private final ApiClient.Page page;
+
+	/** Result sink (prevents dead code elimination) */
+	private long sink = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @throws Exception if page cannot be parsed
+	 */
+	private PageCacheBenchmark() throws Exception {
+		page = ApiClient.parsePage(new ByteArrayInputStream("<cem version=\"1.2.0\" status=\"true\" totalTime=\"0.01\"><context>ctx</context></cem>".getBytes("UTF-8")));
+	}
+
+
+	/**
+	 * Build a Zipf distribution (cumulative probabilities).
+	 *
+	 * @param n item count
+	 * @param s exponent
+	 * @return cumulative probabilities
+	 */
+	private static double [] zipf(int n, double s) {
+		double [] cdf = new double[n];
+		double sum = 0;
+
+		for (int i = 0; i < n; i++) {
+			sum += 1.0 / Math.pow(i + 1, s);
+			cdf[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cdf[i] /= sum;
+		}
+		return cdf;
+	}
+
+	/**
+	 * Draw an item from a Zipf distribution.
+	 *
+	 * @param cdf cumulative probabilities
+	 * @param random random source
+	 * @return item index (0 = most popular)
+	 */
+	private static int draw(double [] cdf, Random random) {
+		double p = random.nextDouble();
+		int low = 0;
+		int high = cdf.length - 1;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (cdf[middle] < p) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Build the zipf trace.
+	 *
+	 * @return page requests
+	 */
+	private static String [] zipfTrace() {
+		Random random = new Random(42);
+		double [] cdf = zipf(200000, 0.9);
+		String [] trace = new String[LENGTH];
+
+		for (int i = 0; i < trace.length; i++) {
+			int item = draw(cdf, random);
+
+			trace[i] = ((item & 1) == 0 ? "/c/category-" + item : "/search?q=query-" + item);
+		}
+		return trace;
+	}
+
+	/**
+	 * Build the long tail trace.
+	 *
+	 * @return page requests
+	 */
+	private static String [] longTailTrace() {
+		Random random = new Random(43);
+		double [] cdf = zipf(5000, 1.0);
+		String [] trace = new String[LENGTH];
+
+		for (int i = 0; i < trace.length; i++) {
+			if (random.nextInt(100) < 40) {
+				trace[i] = "/search?q=" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+			} else {
+				trace[i] = "/c/category-" + draw(cdf, random);
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Build the crawler trace.
+	 *
+	 * @return page requests
+	 */
+	private static String [] crawlerTrace() {
+		Random random = new Random(44);
+		double [] cdf = zipf(5000, 1.0);
+		String [] trace = new String[LENGTH];
+		int product = 0;
+
+		for (int i = 0; i < trace.length; i++) {
+			// a scan of 20000 products every 100000 lookups, interleaved with visitors
+			if (i % 100000 < 40000 && (i & 1) == 0) {
+				trace[i] = "/p/product-" + (product++ % 500000);
+			} else {
+				trace[i] = "/c/category-" + draw(cdf, random);
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Read a trace file.
+	 *
+	 * @param file trace file (one page request per line)
+	 * @return page requests
+	 * @throws Exception if trace cannot be read
+	 */
+	private static String [] readTrace(File file) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		List<String> trace = new ArrayList<String>();
+
+		try {
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) {
+					trace.add(line.trim());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return trace.toArray(new String[trace.size()]);
+	}
+
+
+	/**
+	 * Build the page keys of a trace.
+	 *
+	 * @param trace page requests (uri?query, url-encoded)
+	 * @return page keys
+	 * @throws Exception if a request cannot be decoded
+	 */
+	private static PageKey [] keys(String [] trace) throws Exception {
+		PageKey [] keys = new PageKey[trace.length];
+		Map<String, PageKey> known = new HashMap<String, PageKey>();
+
+		for (int i = 0; i < trace.length; i++) {
+			PageKey key = known.get(trace[i]);
+
+			if (key == null) {
+				int separator = trace[i].indexOf('?');
+				Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+				if (separator >= 0) {
+					for (String field : trace[i].substring(separator + 1).split("&")) {
+						int equals = field.indexOf('=');
+
+						if (equals > 0) {
+							parameters.put(URLDecoder.decode(field.substring(0, equals), "UTF-8"), new String [] { URLDecoder.decode(field.substring(equals + 1), "UTF-8") });
+						}
+					}
+				}
+				key = PageKeyNormalizer.shared.key(separator >= 0 ? trace[i].substring(0, separator) : trace[i], parameters);
+				known.put(trace[i], key);
+			}
+			keys[i] = key;
+		}
+		return keys;
+	}
+
+	/**
+	 * Build a key with the former string key (PageCache.key).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @return string key
+	 */
+	private static String legacyKey(String uri, Map<String, String[]> parameters) {
+		StringBuilder key = new StringBuilder();
+		String path = uri.trim();
+
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+
+			if (c != '/' || key.length() == 0 || key.charAt(key.length() - 1) != '/') {
+				key.append(c);
+			}
+		}
+		if (key.length() > 1 && key.charAt(key.length() - 1) == '/') {
+			key.setLength(key.length() - 1);
+		}
+		for (Map.Entry<String, String[]> entry : new TreeMap<String, String[]>(parameters).entrySet()) {
+			if (entry.getKey().equals("uri") || entry.getKey().equals("clientAddress") || entry.getKey().equals("clientAgent") || entry.getKey().equals("clientReferer")) {
+				continue;
+			}
+			key.append('\u0001').append(entry.getKey());
+			for (String value : entry.getValue()) {
+				key.append('\u0000').append(value);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Measure key building (former string key and page key).
+	 *
+	 */
+	private void runKeys() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspot = (threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null);
+		long thread = Thread.currentThread().getId();
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		String [][] fields = {
+			{ "q", "trail  runner" }, { "category", "shoes" }, { "filter", "color:green" }, { "page", "2" }, { "sort", "price" },
+			{ "utm_source", "newsletter" }, { "utm_medium", "email" }, { "utm_campaign", "autumn-sale-2026" }, { "gclid", "EAIaIQobChMI8v3x" },
+			{ "connection", "https" }, { "clientAddress", "203.0.113.42" },
+			{ "clientAgent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/129.0 Safari/537.36" },
+			{ "clientReferer", "https://www.example.com/newsletter/autumn?utm_source=newsletter" }, { "serverHost", "shop.example.com" },
+			{ "serverUri", "/shoes/trail-running" }, { "uri", "/shoes/trail-running" }
+		};
+
+		for (String [] field : fields) {
+			parameters.put(field[0], new String [] { field[1] });
+		}
+		for (int variant = 0; variant < 2; variant++) {
+			for (int i = 0; i < KEY_ITERATIONS / 4; i++) {
+				sink += (variant == 0 ? legacyKey("/shoes/trail-running", parameters).length() : PageKeyNormalizer.shared.key("/shoes/trail-running", parameters).low);
+			}
+
+			long allocated = (hotspot != null ? hotspot.getThreadAllocatedBytes(thread) : -1);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < KEY_ITERATIONS; i++) {
+				sink += (variant == 0 ? legacyKey("/shoes/trail-running", parameters).length() : PageKeyNormalizer.shared.key("/shoes/trail-running", parameters).low);
+			}
+
+			long time = System.nanoTime() - start;
+
+			if (hotspot != null) {
+				allocated = hotspot.getThreadAllocatedBytes(thread) - allocated;
+			}
+			System.out.println(
+				(variant == 0 ? "key, legacy (string)" : "key, PageKeyNormalizer (128-bit)") + ": " +
+				(time / KEY_ITERATIONS) + " ns/key, " +
+				(allocated >= 0 ? Long.toString(allocated / KEY_ITERATIONS) : "n/a") + " bytes/key allocated" +
+				(variant == 0 ? ", " + legacyKey("/shoes/trail-running", parameters).length() + " chars/key" : "")
+			);
+		}
+	}
+
+	/**
+	 * Replay a trace against the page cache.
+	 *
+	 * @param trace page keys
+	 * @return hits
+	 */
+	private long replayCache(PageKey [] trace) {
+		PageCache cache = new PageCache(Long.MAX_VALUE / 4, 0, CAPACITY);
+		long hits = 0;
+
+		for (PageKey key : trace) {
+			if (cache.get(key) != null) {
+				hits++;
+			} else {
+				cache.put(key, page);
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Replay a trace against the plain LRU.
+	 *
+	 * @param trace page keys
+	 * @return hits
+	 */
+	private long replayLru(PageKey [] trace) {
+		Lru lru = new Lru(CAPACITY);
+		long hits = 0;
+
+		for (PageKey key : trace) {
+			if (lru.get(key) != null) {
+				hits++;
+			} else {
+				lru.put(key, page);
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Run one variant on a trace.
+	 *
+	 * @param name trace name
+	 * @param trace page keys
+	 * @param lru true for the plain LRU, false for the page cache
+	 */
+	private void run(String name, PageKey [] trace, boolean lru) {
+		long hits = (lru ? replayLru(trace) : replayCache(trace));
+		long start = System.nanoTime();
+
+		for (int i = 0; i < REPLAYS; i++) {
+			sink += (lru ? replayLru(trace) : replayCache(trace));
+		}
+
+		long time = System.nanoTime() - start;
+
+		System.out.println(
+			name + ", " + (lru ? "LRU" : "PageCache (W-TinyLFU)") + ": " +
+			String.format("%.1f", hits * 100.0 / trace.length) + "% hit rate, " +
+			(trace.length * (long)REPLAYS * 1000000000L / Math.max(time, 1) / 1000) + "k lookups/s"
+		);
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args optional trace files (defaults to synthetic traces)
+	 * @throws Exception if a trace cannot be read or decoded
+	 */
+	public static void main(String [] args) throws Exception {
+		PageCacheBenchmark benchmark = new PageCacheBenchmark();
+		Map<String, String[]> traces = new LinkedHashMap<String, String[]>();
+
+		if (args.length > 0) {
+			for (String arg : args) {
+				traces.put(arg, readTrace(new File(arg)));
+			}
+		} else {
+			traces.put("zipf", zipfTrace());
+			traces.put("long tail", longTailTrace());
+			traces.put("crawler", crawlerTrace());
+		}
+		benchmark.runKeys();
+		for (Map.Entry<String, String[]> trace : traces.entrySet()) {
+			PageKey [] keys = keys(trace.getValue());
+
+			benchmark.run(trace.getKey() + " (" + keys.length + " lookups, " + CAPACITY + " pages)", keys, true);
+			benchmark.run(trace.getKey() + " (" + keys.length + " lookups, " + CAPACITY + " pages)", keys, false);
+		}
+		if (benchmark.sink == 0) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.boxalino.cem.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Page format microbenchmark.
+ *
+ * Parses the stand-in page fixtures (bench/fixtures/page.xml and page.json,
+ * same page content) with the former DOM path, the xml streaming parser and
+ * the json streaming parser, checks that both formats yield the same page, and
+ * reports payload size (plain and gzip), time and heap allocation per page
+ * (allocation requires a HotSpot ThreadMXBean).
+ *
+ * Usage: ant bench (or PageFormatBenchmark [fixtures directory])
+ *
+ * @author nitro
+ */
+public class PageFormatBenchmark {
+	/** Warmup iterations */
+	private static final int WARMUP = 20000;
+
+	/** Measured iterations */
+	private static final int ITERATIONS = 50000;
+
+	/** Former DOM path */
+	private static final int DOM = 0;
+
+	/** Xml streaming parser */
+	private static final int XML = 1;
+
+	/** Json streaming parser */
+	private static final int JSON = 2;
+
+
+	/** Xml response body */
+	private final byte [] xml;
+
+	/** Json response body */
+	private final byte [] json;
+
+	/** Result sink (prevents dead code elimination) */
+	private long sink = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param directory fixtures directory
+	 * @throws Exception if fixtures cannot be read
+	 */
+	private PageFormatBenchmark(File directory) throws Exception {
+		xml = read(new File(directory, "page.xml"));
+		json = read(new File(directory, "page.json"));
+	}
+
+
+	/**
+	 * Read a fixture.
+	 *
+	 * @param file fixture file
+	 * @return fixture content
+	 * @throws Exception if fixture cannot be read
+	 */
+	private static byte [] read(File file) throws Exception {
+		FileInputStream is = new FileInputStream(file);
+
+		try {
+			return PageIndex.read(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Get gzip compressed size.
+	 *
+	 * @param data payload
+	 * @return compressed size [bytes]
+	 * @throws Exception if compression fails
+	 */
+	private static int gzip(byte [] data) throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		GZIPOutputStream os = new GZIPOutputStream(buffer);
+
+		os.write(data);
+		os.close();
+		return buffer.size();
+	}
+
+	/**
+	 * Get page length (content consumed by a page).
+	 *
+	 * @param page page
+	 * @return page length
+	 */
+	private static int length(ApiClient.Page page) {
+		int length = page.apiVersion.length() + page.context.length() + page.query.length();
+
+		for (String block : page.blocks.values()) {
+			length += block.length();
+		}
+		return length + page.results.size() + page.recommendations.size();
+	}
+
+	/**
+	 * Parse with a variant.
+	 *
+	 * @param variant variant (DOM, XML, JSON)
+	 * @return page length
+	 * @throws Exception if parsing fails
+	 */
+	private int parse(int variant) throws Exception {
+		switch (variant) {
+		case DOM:
+			return PageParserBenchmark.legacy(xml);
+
+		case XML:
+			return length(ApiClient.parsePage(new ByteArrayInputStream(xml)));
+
+		default:
+			return length(ApiClient.parseJsonPage(new ByteArrayInputStream(json)));
+		}
+	}
+
+	/**
+	 * Run one variant.
+	 *
+	 * @param name variant name
+	 * @param variant variant (DOM, XML, JSON)
+	 * @throws Exception if parsing fails
+	 */
+	private void run(String name, int variant) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspot = (threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null);
+		long thread = Thread.currentThread().getId();
+		byte [] payload = (variant == JSON ? json : xml);
+
+		for (int i = 0; i < WARMUP; i++) {
+			sink += parse(variant);
+		}
+
+		long allocated = (hotspot != null ? hotspot.getThreadAllocatedBytes(thread) : -1);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += parse(variant);
+		}
+
+		long time = System.nanoTime() - start;
+
+		if (hotspot != null) {
+			allocated = hotspot.getThreadAllocatedBytes(thread) - allocated;
+		}
+		System.out.println(
+			name + ": " +
+			(time / ITERATIONS / 1000) + " us/page, " +
+			(allocated >= 0 ? Long.toString(allocated / ITERATIONS) : "n/a") + " bytes/page allocated, " +
+			payload.length + " bytes/page payload (" + gzip(payload) + " gzip)"
+		);
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args optional fixtures directory (defaults to bench/fixtures)
+	 * @throws Exception if parsing fails
+	 */
+	public static void main(String [] args) throws Exception {
+		PageFormatBenchmark benchmark = new PageFormatBenchmark(new File(args.length > 0 ? args[0] : "bench/fixtures"));
+		String xml = ApiClient.parsePage(new ByteArrayInputStream(benchmark.xml)).toString();
+		String json = ApiClient.parseJsonPage(new ByteArrayInputStream(benchmark.json)).toString();
+
+		if (!xml.equals(json)) {
+			throw new IllegalStateException("fixtures disagree:\n" + xml + "\n" + json);
+		}
+		benchmark.run("legacy (DOM), xml", DOM);
+		benchmark.run("PageParser (StAX), xml", XML);
+		benchmark.run("PageJsonParser (JsonReader), json", JSON);
+		if (benchmark.sink == 0) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.boxalino.cem.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Lazy page parity checks.
+ *
+ * Builds randomized page responses (UTF-8 and ISO-8859-1; blocks mixing text,
+ * entity and character references, CDATA sections, comments, processing
+ * instructions, nested elements and line ends; occasionally namespace
+ * declarations and malformed blocks) and checks that lazy pages (PageIndex)
+ * decode and write every block exactly as the eager StAX path does, and that
+ * responses the eager path rejects are rejected lazily too. Fails (exception,
+ * non-zero exit) on the first mismatch.
+ *
+ * Usage: ant bench (optional argument: random seed)
+ *
+ * @author nitro
+ */
+public class PageIndexCheck {
+	/** Randomized pages */
+	private static final int PAGES = 5000;
+
+	/** Text characters (besides generated ranges) */
+	private static final String TEXT = " \t\n\r\r\nabcXYZ019=;:/?'\"#-_.>]";
+
+
+	/** Random source */
+	private final Random random;
+
+	/** Pages indexed lazily */
+	private int indexed = 0;
+
+	/** Pages rejected by both paths */
+	private int rejected = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param seed random seed
+	 */
+	private PageIndexCheck(long seed) {
+		this.random = new Random(seed);
+	}
+
+
+	/**
+	 * Check a condition.
+	 *
+	 * @param condition condition
+	 * @param message check description
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("check failed: " + message);
+		}
+	}
+
+	/**
+	 * Append random character data (no markup).
+	 *
+	 * @param xml document
+	 * @param latin1 true to escape characters above 0xff
+	 */
+	private void text(StringBuilder xml, boolean latin1) {
+		for (int i = random.nextInt(12); i > 0; i--) {
+			int c;
+
+			switch (random.nextInt(6)) {
+			case 0:
+				c = 0xa0 + random.nextInt(0x60);
+				break;
+			case 1:
+				c = 0x4e00 + random.nextInt(0x100);
+				break;
+			case 2:
+				c = 0x1f600 + random.nextInt(0x40);
+				break;
+			default:
+				c = TEXT.charAt(random.nextInt(TEXT.length()));
+				break;
+			}
+			if (latin1 && c > 0xff) {
+				xml.append(random.nextBoolean() ? "&#" + c + ";" : "&#x" + Integer.toHexString(c) + ";");
+			} else {
+				xml.appendCodePoint(c);
+			}
+		}
+	}
+
+	/**
+	 * Append random block content.
+	 *
+	 * @param xml document
+	 * @param latin1 true to escape characters above 0xff
+	 * @param depth element nesting depth
+	 */
+	private void content(StringBuilder xml, boolean latin1, int depth) {
+		for (int i = random.nextInt(6); i > 0; i--) {
+			switch (random.nextInt(8)) {
+			case 0:
+				xml.append(new String [] { "&lt;", "&gt;", "&amp;", "&quot;", "&apos;", "&#38;", "&#x3c;" }[random.nextInt(7)]);
+				break;
+			case 1:
+				xml.append("<![CDATA[");
+				text(xml, latin1);
+				xml.append(" <b>&amp;</b> ]]>");
+				break;
+			case 2:
+				xml.append("<!-- ");
+				text(xml, latin1);
+				xml.append(" -->");
+				break;
+			case 3:
+				xml.append("<?render now?>");
+				break;
+			case 4:
+				if (depth < 3) {
+					xml.append("<i class=\"a>b\" title='x'>");
+					content(xml, latin1, depth + 1);
+					xml.append("</i>");
+				} else {
+					xml.append("<br/>");
+				}
+				break;
+			default:
+				text(xml, latin1);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Build a random page response.
+	 *
+	 * @param latin1 true for an ISO-8859-1 response
+	 * @return response
+	 */
+	private String page(boolean latin1) {
+		StringBuilder xml = new StringBuilder();
+		int kind = random.nextInt(20);
+
+		xml.append("<?xml version=\"1.0\" encoding=\"").append(latin1 ? "ISO-8859-1" : "UTF-8").append("\"?>\n");
+		xml.append("<cem").append(kind == 0 ? " xmlns:p=\"urn:p\"" : "").append(" version=\"1\" status=\"true\" totalTime=\"0.5\">");
+		xml.append("<context>c</context><query>q</query>");
+		xml.append("<results offset=\"0\" total=\"1\" pageIndex=\"0\" pageCount=\"1\" pageSize=\"10\"><result id=\"r\"/></results>");
+		xml.append("<blocks>\r\n");
+		for (int i = random.nextInt(5); i > 0; i--) {
+			xml.append("<block id=\"b").append(random.nextInt(6)).append(random.nextBoolean() ? "&amp;x" : "").append("\">");
+			if (random.nextInt(8) == 0) {
+				xml.append("<block>nested</block>");
+			}
+			content(xml, latin1, 0);
+			if (kind == 0) {
+				xml.append("<p:i>prefixed</p:i>");
+			} else if (kind == 1) {
+				xml.append("&bogus;");
+			} else if (kind == 2) {
+				xml.append("<i>mismatched</j>");
+			}
+			xml.append("</block>\n");
+		}
+		if (random.nextBoolean()) {
+			xml.append("<block id=\"empty\"/>");
+		}
+		xml.append("</blocks></cem>");
+		return xml.toString();
+	}
+
+	/**
+	 * Check one randomized page (lazy blocks decoded and written as the eager ones).
+	 *
+	 * @param number page number
+	 * @throws Exception if a check fails
+	 */
+	private void page(int number) throws Exception {
+		boolean latin1 = random.nextInt(4) == 0;
+		String xml = page(latin1);
+		byte [] data = xml.getBytes(latin1 ? "ISO-8859-1" : "UTF-8");
+		ApiClient.Page eager;
+		ApiClient.Page lazy;
+
+		try {
+			eager = ApiClient.parsePage(new ByteArrayInputStream(data));
+		} catch (Exception e) {
+			eager = null;
+		}
+		try {
+			lazy = ApiClient.parsePage(data);
+			// lazy blocks are decoded on access
+			lazy.blocks.entrySet();
+		} catch (Exception e) {
+			lazy = null;
+		}
+		if (eager == null) {
+			check(lazy == null, "page " + number + ": rejected eagerly, accepted lazily:\n  " + xml);
+			rejected++;
+			return;
+		}
+		check(lazy != null, "page " + number + ": accepted eagerly, rejected lazily:\n  " + xml);
+
+		PageIndex index = PageIndex.scan(data);
+
+		if (index != null && index.size() > 0 && index.check()) {
+			indexed++;
+		}
+		check(eager.blocks.equals(lazy.blocks) && eager.toString().equals(lazy.toString()), "page " + number + ": blocks differ:\n  " + xml + "\n  " + eager + "\n  " + lazy);
+		for (String id : eager.blocks.keySet()) {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+
+			eager.writeBlock(id, expected);
+			lazy.writeBlock(id, actual);
+			check(Arrays.equals(expected.toByteArray(), actual.toByteArray()), "page " + number + ": written block " + id + " differs:\n  " + xml);
+		}
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args optional random seed
+	 * @throws Exception if a check fails
+	 */
+	public static void main(String [] args) throws Exception {
+		long seed = (args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime());
+		PageIndexCheck check = new PageIndexCheck(seed);
+
+		for (int i = 0; i < PAGES; i++) {
+			check.page(i);
+		}
+		System.out.println(
+			"ok " + PAGES + " randomized pages, lazy blocks decoded and written as eager ones (" +
+			check.indexed + " indexed lazily, " + check.rejected + " rejected by both paths, seed " + seed + ")"
+		);
+	}
+}
@@ -0,0 +1,363 @@
+package com.boxalino.cem.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import org.xml.sax.InputSource;
+
+
+/**
+ * Page parser microbenchmark.
+ *
+ * Parses a page response (context, query, 24 results, 6 recommendations and
+ * html blocks with escaped markup and CDATA sections) with the former DOM path
+ * (DocumentBuilder, visit of the element tree) and with the streaming parser
+ * (ApiClient.parsePage), eager and lazy (one block read or written as bytes
+ * with Page.writeBlock), for small blocks (2 KB) and large blocks (200 KB),
+ * and reports time and heap allocation per page (allocation requires a
+ * HotSpot ThreadMXBean).
+ *
+ * Usage: ant bench
+ *
+ * @author nitro
+ */
+public class PageParserBenchmark {
+	/** Warmup iterations (2 KB blocks) */
+	private static final int WARMUP = 20000;
+
+	/** Measured iterations (2 KB blocks) */
+	private static final int ITERATIONS = 50000;
+
+	/** Former DOM path */
+	private static final int LEGACY = 0;
+
+	/** Streaming parser */
+	private static final int EAGER = 1;
+
+	/** Streaming parser, lazy blocks */
+	private static final int LAZY = 2;
+
+	/** Streaming parser, lazy blocks written as bytes */
+	private static final int WRITE = 3;
+
+
+	/** Document builder factory (former settings) */
+	private static final DocumentBuilderFactory dbf;
+
+	/** Static initializer */
+	static {
+		dbf = DocumentBuilderFactory.newInstance();
+		dbf.setCoalescing(true);
+		dbf.setIgnoringComments(true);
+		dbf.setIgnoringElementContentWhitespace(true);
+		dbf.setNamespaceAware(true);
+		dbf.setValidating(false);
+	}
+
+
+	/** Response body */
+	private final byte [] response;
+
+	/** Warmup iterations */
+	private final int warmup;
+
+	/** Measured iterations */
+	private final int iterations;
+
+	/** Result sink (prevents dead code elimination) */
+	private long sink = 0;
+
+	/** Output sink (counts bytes) */
+	private final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			sink++;
+		}
+
+		@Override
+		public void write(byte [] b, int off, int len) throws IOException {
+			sink += len;
+		}
+	};
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param blockSize approximate html block size [bytes]
+	 * @throws Exception if encoding fails
+	 */
+	private PageParserBenchmark(int blockSize) throws Exception {
+		StringBuilder xml = new StringBuilder();
+
+		warmup = Math.max(WARMUP * 2048 / blockSize, 50);
+		iterations = Math.max(ITERATIONS * 2048 / blockSize, 100);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<cem version=\"1.2.0\" status=\"true\" totalTime=\"0.0123\">\n");
+		xml.append("\t<context>H4sIAAAAAAAAAKtWKkktLlGyUlAqS8wpTVWqBQBgbqJvFQAAAA</context>\n");
+		xml.append("\t<query>trail runner gr\u00fcn</query>\n");
+		xml.append("\t<results offset=\"0\" total=\"1234\" pageIndex=\"0\" pageCount=\"52\" pageSize=\"24\">\n");
+		for (int i = 0; i < 24; i++) {
+			xml.append("\t\t<result id=\"sku-").append(10000 + i).append("\"/>\n");
+		}
+		xml.append("\t</results>\n");
+		xml.append("\t<recommendations>\n");
+		for (int i = 0; i < 6; i++) {
+			xml.append("\t\t<recommendation id=\"sku-").append(20000 + i).append("\"/>\n");
+		}
+		xml.append("\t</recommendations>\n");
+		xml.append("\t<blocks>\n");
+		for (String id : new String [] { "facets", "results", "recommendations", "footer" }) {
+			xml.append("\t\t<block id=\"").append(id).append("\">");
+			if ("results".equals(id)) {
+				xml.append("<![CDATA[");
+				for (int length = 0; length < blockSize; ) {
+					String line = "<div class=\"item\"><a href=\"/p/sku-10042?ref=search&amp;q=trail\">Trail runner \"Pro\" \u2013 gr\u00fcn</a><span>59.90</span></div>\n";
+
+					xml.append(line);
+					length += line.length();
+				}
+				xml.append("]]>");
+			} else {
+				for (int length = 0; length < blockSize; ) {
+					String line = "&lt;li&gt;&lt;a href=&quot;/c/shoes?page=2&amp;sort=price&quot;&gt;Shoes &amp; more (42)&lt;/a&gt;&lt;/li&gt;\n";
+
+					xml.append(line);
+					length += line.length();
+				}
+			}
+			xml.append("</block>\n");
+		}
+		xml.append("\t</blocks>\n");
+		xml.append("</cem>\n");
+		response = xml.toString().getBytes("UTF-8");
+	}
+
+
+	/**
+	 * Parse with the former DOM path.
+	 *
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	private int legacy() throws Exception {
+		return legacy(response);
+	}
+
+	/**
+	 * Parse a response with the former DOM path.
+	 *
+	 * @param response response body
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	static int legacy(byte [] response) throws Exception {
+		Element element = dbf.newDocumentBuilder().parse(new InputSource(new ByteArrayInputStream(response))).getDocumentElement();
+		NodeList children = element.getChildNodes();
+		List<String> results = new ArrayList<String>();
+		List<String> recommendations = new ArrayList<String>();
+		Map<String, String> blocks = new LinkedHashMap<String, String>();
+		int length = 0;
+
+		if (!element.getNodeName().equals("cem")) {
+			throw new IllegalStateException("invalid xml element: " + element.getNodeName());
+		}
+		length += element.getAttribute("version").length();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			if ("context".equals(child.getNodeName()) || "query".equals(child.getNodeName())) {
+				length += text((Element)child).length();
+				continue;
+			}
+
+			NodeList items = child.getChildNodes();
+
+			for (int j = 0; j < items.getLength(); j++) {
+				Node item = items.item(j);
+
+				if (item.getNodeType() != Node.ELEMENT_NODE) {
+					continue;
+				}
+				if ("result".equals(item.getNodeName())) {
+					results.add(((Element)item).getAttribute("id"));
+				} else if ("recommendation".equals(item.getNodeName())) {
+					recommendations.add(((Element)item).getAttribute("id"));
+				} else if ("block".equals(item.getNodeName())) {
+					blocks.put(((Element)item).getAttribute("id"), text((Element)item));
+				}
+			}
+		}
+		for (String block : blocks.values()) {
+			length += block.length();
+		}
+		return length + results.size() + recommendations.size();
+	}
+
+	/**
+	 * Get direct textual content of a DOM element (trimmed).
+	 *
+	 * @param element xml element
+	 * @return textual content
+	 */
+	private static String text(Element element) {
+		StringBuffer buffer = new StringBuffer();
+		NodeList children = element.getChildNodes();
+
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+
+			if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+				buffer.append(child.getNodeValue());
+			}
+		}
+		return buffer.toString().trim();
+	}
+
+	/**
+	 * Parse with the streaming parser.
+	 *
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	private int parser() throws Exception {
+		ApiClient.Page page = ApiClient.parsePage(new ByteArrayInputStream(response));
+		int length = page.apiVersion.length() + page.context.length() + page.query.length();
+
+		for (String block : page.blocks.values()) {
+			length += block.length();
+		}
+		return length + page.results.size() + page.recommendations.size();
+	}
+
+	/**
+	 * Parse with the streaming parser (lazy blocks on the retained response, reads one block).
+	 *
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	private int lazy() throws Exception {
+		ApiClient.Page page = ApiClient.parsePage(response);
+		int length = page.apiVersion.length() + page.context.length() + page.query.length();
+
+		if (page.hasBlock("facets")) {
+			length += page.getBlock("results").length();
+		}
+		return length + page.results.size() + page.recommendations.size();
+	}
+
+	/**
+	 * Parse with the streaming parser (lazy blocks on the retained response, writes one block).
+	 *
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	private int write() throws Exception {
+		ApiClient.Page page = ApiClient.parsePage(response);
+		int length = page.apiVersion.length() + page.context.length() + page.query.length();
+
+		page.writeBlock("results", output);
+		return length + page.results.size() + page.recommendations.size();
+	}
+
+	/**
+	 * Parse with a variant.
+	 *
+	 * @param variant variant (LEGACY, EAGER, LAZY, WRITE)
+	 * @return block length
+	 * @throws Exception if parsing fails
+	 */
+	private int parse(int variant) throws Exception {
+		switch (variant) {
+		case LEGACY:
+			return legacy();
+
+		case EAGER:
+			return parser();
+
+		case LAZY:
+			return lazy();
+
+		default:
+			return write();
+		}
+	}
+
+	/**
+	 * Run one variant.
+	 *
+	 * @param name variant name
+	 * @param variant variant (LEGACY, EAGER, LAZY, WRITE)
+	 * @throws Exception if parsing fails
+	 */
+	private void run(String name, int variant) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean hotspot = (threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)threads : null);
+		long thread = Thread.currentThread().getId();
+
+		for (int i = 0; i < warmup; i++) {
+			sink += parse(variant);
+		}
+
+		long allocated = (hotspot != null ? hotspot.getThreadAllocatedBytes(thread) : -1);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			sink += parse(variant);
+		}
+
+		long time = System.nanoTime() - start;
+
+		if (hotspot != null) {
+			allocated = hotspot.getThreadAllocatedBytes(thread) - allocated;
+		}
+		System.out.println(
+			name + ": " +
+			(time / iterations / 1000) + " us/page, " +
+			(allocated >= 0 ? Long.toString(allocated / iterations) : "n/a") + " bytes/page allocated, " +
+			response.length + " bytes/page parsed"
+		);
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args ignored
+	 * @throws Exception if parsing fails
+	 */
+	public static void main(String [] args) throws Exception {
+		for (int blockSize : new int [] { 2048, 204800 }) {
+			PageParserBenchmark benchmark = new PageParserBenchmark(blockSize);
+
+			if (benchmark.legacy() != benchmark.parser()) {
+				throw new IllegalStateException("parsers disagree");
+			}
+			benchmark.run("legacy (DOM), " + (blockSize / 1024) + " KB blocks", LEGACY);
+			benchmark.run("PageParser (StAX), " + (blockSize / 1024) + " KB blocks", EAGER);
+			benchmark.run("PageParser (StAX, lazy, 1 of 4 blocks read), " + (blockSize / 1024) + " KB blocks", LAZY);
+			benchmark.run("PageParser (StAX, lazy, 1 of 4 blocks written), " + (blockSize / 1024) + " KB blocks", WRITE);
+			if (benchmark.sink == 0) {
+				System.out.println();
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package com.boxalino.cem.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Ring buffer overflow policy checks.
+ *
+ * Checks the overflow policies of MpscRingBuffer (drop newest, drop oldest
+ * with and without evictor, block with timeout and with a draining consumer),
+ * the mutable slot protocol (claim, publish, take, release) and the ordering
+ * of concurrent producers. Fails (exception, non-zero exit) on the first
+ * mismatch.
+ *
+ * Usage: ant bench
+ *
+ * @author nitro
+ */
+public class RingBufferCheck {
+	/** Concurrent producers */
+	private static final int PRODUCERS = 4;
+
+	/** Elements per concurrent producer */
+	private static final int ELEMENTS = 200000;
+
+
+	/**
+	 * Check a condition.
+	 *
+	 * @param condition condition
+	 * @param message check description
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("check failed: " + message);
+		}
+		System.out.println("ok " + message);
+	}
+
+	/**
+	 * Offer elements 0..count-1.
+	 *
+	 * @param buffer ring buffer
+	 * @param count element count
+	 * @return accepted elements
+	 */
+	private static int fill(MpscRingBuffer<Integer> buffer, int count) {
+		int accepted = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (buffer.offer(i)) {
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Poll all elements.
+	 *
+	 * @param buffer ring buffer
+	 * @return elements (in order)
+	 */
+	private static List<Integer> drain(MpscRingBuffer<Integer> buffer) {
+		List<Integer> elements = new ArrayList<Integer>();
+		Integer element;
+
+		while ((element = buffer.poll()) != null) {
+			elements.add(element);
+		}
+		return elements;
+	}
+
+
+	/**
+	 * Check drop newest (new elements rejected and counted).
+	 *
+	 */
+	private static void dropNewest() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(4, MpscRingBuffer.OverflowPolicy.DROP_NEWEST, 0, MpscRingBuffer.WaitStrategy.BLOCKING);
+
+		check(fill(buffer, 6) == 4 && buffer.getDropped() == 2, "drop newest: 4 of 6 accepted, 2 dropped");
+		check(drain(buffer).toString().equals("[0, 1, 2, 3]"), "drop newest: oldest kept in order");
+	}
+
+	/**
+	 * Check drop oldest (oldest elements evicted, handed to the evictor).
+	 *
+	 */
+	private static void dropOldest() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(4, MpscRingBuffer.OverflowPolicy.DROP_OLDEST, 0, MpscRingBuffer.WaitStrategy.BLOCKING);
+
+		check(fill(buffer, 6) == 6 && buffer.getDropped() == 2, "drop oldest: 6 accepted, 2 evicted and dropped");
+		check(drain(buffer).toString().equals("[2, 3, 4, 5]"), "drop oldest: newest kept in order");
+
+		final List<Integer> evicted = new ArrayList<Integer>();
+
+		buffer = new MpscRingBuffer<Integer>(4, MpscRingBuffer.OverflowPolicy.DROP_OLDEST, 0, MpscRingBuffer.WaitStrategy.BLOCKING);
+		buffer.evictor = new MpscRingBuffer.Evictor<Integer>() {
+			@Override
+			public boolean evict(Integer element) {
+				evicted.add(element);
+				return true;
+			}
+		};
+		check(fill(buffer, 7) == 7 && buffer.getDropped() == 0, "drop oldest: evicted elements handled are not dropped");
+		check(evicted.toString().equals("[0, 1, 2]") && drain(buffer).toString().equals("[3, 4, 5, 6]"), "drop oldest: evictor gets the oldest elements once");
+	}
+
+	/**
+	 * Check block (timeout, then rejected; accepted once a consumer frees a slot).
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	private static void block() throws InterruptedException {
+		final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(2, MpscRingBuffer.OverflowPolicy.BLOCK, 50, MpscRingBuffer.WaitStrategy.BLOCKING);
+		long start = System.nanoTime();
+
+		check(fill(buffer, 3) == 2 && buffer.getDropped() == 1, "block: rejected after the timeout");
+		check(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45), "block: waited for the timeout");
+
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+				}
+				buffer.poll();
+			}
+		};
+
+		buffer.blockTimeout = 5000;
+		consumer.start();
+		check(buffer.offer(2) && buffer.getDropped() == 1, "block: accepted once a slot is freed");
+		consumer.join();
+		check(drain(buffer).toString().equals("[1, 2]"), "block: order kept");
+	}
+
+	/**
+	 * Check the mutable slot protocol.
+	 *
+	 */
+	private static void mutable() {
+		MpscRingBuffer<int[]> buffer = new MpscRingBuffer<int[]>(
+			4,
+			MpscRingBuffer.OverflowPolicy.DROP_NEWEST,
+			0,
+			MpscRingBuffer.WaitStrategy.BLOCKING,
+			new MpscRingBuffer.Factory<int[]>() {
+				@Override
+				public int[] create() {
+					return new int[1];
+				}
+			}
+		);
+		int [][] slots = new int[4][];
+
+		for (int i = 0; i < 4; i++) {
+			long sequence = buffer.claim();
+
+			slots[i] = buffer.get(sequence);
+			slots[i][0] = i;
+			buffer.publish(sequence);
+		}
+		check(buffer.claim() < 0 && buffer.getDropped() == 1, "mutable: claim fails when full");
+
+		long sequence = buffer.take();
+
+		check(buffer.get(sequence) == slots[0] && buffer.get(sequence)[0] == 0, "mutable: take returns the oldest slot");
+		buffer.release(sequence);
+		sequence = buffer.claim();
+		check(sequence >= 0 && buffer.get(sequence) == slots[0], "mutable: released slot is reused");
+		buffer.publish(sequence);
+		try {
+			buffer.offer(new int[1]);
+			check(false, "mutable: offer rejected");
+		} catch (IllegalStateException e) {
+			check(true, "mutable: offer rejected");
+		}
+	}
+
+	/**
+	 * Check concurrent producers (every element received once, in producer order).
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	private static void concurrent() throws InterruptedException {
+		final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(1024, MpscRingBuffer.OverflowPolicy.BLOCK, 60000, MpscRingBuffer.WaitStrategy.BLOCKING);
+		Thread [] producers = new Thread[PRODUCERS];
+		int [] next = new int[PRODUCERS];
+		boolean ordered = true;
+
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < ELEMENTS; i++) {
+						buffer.offer(producer * ELEMENTS + i);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (int received = 0; received < PRODUCERS * ELEMENTS; received++) {
+			Integer element = buffer.poll(10, TimeUnit.SECONDS);
+
+			if (element == null) {
+				break;
+			}
+
+			int producer = element / ELEMENTS;
+
+			ordered &= (element % ELEMENTS == next[producer]++);
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		for (int p = 0; p < PRODUCERS; p++) {
+			ordered &= (next[p] == ELEMENTS);
+		}
+		check(ordered && buffer.isEmpty() && buffer.getDropped() == 0, "concurrent: " + PRODUCERS + " producers, every element once and in order");
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args ignored
+	 * @throws Exception if a check fails
+	 */
+	public static void main(String [] args) throws Exception {
+		dropNewest();
+		dropOldest();
+		block();
+		mutable();
+		concurrent();
+	}
+}
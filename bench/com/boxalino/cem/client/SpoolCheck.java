@@ -0,0 +1,435 @@
+package com.boxalino.cem.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Analytics spool recovery checks.
+ *
+ * Spools events against a local analytics endpoint stub and checks crash
+ * recovery (replay resumed from the checkpoint, a record with a bad CRC
+ * skipped and counted, the following records replayed), retries of failed
+ * events, discarding of events rejected by the api and quarantine of
+ * unreadable segments. Fails (exception, non-zero exit) on the first
+ * mismatch.
+ *
+ * Usage: ant bench
+ *
+ * @author nitro
+ */
+public class SpoolCheck {
+	/** Spooled events per check */
+	private static final int EVENTS = 30;
+
+	/** Maximum wait for the replayer [ms] */
+	private static final long TIMEOUT = 20000;
+
+
+	/**
+	 * Analytics endpoint stub (answers every request with the current status)
+	 *
+	 * @author nitro
+	 */
+	private static class Endpoint extends Thread {
+		/** Server socket */
+		private final ServerSocket server;
+
+		/** Received event descriptions */
+		private final List<String> descriptions = Collections.synchronizedList(new ArrayList<String>());
+
+		/** Answered status */
+		private volatile int status = 200;
+
+		/** Failures left before answering the status (503 answers) */
+		private volatile int failures = 0;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @throws IOException if the server socket cannot be opened
+		 */
+		private Endpoint() throws IOException {
+			this.server = new ServerSocket(0);
+			setDaemon(true);
+			start();
+		}
+
+
+		/**
+		 * Get the api url.
+		 *
+		 * @return api url
+		 */
+		private String url() {
+			return "http://127.0.0.1:" + server.getLocalPort();
+		}
+
+		/**
+		 * Accept loop.
+		 *
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Socket socket = server.accept();
+
+					try {
+						answer(socket);
+					} finally {
+						socket.close();
+					}
+				} catch (IOException e) {
+					if (server.isClosed()) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Answer one request (connection closed after the answer).
+		 *
+		 * @param socket client socket
+		 * @throws IOException if the request cannot be read
+		 */
+		private void answer(Socket socket) throws IOException {
+			InputStream is = socket.getInputStream();
+			int length = 0;
+			String line;
+
+			while ((line = readLine(is)).length() > 0) {
+				if (line.toLowerCase().startsWith("content-length:")) {
+					length = Integer.parseInt(line.substring(15).trim());
+				}
+			}
+
+			byte [] body = new byte[length];
+
+			new DataInputStream(is).readFully(body);
+
+			int code = status;
+
+			if (failures > 0) {
+				failures--;
+				code = 503;
+			} else {
+				for (String field : new String(body, "US-ASCII").split("&")) {
+					if (field.startsWith("eventDescription=")) {
+						descriptions.add(URLDecoder.decode(field.substring(17), "UTF-8"));
+					}
+				}
+			}
+
+			OutputStream os = socket.getOutputStream();
+
+			os.write(("HTTP/1.1 " + code + " Stub\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			os.flush();
+		}
+
+		/**
+		 * Read a request line.
+		 *
+		 * @param is input stream
+		 * @return line (without line end)
+		 * @throws IOException if the stream ends
+		 */
+		private static String readLine(InputStream is) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+
+			while ((c = is.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException("unexpected end of request");
+				}
+				if (c != '\r') {
+					line.append((char)c);
+				}
+			}
+			return line.toString();
+		}
+
+		/**
+		 * Close the endpoint.
+		 *
+		 * @throws IOException if the server socket cannot be closed
+		 */
+		private void close() throws IOException {
+			server.close();
+		}
+	}
+
+
+	/**
+	 * Check a condition.
+	 *
+	 * @param condition condition
+	 * @param message check description
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException("check failed: " + message);
+		}
+		System.out.println("ok " + message);
+	}
+
+	/**
+	 * Create an empty spool directory.
+	 *
+	 * @param name directory name
+	 * @return spool directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	private static File directory(String name) throws IOException {
+		File directory = File.createTempFile("spool-" + name, "");
+
+		directory.delete();
+		if (!directory.mkdirs()) {
+			throw new IOException("cannot create directory: " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Delete a spool directory.
+	 *
+	 * @param directory spool directory
+	 */
+	private static void delete(File directory) {
+		File [] files = directory.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Create a spool (fast replay and retries, no idle roll before close).
+	 *
+	 * @param endpoint endpoint stub
+	 * @param directory spool directory
+	 * @return spool
+	 * @throws IOException if the spool cannot be opened
+	 */
+	private static AnalyticsSpool spool(Endpoint endpoint, File directory) throws IOException {
+		AnalyticsSpool spool = new AnalyticsSpool(endpoint.url(), directory);
+
+		spool.segmentSize = 64 * 1024;
+		spool.replayRate = 1000;
+		spool.retryDelay = 10;
+		spool.maxRetryDelay = 100;
+		spool.compress = false;
+		// expected failures (503, 400, unreadable segment) are checked, not printed
+		spool.client.debug = false;
+		return spool;
+	}
+
+	/**
+	 * Spool events "i=0".."i=count-1", then close before the replayer rolls them.
+	 *
+	 * @param spool spool
+	 * @param count event count
+	 * @throws InterruptedException if interrupted
+	 */
+	private static void append(AnalyticsSpool spool, int count) throws InterruptedException {
+		spool.rollDelay = 60000;
+		for (int i = 0; i < count; i++) {
+			spool.append(new AnalyticsEvent("check", "i=" + i, new HashMap<String, String[]>(), new ArrayList<HttpClient.Cookie>()));
+		}
+		spool.close();
+	}
+
+	/**
+	 * Wait until a spool is fully replayed (or the timeout).
+	 *
+	 * @param spool spool
+	 * @param condition counter to wait for (replayed, discarded or quarantined)
+	 * @param expected expected count
+	 * @throws InterruptedException if interrupted
+	 */
+	private static void await(AnalyticsSpool spool, String condition, long expected) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+
+		while (System.currentTimeMillis() < end) {
+			long count = (
+				condition.equals("replayed") ? spool.getReplayed() :
+				condition.equals("discarded") ? spool.getDiscarded() :
+				spool.getQuarantined()
+			);
+
+			if (count >= expected && spool.getSize() == 0) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+
+	/**
+	 * Check crash recovery (checkpoint resumed, bad CRC record skipped).
+	 *
+	 * @param endpoint endpoint stub
+	 * @throws Exception if a check fails
+	 */
+	private static void recovery(Endpoint endpoint) throws Exception {
+		File directory = directory("recovery");
+		AnalyticsSpool spool = spool(endpoint, directory);
+
+		append(spool, EVENTS);
+		check(spool.getSpooled() == EVENTS && spool.getReplayed() == 0, "recovery: " + EVENTS + " events spooled, none replayed before the crash");
+
+		// crash after 10 acknowledged records
+		DataOutputStream os = new DataOutputStream(new FileOutputStream(new File(directory, "checkpoint")));
+
+		try {
+			os.writeLong(0);
+			os.writeLong(10);
+		} finally {
+			os.close();
+		}
+
+		// torn write: flip a payload byte of record 20 (bad CRC)
+		RandomAccessFile segment = new RandomAccessFile(new File(directory, "0000000000000000.log"), "rw");
+
+		try {
+			long position = 0;
+
+			for (int i = 0; i < 20; i++) {
+				segment.seek(position);
+				position += 8 + segment.readInt();
+			}
+			segment.seek(position + 8 + 20);
+
+			int b = segment.read();
+
+			segment.seek(position + 8 + 20);
+			segment.write(b ^ 0x5a);
+		} finally {
+			segment.close();
+		}
+
+		endpoint.descriptions.clear();
+		spool = spool(endpoint, directory);
+		spool.start();
+		await(spool, "replayed", EVENTS - 11);
+		spool.close();
+
+		List<String> expected = new ArrayList<String>();
+
+		for (int i = 10; i < EVENTS; i++) {
+			if (i != 20) {
+				expected.add("i=" + i);
+			}
+		}
+		check(spool.getSize() == 0, "recovery: spool fully replayed after restart");
+		check(endpoint.descriptions.equals(expected), "recovery: replay resumed at the checkpoint, every following record sent once in order " + endpoint.descriptions);
+		check(spool.getCorrupted() == 1 && spool.getReplayed() == EVENTS - 11, "recovery: bad CRC record skipped and counted, following records replayed");
+		delete(directory);
+	}
+
+	/**
+	 * Check retries (unavailable api) and discarding (events rejected by the api).
+	 *
+	 * @param endpoint endpoint stub
+	 * @throws Exception if a check fails
+	 */
+	private static void failures(Endpoint endpoint) throws Exception {
+		File directory = directory("failures");
+		AnalyticsSpool spool = spool(endpoint, directory);
+
+		append(spool, 10);
+		endpoint.descriptions.clear();
+		endpoint.failures = 5;
+		spool.start();
+		await(spool, "replayed", 10);
+		spool.close();
+		check(spool.getReplayed() == 10 && spool.getDiscarded() == 0 && endpoint.descriptions.size() == 10, "retry: events retried while the api is unavailable (503), each replayed once");
+		delete(directory);
+
+		directory = directory("rejected");
+		spool = spool(endpoint, directory);
+		append(spool, 10);
+		endpoint.descriptions.clear();
+		endpoint.status = 400;
+		spool.start();
+		await(spool, "discarded", 10);
+		spool.close();
+		endpoint.status = 200;
+		check(spool.getDiscarded() == 10 && spool.getReplayed() == 0 && spool.getSize() == 0, "rejected: events rejected by the api (400) discarded");
+		check(endpoint.descriptions.size() == 10, "rejected: rejected events not retried");
+		delete(directory);
+	}
+
+	/**
+	 * Check quarantine (unreadable segment renamed, later segments replayed).
+	 *
+	 * @param endpoint endpoint stub
+	 * @throws Exception if a check fails
+	 */
+	private static void quarantine(Endpoint endpoint) throws Exception {
+		File directory = directory("quarantine");
+		AnalyticsSpool spool = spool(endpoint, directory);
+
+		append(spool, 10);
+
+		// unreadable compressed segment before the spooled one
+		FileOutputStream os = new FileOutputStream(new File(directory, "0000000000000000.log.gz"));
+
+		try {
+			os.write("not a gzip segment".getBytes("US-ASCII"));
+		} finally {
+			os.close();
+		}
+		new File(directory, "0000000000000000.log").renameTo(new File(directory, "0000000000000001.log"));
+		new File(directory, "checkpoint").delete();
+
+		endpoint.descriptions.clear();
+		spool = spool(endpoint, directory);
+		spool.maxReadAttempts = 2;
+		spool.start();
+		await(spool, "replayed", 10);
+		spool.close();
+		check(spool.getQuarantined() == 1 && new File(directory, "0000000000000000.log.gz.bad").isFile(), "quarantine: unreadable segment renamed *.bad and kept");
+		check(spool.getReplayed() == 10 && endpoint.descriptions.size() == 10 && spool.getSize() == 0, "quarantine: following segment replayed");
+		delete(directory);
+	}
+
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args ignored
+	 * @throws Exception if a check fails
+	 */
+	public static void main(String [] args) throws Exception {
+		Endpoint endpoint = new Endpoint();
+
+		try {
+			recovery(endpoint);
+			failures(endpoint);
+			quarantine(endpoint);
+		} finally {
+			endpoint.close();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.boxalino.cem.client;
+
+
+/**
+ * Queueing delay admission controller (CoDel-style).
+ *
+ * Every queued task reports its sojourn time (time spent waiting in queue) when
+ * it is about to run. While the minimum sojourn time observed over an interval
+ * stays below the target, only tasks older than the interval are shed. Once the
+ * minimum stays above the target for a whole interval the queue is considered
+ * standing and tasks waiting longer than the target are shed, so fresh work is
+ * served instead of a stale backlog.
+ *
+ * @author nitro
+ */
+public class AdmissionController {
+	/** Controller name (for metrics) */
+	public final String name;
+
+	/** Target queueing delay [ms] */
+	public volatile long target;
+
+	/** Observation interval [ms] */
+	public volatile long interval;
+
+	/** Interval end [ns] */
+	private long intervalEnd = 0;
+
+	/** Minimum sojourn time in current interval [ns] */
+	private long minSojourn = Long.MAX_VALUE;
+
+	/** Overloaded state */
+	private boolean overloaded = false;
+
+	/** Admitted tasks */
+	private long admitted = 0;
+
+	/** Shed tasks */
+	private long shed = 0;
+
+
+	/**
+	 * Constructor (target = 50ms, interval = 500ms)
+	 *
+	 * @param name controller name
+	 */
+	public AdmissionController(String name) {
+		this(name, 50, 500);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param name controller name
+	 * @param target target queueing delay [ms]
+	 * @param interval observation interval [ms]
+	 */
+	public AdmissionController(String name, long target, long interval) {
+		if (target <= 0 || interval < target) {
+			throw new IllegalArgumentException("invalid target/interval: " + target + "/" + interval);
+		}
+		this.name = name;
+		this.target = target;
+		this.interval = interval;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public synchronized String toString() {
+		return (
+			"{name=" + name +
+			",overloaded=" + overloaded +
+			",admitted=" + admitted +
+			",shed=" + shed + "}"
+		);
+	}
+
+
+	/**
+	 * Check if the queue is considered overloaded
+	 *
+	 * @return true if overloaded
+	 */
+	public synchronized boolean isOverloaded() {
+		return overloaded;
+	}
+
+	/**
+	 * Get admitted tasks
+	 *
+	 * @return admitted tasks
+	 */
+	public synchronized long getAdmitted() {
+		return admitted;
+	}
+
+	/**
+	 * Get shed tasks
+	 *
+	 * @return shed tasks
+	 */
+	public synchronized long getShed() {
+		return shed;
+	}
+
+
+	/**
+	 * Decide if a dequeued task may run.
+	 *
+	 * @param enqueueTime enqueue time [ns] (System.nanoTime())
+	 * @return true if admitted, false if it must be shed
+	 */
+	public synchronized boolean admit(long enqueueTime) {
+		long now = System.nanoTime();
+		long sojourn = now - enqueueTime;
+		long targetNanos = target * 1000000L;
+		long intervalNanos = interval * 1000000L;
+
+		if (sojourn < minSojourn) {
+			minSojourn = sojourn;
+		}
+		if (intervalEnd == 0) {
+			intervalEnd = now + intervalNanos;
+		} else if (now >= intervalEnd) {
+			overloaded = (minSojourn > targetNanos);
+			minSojourn = Long.MAX_VALUE;
+			intervalEnd = now + intervalNanos;
+		}
+		if (sojourn > (overloaded ? targetNanos : intervalNanos)) {
+			shed++;
+			return false;
+		}
+		admitted++;
+		return true;
+	}
+}
@@ -0,0 +1,98 @@
+package com.boxalino.cem.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An analytics event detached from its servlet request.
+ *
+ * Holds the request environment (parameters) and visitor cookies captured when
+ * the event was created, so it can be delivered later from another thread.
+ * Each event carries a node-unique id, sent with it so that retried
+ * deliveries are idempotent.
+ *
+ * @author nitro
+ */
+public class AnalyticsEvent {
+	/** Event id (see EventIdGenerator) */
+	public final long id;
+
+	/** Event name */
+	public final String name;
+
+	/** Event description (raw) */
+	public final String description;
+
+	/** Request environment parameters */
+	public final Map<String, String[]> parameters;
+
+	/** Visitor cookies (cem*) */
+	public final List<HttpClient.Cookie> cookies;
+
+	/** Creation time [ms] */
+	public final long time;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param parameters request environment parameters
+	 * @param cookies visitor cookies
+	 */
+	public AnalyticsEvent(String name, String description, Map<String, String[]> parameters, List<HttpClient.Cookie> cookies) {
+		this(name, description, parameters, cookies, System.currentTimeMillis());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param parameters request environment parameters
+	 * @param cookies visitor cookies
+	 * @param time creation time [ms]
+	 */
+	public AnalyticsEvent(String name, String description, Map<String, String[]> parameters, List<HttpClient.Cookie> cookies, long time) {
+		this(EventIdGenerator.shared.next(), name, description, parameters, cookies, time);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param id event id
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param parameters request environment parameters
+	 * @param cookies visitor cookies
+	 * @param time creation time [ms]
+	 */
+	public AnalyticsEvent(long id, String name, String description, Map<String, String[]> parameters, List<HttpClient.Cookie> cookies, long time) {
+		this.id = id;
+		this.name = name;
+		this.description = description;
+		this.parameters = Collections.unmodifiableMap(parameters);
+		this.cookies = Collections.unmodifiableList(cookies);
+		this.time = time;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{id=" + EventIdGenerator.format(id) +
+			",name=" + name +
+			",description=" + description +
+			",cookies=" + cookies +
+			",time=" + time + "}"
+		);
+	}
+}
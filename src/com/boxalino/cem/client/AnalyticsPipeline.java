@@ -0,0 +1,843 @@
+package com.boxalino.cem.client;
+
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Asynchronous analytics pipeline.
+ *
+ * Tracked events are enqueued (bounded) and delivered by a background flusher
+ * in batches bounded by size and delay. Batches are posted to /analytics/batch
+ * using indexed form fields (events=n, eventName[i], eventDescription[i],
+ * cookie[i] and request environment fields[i]). If the endpoint does not
+ * support batches, events are delivered one by one through /analytics. Events
+ * that overflow the queue (rejected or evicted, see overflow policy) or cannot
+ * be delivered (failed batch, endpoint down) are appended to the spool, if
+ * configured; an overflowing event is counted once, as spooled or dropped.
+ *
+ * Queues hold preallocated mutable event slots (see EventSlot): events
+ * tracked by the client are captured from their request into a slot, so
+ * enqueuing them allocates nothing in steady state; flushers build the
+ * events to deliver.
+ *
+ * Delivery is partitioned: events are hashed by visitor (visitor cookie, see
+ * visitorCookie) onto ordered lanes, each with its own queue, flusher and
+ * client (connection), so a visitor's events are delivered in order while
+ * lanes deliver in parallel. Events without visitor cookie are hashed by
+ * client address and agent.
+ *
+ * Flushers are started by start(), events offered before are queued until
+ * then. Once closed, a pipeline is not started again: events offered after
+ * close are spooled (or counted as dropped).
+ *
+ * @author nitro
+ */
+public class AnalyticsPipeline {
+	/**
+	 * Delivery lane
+	 *
+	 * @author nitro
+	 */
+	private class Lane {
+		/** Delivery client */
+		private final ApiClient client;
+
+		/** Event queue (mutable event slots) */
+		private final MpscRingBuffer<EventSlot> queue;
+
+		/** Flusher thread */
+		private Thread flusher = null;
+
+		/** Flusher exited (the queue has no consumer left, guarded by the pipeline) */
+		private boolean exited = false;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param url api url
+		 * @param capacity maximum queued events
+		 * @param overflowPolicy overflow policy
+		 * @param blockTimeout block timeout (BLOCK policy) [ms]
+		 */
+		private Lane(String url, int capacity, MpscRingBuffer.OverflowPolicy overflowPolicy, long blockTimeout) {
+			this.client = new ApiClient(url);
+			this.queue = new MpscRingBuffer<EventSlot>(capacity, overflowPolicy, blockTimeout, MpscRingBuffer.WaitStrategy.BLOCKING, EventSlot.factory);
+			this.queue.evictor = evictor;
+		}
+	}
+
+
+	/** Delivery client of the first lane (timeouts, limiters and callback may be configured, see getClient() for other lanes) */
+	public final ApiClient client;
+
+	/** Maximum events per batch, defaults to 100 */
+	public volatile int batchSize = 100;
+
+	/** Maximum batch delay, defaults to 1000 [ms] */
+	public volatile long maxDelay = 1000;
+
+	/** Delay before probing batch support again, defaults to 300000 [ms] */
+	public volatile long batchProbeDelay = 300000;
+
+	/** Spool for overflowing and undelivered events, defaults to null (events are lost) */
+	public volatile AnalyticsSpool spool = null;
+
+	/** Visitor cookie name (stable visitor identity, lane selection), defaults to cemv */
+	public volatile String visitorCookie = "cemv";
+
+	/** Delivery lanes */
+	private final Lane [] lanes;
+
+	/** Batch endpoint available */
+	private volatile boolean batching = true;
+
+	/** Next batch probe time [ms] */
+	private volatile long batchProbeTime = 0;
+
+	/** Running flag */
+	private volatile boolean running = false;
+
+	/** Closed flag (set once by close) */
+	private volatile boolean closed = false;
+
+	/** Aborted flag (close deadline elapsed, flushers spill their queue) */
+	private volatile boolean aborted = false;
+
+	/** Enqueued events */
+	private final AtomicLong enqueued = new AtomicLong();
+
+	/** Delivered events */
+	private final AtomicLong delivered = new AtomicLong();
+
+	/** Failed events */
+	private final AtomicLong failed = new AtomicLong();
+
+	/** Delivered batches */
+	private final AtomicLong batches = new AtomicLong();
+
+	/** Spooled events */
+	private final AtomicLong spooled = new AtomicLong();
+
+	/** Dropped events (overflow not spooled) */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** Evicted event handler (DROP_OLDEST policy: spooled or dropped) */
+	private final MpscRingBuffer.Evictor<EventSlot> evictor = new MpscRingBuffer.Evictor<EventSlot>() {
+		@Override
+		public boolean evict(EventSlot slot) {
+			overflow(slot.toEvent());
+			settled.incrementAndGet();
+			return true;
+		}
+	};
+
+	/** Settled events (taken from a queue and delivered, failed or spooled) */
+	private final AtomicLong settled = new AtomicLong();
+
+
+	/**
+	 * Constructor (capacity = 16384, drop newest, one lane per processor up to 4)
+	 *
+	 * @param url api url
+	 */
+	public AnalyticsPipeline(String url) {
+		this(url, 16384, MpscRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+	}
+
+	/**
+	 * Constructor (one lane per processor up to 4)
+	 *
+	 * @param url api url
+	 * @param capacity maximum queued events (rounded up to a power of two)
+	 * @param overflowPolicy overflow policy
+	 * @param blockTimeout block timeout (BLOCK policy) [ms]
+	 */
+	public AnalyticsPipeline(String url, int capacity, MpscRingBuffer.OverflowPolicy overflowPolicy, long blockTimeout) {
+		this(url, capacity, overflowPolicy, blockTimeout, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param url api url
+	 * @param capacity maximum queued events (split across lanes, rounded up to a power of two)
+	 * @param overflowPolicy overflow policy
+	 * @param blockTimeout block timeout (BLOCK policy) [ms]
+	 * @param lanes delivery lanes (ordered per visitor, each with its own connection)
+	 */
+	public AnalyticsPipeline(String url, int capacity, MpscRingBuffer.OverflowPolicy overflowPolicy, long blockTimeout, int lanes) {
+		if (lanes < 1) {
+			throw new IllegalArgumentException("invalid lanes: " + lanes);
+		}
+		this.lanes = new Lane[lanes];
+		for (int i = 0; i < lanes; i++) {
+			this.lanes[i] = new Lane(url, Math.max(2, capacity / lanes), overflowPolicy, blockTimeout);
+		}
+		this.client = this.lanes[0].client;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{url=" + client.url +
+			",lanes=" + lanes.length +
+			",queued=" + getQueued() +
+			",enqueued=" + enqueued.get() +
+			",delivered=" + delivered.get() +
+			",failed=" + failed.get() +
+			",dropped=" + getDropped() +
+			",spooled=" + spooled.get() +
+			",batches=" + batches.get() +
+			",batching=" + batching + "}"
+		);
+	}
+
+
+	/**
+	 * Get delivery lanes
+	 *
+	 * @return lane count
+	 */
+	public int getLanes() {
+		return lanes.length;
+	}
+
+	/**
+	 * Get the delivery client of a lane (to configure timeouts, limiters and callback)
+	 *
+	 * @param lane lane index
+	 * @return delivery client
+	 */
+	public ApiClient getClient(int lane) {
+		return lanes[lane].client;
+	}
+
+	/**
+	 * Get queued events
+	 *
+	 * @return queued events
+	 */
+	public int getQueued() {
+		int queued = 0;
+
+		for (Lane lane : lanes) {
+			queued += lane.queue.size();
+		}
+		return queued;
+	}
+
+	/**
+	 * Get enqueued events
+	 *
+	 * @return enqueued events
+	 */
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	/**
+	 * Get delivered events
+	 *
+	 * @return delivered events
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * Get failed events
+	 *
+	 * @return failed events
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Get dropped events (queue overflow, not spooled)
+	 *
+	 * @return dropped events
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get spooled events (overflow or delivery failure)
+	 *
+	 * @return spooled events
+	 */
+	public long getSpooled() {
+		return spooled.get();
+	}
+
+	/**
+	 * Get delivered batches
+	 *
+	 * @return delivered batches
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+
+	/**
+	 * Start background flushers (if not running)
+	 *
+	 * @throws IllegalStateException if closed
+	 */
+	public synchronized void start() {
+		if (closed) {
+			throw new IllegalStateException("pipeline closed");
+		}
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < lanes.length; i++) {
+			final Lane lane = lanes[i];
+
+			lane.flusher = new Thread(
+				new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush(lane);
+						} finally {
+							exit(lane);
+						}
+					}
+				},
+				"com.boxalino.cem.client.AnalyticsPipeline-" + i
+			);
+			lane.flusher.setDaemon(true);
+			lane.flusher.start();
+		}
+	}
+
+	/**
+	 * Wait until enqueued events are delivered (or failed or spooled).
+	 *
+	 * @param timeout maximum wait [ms]
+	 * @return true if drained, false if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (!isDrained()) {
+			long wait = deadline - System.currentTimeMillis();
+
+			if (wait <= 0) {
+				return false;
+			}
+			Thread.sleep(Math.min(wait, 10));
+		}
+		return true;
+	}
+
+	/**
+	 * Stop background flushers after queued events are delivered (events
+	 * queued without flusher, never started, are spooled)
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		for (Thread thread : stop()) {
+			if (thread != null) {
+				thread.join();
+			}
+		}
+		for (Lane lane : lanes) {
+			spill(lane);
+		}
+	}
+
+	/**
+	 * Stop background flushers after queued events are delivered or the timeout
+	 * elapsed. Events still queued at the deadline are spooled, if a spool is
+	 * configured, else counted as failed; batches still in flight complete in
+	 * the background (their flusher spools the rest of its queue afterwards).
+	 *
+	 * @param timeout maximum wait [ms]
+	 * @return true if drained, false if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean close(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean drained = true;
+
+		for (Thread thread : stop()) {
+			if (thread != null) {
+				long wait = deadline - System.currentTimeMillis();
+
+				if (wait > 0) {
+					thread.join(wait);
+				}
+				drained &= !thread.isAlive();
+			}
+		}
+		aborted = true;
+		for (Lane lane : lanes) {
+			drained &= (spill(lane) == 0);
+		}
+		return drained;
+	}
+
+
+	/**
+	 * Enqueue an event (delivered once started, spooled if closed).
+	 *
+	 * @param event analytics event
+	 * @return true if enqueued (or spooled), false if dropped (overflow policy)
+	 */
+	public boolean offer(AnalyticsEvent event) {
+		if (closed) {
+			return overflow(event);
+		}
+
+		Lane lane = lane(event);
+		long sequence = lane.queue.claim();
+
+		if (sequence < 0) {
+			return overflow(event);
+		}
+		lane.queue.get(sequence).set(event);
+		return publish(lane, sequence);
+	}
+
+	/**
+	 * Enqueue an event captured from a servlet request (no allocation in
+	 * steady state, see EventSlot).
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param request optional http request (not decoded)
+	 * @param encoding servlet uri encoding
+	 * @return true if enqueued (or spooled), false if dropped (overflow policy)
+	 */
+	boolean offer(String name, String description, HttpServletRequest request, String encoding) {
+		Lane lane = lane(request);
+		long sequence = (closed ? -1 : lane.queue.claim());
+
+		if (sequence < 0) {
+			EventSlot slot = new EventSlot();
+
+			slot.capture(name, description, request, encoding);
+			return overflow(slot.toEvent());
+		}
+		lane.queue.get(sequence).capture(name, description, request, encoding);
+		return publish(lane, sequence);
+	}
+
+	/**
+	 * Enqueue a view ("id", optional "name" and "widget" description) captured
+	 * from a servlet request (no allocation in steady state, see EventSlot).
+	 *
+	 * @param name event name (productView, categoryView)
+	 * @param id item id
+	 * @param itemName optional item name
+	 * @param request optional http request (not decoded)
+	 * @param encoding servlet uri encoding
+	 * @return true if enqueued (or spooled), false if dropped (overflow policy)
+	 */
+	boolean offerView(String name, String id, String itemName, HttpServletRequest request, String encoding) {
+		Lane lane = lane(request);
+		long sequence = (closed ? -1 : lane.queue.claim());
+
+		if (sequence < 0) {
+			EventSlot slot = new EventSlot();
+
+			slot.captureView(name, id, itemName, request, encoding);
+			return overflow(slot.toEvent());
+		}
+		lane.queue.get(sequence).captureView(name, id, itemName, request, encoding);
+		return publish(lane, sequence);
+	}
+
+
+	/**
+	 * Publish an enqueued event slot.
+	 *
+	 * @param lane delivery lane
+	 * @param sequence slot sequence
+	 * @return true
+	 */
+	private boolean publish(Lane lane, long sequence) {
+		lane.queue.publish(sequence);
+		enqueued.incrementAndGet();
+		if (closed) {
+			// raced with close: the flusher may be gone
+			spill(lane);
+		}
+		return true;
+	}
+
+	/**
+	 * Spool an event that overflowed its queue (or was offered after close),
+	 * else count it as dropped.
+	 *
+	 * @param event analytics event
+	 * @return true if spooled
+	 */
+	private boolean overflow(AnalyticsEvent event) {
+		if (spool(event)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Stop background flushers (they exit once their queue is empty).
+	 *
+	 * @return flusher threads (null if not started)
+	 */
+	private synchronized Thread [] stop() {
+		Thread [] threads = new Thread[lanes.length];
+
+		closed = true;
+		running = false;
+		for (int i = 0; i < lanes.length; i++) {
+			threads[i] = lanes[i].flusher;
+		}
+		return threads;
+	}
+
+	/**
+	 * Flusher exit of a lane: spill what is left (aborted or raced with close).
+	 *
+	 * @param lane delivery lane
+	 */
+	private synchronized void exit(Lane lane) {
+		lane.exited = true;
+		spill(lane);
+	}
+
+	/**
+	 * Spool (or fail) the events left in a lane queue after close, unless its
+	 * flusher still runs (single consumer: it spills on exit).
+	 *
+	 * @param lane delivery lane
+	 * @return spilled events
+	 */
+	private synchronized int spill(Lane lane) {
+		long sequence;
+		int count = 0;
+
+		if (lane.flusher != null && !lane.exited) {
+			return 0;
+		}
+		while ((sequence = lane.queue.take()) >= 0) {
+			if (!spool(take(lane.queue, sequence))) {
+				failed.incrementAndGet();
+			}
+			settled.incrementAndGet();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Build the event of a taken slot and release the slot.
+	 *
+	 * @param queue event queue
+	 * @param sequence slot sequence
+	 * @return analytics event
+	 */
+	private static AnalyticsEvent take(MpscRingBuffer<EventSlot> queue, long sequence) {
+		try {
+			return queue.get(sequence).toEvent();
+		} finally {
+			queue.release(sequence);
+		}
+	}
+
+	/**
+	 * Check if all enqueued events were settled (evicted events included).
+	 *
+	 * @return true if drained
+	 */
+	private boolean isDrained() {
+		return (settled.get() >= enqueued.get());
+	}
+
+	/**
+	 * Select the lane of an event (visitor cookie hash, else client address
+	 * and agent hash).
+	 *
+	 * @param event analytics event
+	 * @return delivery lane
+	 */
+	private Lane lane(AnalyticsEvent event) {
+		if (lanes.length == 1) {
+			return lanes[0];
+		}
+
+		String visitorCookie = this.visitorCookie;
+
+		for (HttpClient.Cookie cookie : event.cookies) {
+			if (cookie.getName().equals(visitorCookie) && cookie.getValue() != null) {
+				return lane(cookie.getValue().hashCode());
+			}
+		}
+
+		String [] address = event.parameters.get("clientAddress");
+		String [] agent = event.parameters.get("clientAgent");
+
+		return lane(
+			31 * (address != null && address.length > 0 ? address[0].hashCode() : 0) +
+			(agent != null && agent.length > 0 ? agent[0].hashCode() : 0)
+		);
+	}
+
+	/**
+	 * Select the lane of an event captured from a request (see lane(AnalyticsEvent)).
+	 *
+	 * @param request optional http request
+	 * @return delivery lane
+	 */
+	private Lane lane(HttpServletRequest request) {
+		if (lanes.length == 1) {
+			return lanes[0];
+		}
+		if (request == null) {
+			return lane(0);
+		}
+
+		javax.servlet.http.Cookie [] cookies = request.getCookies();
+		String visitorCookie = this.visitorCookie;
+
+		if (cookies != null) {
+			for (javax.servlet.http.Cookie cookie : cookies) {
+				if (cookie.getName().equals(visitorCookie) && cookie.getValue() != null) {
+					return lane(cookie.getValue().hashCode());
+				}
+			}
+		}
+
+		String address = request.getHeader("X-Forwarded-For");
+		String agent = request.getHeader("User-Agent");
+
+		if (address == null) {
+			address = request.getRemoteAddr();
+		}
+		return lane(
+			31 * (address != null ? address.hashCode() : 0) +
+			(agent != null ? agent.hashCode() : 0)
+		);
+	}
+
+	/**
+	 * Select the lane of a visitor hash.
+	 *
+	 * @param hash visitor hash
+	 * @return delivery lane
+	 */
+	private Lane lane(int hash) {
+		hash ^= (hash >>> 16);
+		return lanes[(hash & 0x7fffffff) % lanes.length];
+	}
+
+	/**
+	 * Flusher loop of a lane.
+	 *
+	 * @param lane delivery lane
+	 */
+	private void flush(Lane lane) {
+		MpscRingBuffer<EventSlot> queue = lane.queue;
+		List<AnalyticsEvent> batch = new ArrayList<AnalyticsEvent>();
+
+		while ((running || !queue.isEmpty()) && !aborted) {
+			try {
+				long sequence = queue.take(maxDelay, TimeUnit.MILLISECONDS);
+
+				if (sequence < 0) {
+					continue;
+				}
+				batch.add(take(queue, sequence));
+
+				long deadline = System.currentTimeMillis() + maxDelay;
+
+				while (batch.size() < batchSize) {
+					long wait = deadline - System.currentTimeMillis();
+
+					if ((sequence = queue.take()) >= 0) {
+						batch.add(take(queue, sequence));
+						continue;
+					}
+					if (wait <= 0 || (sequence = queue.take(wait, TimeUnit.MILLISECONDS)) < 0) {
+						break;
+					}
+					batch.add(take(queue, sequence));
+				}
+				deliver(lane.client, batch);
+			} catch (InterruptedException e) {
+				running = false;
+			} catch (RuntimeException e) {
+				for (AnalyticsEvent event : batch) {
+					if (!spool(event)) {
+						failed.incrementAndGet();
+					}
+				}
+				client.reportError(e);
+			} finally {
+				settled.addAndGet(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Deliver a batch (batch endpoint or one by one, in order).
+	 *
+	 * Events are sent one by one only if the batch endpoint is not supported.
+	 * A failed batch (connection failure, timeout, server or client error) is
+	 * spooled as a whole, and once the endpoint is down while sending one by
+	 * one the rest is spooled: the spool replays it with backoff instead of
+	 * turning every failed batch into one doomed request per event.
+	 *
+	 * @param client lane client
+	 * @param batch events
+	 */
+	private void deliver(ApiClient client, List<AnalyticsEvent> batch) {
+		boolean spill = false;
+
+		if (batch.size() > 1 && (batching || System.currentTimeMillis() >= batchProbeTime)) {
+			int code = postBatch(client, batch);
+
+			if (code == 200) {
+				EventAckRecord ackRecord = client.ackRecord;
+
+				if (ackRecord != null) {
+					for (AnalyticsEvent event : batch) {
+						ackRecord.acknowledge(event.id);
+					}
+				}
+				batching = true;
+				batches.incrementAndGet();
+				delivered.addAndGet(batch.size());
+				return;
+			}
+			if (code == 404 || code == 405 || code == 501) {
+				batching = false;
+				batchProbeTime = System.currentTimeMillis() + batchProbeDelay;
+			} else {
+				spill = true;
+			}
+		}
+		for (AnalyticsEvent event : batch) {
+			if (!spill && client.trackEvent(event)) {
+				delivered.incrementAndGet();
+				continue;
+			}
+			if (!spool(event)) {
+				failed.incrementAndGet();
+			}
+			spill = (spill || isDown(client.getCode()));
+		}
+	}
+
+	/**
+	 * Check if a response code means the endpoint is down.
+	 *
+	 * @param code http code (0 if the request failed: connection failure or timeout)
+	 * @return true if down (no response or server error), false otherwise
+	 */
+	private static boolean isDown(int code) {
+		return (code == 0 || (code >= 500 && code != 501));
+	}
+
+	/**
+	 * Append an event to the spool, if any.
+	 *
+	 * @param event analytics event
+	 * @return true if spooled
+	 */
+	private boolean spool(AnalyticsEvent event) {
+		AnalyticsSpool spool = this.spool;
+
+		if (spool != null && spool.append(event)) {
+			spooled.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Post a batch to the batch endpoint.
+	 *
+	 * @param client lane client
+	 * @param batch events
+	 * @return http code (0 if failed)
+	 */
+	private int postBatch(final ApiClient client, List<AnalyticsEvent> batch) {
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		int i = 0;
+
+		parameters.put("events", new String [] { Integer.toString(batch.size()) });
+		for (AnalyticsEvent event : batch) {
+			StringBuilder cookie = new StringBuilder();
+
+			for (HttpClient.Cookie c : event.cookies) {
+				if (cookie.length() > 0) {
+					cookie.append("; ");
+				}
+				cookie.append(c.getName());
+				cookie.append('=');
+				cookie.append(c.getValue());
+			}
+			for (Map.Entry<String, String[]> entry : event.parameters.entrySet()) {
+				parameters.put(entry.getKey() + "[" + i + "]", entry.getValue());
+			}
+			parameters.put("eventId[" + i + "]", new String [] { EventIdGenerator.format(event.id) });
+			parameters.put("eventName[" + i + "]", new String [] { event.name });
+			parameters.put("eventDescription[" + i + "]", new String [] { event.description });
+			parameters.put("cookie[" + i + "]", new String [] { cookie.toString() });
+			i++;
+		}
+		client.removeCookies("cem");
+
+		final int [] code = new int[1];
+
+		client.postFields(
+			client.url + "/analytics/batch",
+			parameters,
+			"UTF-8",
+			null,
+			new HttpClient.Callback() {
+				@Override
+				public void beginResponse() throws Exception {
+					code[0] = client.getCode();
+				}
+
+				@Override
+				public void parseResponse(InputStream is) throws Exception {
+				}
+
+				@Override
+				public void error(Exception e) {
+				}
+			}
+		);
+		return code[0];
+	}
+}
@@ -0,0 +1,506 @@
+package com.boxalino.cem.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Analytics replay and backfill tool.
+ *
+ * Reads spooled events (spool directories or segment files) and exported
+ * events (text files, one event per line) and replays them to a CEM endpoint
+ * (or a local stand-in) through an analytics pipeline: concurrency is the
+ * number of pipeline lanes (each with its own connection, events of a visitor
+ * stay ordered), batches use the batch endpoint when available (else
+ * ApiClient.trackEvent), the read rate is limited and progress is reported
+ * periodically. Reading blocks while the pipeline is full.
+ *
+ * Exported lines hold form-encoded event fields, alone or inside an access
+ * log line (the token containing "eventName=" is used):
+ * eventName, eventDescription, eventId (base 36, optional), eventTime (ms,
+ * optional), cookie ("name=value; name=value", optional), other fields are
+ * replayed as environment parameters. Text files ending with .gz are
+ * decompressed.
+ *
+ * Spool checkpoints are ignored: spooled events carry their id, so events
+ * already delivered are deduplicated by the server.
+ *
+ * @author nitro
+ */
+public class AnalyticsReplay {
+	/** Delivery pipeline (lanes, batching, spool for undeliverable events) */
+	public final AnalyticsPipeline pipeline;
+
+	/** Maximum read rate (0 = unlimited), defaults to 0 [events/s] */
+	public volatile double rate = 0;
+
+	/** Progress report interval (0 = none), defaults to 10000 [ms] */
+	public volatile long progressInterval = 10000;
+
+	/** Progress output */
+	public volatile PrintStream out = System.out;
+
+	/** Read events */
+	private final AtomicLong read = new AtomicLong();
+
+	/** Skipped lines (no event) */
+	private final AtomicLong skipped = new AtomicLong();
+
+	/** Corrupted records */
+	private final AtomicLong corrupted = new AtomicLong();
+
+	/** Rejected events (pipeline full) */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Next read time (rate limit) [ns] */
+	private long next = System.nanoTime();
+
+	/** Start time [ms] */
+	private long startTime = 0;
+
+	/** Progress reporter thread */
+	private Thread reporter = null;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param url api url
+	 * @param concurrency delivery lanes (connections)
+	 * @param batchSize maximum events per batch
+	 */
+	public AnalyticsReplay(String url, int concurrency, int batchSize) {
+		this.pipeline = new AnalyticsPipeline(url, Math.max(1024, concurrency * batchSize * 4), MpscRingBuffer.OverflowPolicy.BLOCK, 60000, concurrency);
+		this.pipeline.batchSize = Math.max(batchSize, 1);
+		this.pipeline.maxDelay = 100;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		long time = Math.max(System.currentTimeMillis() - startTime, 1);
+
+		return (
+			"{read=" + read.get() +
+			",skipped=" + skipped.get() +
+			",corrupted=" + corrupted.get() +
+			",delivered=" + pipeline.getDelivered() +
+			",failed=" + pipeline.getFailed() +
+			",spooled=" + pipeline.getSpooled() +
+			",rejected=" + rejected.get() +
+			",queued=" + pipeline.getQueued() +
+			",rate=" + (pipeline.getDelivered() * 1000 / time) + "/s}"
+		);
+	}
+
+
+	/**
+	 * Get read events
+	 *
+	 * @return read events
+	 */
+	public long getRead() {
+		return read.get();
+	}
+
+	/**
+	 * Get lost events (failed or rejected, and not spooled)
+	 *
+	 * @return lost events
+	 */
+	public long getLost() {
+		return pipeline.getFailed() + rejected.get();
+	}
+
+
+	/**
+	 * Start delivery and progress reporting (if not started).
+	 *
+	 */
+	public synchronized void start() {
+		if (startTime > 0) {
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		pipeline.start();
+		if (progressInterval > 0) {
+			reporter = new Thread(
+				new Runnable() {
+					@Override
+					public void run() {
+						report();
+					}
+				},
+				"com.boxalino.cem.client.AnalyticsReplay"
+			);
+			reporter.setDaemon(true);
+			reporter.start();
+		}
+	}
+
+	/**
+	 * Deliver remaining events and stop.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		Thread thread;
+
+		pipeline.close();
+		synchronized (this) {
+			thread = reporter;
+			reporter = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+
+	/**
+	 * Replay a file or directory (spool segments in sequence order, other files by name).
+	 *
+	 * @param file spool directory, segment or exported events file
+	 * @throws IOException if a file cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void replay(File file) throws IOException, InterruptedException {
+		start();
+		if (file.isDirectory()) {
+			File [] files = file.listFiles();
+
+			if (files == null) {
+				throw new IOException("cannot list directory: " + file);
+			}
+			Arrays.sort(files);
+			for (File f : files) {
+				// skip spool checkpoint
+				if (f.isFile() && !f.getName().startsWith("checkpoint")) {
+					replay(f);
+				}
+			}
+		} else if (AnalyticsSpool.isSegment(file.getName())) {
+			replaySegment(file);
+		} else {
+			replayLines(file);
+		}
+	}
+
+	/**
+	 * Replay a spool segment.
+	 *
+	 * @param file segment file
+	 * @throws IOException if the segment cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void replaySegment(File file) throws IOException, InterruptedException {
+		ByteBuffer buffer = AnalyticsSpool.load(file);
+		byte [] payload;
+
+		while ((payload = AnalyticsSpool.read(buffer, corrupted)) != null) {
+			try {
+				offer(AnalyticsSpool.decode(payload));
+			} catch (IOException e) {
+				corrupted.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Replay an exported events file.
+	 *
+	 * @param file events file (gzip if .gz)
+	 * @throws IOException if the file cannot be read
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void replayLines(File file) throws IOException, InterruptedException {
+		InputStream is = new FileInputStream(file);
+
+		try {
+			if (file.getName().endsWith(".gz")) {
+				is = new GZIPInputStream(is);
+			}
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 65536);
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				AnalyticsEvent event = parse(line);
+
+				if (event != null) {
+					offer(event);
+				} else {
+					skipped.incrementAndGet();
+				}
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Enqueue an event (rate limited, blocks while the pipeline is full).
+	 *
+	 * @param event analytics event
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void offer(AnalyticsEvent event) throws InterruptedException {
+		double rate = this.rate;
+
+		read.incrementAndGet();
+		if (rate > 0) {
+			long now = System.nanoTime();
+
+			next = Math.max(next, now - 1000000000L) + (long)(1e9 / rate);
+
+			long wait = next - now;
+
+			if (wait >= 1000000) {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+		}
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if (!pipeline.offer(event)) {
+			// queue stayed full for the block timeout (delivery stuck) and no spool
+			rejected.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Progress reporter loop.
+	 *
+	 */
+	private void report() {
+		long lastTime = System.currentTimeMillis();
+		long lastDelivered = 0;
+
+		while (true) {
+			try {
+				Thread.sleep(Math.max(progressInterval, 100));
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long time = System.currentTimeMillis();
+			long delivered = pipeline.getDelivered();
+
+			out.println(this + " current=" + ((delivered - lastDelivered) * 1000 / Math.max(time - lastTime, 1)) + "/s");
+			lastTime = time;
+			lastDelivered = delivered;
+		}
+	}
+
+
+	/**
+	 * Parse an exported event line.
+	 *
+	 * @param line form-encoded event fields, alone or inside an access log line
+	 * @return analytics event or null if none
+	 */
+	static AnalyticsEvent parse(String line) {
+		int offset = line.indexOf("eventName=");
+
+		if (offset < 0) {
+			return null;
+		}
+
+		int start = offset;
+		int end = offset;
+
+		while (start > 0 && " \t\"?".indexOf(line.charAt(start - 1)) < 0) {
+			start--;
+		}
+		while (end < line.length() && " \t\"".indexOf(line.charAt(end)) < 0) {
+			end++;
+		}
+
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		List<HttpClient.Cookie> cookies = new ArrayList<HttpClient.Cookie>();
+		String name = null;
+		String description = null;
+		long id = 0;
+		long time = System.currentTimeMillis();
+
+		try {
+			for (String field : line.substring(start, end).split("&")) {
+				int separator = field.indexOf('=');
+
+				if (separator <= 0) {
+					continue;
+				}
+
+				String key = URLDecoder.decode(field.substring(0, separator), "UTF-8");
+				String value = URLDecoder.decode(field.substring(separator + 1), "UTF-8");
+
+				if (key.equals("eventName")) {
+					name = value;
+				} else if (key.equals("eventDescription")) {
+					description = value;
+				} else if (key.equals("eventId")) {
+					id = EventIdGenerator.parse(value);
+				} else if (key.equals("eventTime")) {
+					time = Long.parseLong(value);
+				} else if (key.equals("cookie")) {
+					for (String cookie : value.split(";")) {
+						int equals = cookie.indexOf('=');
+
+						if (equals > 0) {
+							cookies.add(new HttpClient.Cookie(cookie.substring(0, equals).trim(), cookie.substring(equals + 1).trim()));
+						}
+					}
+				} else {
+					String [] values = parameters.get(key);
+
+					if (values == null) {
+						parameters.put(key, new String [] { value });
+					} else {
+						String [] copy = new String[values.length + 1];
+
+						System.arraycopy(values, 0, copy, 0, values.length);
+						copy[values.length] = value;
+						parameters.put(key, copy);
+					}
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		} catch (IllegalArgumentException e) {
+			// malformed escape or number
+			return null;
+		}
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		if (id == 0) {
+			return new AnalyticsEvent(name, description, parameters, cookies, time);
+		}
+		return new AnalyticsEvent(id, name, description, parameters, cookies, time);
+	}
+
+
+	/**
+	 * Print usage and exit.
+	 *
+	 */
+	private static void usage() {
+		System.err.println("usage: java com.boxalino.cem.client.AnalyticsReplay [options] <url> <file|directory>...");
+		System.err.println("  -c <n>     concurrency (lanes/connections), defaults to 4");
+		System.err.println("  -b <n>     maximum events per batch (1 = no batching), defaults to 100");
+		System.err.println("  -r <n>     maximum rate [events/s], defaults to unlimited");
+		System.err.println("  -t <ms>    read timeout, defaults to 15000");
+		System.err.println("  -s <dir>   spool undeliverable events to a directory");
+		System.err.println("  -p <s>     progress interval [s] (0 = none), defaults to 10");
+		System.exit(2);
+	}
+
+	/**
+	 * Entry point.
+	 *
+	 * @param args command line
+	 * @throws Exception if replay fails
+	 */
+	public static void main(String [] args) throws Exception {
+		int concurrency = 4;
+		int batchSize = 100;
+		double rate = 0;
+		int timeout = -1;
+		String spool = null;
+		long progress = 10;
+		int i = 0;
+
+		try {
+			for (; i < args.length && args[i].startsWith("-") && args[i].length() == 2; i += 2) {
+				String value = args[i + 1];
+
+				switch (args[i].charAt(1)) {
+				case 'c':
+					concurrency = Integer.parseInt(value);
+					break;
+
+				case 'b':
+					batchSize = Integer.parseInt(value);
+					break;
+
+				case 'r':
+					rate = Double.parseDouble(value);
+					break;
+
+				case 't':
+					timeout = Integer.parseInt(value);
+					break;
+
+				case 's':
+					spool = value;
+					break;
+
+				case 'p':
+					progress = Long.parseLong(value);
+					break;
+
+				default:
+					usage();
+				}
+			}
+		} catch (RuntimeException e) {
+			usage();
+		}
+		if (args.length - i < 2 || concurrency < 1) {
+			usage();
+		}
+
+		String url = args[i++];
+		AnalyticsReplay replay = new AnalyticsReplay(url, concurrency, batchSize);
+
+		replay.rate = rate;
+		replay.progressInterval = progress * 1000;
+		for (int lane = 0; lane < replay.pipeline.getLanes(); lane++) {
+			replay.pipeline.getClient(lane).debug = false;
+			if (timeout >= 0) {
+				replay.pipeline.getClient(lane).readTimeout = timeout;
+			}
+		}
+		if (spool != null) {
+			replay.pipeline.spool = new AnalyticsSpool(url, new File(spool));
+		}
+		try {
+			for (; i < args.length; i++) {
+				replay.replay(new File(args[i]));
+			}
+		} finally {
+			replay.close();
+			if (replay.pipeline.spool != null) {
+				replay.pipeline.spool.close();
+			}
+		}
+		replay.out.println("done " + replay);
+		System.exit(replay.getLost() > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,1060 @@
+package com.boxalino.cem.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Durable write-ahead spool for analytics events.
+ *
+ * Events that cannot be delivered (endpoint down, queue overflow) are appended
+ * to segmented, append-only, memory-mapped files as CRC-checked records
+ * ([length][crc32][payload]). A background replayer delivers spooled events in
+ * order once the endpoint recovers (rate limited, exponential retry backoff),
+ * persisting its acknowledged position in a checkpoint file. Only transport
+ * errors and server errors (5xx, 429) are retried: an event rejected by the
+ * api (other 4xx) is discarded and counted, so it cannot block the spool.
+ * Full segments are rolled, compressed while they wait and deleted once fully
+ * read and acknowledged. A corrupted record (torn write, crc mismatch) is
+ * counted and skipped: reading resynchronizes on the next valid record. A
+ * segment that cannot be read is retried with backoff, keeping the
+ * checkpoint; after maxReadAttempts it is quarantined (renamed *.bad and kept
+ * for inspection) instead of deleted. The total spool size is bounded
+ * (maxSize), so long outages use disk instead of heap.
+ *
+ * Segments left by a previous process are replayed after start().
+ *
+ * @author nitro
+ */
+public class AnalyticsSpool {
+	/** Record header size (length + crc) */
+	private static final int HEADER_SIZE = 8;
+
+	/** Maximum record payload size */
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	/** Record format version */
+	private static final int FORMAT_VERSION = 2;
+
+	/** Segment file suffix */
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** Compressed segment file suffix */
+	private static final String COMPRESSED_SUFFIX = ".log.gz";
+
+	/** Quarantined segment file suffix (appended to the segment name) */
+	private static final String QUARANTINE_SUFFIX = ".bad";
+
+	/** Checkpoint file name */
+	private static final String CHECKPOINT = "checkpoint";
+
+
+	/** Replay client (timeouts, limiters and callback may be configured) */
+	public final ApiClient client;
+
+	/** Spool directory */
+	public final File directory;
+
+	/** Segment size, defaults to 4194304 [bytes] */
+	public volatile int segmentSize = 4 * 1024 * 1024;
+
+	/** Maximum spool size (all segments), defaults to 1073741824 [bytes] */
+	public volatile long maxSize = 1024L * 1024 * 1024;
+
+	/** Maximum replay rate, defaults to 50 [events/s] */
+	public volatile double replayRate = 50;
+
+	/** Initial retry delay (endpoint down), defaults to 1000 [ms] */
+	public volatile long retryDelay = 1000;
+
+	/** Maximum retry delay (endpoint down), defaults to 60000 [ms] */
+	public volatile long maxRetryDelay = 60000;
+
+	/** Read attempts before an unreadable segment is quarantined, defaults to 5 */
+	public volatile int maxReadAttempts = 5;
+
+	/** Delay before a partially filled segment is rolled for replay, defaults to 1000 [ms] */
+	public volatile long rollDelay = 1000;
+
+	/** Persist the replay checkpoint every n events, defaults to 100 */
+	public volatile int checkpointInterval = 100;
+
+	/** Compress rolled segments waiting for replay, defaults to true */
+	public volatile boolean compress = true;
+
+	/** Force mapped writes to disk on every append, defaults to false */
+	public volatile boolean sync = false;
+
+	/** Rolled segments (by sequence) */
+	private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+	/** Active segment sequence */
+	private long activeSequence;
+
+	/** Active segment file */
+	private File activeFile = null;
+
+	/** Active segment channel */
+	private FileChannel activeChannel = null;
+
+	/** Active segment mapping */
+	private MappedByteBuffer active = null;
+
+	/** Active segment records */
+	private int activeRecords = 0;
+
+	/** First append time in active segment [ms] */
+	private long activeTime = 0;
+
+	/** Rolled segments size [bytes] */
+	private long rolledSize = 0;
+
+	/** Checkpoint segment sequence */
+	private long checkpointSequence = 0;
+
+	/** Checkpoint record index (acknowledged records in checkpoint segment) */
+	private long checkpointRecord = 0;
+
+	/** Running flag */
+	private volatile boolean running = false;
+
+	/** Replayer thread */
+	private Thread replayer = null;
+
+	/** Spooled events */
+	private final AtomicLong spooled = new AtomicLong();
+
+	/** Replayed events */
+	private final AtomicLong replayed = new AtomicLong();
+
+	/** Rejected events (spool full or too large) */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Corrupted records (crc mismatch, invalid length or undecodable) */
+	private final AtomicLong corrupted = new AtomicLong();
+
+	/** Discarded events (rejected by the api, not retried) */
+	private final AtomicLong discarded = new AtomicLong();
+
+	/** Quarantined segments (unreadable) */
+	private final AtomicLong quarantined = new AtomicLong();
+
+
+	/**
+	 * Constructor (recovers existing segments)
+	 *
+	 * @param url api url
+	 * @param directory spool directory (created if needed)
+	 * @throws IOException if directory cannot be used
+	 */
+	public AnalyticsSpool(String url, File directory) throws IOException {
+		this.client = new ApiClient(url);
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create spool directory: " + directory);
+		}
+
+		long sequence = 0;
+		File [] files = directory.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				String prefix;
+
+				if (name.endsWith(COMPRESSED_SUFFIX)) {
+					prefix = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+				} else if (name.endsWith(SEGMENT_SUFFIX)) {
+					prefix = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+				} else {
+					continue;
+				}
+				try {
+					long s = Long.parseLong(prefix);
+					File other = segments.get(s);
+
+					// compressed segments are complete once renamed: drop the uncompressed copy
+					if (other != null && name.endsWith(COMPRESSED_SUFFIX)) {
+						other.delete();
+					} else if (other != null) {
+						file.delete();
+						continue;
+					}
+					segments.put(s, file);
+					sequence = Math.max(sequence, s + 1);
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		for (File file : segments.values()) {
+			rolledSize += size(file);
+		}
+		this.activeSequence = sequence;
+		readCheckpoint();
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public synchronized String toString() {
+		return (
+			"{directory=" + directory +
+			",segments=" + segments.size() +
+			",size=" + getSize() +
+			",spooled=" + spooled.get() +
+			",replayed=" + replayed.get() +
+			",rejected=" + rejected.get() +
+			",corrupted=" + corrupted.get() +
+			",discarded=" + discarded.get() +
+			",quarantined=" + quarantined.get() + "}"
+		);
+	}
+
+
+	/**
+	 * Get spool size (rolled segments and active segment records)
+	 *
+	 * @return size [bytes]
+	 */
+	public synchronized long getSize() {
+		return rolledSize + (active != null ? active.position() : 0);
+	}
+
+	/**
+	 * Get spooled events
+	 *
+	 * @return spooled events
+	 */
+	public long getSpooled() {
+		return spooled.get();
+	}
+
+	/**
+	 * Get replayed events
+	 *
+	 * @return replayed events
+	 */
+	public long getReplayed() {
+		return replayed.get();
+	}
+
+	/**
+	 * Get rejected events (spool full or event too large)
+	 *
+	 * @return rejected events
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Get corrupted records (skipped)
+	 *
+	 * @return corrupted records
+	 */
+	public long getCorrupted() {
+		return corrupted.get();
+	}
+
+	/**
+	 * Get discarded events (rejected by the api with a client error, not retried)
+	 *
+	 * @return discarded events
+	 */
+	public long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * Get quarantined segments (unreadable, renamed *.bad)
+	 *
+	 * @return quarantined segments
+	 */
+	public long getQuarantined() {
+		return quarantined.get();
+	}
+
+
+	/**
+	 * Start background replayer (if not running)
+	 *
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		replayer = new Thread(
+			new Runnable() {
+				@Override
+				public void run() {
+					replay();
+				}
+			},
+			"com.boxalino.cem.client.AnalyticsSpool"
+		);
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	/**
+	 * Stop background replayer and close the active segment (spooled events are kept)
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		Thread thread;
+
+		synchronized (this) {
+			running = false;
+			thread = replayer;
+			replayer = null;
+			notifyAll();
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+		synchronized (this) {
+			roll();
+		}
+	}
+
+
+	/**
+	 * Append an event (starts replayer if needed).
+	 *
+	 * @param event analytics event
+	 * @return true if spooled, false if rejected (spool full, event too large or i/o error)
+	 */
+	public boolean append(AnalyticsEvent event) {
+		byte [] payload;
+
+		try {
+			payload = encode(event);
+		} catch (IOException e) {
+			rejected.incrementAndGet();
+			client.reportError(e);
+			return false;
+		}
+
+		CRC32 crc = new CRC32();
+
+		crc.update(payload);
+		synchronized (this) {
+			try {
+				int length = HEADER_SIZE + payload.length;
+
+				if (payload.length > MAX_RECORD_SIZE || length > segmentSize - 4) {
+					rejected.incrementAndGet();
+					return false;
+				}
+				if (active != null && active.remaining() < length + 4) {
+					roll();
+				}
+				if (rolledSize + (active != null ? active.position() : 0) + length > maxSize) {
+					rejected.incrementAndGet();
+					return false;
+				}
+				if (active == null) {
+					open();
+				}
+				active.putInt(payload.length);
+				active.putInt((int)crc.getValue());
+				active.put(payload);
+				if (sync) {
+					active.force();
+				}
+				if (activeRecords++ == 0) {
+					activeTime = System.currentTimeMillis();
+				}
+			} catch (IOException e) {
+				rejected.incrementAndGet();
+				client.reportError(e);
+				return false;
+			}
+		}
+		spooled.incrementAndGet();
+		if (!running) {
+			start();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Open a new active segment (lock held).
+	 *
+	 * @throws IOException if segment cannot be mapped
+	 */
+	private void open() throws IOException {
+		File file = new File(directory, name(activeSequence, SEGMENT_SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			activeChannel = raf.getChannel();
+			active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			activeChannel = null;
+			throw e;
+		}
+		activeFile = file;
+		activeRecords = 0;
+	}
+
+	/**
+	 * Roll the active segment, if any (lock held).
+	 *
+	 */
+	private void roll() {
+		if (active == null) {
+			return;
+		}
+		active.force();
+		rolledSize += active.position();
+		segments.put(activeSequence, activeFile);
+		try {
+			activeChannel.close();
+		} catch (IOException e) {
+		}
+		active = null;
+		activeChannel = null;
+		activeFile = null;
+		activeSequence++;
+		notifyAll();
+	}
+
+
+	/**
+	 * Replayer loop.
+	 *
+	 */
+	private void replay() {
+		long failing = -1;
+		int attempts = 0;
+		long delay = retryDelay;
+
+		while (running) {
+			Long sequence;
+			File file;
+
+			synchronized (this) {
+				if (segments.isEmpty() && active != null && activeRecords > 0 && System.currentTimeMillis() - activeTime >= rollDelay) {
+					roll();
+				}
+				if (segments.isEmpty()) {
+					try {
+						wait(rollDelay);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				sequence = segments.firstKey();
+				file = segments.get(sequence);
+			}
+			try {
+				replay(sequence, file);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				client.reportError(e);
+				if (sequence != failing) {
+					failing = sequence;
+					attempts = 0;
+					delay = retryDelay;
+				}
+				if (++attempts < maxReadAttempts) {
+					// keep the segment and the checkpoint (replayed records are skipped on retry)
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException ie) {
+						return;
+					}
+					delay = Math.min(delay * 2, maxRetryDelay);
+					continue;
+				}
+				quarantine(sequence, file);
+				continue;
+			}
+			// fully read: replayed records are acknowledged, corrupted and discarded ones counted
+			long size = size(file);
+
+			synchronized (this) {
+				segments.remove(sequence);
+				rolledSize -= size;
+				file.delete();
+				checkpointSequence = sequence + 1;
+				checkpointRecord = 0;
+			}
+			writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Quarantine an unreadable segment (renamed *.bad and kept, the replay moves on).
+	 *
+	 * @param sequence segment sequence
+	 * @param file segment file
+	 */
+	private void quarantine(long sequence, File file) {
+		File target = new File(directory, file.getName() + QUARANTINE_SUFFIX);
+		long size = size(file);
+
+		synchronized (this) {
+			segments.remove(sequence);
+			rolledSize -= size;
+			if (!file.renameTo(target)) {
+				client.reportError(new IOException("cannot quarantine segment: " + file));
+			}
+			checkpointSequence = sequence + 1;
+			checkpointRecord = 0;
+		}
+		quarantined.incrementAndGet();
+		client.reportError(new IOException("unreadable segment quarantined: " + target));
+		writeCheckpoint();
+	}
+
+	/**
+	 * Replay a rolled segment from the checkpoint.
+	 *
+	 * @param sequence segment sequence
+	 * @param file segment file
+	 * @throws IOException if segment cannot be read
+	 * @throws InterruptedException if interrupted (closed)
+	 */
+	private void replay(long sequence, File file) throws IOException, InterruptedException {
+		ByteBuffer buffer = load(file);
+		long next = System.currentTimeMillis();
+		long record = 0;
+		long skip = (sequence == checkpointSequence ? checkpointRecord : 0);
+		byte [] payload;
+
+		while ((payload = read(buffer)) != null) {
+			if (record++ < skip) {
+				continue;
+			}
+
+			AnalyticsEvent event;
+
+			try {
+				event = decode(payload);
+			} catch (IOException e) {
+				corrupted.incrementAndGet();
+				continue;
+			}
+
+			long delay = retryDelay;
+
+			while (true) {
+				long wait = next - System.currentTimeMillis();
+
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				next = Math.max(next, System.currentTimeMillis()) + (long)(1000 / Math.max(replayRate, 0.001));
+				if (client.trackEvent(event)) {
+					replayed.incrementAndGet();
+					break;
+				}
+
+				int code = client.getCode();
+
+				if (code >= 400 && code < 500 && code != 408 && code != 429) {
+					// rejected by the api: retrying cannot succeed
+					discarded.incrementAndGet();
+					client.reportError(new IOException("spooled event rejected (" + code + "), discarded: " + event));
+					break;
+				}
+				if (!running) {
+					throw new InterruptedException();
+				}
+				compress(sequence);
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, maxRetryDelay);
+			}
+			synchronized (this) {
+				checkpointSequence = sequence;
+				checkpointRecord = record;
+			}
+			if (record % Math.max(checkpointInterval, 1) == 0) {
+				writeCheckpoint();
+			}
+		}
+		// acknowledged records were consumed, now is a good time to compress the backlog
+		compress(sequence);
+	}
+
+	/**
+	 * Compress rolled segments waiting for replay (except the one being replayed).
+	 *
+	 * @param current segment being replayed
+	 */
+	private void compress(long current) {
+		if (!compress) {
+			return;
+		}
+
+		Map<Long, File> pending = new TreeMap<Long, File>();
+
+		synchronized (this) {
+			for (Map.Entry<Long, File> entry : segments.entrySet()) {
+				if (entry.getKey() != current && entry.getValue().getName().endsWith(SEGMENT_SUFFIX)) {
+					pending.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for (Map.Entry<Long, File> entry : pending.entrySet()) {
+			File source = entry.getValue();
+			File target = new File(directory, name(entry.getKey(), COMPRESSED_SUFFIX));
+			File temporary = new File(directory, target.getName() + ".tmp");
+
+			try {
+				ByteBuffer buffer = load(source);
+				long size = 0;
+				DataOutputStream os = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temporary))));
+
+				try {
+					byte [] payload;
+					CRC32 crc = new CRC32();
+
+					while ((payload = read(buffer)) != null) {
+						crc.reset();
+						crc.update(payload);
+						os.writeInt(payload.length);
+						os.writeInt((int)crc.getValue());
+						os.write(payload);
+						size += HEADER_SIZE + payload.length;
+					}
+					os.writeInt(0);
+				} finally {
+					os.close();
+				}
+				if (!temporary.renameTo(target)) {
+					throw new IOException("cannot rename segment: " + temporary);
+				}
+				synchronized (this) {
+					rolledSize += target.length() - size;
+					segments.put(entry.getKey(), target);
+				}
+				source.delete();
+			} catch (IOException e) {
+				temporary.delete();
+				client.reportError(e);
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Load a segment for reading (plain segments are mapped, compressed ones
+	 * are inflated in memory).
+	 *
+	 * @param file segment file
+	 * @return segment records
+	 * @throws IOException if segment cannot be read
+	 */
+	static ByteBuffer load(File file) throws IOException {
+		if (file.getName().endsWith(COMPRESSED_SUFFIX)) {
+			InputStream is = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream((int)Math.min(file.length() * 4, 64 * 1024 * 1024));
+				byte [] chunk = new byte[8192];
+				int count;
+
+				while ((count = is.read(chunk)) > 0) {
+					buffer.write(chunk, 0, count);
+				}
+				return ByteBuffer.wrap(buffer.toByteArray());
+			} finally {
+				is.close();
+			}
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read next record payload.
+	 *
+	 * @param buffer segment records
+	 * @return payload or null at end of segment
+	 */
+	private byte [] read(ByteBuffer buffer) {
+		return read(buffer, corrupted);
+	}
+
+	/**
+	 * Read next record payload.
+	 *
+	 * A record that fails its checks (invalid length, crc mismatch) is counted
+	 * as corrupted and skipped: reading resumes at the next position holding a
+	 * valid record (valid header and crc, followed by a record boundary), so a
+	 * torn write in the middle of a segment does not lose the records after it.
+	 *
+	 * @param buffer segment records
+	 * @param corrupted corrupted records counter
+	 * @return payload or null at end of segment
+	 */
+	static byte [] read(ByteBuffer buffer, AtomicLong corrupted) {
+		boolean resync = false;
+
+		while (buffer.limit() - buffer.position() >= HEADER_SIZE) {
+			int position = buffer.position();
+			int length = buffer.getInt(position);
+
+			if (length == 0) {
+				// end of records (zero-filled mapping or end marker), unless data follows
+				int data = position;
+
+				while (data < buffer.limit() && buffer.get(data) == 0) {
+					data++;
+				}
+				if (data == buffer.limit()) {
+					break;
+				}
+				if (!resync) {
+					corrupted.incrementAndGet();
+					resync = true;
+				}
+				// a header holding data starts at most 3 bytes before it
+				buffer.position(Math.max(position + 1, data - 3));
+				continue;
+			}
+			if (isHeader(buffer, position) && (!resync || isBoundary(buffer, position + HEADER_SIZE + length))) {
+				byte [] payload = new byte[length];
+				CRC32 check = new CRC32();
+
+				buffer.position(position + HEADER_SIZE);
+				buffer.get(payload);
+				check.update(payload);
+				if ((int)check.getValue() == buffer.getInt(position + 4)) {
+					return payload;
+				}
+			}
+			if (!resync) {
+				corrupted.incrementAndGet();
+				resync = true;
+			}
+			buffer.position(position + 1);
+		}
+		buffer.position(buffer.limit());
+		return null;
+	}
+
+	/**
+	 * Check if a position holds a plausible record header (length within the
+	 * segment, known format version).
+	 *
+	 * @param buffer segment records
+	 * @param position header position
+	 * @return true if plausible
+	 */
+	private static boolean isHeader(ByteBuffer buffer, int position) {
+		int available = buffer.limit() - position - HEADER_SIZE;
+
+		if (available <= 0) {
+			return false;
+		}
+
+		int length = buffer.getInt(position);
+		int version = buffer.get(position + HEADER_SIZE);
+
+		return (length > 0 && length <= MAX_RECORD_SIZE && length <= available && version >= 1 && version <= FORMAT_VERSION);
+	}
+
+	/**
+	 * Check if a position is a record boundary (end of records or plausible header).
+	 *
+	 * @param buffer segment records
+	 * @param position position
+	 * @return true if boundary
+	 */
+	private static boolean isBoundary(ByteBuffer buffer, int position) {
+		return (buffer.limit() - position < HEADER_SIZE || buffer.getInt(position) == 0 || isHeader(buffer, position));
+	}
+
+	/**
+	 * Get on-disk size accounted for a rolled segment (reads uncompressed
+	 * segments: not to be called with the lock held).
+	 *
+	 * @param file segment file
+	 * @return size [bytes]
+	 */
+	private long size(File file) {
+		if (file.getName().endsWith(COMPRESSED_SUFFIX)) {
+			return file.length();
+		}
+		// mapped segments are preallocated: account for records only
+		long size = 0;
+
+		try {
+			ByteBuffer buffer = load(file);
+			byte [] payload;
+
+			while ((payload = read(buffer, new AtomicLong())) != null) {
+				size += HEADER_SIZE + payload.length;
+			}
+		} catch (IOException e) {
+		}
+		return size;
+	}
+
+	/**
+	 * Read the replay checkpoint.
+	 *
+	 */
+	private void readCheckpoint() {
+		File file = new File(directory, CHECKPOINT);
+
+		if (!file.exists()) {
+			checkpointSequence = segments.isEmpty() ? 0 : segments.firstKey();
+			checkpointRecord = 0;
+			return;
+		}
+		try {
+			DataInputStream is = new DataInputStream(new FileInputStream(file));
+
+			try {
+				checkpointSequence = is.readLong();
+				checkpointRecord = is.readLong();
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			client.reportError(e);
+		}
+	}
+
+	/**
+	 * Write the replay checkpoint (atomic rename).
+	 *
+	 */
+	private void writeCheckpoint() {
+		File file = new File(directory, CHECKPOINT);
+		File temporary = new File(directory, CHECKPOINT + ".tmp");
+
+		try {
+			FileOutputStream fos = new FileOutputStream(temporary);
+
+			try {
+				DataOutputStream os = new DataOutputStream(fos);
+
+				synchronized (this) {
+					os.writeLong(checkpointSequence);
+					os.writeLong(checkpointRecord);
+				}
+				os.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				throw new IOException("cannot rename checkpoint: " + temporary);
+			}
+		} catch (IOException e) {
+			client.reportError(e);
+		}
+	}
+
+
+	/**
+	 * Check if a file name is a segment name (sequence, plain or compressed).
+	 *
+	 * @param name file name
+	 * @return true if segment
+	 */
+	static boolean isSegment(String name) {
+		String prefix;
+
+		if (name.endsWith(COMPRESSED_SUFFIX)) {
+			prefix = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+		} else if (name.endsWith(SEGMENT_SUFFIX)) {
+			prefix = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+		} else {
+			return false;
+		}
+		if (prefix.length() != 16) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (!Character.isDigit(prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get segment file name.
+	 *
+	 * @param sequence segment sequence
+	 * @param suffix file suffix
+	 * @return file name
+	 */
+	private static String name(long sequence, String suffix) {
+		String s = Long.toString(sequence);
+
+		return "0000000000000000".substring(s.length()) + s + suffix;
+	}
+
+	/**
+	 * Encode an event into a record payload.
+	 *
+	 * @param event analytics event
+	 * @return payload
+	 * @throws IOException if event cannot be encoded
+	 */
+	static byte [] encode(AnalyticsEvent event) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		DataOutputStream os = new DataOutputStream(buffer);
+
+		os.writeByte(FORMAT_VERSION);
+		os.writeLong(event.id);
+		os.writeLong(event.time);
+		writeString(os, event.name);
+		writeString(os, event.description);
+		os.writeInt(event.parameters.size());
+		for (Map.Entry<String, String[]> entry : event.parameters.entrySet()) {
+			writeString(os, entry.getKey());
+			os.writeInt(entry.getValue().length);
+			for (String value : entry.getValue()) {
+				writeString(os, value);
+			}
+		}
+		os.writeInt(event.cookies.size());
+		for (HttpClient.Cookie cookie : event.cookies) {
+			writeString(os, cookie.getName());
+			writeString(os, cookie.getValue());
+		}
+		os.flush();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Decode an event from a record payload.
+	 *
+	 * @param payload record payload
+	 * @return analytics event
+	 * @throws IOException if payload cannot be decoded
+	 */
+	static AnalyticsEvent decode(byte [] payload) throws IOException {
+		DataInputStream is = new DataInputStream(new ByteArrayInputStream(payload));
+
+		int version = is.readByte();
+
+		if (version < 1 || version > FORMAT_VERSION) {
+			throw new IOException("unsupported record format");
+		}
+
+		long id = (version >= 2 ? is.readLong() : 0);
+		long time = is.readLong();
+
+		if (version < 2) {
+			// version 1 records have no id: derive a stable one from the record
+			id = EventIdGenerator.derive(time, payload);
+		}
+		String name = readString(is);
+		String description = readString(is);
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		List<HttpClient.Cookie> cookies = new ArrayList<HttpClient.Cookie>();
+
+		for (int i = is.readInt(); i > 0; i--) {
+			String key = readString(is);
+			String [] values = new String[is.readInt()];
+
+			for (int j = 0; j < values.length; j++) {
+				values[j] = readString(is);
+			}
+			parameters.put(key, values);
+		}
+		for (int i = is.readInt(); i > 0; i--) {
+			String cookieName = readString(is);
+			String cookieValue = readString(is);
+
+			cookies.add(new HttpClient.Cookie(cookieName, cookieValue));
+		}
+		return new AnalyticsEvent(id, name, description, parameters, cookies, time);
+	}
+
+	/**
+	 * Write a nullable string (length-prefixed utf-8).
+	 *
+	 * @param os output stream
+	 * @param value string or null
+	 * @throws IOException if write failed
+	 */
+	private static void writeString(DataOutputStream os, String value) throws IOException {
+		if (value == null) {
+			os.writeInt(-1);
+			return;
+		}
+
+		byte [] data = value.getBytes("UTF-8");
+
+		os.writeInt(data.length);
+		os.write(data);
+	}
+
+	/**
+	 * Read a nullable string (length-prefixed utf-8).
+	 *
+	 * @param is input stream
+	 * @return string or null
+	 * @throws IOException if read failed
+	 */
+	private static String readString(DataInputStream is) throws IOException {
+		int length = is.readInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte [] data = new byte[length];
+
+		is.readFully(data);
+		return new String(data, "UTF-8");
+	}
+}
@@ -1,5 +1,7 @@
 package com.boxalino.cem.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -7,22 +9,30 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLEncoder;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import java.util.zip.GZIPInputStream;
 
@@ -32,17 +42,8 @@ import javax.servlet.http.HttpServletResponse;
 
 import javax.servlet.jsp.PageContext;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLStreamException;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import org.xml.sax.InputSource;
-
-import com.boxalino.cem.client.json.JsonArray;
-import com.boxalino.cem.client.json.JsonObject;
 
 
 /**
@@ -54,19 +55,24 @@ public class ApiClient extends HttpClient {
 	/** Proxy hidden headers */
 	protected static final Set<String> hiddenProxyHeaders;
 
-	/** Document builder factory */
-	private static final DocumentBuilderFactory dbf;
+	/** Shed analytics event result */
+	private static final Callable<Boolean> shedEvent = new Callable<Boolean>() {
+		@Override
+		public Boolean call() throws Exception {
+			return Boolean.FALSE;
+		}
+	};
+
+	/** Accepted analytics event result */
+	private static final Callable<Boolean> acceptedEvent = new Callable<Boolean>() {
+		@Override
+		public Boolean call() throws Exception {
+			return Boolean.TRUE;
+		}
+	};
 
 	/** Static initializer */
 	static {
-		// create the xml document builder
-		dbf = DocumentBuilderFactory.newInstance();
-		dbf.setCoalescing(true);
-		dbf.setIgnoringComments(true);
-		dbf.setIgnoringElementContentWhitespace(true);
-		dbf.setNamespaceAware(true);
-		dbf.setValidating(false);
-
 		Set<String> headers = new TreeSet<String>();
 
 		headers.add("authenticate");
@@ -92,6 +98,20 @@ public class ApiClient extends HttpClient {
 	}
 
 
+	/**
+	 * Page representation
+	 *
+	 * @author nitro
+	 */
+	public static enum PageFormat {
+		/** Xml page (/api/xml/page) */
+		XML,
+
+		/** Json page (/api/json/page) */
+		JSON;
+	}
+
+
 	/**
 	 * Page content
 	 *
@@ -140,6 +160,9 @@ public class ApiClient extends HttpClient {
 		/** Error if any */
 		public final Exception error;
 
+		/** Lazy blocks (null = eager) */
+		private final LazyBlocks lazyBlocks;
+
 
 		/**
 		 * Constructor.
@@ -160,6 +183,7 @@ public class ApiClient extends HttpClient {
 			this.recommendations = Collections.emptyList();
 			this.blocks = Collections.emptyMap();
 			this.error = new Exception("Remote API call failed");
+			this.lazyBlocks = null;
 		}
 
 		/**
@@ -182,72 +206,30 @@ public class ApiClient extends HttpClient {
 			this.recommendations = Collections.emptyList();
 			this.blocks = Collections.emptyMap();
 			this.error = error;
+			this.lazyBlocks = null;
 		}
 
 		/**
 		 * Constructor.
 		 *
-		 * @param element xml element
-		 */
-		private Page(Element element) {
-			this.apiVersion = element.getAttribute("version");
-			this.apiStatus = Boolean.parseBoolean(element.getAttribute("status"));
-			this.apiTime = Double.parseDouble(element.getAttribute("totalTime"));
-			// cryptoKey / cryptoIV
-
-			NodeList children = element.getChildNodes();
-			String context = "";
-			String query = "";
-			int resultOffset = 0;
-			int resultTotal = 0;
-			int resultPageIndex = 0;
-			int resultPageCount = 0;
-			int resultPageSize = 0;
-			List<String> results = Collections.emptyList();
-			List<String> recommendations = Collections.emptyList();
-			Map<String, String> blocks = Collections.emptyMap();
-
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
-
-				switch (child.getNodeType()) {
-				case Node.ELEMENT_NODE:
-					if ("context".equals(child.getNodeName())) {
-						context = visitTextNodes((Element)child);
-					} else if ("query".equals(child.getNodeName())) {
-						query = visitTextNodes((Element)child);
-					} else if ("results".equals(child.getNodeName())) {
-						Element childElement = (Element)child;
-
-						resultOffset = Integer.parseInt(childElement.getAttribute("offset"));
-						resultTotal = Integer.parseInt(childElement.getAttribute("total"));
-						resultPageIndex = Integer.parseInt(childElement.getAttribute("pageIndex"));
-						resultPageCount = Integer.parseInt(childElement.getAttribute("pageCount"));
-						resultPageSize = Integer.parseInt(childElement.getAttribute("pageSize"));
-						results = visitList(childElement, "result", "id");
-					} else if ("recommendations".equals(child.getNodeName())) {
-						Element childElement = (Element)child;
-
-						recommendations = visitList(childElement, "recommendation", "id");
-					} else if ("blocks".equals(child.getNodeName())) {
-						Element childElement = (Element)child;
-
-						blocks = visitMap(childElement, "block", "id");
-					}
-					break;
-				}
-			}
-			this.context = context;
-			this.query = query;
-			this.resultOffset = resultOffset;
-			this.resultTotal = resultTotal;
-			this.resultPageIndex = resultPageIndex;
-			this.resultPageCount = resultPageCount;
-			this.resultPageSize = resultPageSize;
-			this.results = Collections.unmodifiableList(results);
-			this.recommendations = Collections.unmodifiableList(recommendations);
-			this.blocks = Collections.unmodifiableMap(blocks);
+		 * @param builder parsed page
+		 */
+		private Page(PageBuilder builder) {
+			this.apiVersion = builder.apiVersion;
+			this.apiStatus = builder.apiStatus;
+			this.apiTime = builder.apiTime;
+			this.context = builder.context;
+			this.query = builder.query;
+			this.resultOffset = builder.resultOffset;
+			this.resultTotal = builder.resultTotal;
+			this.resultPageIndex = builder.resultPageIndex;
+			this.resultPageCount = builder.resultPageCount;
+			this.resultPageSize = builder.resultPageSize;
+			this.results = Collections.unmodifiableList(builder.results);
+			this.recommendations = Collections.unmodifiableList(builder.recommendations);
+			this.blocks = Collections.unmodifiableMap(builder.blocks);
 			this.error = null;
+			this.lazyBlocks = (builder.blocks instanceof LazyBlocks ? (LazyBlocks)builder.blocks : null);
 		}
 
 
@@ -310,7 +292,7 @@ public class ApiClient extends HttpClient {
 		}
 
 		/**
-		 * Get block content.
+		 * Get block content (decoded on first access for lazy pages).
 		 *
 		 * @param name block name
 		 * @return block content
@@ -318,1043 +300,3177 @@ public class ApiClient extends HttpClient {
 		public String getBlock(String name) {
 			return (blocks.containsKey(name) ? blocks.get(name) : "");
 		}
+
+		/**
+		 * Write block content as UTF-8 (e.g. to HttpServletResponse.getOutputStream()).
+		 * Blocks of lazy pages are copied from the response bytes without being
+		 * decoded to a string.
+		 *
+		 * @param name block name
+		 * @param os output stream
+		 * @throws IOException if an I/O error occurs
+		 */
+		public void writeBlock(String name, OutputStream os) throws IOException {
+			if (lazyBlocks != null) {
+				lazyBlocks.write(name, os);
+				return;
+			}
+
+			String block = getBlock(name);
+
+			if (block.length() > 0) {
+				os.write(block.getBytes("UTF-8"));
+			}
+		}
 	}
 
 	/**
-	 * A transaction item (basket/checkout)
+	 * Page builder (filled by the streaming page parser)
 	 *
 	 * @author nitro
 	 */
-	public static class TransactionItem {
-		/** Item identifier */
-		public final String id;
+	private static class PageBuilder implements PageParser.Handler {
+		/** Root element seen */
+		private boolean begun = false;
 
-		/** Item price (per unit) */
-		public final double price;
+		/** API version */
+		private String apiVersion = "0.0.0";
 
-		/** Item quantity */
-		public final int quantity;
+		/** API status */
+		private boolean apiStatus = false;
 
-		/** Item name (optional) */
-		public final String name;
+		/** API processing time */
+		private double apiTime = 0.0;
 
-		/** Item widget (optional) */
-		public final String widget;
+		/** Search context */
+		private String context = "";
+
+		/** Search query */
+		private String query = "";
+
+		/** Result page offset */
+		private int resultOffset = 0;
+
+		/** Result total */
+		private int resultTotal = 0;
+
+		/** Result page index */
+		private int resultPageIndex = 0;
+
+		/** Result page count */
+		private int resultPageCount = 0;
+
+		/** Result page size */
+		private int resultPageSize = 0;
+
+		/** Result identifiers */
+		private List<String> results = Collections.emptyList();
+
+		/** Recommendation identifiers */
+		private List<String> recommendations = Collections.emptyList();
+
+		/** Page blocks */
+		private Map<String, String> blocks = Collections.emptyMap();
+
+		/** Lazy block indexes by identifier (null = eager) */
+		private final Map<String, Integer> lazyBlocks;
+
+		/** Lazy blocks seen */
+		private int lazyCount = 0;
 
 
 		/**
-		 * Constructor.
+		 * Constructor (eager blocks)
 		 *
 		 */
-		private TransactionItem() {
-			this(null, 0, 0, null, null);
+		private PageBuilder() {
+			this.lazyBlocks = null;
 		}
 
 		/**
-		 * Constructor (quantity = 1).
+		 * Constructor (lazy blocks)
 		 *
-		 * @param id item identifier
-		 * @param price item price
+		 * @param lazyBlocks block indexes by identifier (filled)
 		 */
-		public TransactionItem(String id, double price) {
-			this(id, price, 1, null, null);
+		private PageBuilder(Map<String, Integer> lazyBlocks) {
+			this.lazyBlocks = lazyBlocks;
 		}
 
+
 		/**
-		 * Constructor.
-		 *
-		 * @param id item identifier
-		 * @param price item price
-		 * @param quantity item quantity
+		 * {@inheritDoc}
 		 */
-		public TransactionItem(String id, double price, int quantity) {
-			this(id, price, quantity, null, null);
+		@Override
+		public void begin(String version, boolean status, double time) {
+			this.begun = true;
+			this.apiVersion = version;
+			this.apiStatus = status;
+			this.apiTime = time;
 		}
 
 		/**
-		 * Constructor.
-		 *
-		 * @param id item identifier
-		 * @param price item price
-		 * @param quantity item quantity
-		 * @param name item name
+		 * {@inheritDoc}
 		 */
-		public TransactionItem(String id, double price, int quantity, String name) {
-			this(id, price, quantity, name, null);
+		@Override
+		public void context(String context) {
+			this.context = context;
 		}
 
 		/**
-		 * Constructor.
-		 *
-		 * @param id item identifier
-		 * @param price item price
-		 * @param quantity item quantity
-		 * @param name item name
-		 * @param widget facilitator widget
+		 * {@inheritDoc}
 		 */
-		public TransactionItem(String id, double price, int quantity, String name, String widget) {
-			this.id = id;
-			this.price = price;
-			this.quantity = quantity;
-			this.name = name;
-			this.widget = widget;
+		@Override
+		public void query(String query) {
+			this.query = query;
 		}
 
-
 		/**
-		 * Compute a hash code for this object.
-		 *
-		 * @return hash code
+		 * {@inheritDoc}
 		 */
 		@Override
-		public int hashCode() {
-			int hash = 11;
+		public void results(int offset, int total, int pageIndex, int pageCount, int pageSize) {
+			this.resultOffset = offset;
+			this.resultTotal = total;
+			this.resultPageIndex = pageIndex;
+			this.resultPageCount = pageCount;
+			this.resultPageSize = pageSize;
+			this.results = new ArrayList<String>();
+		}
 
-			hash = 31 * hash + id.hashCode();
-			return hash;
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void result(String id) {
+			results.add(id);
 		}
 
 		/**
-		 * Test if given object is equal to this.
-		 *
-		 * @param o other object to test
-		 * @return true if other object is equal (id)
+		 * {@inheritDoc}
 		 */
 		@Override
-		public boolean equals(Object o) {
-			if (o instanceof TransactionItem) {
-				TransactionItem i = (TransactionItem)o;
+		public void recommendation(String id) {
+			if (recommendations.isEmpty()) {
+				recommendations = new ArrayList<String>();
+			}
+			recommendations.add(id);
+		}
 
-				return (
-					id.equals(i.id) &&
-					price == i.price &&
-					quantity == i.quantity &&
-					((name != null && name.equals(i.name)) || (name == null && i.name == null)) &&
-					((widget != null && widget.equals(i.widget)) || (widget == null && i.widget == null))
-				);
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void block(String id, String content) {
+			if (lazyBlocks != null) {
+				lazyBlocks.put(id, lazyCount++);
+				return;
 			}
-			return false;
+			if (blocks.isEmpty()) {
+				blocks = new LinkedHashMap<String, String>();
+			}
+			blocks.put(id, content);
 		}
+	}
+
+	/**
+	 * Lazy page blocks (decoded from the raw response on first access)
+	 *
+	 * @author nitro
+	 */
+	private static class LazyBlocks extends AbstractMap<String, String> {
+		/** Raw response index */
+		private final PageIndex index;
+
+		/** Block indexes by identifier */
+		private final Map<String, Integer> ids;
+
+		/** Decoded blocks */
+		private final AtomicReferenceArray<String> decoded;
+
 
 		/**
-		 * Return a string representation of this object for debug purpose.
+		 * Constructor
 		 *
-		 * @return string representation
+		 * @param index raw response index
+		 * @param ids block indexes by identifier
+		 */
+		private LazyBlocks(PageIndex index, Map<String, Integer> ids) {
+			this.index = index;
+			this.ids = ids;
+			this.decoded = new AtomicReferenceArray<String>(index.size());
+		}
+
+
+		/**
+		 * {@inheritDoc}
 		 */
 		@Override
-		public String toString() {
-			return (
-				"{id=" + id +
-				",price=" + price +
-				",quantity=" + quantity +
-				",name=" + name +
-				",widget=" + widget + "}"
-			);
+		public int size() {
+			return ids.size();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean containsKey(Object key) {
+			return ids.containsKey(key);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String get(Object key) {
+			Integer i = ids.get(key);
+
+			return (i != null ? decode(i) : null);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Set<String> keySet() {
+			return Collections.unmodifiableSet(ids.keySet());
+		}
+
+		/**
+		 * {@inheritDoc} (decodes all blocks)
+		 */
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			Map<String, String> blocks = new LinkedHashMap<String, String>();
+
+			for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+				blocks.put(entry.getKey(), decode(entry.getValue()));
+			}
+			return Collections.unmodifiableMap(blocks).entrySet();
 		}
 
 
 		/**
-		 * Convert to JSON format.
+		 * Write a block as UTF-8 (copied from the response bytes if possible).
 		 *
-		 * @return JSON format
+		 * @param key block identifier
+		 * @param os output stream
+		 * @throws IOException if an I/O error occurs
 		 */
-		private JsonObject asJson() {
-			JsonObject json = new JsonObject();
+		private void write(String key, OutputStream os) throws IOException {
+			Integer i = ids.get(key);
 
-			json.setString("id", id);
-			json.setDouble("price", price);
-			json.setInteger("quantity", quantity);
-			if (name != null) {
-				json.setString("name", name);
+			if (i != null && !index.write(i, os)) {
+				String block = decode(i);
+
+				if (block.length() > 0) {
+					os.write(block.getBytes("UTF-8"));
+				}
 			}
-			if (widget != null) {
-				json.setString("widget", widget);
+		}
+
+		/**
+		 * Decode a block once (falls back to parsing the whole response eagerly
+		 * if the block cannot be decoded alone).
+		 *
+		 * @param i block index
+		 * @return block content
+		 * @throws IllegalStateException if the response is malformed
+		 */
+		private String decode(int i) {
+			String block = decoded.get(i);
+
+			if (block == null) {
+				try {
+					block = index.block(i);
+				} catch (XMLStreamException e) {
+					Page page;
+
+					try {
+						page = parsePage(new ByteArrayInputStream(index.data()));
+					} catch (XMLStreamException f) {
+						throw new IllegalStateException("malformed page block", f);
+					}
+					for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+						String content = page.blocks.get(entry.getKey());
+
+						decoded.compareAndSet(entry.getValue(), null, content != null ? content : "");
+					}
+					return decoded.get(i);
+				}
+				decoded.compareAndSet(i, null, block);
 			}
-			return json;
+			return block;
 		}
 	}
 
 	/**
-	 * Api callback
+	 * Page item (streamed page content)
 	 *
 	 * @author nitro
 	 */
-	public static interface ApiCallback {
+	public static class PageItem {
 		/**
-		 * Called if an error occurs
+		 * Page item type
 		 *
-		 * @param e exception
+		 * @author nitro
 		 */
-		public void error(Exception e);
-	}
+		public static enum Type {
+			/** API status (value = api version) */
+			STATUS,
 
+			/** Encoded search context (value) */
+			CONTEXT,
 
-	/** API url */
-	public final String url;
+			/** Search query (value) */
+			QUERY,
 
-	/** Error callback */
-	public final AtomicReference<ApiCallback> callback = new AtomicReference<ApiCallback>();
+			/** Result page attributes */
+			RESULTS,
 
-	/** Default servlet encoding for URI */
-	public String defaultServletUriEncoding = "ISO-8859-1";
+			/** Result identifier (id) */
+			RESULT,
 
-	/** Debug output (print exceptions to stderr) */
-	public boolean debug = true;
+			/** Recommendation identifier (id) */
+			RECOMMENDATION,
 
+			/** Page block (id, value = content) */
+			BLOCK;
+		}
 
-	/**
-	 * Constructor.
-	 *
-	 */
-	private ApiClient() {
-		this(null);
-	}
 
-	/**
-	 * Constructor.
-	 *
-	 * @param url api url
-	 */
-	public ApiClient(String url) {
-		super();
-		this.url = url;
-	}
+		/** Item type */
+		public final Type type;
 
+		/** Identifier (result, recommendation or block) */
+		public final String id;
 
-	/**
-	 * Proxy request.
-	 *
-	 * @param uri remote uri
-	 * @param context page context
-	 */
+		/** Value (api version, context, query or block content) */
+		public final String value;
+
+		/** API status (STATUS only) */
+		public final boolean apiStatus;
+
+		/** API processing time (STATUS only) */
+		public final double apiTime;
+
+		/** Result page offset (RESULTS only) */
+		public final int resultOffset;
+
+		/** Total results (RESULTS only) */
+		public final int resultTotal;
+
+		/** Result page index (RESULTS only) */
+		public final int resultPageIndex;
+
+		/** Result page count (RESULTS only) */
+		public final int resultPageCount;
+
+		/** Result page size (RESULTS only) */
+		public final int resultPageSize;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param type item type
+		 * @param id identifier
+		 * @param value value
+		 */
+		private PageItem(Type type, String id, String value) {
+			this(type, id, value, false, 0.0, 0, 0, 0, 0, 0);
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param type item type
+		 * @param id identifier
+		 * @param value value
+		 * @param apiStatus api status
+		 * @param apiTime api processing time
+		 * @param resultOffset result page offset
+		 * @param resultTotal total results
+		 * @param resultPageIndex result page index
+		 * @param resultPageCount result page count
+		 * @param resultPageSize result page size
+		 */
+		private PageItem(Type type, String id, String value, boolean apiStatus, double apiTime, int resultOffset, int resultTotal, int resultPageIndex, int resultPageCount, int resultPageSize) {
+			this.type = type;
+			this.id = id;
+			this.value = value;
+			this.apiStatus = apiStatus;
+			this.apiTime = apiTime;
+			this.resultOffset = resultOffset;
+			this.resultTotal = resultTotal;
+			this.resultPageIndex = resultPageIndex;
+			this.resultPageCount = resultPageCount;
+			this.resultPageSize = resultPageSize;
+		}
+
+
+		/**
+		 * Return a string representation of this object for debug purpose.
+		 *
+		 * @return string representation
+		 */
+		@Override
+		public String toString() {
+			return (
+				"{type=" + type +
+				",id=" + id +
+				",value=" + value + "}"
+			);
+		}
+	}
+
+	/**
+	 * A transaction item (basket/checkout)
+	 *
+	 * @author nitro
+	 */
+	public static class TransactionItem {
+		/** Item identifier */
+		public final String id;
+
+		/** Item price (per unit) */
+		public final double price;
+
+		/** Item quantity */
+		public final int quantity;
+
+		/** Item name (optional) */
+		public final String name;
+
+		/** Item widget (optional) */
+		public final String widget;
+
+
+		/**
+		 * Constructor.
+		 *
+		 */
+		private TransactionItem() {
+			this(null, 0, 0, null, null);
+		}
+
+		/**
+		 * Constructor (quantity = 1).
+		 *
+		 * @param id item identifier
+		 * @param price item price
+		 */
+		public TransactionItem(String id, double price) {
+			this(id, price, 1, null, null);
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id item identifier
+		 * @param price item price
+		 * @param quantity item quantity
+		 */
+		public TransactionItem(String id, double price, int quantity) {
+			this(id, price, quantity, null, null);
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id item identifier
+		 * @param price item price
+		 * @param quantity item quantity
+		 * @param name item name
+		 */
+		public TransactionItem(String id, double price, int quantity, String name) {
+			this(id, price, quantity, name, null);
+		}
+
+		/**
+		 * Constructor.
+		 *
+		 * @param id item identifier
+		 * @param price item price
+		 * @param quantity item quantity
+		 * @param name item name
+		 * @param widget facilitator widget
+		 */
+		public TransactionItem(String id, double price, int quantity, String name, String widget) {
+			this.id = id;
+			this.price = price;
+			this.quantity = quantity;
+			this.name = name;
+			this.widget = widget;
+		}
+
+
+		/**
+		 * Compute a hash code for this object.
+		 *
+		 * @return hash code
+		 */
+		@Override
+		public int hashCode() {
+			int hash = 11;
+
+			hash = 31 * hash + id.hashCode();
+			return hash;
+		}
+
+		/**
+		 * Test if given object is equal to this.
+		 *
+		 * @param o other object to test
+		 * @return true if other object is equal (id)
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof TransactionItem) {
+				TransactionItem i = (TransactionItem)o;
+
+				return (
+					id.equals(i.id) &&
+					price == i.price &&
+					quantity == i.quantity &&
+					((name != null && name.equals(i.name)) || (name == null && i.name == null)) &&
+					((widget != null && widget.equals(i.widget)) || (widget == null && i.widget == null))
+				);
+			}
+			return false;
+		}
+
+		/**
+		 * Return a string representation of this object for debug purpose.
+		 *
+		 * @return string representation
+		 */
+		@Override
+		public String toString() {
+			return (
+				"{id=" + id +
+				",price=" + price +
+				",quantity=" + quantity +
+				",name=" + name +
+				",widget=" + widget + "}"
+			);
+		}
+
+
+		/**
+		 * Write as JSON object.
+		 *
+		 * @param encoder event encoder
+		 */
+		private void encode(EventEncoder encoder) {
+			encoder.item(id, price, quantity, name, widget);
+		}
+	}
+
+	/**
+	 * Api callback
+	 *
+	 * @author nitro
+	 */
+	public static interface ApiCallback {
+		/**
+		 * Called if an error occurs
+		 *
+		 * @param e exception
+		 */
+		public void error(Exception e);
+	}
+
+	/**
+	 * Drain report (see close)
+	 *
+	 * @author nitro
+	 */
+	public static class DrainReport {
+		/** All pending events were delivered within the deadline */
+		public final boolean complete;
+
+		/** Events written to the spool at the deadline */
+		public final int spilled;
+
+		/** Events dropped (failed, or pending at the deadline without spool) */
+		public final int dropped;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param complete all pending events were delivered within the deadline
+		 * @param spilled events written to the spool at the deadline
+		 * @param dropped events dropped
+		 */
+		private DrainReport(boolean complete, int spilled, int dropped) {
+			this.complete = complete;
+			this.spilled = spilled;
+			this.dropped = dropped;
+		}
+
+
+		/**
+		 * Return a string representation of this object for debug purpose.
+		 *
+		 * @return string representation
+		 */
+		@Override
+		public String toString() {
+			return (
+				"{complete=" + complete +
+				",spilled=" + spilled +
+				",dropped=" + dropped + "}"
+			);
+		}
+	}
+
+
+	/** API url */
+	public final String url;
+
+	/** Error callback */
+	public final AtomicReference<ApiCallback> callback = new AtomicReference<ApiCallback>();
+
+	/** Default servlet encoding for URI */
+	public String defaultServletUriEncoding = "ISO-8859-1";
+
+	/** Debug output (print exceptions to stderr) */
+	public boolean debug = true;
+
+	/** Concurrency limiter for page requests (/api/xml/page, /api/json/page), defaults to null (unlimited) */
+	public ConcurrencyLimiter pageLimiter = null;
+
+	/** Concurrency limiter for analytics requests (/analytics, /analytics/batch), defaults to null (unlimited) */
+	public ConcurrencyLimiter analyticsLimiter = null;
+
+	/** Admission controller for async page requests, defaults to null (no shedding) */
+	public AdmissionController pageAdmission = null;
+
+	/** Admission controller for async analytics requests, defaults to null (no shedding) */
+	public AdmissionController analyticsAdmission = null;
+
+	/** Analytics pipeline (events are enqueued and delivered in batches once started, see start), defaults to null (direct) */
+	public AnalyticsPipeline pipeline = null;
+
+	/** Analytics spool (undelivered events are replayed later), defaults to null (events are lost) */
+	public AnalyticsSpool spool = null;
+
+	/** Analytics event coalescing window (identical events of a visitor are suppressed), defaults to null (disabled) */
+	public EventDeduplicator deduplicator = null;
+
+	/** Analytics event sampling and rate limiting policy, defaults to null (all events sent) */
+	public EventPolicy policy = null;
+
+	/** View aggregation (product and category views without visitor identity are counted and sent as periodic aggregates once started, see start), defaults to null (raw events) */
+	public ViewAggregator viewAggregator = null;
+
+	/** Acknowledged analytics event ids (acknowledged events are not sent again), defaults to the shared record (null = disabled) */
+	public EventAckRecord ackRecord = EventAckRecord.shared;
+
+	/** Page representation requested from the api, defaults to XML */
+	public PageFormat pageFormat = PageFormat.XML;
+
+	/** Lazy pages (raw response retained, blocks decoded on first access; xml pages only), defaults to false (eager) */
+	public boolean lazyPages = false;
+
+	/** Page cache (anonymous pages are shared between requests; new visitors with a response are sent to the api for their visitor cookie, see PageCache), defaults to null (disabled) */
+	public PageCache pageCache = null;
+
+	/** Page request coalescing (concurrent identical anonymous page requests share one api request), defaults to null (disabled) */
+	public PageCoalescer pageCoalescer = null;
+
+	/** Page key normalizer (page cache and coalescing keys), defaults to the shared normalizer (null = shared) */
+	public PageKeyNormalizer pageKeys = PageKeyNormalizer.shared;
+
+	/** Pending async analytics events (shared with the clients created by createClient) */
+	private final ConcurrentMap<PendingEvent, Boolean> pendingEvents;
+
+
+	/**
+	 * Constructor.
+	 *
+	 */
+	private ApiClient() {
+		this(null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url api url
+	 */
+	public ApiClient(String url) {
+		this(url, new ConcurrentHashMap<PendingEvent, Boolean>());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url api url
+	 * @param pendingEvents pending async analytics events
+	 */
+	private ApiClient(String url, ConcurrentMap<PendingEvent, Boolean> pendingEvents) {
+		super();
+		this.url = url;
+		this.pendingEvents = pendingEvents;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url api url
+	 * @param bulkhead tenant bulkhead (scheduler, limiters and admission controllers)
+	 */
+	public ApiClient(String url, Bulkhead bulkhead) {
+		this(url);
+		bulkhead.apply(this);
+	}
+
+
+	/**
+	 * Create a client for one request (visitor).
+	 *
+	 * Clients hold the cookies of their visitor and must not be shared between
+	 * concurrent requests: a long-lived client configured once (e.g. by
+	 * ApiClientListener) creates one client per request instead. The created
+	 * client has the configuration of this client (credentials, timeouts,
+	 * callback, page and event settings), shares its scheduler, limiters,
+	 * admission controllers, page cache, analytics pipeline, spool, view
+	 * aggregator, deduplicator, policy and ack record, and has no cookies
+	 * (request headers are not copied). Its pending async analytics events are
+	 * drained by close on this client.
+	 *
+	 * @return request client
+	 */
+	public ApiClient createClient() {
+		ApiClient client = new ApiClient(url, pendingEvents);
+
+		client.username = username;
+		client.password = password;
+		client.connectTimeout = connectTimeout;
+		client.connectMaxTries = connectMaxTries;
+		client.readTimeout = readTimeout;
+		client.limiter = limiter;
+		client.scheduler = scheduler;
+		client.callback.set(callback.get());
+		client.defaultServletUriEncoding = defaultServletUriEncoding;
+		client.debug = debug;
+		client.pageLimiter = pageLimiter;
+		client.analyticsLimiter = analyticsLimiter;
+		client.pageAdmission = pageAdmission;
+		client.analyticsAdmission = analyticsAdmission;
+		client.pipeline = pipeline;
+		client.spool = spool;
+		client.deduplicator = deduplicator;
+		client.policy = policy;
+		client.viewAggregator = viewAggregator;
+		client.ackRecord = ackRecord;
+		client.pageFormat = pageFormat;
+		client.lazyPages = lazyPages;
+		client.pageCache = pageCache;
+		client.pageCoalescer = pageCoalescer;
+		client.pageKeys = pageKeys;
+		return client;
+	}
+
+
+	/**
+	 * Start background analytics delivery (view aggregator, pipeline flushers and spool replayer, if configured).
+	 *
+	 */
+	public void start() {
+		ViewAggregator viewAggregator = this.viewAggregator;
+		AnalyticsPipeline pipeline = this.pipeline;
+		AnalyticsSpool spool = this.spool;
+
+		if (viewAggregator != null) {
+			viewAggregator.start();
+		}
+		if (pipeline != null) {
+			pipeline.start();
+		}
+		if (spool != null) {
+			spool.start();
+		}
+	}
+
+	/**
+	 * Wait until pending analytics events are delivered (pipeline and async tracking).
+	 *
+	 * @param timeout maximum wait [ms]
+	 * @return true if drained, false if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean flush(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		AnalyticsPipeline pipeline = this.pipeline;
+
+		if (pipeline != null && !pipeline.flush(timeout)) {
+			return false;
+		}
+		return awaitPendingEvents(deadline);
+	}
+
+	/**
+	 * Drain pending analytics events and stop background delivery.
+	 *
+	 * Queued events are delivered and in-flight requests completed within the
+	 * timeout; events still pending at the deadline are spilled to the spool
+	 * (if configured) or dropped. Dropped events are reported to the callback.
+	 * The spool is closed last, so spilled events are replayed on next start.
+	 *
+	 * @param timeout maximum wait [ms]
+	 * @return drain report
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DrainReport close(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		ViewAggregator viewAggregator = this.viewAggregator;
+		AnalyticsPipeline pipeline = this.pipeline;
+		AnalyticsSpool spool = this.spool;
+		boolean complete = true;
+		int spilled = 0;
+		int dropped = 0;
+
+		if (viewAggregator != null) {
+			// sends pending aggregates through the aggregator client
+			viewAggregator.close();
+		}
+		if (pipeline != null) {
+			long pipelineSpooled = pipeline.getSpooled();
+			long pipelineFailed = pipeline.getFailed();
+
+			complete = pipeline.close(Math.max(deadline - System.currentTimeMillis(), 0));
+			spilled += (int)(pipeline.getSpooled() - pipelineSpooled);
+			dropped += (int)(pipeline.getFailed() - pipelineFailed);
+		}
+		if (!awaitPendingEvents(deadline)) {
+			complete = false;
+			for (PendingEvent pending : pendingEvents.keySet()) {
+				// in-flight events may be delivered as well: the event id makes the replay idempotent
+				if (pending.abandon()) {
+					spilled++;
+				} else {
+					dropped++;
+				}
+				pendingEvents.remove(pending);
+			}
+		}
+		if (spool != null) {
+			spool.close();
+		}
+		if (pipeline != null && pipeline.spool != null && pipeline.spool != spool) {
+			pipeline.spool.close();
+		}
+
+		DrainReport report = new DrainReport(complete, spilled, dropped);
+
+		if (dropped > 0) {
+			reportError(new IllegalStateException("analytics events dropped on close: " + report));
+		}
+		return report;
+	}
+
+
+	/**
+	 * Proxy request.
+	 *
+	 * @param uri remote uri
+	 * @param context page context
+	 */
 	public void proxy(String uri, PageContext context) {
 		proxy(uri, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
 	}
 
 	/**
-	 * Proxy request.
+	 * Proxy request.
+	 *
+	 * @param uri remote uri
+	 * @param request http request
+	 * @param response http response
+	 */
+	public void proxy(String uri, HttpServletRequest request, HttpServletResponse response) {
+		try {
+			// build proxied headers
+			Header [] headers = fetchProxyHeaders(request);
+			URL _url = new URL(url);
+
+			headers = add(Header.class, headers, new Header("Host", _url.getHost()));
+			headers = add(Header.class, headers, new Header("Via", "1.1 (Proxy)"));
+
+			// set cookies
+			javax.servlet.http.Cookie [] cookies = request.getCookies();
+
+			if (cookies != null) {
+				for (javax.servlet.http.Cookie cookie : cookies) {
+					if (cookie.getName().indexOf("cem") == 0) {
+						setCookie(cookie);
+					}
+				}
+			}
+
+			process(
+				request.getMethod(),
+				new URL(url + uri + (request.getQueryString() != null ? ("?" + request.getQueryString()) : "")),
+				headers,
+				request.getInputStream(),
+				new ProxyCallback(response)
+			);
+		} catch (Exception e) {
+			ApiCallback callback = this.callback.get();
+
+			if (debug) {
+				e.printStackTrace();
+			}
+			if (callback != null) {
+				callback.error(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Load page.
+	 *
+	 * @param uri page uri
+	 * @param context page context
+	 * @return page content
+	 */
+	public Page loadPage(String uri, PageContext context) {
+		return loadPage(uri, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param context page context
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, PageContext context) {
+		return loadPageAsync(uri, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+
+	/**
+	 * Load page.
+	 *
+	 * @param uri page uri
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return page content
+	 */
+	public Page loadPage(String uri, HttpServletRequest request, HttpServletResponse response) {
+		return loadPage(uri, new LinkedHashMap<String, String[]>(), request, response);
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, HttpServletRequest request, HttpServletResponse response) {
+		return loadPageAsync(uri, new LinkedHashMap<String, String[]>(), request, response);
+	}
+
+
+	/**
+	 * Load page.
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param context page context
+	 * @return page content
+	 */
+	public Page loadPage(String uri, String [][] parameters, PageContext context) {
+		return loadPage(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param context page context
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, String [][] parameters, PageContext context) {
+		return loadPageAsync(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+
+	/**
+	 * Load page.
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return page content
+	 */
+	public Page loadPage(String uri, String [][] parameters, HttpServletRequest request, HttpServletResponse response) {
+		Map<String, String[]> args = new LinkedHashMap<String, String[]>();
+
+		if (parameters != null) {
+			for (String [] parameter : parameters) {
+				for (int i = 1; i < parameter.length; i++) {
+					add(String.class, args, parameter[0], parameter[i]);
+				}
+			}
+		}
+		return loadPage(uri, args, request, response);
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, String [][] parameters, HttpServletRequest request, HttpServletResponse response) {
+		Map<String, String[]> args = new LinkedHashMap<String, String[]>();
+
+		if (parameters != null) {
+			for (String [] parameter : parameters) {
+				for (int i = 1; i < parameter.length; i++) {
+					add(String.class, args, parameter[0], parameter[i]);
+				}
+			}
+		}
+		return loadPageAsync(uri, args, request, response);
+	}
+
+
+	/**
+	 * Load page.
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param context page context
+	 * @return page content
+	 */
+	public Page loadPage(String uri, Map<String, String[]> parameters, PageContext context) {
+		return loadPage(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param context page context
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, Map<String, String[]> parameters, PageContext context) {
+		return loadPageAsync(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+
+	/**
+	 * Load page
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return page content
+	 */
+	public Page loadPage(String uri, Map<String, String[]> parameters, HttpServletRequest request, HttpServletResponse response) {
+		final AtomicReference<Page> page = new AtomicReference<Page>(new Page());
+		PageCache cache = pageCache;
+		PageCoalescer coalescer = pageCoalescer;
+		PageCoalescer.Flight flight = null;
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		applyRequest(request, parameters);
+
+		parameters.put("uri", new String [] { uri });
+
+		PageKey key = getPageKey(cache, coalescer, uri, parameters, request, response);
+
+		if (key != null && cache != null) {
+			PageCache.Entry entry = cache.get(key);
+
+			if (entry != null) {
+				refreshPage(cache, key, entry, parameters);
+				return entry.page;
+			}
+		}
+		if (key != null && coalescer != null) {
+			PageCoalescer.Flight started = new PageCoalescer.Flight();
+			PageCoalescer.Flight joined = coalescer.join(key, started, callback.get());
+
+			if (joined == started) {
+				flight = started;
+			} else if (joined != null) {
+				return awaitPage(joined);
+			}
+		}
+
+		Exception error = null;
+
+		try {
+			fetchPage(page, parameters, response);
+			if (key != null && cache != null) {
+				cache.put(key, page.get());
+			}
+		} catch (Exception e) {
+			ApiCallback callback = this.callback.get();
+
+			error = e;
+			if (debug) {
+				e.printStackTrace();
+			}
+			if (callback != null) {
+				callback.error(e);
+			}
+		} finally {
+			if (flight != null) {
+				coalescer.complete(key, flight, page.get(), error);
+			}
+		}
+		return page.get();
+	}
+
+	/**
+	 * Load page (async).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return future page content
+	 */
+	public Future<Page> loadPageAsync(String uri, final Map<String, String[]> parameters, HttpServletRequest request, final HttpServletResponse response) {
+		final AdmissionController admission = pageAdmission;
+		final PageCache cache = pageCache;
+		final PageCoalescer coalescer = pageCoalescer;
+		PageCoalescer.Flight started = null;
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		applyRequest(request, parameters);
+
+		parameters.put("uri", new String [] { uri });
+
+		final PageKey key = getPageKey(cache, coalescer, uri, parameters, request, response);
+
+		if (key != null && cache != null) {
+			final PageCache.Entry entry = cache.get(key);
+
+			if (entry != null) {
+				FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+					@Override
+					public Page call() throws Exception {
+						return entry.page;
+					}
+				});
+
+				task.run();
+				refreshPage(cache, key, entry, parameters);
+				return task;
+			}
+		}
+		if (key != null && coalescer != null) {
+			PageCoalescer.Flight joined = coalescer.join(key, started = new PageCoalescer.Flight(), callback.get());
+
+			if (joined != started) {
+				started = null;
+				if (joined != null) {
+					return joined;
+				}
+			}
+		}
+
+		final PageCoalescer.Flight flight = started;
+
+		try {
+			return submit(
+				RequestScheduler.Priority.INTERACTIVE,
+				admission,
+				new Callable<Page>() {
+					@Override
+					public Page call() throws Exception {
+						final AtomicReference<Page> page = new AtomicReference<Page>(new Page());
+						Exception error = null;
+
+						try {
+							fetchPage(page, parameters, response);
+							if (key != null && cache != null) {
+								cache.put(key, page.get());
+							}
+						} catch (Exception e) {
+							error = e;
+							throw e;
+						} finally {
+							if (flight != null) {
+								coalescer.complete(key, flight, page.get(), error);
+							}
+						}
+						return page.get();
+					}
+				},
+				new Callable<Page>() {
+					@Override
+					public Page call() throws Exception {
+						Page page = new Page(new RejectedExecutionException("page request shed (queueing delay above " + admission.target + "ms)"));
+
+						if (flight != null) {
+							coalescer.complete(key, flight, page, null);
+						}
+						return page;
+					}
+				},
+				"com.boxalino.cem.client.ApiClient.loadPageAsync"
+			);
+		} catch (RuntimeException e) {
+			if (flight != null) {
+				coalescer.complete(key, flight, new Page(e), e);
+			}
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Load page (reactive, items are emitted as the response is parsed).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param context page context
+	 * @return page item publisher (single subscriber)
+	 */
+	public Flow.Publisher<PageItem> publishPage(String uri, Map<String, String[]> parameters, PageContext context) {
+		return publishPage(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	}
+
+	/**
+	 * Load page (reactive, items are emitted as the response is parsed).
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters
+	 * @param request optional http request
+	 * @param response optional http response
+	 * @return page item publisher (single subscriber)
+	 */
+	public Flow.Publisher<PageItem> publishPage(String uri, Map<String, String[]> parameters, HttpServletRequest request, HttpServletResponse response) {
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		applyRequest(request, parameters);
+
+		parameters.put("uri", new String [] { uri });
+		return new PagePublisher(parameters, response);
+	}
+
+
+	/**
+	 * Track when a category is viewed.
+	 *
+	 * @param categoryId category identifier
+	 * @param categoryName optional category name
+	 * @param context page context
+	 * @return true on success
+	 */
+	public boolean trackCategoryView(String categoryId, String categoryName, PageContext context) {
+		return trackCategoryView(categoryId, categoryName, (HttpServletRequest)context.getRequest());
+	}
+
+	/**
+	 * Track when a category is viewed (async).
+	 *
+	 * @param categoryId category identifier
+	 * @param categoryName optional category name
+	 * @param context page context
+	 * @return true on success
+	 */
+	public Future<Boolean> trackCategoryViewAsync(String categoryId, String categoryName, PageContext context) {
+		return trackCategoryViewAsync(categoryId, categoryName, (HttpServletRequest)context.getRequest());
+	}
+
+
+	/**
+	 * Track when a category is viewed.
+	 *
+	 * @param categoryId category identifier
+	 * @param categoryName optional category name
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackCategoryView(String categoryId, String categoryName, HttpServletRequest request) {
+		if (aggregate("categoryView", categoryId, categoryName, request)) {
+			return true;
+		}
+
+		Boolean enqueued = enqueueView("categoryView", categoryId, categoryName, request);
+
+		if (enqueued != null) {
+			return enqueued;
+		}
+
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		description.put("id", categoryId);
+		if (categoryName != null) {
+			description.put("name", categoryName);
+		}
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		if (request != null && request.getParameter("widget") != null) {
+			description.put("widget", request.getParameter("widget"));
+		}
+		return trackEvent("categoryView", description, request);
+	}
+
+	/**
+	 * Track when a category is viewed (async).
+	 *
+	 * @param categoryId category identifier
+	 * @param categoryName optional category name
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackCategoryViewAsync(String categoryId, String categoryName, HttpServletRequest request) {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		if (aggregate("categoryView", categoryId, categoryName, request)) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(acceptedEvent);
+
+			task.run();
+			return task;
+		}
+
+		description.put("id", categoryId);
+		if (categoryName != null) {
+			description.put("name", categoryName);
+		}
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		if (request != null && request.getParameter("widget") != null) {
+			description.put("widget", request.getParameter("widget"));
+		}
+		return trackEventAsync("categoryView", description, request);
+	}
+
+
+	/**
+	 * Track when an item is viewed.
+	 *
+	 * @param itemId item identifier
+	 * @param itemName optional item name
+	 * @param context page context
+	 * @return true on success
+	 */
+	public boolean trackProductView(String itemId, String itemName, PageContext context) {
+		return trackProductView(itemId, itemName, (HttpServletRequest)context.getRequest());
+	}
+
+	/**
+	 * Track when an item is viewed (async).
+	 *
+	 * @param itemId item identifier
+	 * @param itemName optional item name
+	 * @param context page context
+	 * @return true on success
+	 */
+	public Future<Boolean> trackProductViewAsync(String itemId, String itemName, PageContext context) {
+		return trackProductViewAsync(itemId, itemName, (HttpServletRequest)context.getRequest());
+	}
+
+
+	/**
+	 * Track when an item is viewed.
+	 *
+	 * @param itemId item identifier
+	 * @param itemName optional item name
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackProductView(String itemId, String itemName, HttpServletRequest request) {
+		if (aggregate("productView", itemId, itemName, request)) {
+			return true;
+		}
+
+		Boolean enqueued = enqueueView("productView", itemId, itemName, request);
+
+		if (enqueued != null) {
+			return enqueued;
+		}
+
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		description.put("id", itemId);
+		if (itemName != null) {
+			description.put("name", itemName);
+		}
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		if (request != null && request.getParameter("widget") != null) {
+			description.put("widget", request.getParameter("widget"));
+		}
+		return trackEvent("productView", description, request);
+	}
+
+	/**
+	 * Track when an item is viewed (async).
+	 *
+	 * @param itemId item identifier
+	 * @param itemName optional item name
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackProductViewAsync(String itemId, String itemName, HttpServletRequest request) {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		if (aggregate("productView", itemId, itemName, request)) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(acceptedEvent);
+
+			task.run();
+			return task;
+		}
+
+		description.put("id", itemId);
+		if (itemName != null) {
+			description.put("name", itemName);
+		}
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		if (request != null && request.getParameter("widget") != null) {
+			description.put("widget", request.getParameter("widget"));
+		}
+		return trackEventAsync("productView", description, request);
+	}
+
+
+	/**
+	 * Track when a user logs in.
+	 *
+	 * @param profileId profile identifier
+	 * @param context page context
+	 * @return true on success
+	 */
+	public boolean trackLogin(String profileId, PageContext context) {
+		return trackLogin(profileId, (HttpServletRequest)context.getRequest());
+	}
+
+	/**
+	 * Track when a user logs in (async).
+	 *
+	 * @param profileId profile identifier
+	 * @param context page context
+	 * @return true on success
+	 */
+	public Future<Boolean> trackLoginAsync(String profileId, PageContext context) {
+		return trackLoginAsync(profileId, (HttpServletRequest)context.getRequest());
+	}
+
+
+	/**
+	 * Track when a user logs in.
+	 *
+	 * @param profileId profile identifier
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackLogin(String profileId, HttpServletRequest request) {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		description.put("id", profileId);
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		return trackEvent("login", description, request);
+	}
+
+	/**
+	 * Track when a user logs in (async).
+	 *
+	 * @param profileId profile identifier
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackLoginAsync(String profileId, HttpServletRequest request) {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		description.put("id", profileId);
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		return trackEventAsync("login", description, request);
+	}
+
+
+	/**
+	 * Track when an item is added to the basket.
+	 *
+	 * @param item item descriptor
+	 * @param context page context
+	 * @return true on success
+	 */
+	public boolean trackAddToBasket(TransactionItem item, PageContext context) {
+		return trackAddToBasket(item, (HttpServletRequest)context.getRequest());
+	}
+
+	/**
+	 * Track when an item is added to the basket (async).
+	 *
+	 * @param item item descriptor
+	 * @param context page context
+	 * @return true on success
+	 */
+	public Future<Boolean> trackAddToBasketAsync(TransactionItem item, PageContext context) {
+		return trackAddToBasketAsync(item, (HttpServletRequest)context.getRequest());
+	}
+
+
+	/**
+	 * Track when an item is added to the basket.
+	 *
+	 * @param item item descriptor
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackAddToBasket(TransactionItem item, HttpServletRequest request) {
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		return trackEvent("addToBasket", describe(item, request != null ? request.getParameter("widget") : null), request);
+	}
+
+	/**
+	 * Track when an item is added to the basket (async).
+	 *
+	 * @param item item descriptor
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackAddToBasketAsync(TransactionItem item, HttpServletRequest request) {
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		return trackEventAsync("addToBasket", describe(item, request != null ? request.getParameter("widget") : null), request);
+	}
+
+
+	/**
+	 * Track when a checkout is completed.
+	 *
+	 * @param success success status (true: successful, false: failed)
+	 * @param amount transaction total amount
+	 * @param items items descriptors
+	 * @param context page context
+	 * @return true on success
+	 */
+	public boolean trackPurchase(boolean success, double amount, List<TransactionItem> items, PageContext context) {
+		return trackPurchase(success, amount, items, (HttpServletRequest)context.getRequest());
+	}
+
+	/**
+	 * Track when a checkout is completed (async).
+	 *
+	 * @param success success status (true: successful, false: failed)
+	 * @param amount transaction total amount
+	 * @param items items descriptors
+	 * @param context page context
+	 * @return true on success
+	 */
+	public Future<Boolean> trackPurchaseAsync(boolean success, double amount, List<TransactionItem> items, PageContext context) {
+		return trackPurchaseAsync(success, amount, items, (HttpServletRequest)context.getRequest());
+	}
+
+
+	/**
+	 * Track when a checkout is completed.
+	 *
+	 * @param success success status (true: successful, false: failed)
+	 * @param amount transaction total amount
+	 * @param items items descriptors
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackPurchase(boolean success, double amount, List<TransactionItem> items, HttpServletRequest request) {
+		return trackEvent("purchaseDone", describe(success, amount, items), request);
+	}
+
+	/**
+	 * Track when a checkout is completed (async).
+	 *
+	 * @param success success status (true: successful, false: failed)
+	 * @param amount transaction total amount
+	 * @param items items descriptors
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackPurchaseAsync(boolean success, double amount, List<TransactionItem> items, HttpServletRequest request) {
+		return trackEventAsync("purchaseDone", describe(success, amount, items), request);
+	}
+
+
+	/**
+	 * Track an analytics event.
+	 *
+	 * @param name event name
+	 * @param description event description (map)
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public boolean trackEvent(String name, final Map<String, String> description, HttpServletRequest request) {
+		return trackEvent(
+			name,
+			new EventEncoder.Description() {
+				@Override
+				public void write(EventEncoder encoder) {
+					encoder.pairs(description);
+				}
+			},
+			request
+		);
+	}
+
+	/**
+	 * Track an analytics event (async).
+	 *
+	 * @param name event name
+	 * @param description event description (map)
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackEventAsync(String name, final Map<String, String> description, HttpServletRequest request) {
+		return trackEventAsync(
+			name,
+			new EventEncoder.Description() {
+				@Override
+				public void write(EventEncoder encoder) {
+					encoder.pairs(description);
+				}
+			},
+			request
+		);
+	}
+
+
+	/**
+	 * Track an analytics event.
 	 *
-	 * @param uri remote uri
-	 * @param request http request
-	 * @param response http response
+	 * @param name event name
+	 * @param description event description (list)
+	 * @param request optional http request
+	 * @return true on success
 	 */
-	public void proxy(String uri, HttpServletRequest request, HttpServletResponse response) {
+	public boolean trackEvent(String name, String [] description, HttpServletRequest request) {
+		return trackEvent(name, describe(description), request);
+	}
+
+	/**
+	 * Track an analytics event (async).
+	 *
+	 * @param name event name
+	 * @param description event description (list)
+	 * @param request optional http request
+	 * @return true on success
+	 */
+	public Future<Boolean> trackEventAsync(String name, String [] description, HttpServletRequest request) {
+		return trackEventAsync(name, describe(description), request);
+	}
+
+
+	/**
+	 * Track an analytics event.
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param request optional http request
+	 * @return true on success (or if spooled for later delivery, suppressed as duplicate or sampled out), false if failed or rate limited
+	 */
+	public boolean trackEvent(String name, String description, HttpServletRequest request) {
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		AnalyticsPipeline pipeline = this.pipeline;
+		AnalyticsSpool spool = this.spool;
+
+		if (isDuplicate(name, description, request)) {
+			return true;
+		}
+
+		EventPolicy.Decision decision = decide(name);
+
+		if (decision != EventPolicy.Decision.ACCEPT) {
+			return (decision == EventPolicy.Decision.SAMPLED);
+		}
+		if (pipeline != null) {
+			return pipeline.offer(name, description, undecoded(request), defaultServletUriEncoding);
+		}
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+
+		AnalyticsEvent event = (spool != null ? createEvent(name, description, request) : null);
+
+		applyRequest(request, parameters);
+		parameters.put("eventId", new String [] { EventIdGenerator.format(event != null ? event.id : EventIdGenerator.shared.next()) });
+		parameters.put("eventName", new String [] { name });
+		parameters.put("eventDescription", new String [] { description });
+		if (postEvent(parameters)) {
+			return true;
+		}
+		return (event != null && spool.append(event));
+	}
+
+	/**
+	 * Track an analytics event, encoding its description straight into the
+	 * request body unless the raw description is needed (coalescing, pipeline or
+	 * spool).
+	 *
+	 * @param name event name
+	 * @param description event description writer
+	 * @param request optional http request
+	 * @return true on success (or if spooled for later delivery, suppressed as duplicate or sampled out), false if failed or rate limited
+	 */
+	private boolean trackEvent(String name, EventEncoder.Description description, HttpServletRequest request) {
+		if (deduplicator != null || pipeline != null || spool != null) {
+			return trackEvent(name, describe(description), request);
+		}
+
+		EventPolicy.Decision decision = decide(name);
+
+		if (decision != EventPolicy.Decision.ACCEPT) {
+			return (decision == EventPolicy.Decision.SAMPLED);
+		}
+
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		applyRequest(request, parameters);
+		parameters.remove("eventId");
+		parameters.remove("eventName");
+		parameters.remove("eventDescription");
+
+		EventEncoder encoder = EventEncoder.get();
+
+		encoder.fields(parameters);
+		encoder.field("eventId", EventIdGenerator.format(EventIdGenerator.shared.next()));
+		encoder.field("eventName", name);
+		encoder.beginDescription(true);
+		description.write(encoder);
+		return postEvent(encoder);
+	}
+
+	/**
+	 * Track an analytics event created earlier (see createEvent). The event id
+	 * is sent along, so tracking the same event again (retry) is idempotent;
+	 * events already acknowledged (see ackRecord) are not sent again.
+	 *
+	 * The cem cookies of this client are replaced by the event cookies: call it
+	 * on a dedicated client (like the pipeline, the spool and trackEvents do),
+	 * not on a client loading pages for a visitor.
+	 *
+	 * @param event analytics event
+	 * @return true on success (or if already acknowledged)
+	 */
+	public boolean trackEvent(AnalyticsEvent event) {
+		EventAckRecord ackRecord = this.ackRecord;
+
+		if (ackRecord != null && ackRecord.isAcknowledged(event.id)) {
+			return true;
+		}
+
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>(event.parameters);
+
+		removeCookies("cem");
+		for (Cookie cookie : event.cookies) {
+			setCookie(cookie);
+		}
+		parameters.put("eventId", new String [] { EventIdGenerator.format(event.id) });
+		parameters.put("eventName", new String [] { event.name });
+		parameters.put("eventDescription", new String [] { event.description });
+		if (!postEvent(parameters)) {
+			return false;
+		}
+		if (ackRecord != null) {
+			ackRecord.acknowledge(event.id);
+		}
+		return true;
+	}
+
+	/**
+	 * Track the analytics events of a publisher (backpressure: at most window
+	 * events requested and pending). Events are tracked sequentially on the
+	 * background lane; errors of the publisher are reported to the callback.
+	 *
+	 * Events are sent by a dedicated copy of this client, so the event cookies
+	 * do not replace the cookies of this client.
+	 *
+	 * @param publisher event publisher
+	 * @param window maximum pending events
+	 */
+	public void trackEvents(Flow.Publisher<? extends AnalyticsEvent> publisher, int window) {
+		publisher.subscribe(new EventSubscriber(window));
+	}
+
+
+	/**
+	 * Create an analytics event to track later.
+	 *
+	 * @param name event name
+	 * @param description event description (map)
+	 * @param request optional http request
+	 * @return analytics event
+	 */
+	public AnalyticsEvent createEvent(String name, Map<String, String> description, HttpServletRequest request) {
+		return createEvent(name, describe(description), request);
+	}
+
+	/**
+	 * Create an analytics event to track later.
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param request optional http request
+	 * @return analytics event
+	 */
+	public AnalyticsEvent createEvent(String name, String description, HttpServletRequest request) {
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		List<Cookie> cookies = new ArrayList<Cookie>();
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		if (request != null && request.getCookies() != null) {
+			for (javax.servlet.http.Cookie cookie : request.getCookies()) {
+				if (cookie.getName().indexOf("cem") == 0) {
+					cookies.add(new Cookie(cookie));
+				}
+			}
+		}
+		applyEnvironment(request, parameters);
+		return new AnalyticsEvent(name, description, parameters, cookies);
+	}
+
+
+	/**
+	 * Post analytics event parameters.
+	 *
+	 * @param parameters request parameters
+	 * @return true on success
+	 */
+	private boolean postEvent(Map<String, String[]> parameters) {
+		return postEvent(EventEncoder.get().fields(parameters));
+	}
+
+	/**
+	 * Post an encoded analytics event.
+	 *
+	 * @param encoder event encoder (form fields)
+	 * @return true on success
+	 */
+	private boolean postEvent(EventEncoder encoder) {
+		final AtomicBoolean success = new AtomicBoolean();
+
 		try {
-			// build proxied headers
-			Header [] headers = fetchProxyHeaders(request);
-			URL _url = new URL(url);
+			postForm(
+				url + "/analytics",
+				encoder.buffer(),
+				encoder.length(),
+				"UTF-8",
+				null,
+				new Callback() {
+					@Override
+					public void beginResponse() throws Exception {
+						success.set(getCode() == 200);
+					}
 
-			headers = add(Header.class, headers, new Header("Host", _url.getHost()));
-			headers = add(Header.class, headers, new Header("Via", "1.1 (Proxy)"));
+					@Override
+					public void parseResponse(InputStream is) throws Exception {
+					}
 
-			// set cookies
-			javax.servlet.http.Cookie [] cookies = request.getCookies();
+					@Override
+					public void error(Exception e) {
+						ApiCallback callback = ApiClient.this.callback.get();
 
-			if (cookies != null) {
-				for (javax.servlet.http.Cookie cookie : cookies) {
-					if (cookie.getName().indexOf("cem") == 0) {
-						setCookie(cookie);
+						if (debug) {
+							e.printStackTrace();
+						}
+						if (callback != null) {
+							callback.error(e);
+						}
+					}
+				}
+			);
+		} catch (Exception e) {
+			ApiCallback callback = this.callback.get();
+
+			if (debug) {
+				e.printStackTrace();
+			}
+			if (callback != null) {
+				callback.error(e);
+			}
+		}
+		return success.get();
+	}
+
+	/**
+	 * Track an analytics event (async).
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param request optional http request
+	 * @return true on success (or if spooled for later delivery, suppressed as duplicate or sampled out), false if failed or rate limited
+	 */
+	public Future<Boolean> trackEventAsync(String name, String description, HttpServletRequest request) {
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		AnalyticsSpool spool = this.spool;
+		AnalyticsPipeline pipeline = this.pipeline;
+		EventPolicy.Decision decision = EventPolicy.Decision.SAMPLED;
+
+		if (isDuplicate(name, description, request) || (decision = decide(name)) != EventPolicy.Decision.ACCEPT) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(decision == EventPolicy.Decision.LIMITED ? shedEvent : acceptedEvent);
+
+			task.run();
+			return task;
+		}
+		if (pipeline != null) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(shedEvent);
+
+			if (pipeline.offer(name, description, undecoded(request), defaultServletUriEncoding)) {
+				task = new FutureTask<Boolean>(acceptedEvent);
+			}
+			task.run();
+			return task;
+		}
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+
+		AnalyticsEvent event = (spool != null ? createEvent(name, description, request) : null);
+
+		applyRequest(request, parameters);
+
+		parameters.put("eventId", new String [] { EventIdGenerator.format(event != null ? event.id : EventIdGenerator.shared.next()) });
+		parameters.put("eventName", new String [] { name });
+		parameters.put("eventDescription", new String [] { description });
+		return submitEvent(EventEncoder.get().fields(parameters).toByteArray(), event, spool);
+	}
+
+	/**
+	 * Track an analytics event (async), encoding its description straight into
+	 * the request body unless the raw description is needed (coalescing,
+	 * pipeline or spool).
+	 *
+	 * @param name event name
+	 * @param description event description writer
+	 * @param request optional http request
+	 * @return true on success (or if suppressed as duplicate or sampled out), false if failed or rate limited
+	 */
+	private Future<Boolean> trackEventAsync(String name, EventEncoder.Description description, HttpServletRequest request) {
+		if (deduplicator != null || pipeline != null || spool != null) {
+			return trackEventAsync(name, describe(description), request);
+		}
+
+		EventPolicy.Decision decision = decide(name);
+
+		if (decision != EventPolicy.Decision.ACCEPT) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(decision == EventPolicy.Decision.LIMITED ? shedEvent : acceptedEvent);
+
+			task.run();
+			return task;
+		}
+
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
+			request = new HttpServletRequestDecoded(request);
+		}
+		applyRequest(request, parameters);
+		parameters.remove("eventId");
+		parameters.remove("eventName");
+		parameters.remove("eventDescription");
+
+		EventEncoder encoder = EventEncoder.get();
+
+		encoder.fields(parameters);
+		encoder.field("eventId", EventIdGenerator.format(EventIdGenerator.shared.next()));
+		encoder.field("eventName", name);
+		encoder.beginDescription(true);
+		description.write(encoder);
+		return submitEvent(encoder.toByteArray(), null, null);
+	}
+
+	/**
+	 * Submit an encoded analytics event (background lane).
+	 *
+	 * @param body encoded form body
+	 * @param event optional event to spool if delivery fails
+	 * @param spool optional spool
+	 * @return true on success (or if spooled for later delivery)
+	 */
+	private Future<Boolean> submitEvent(final byte [] body, final AnalyticsEvent event, final AnalyticsSpool spool) {
+		final PendingEvent pending = new PendingEvent(event, spool);
+
+		pendingEvents.put(pending, Boolean.TRUE);
+		try {
+			return submitEvent(body, event, spool, pending);
+		} catch (RuntimeException e) {
+			pendingEvents.remove(pending);
+			throw e;
+		}
+	}
+
+	/**
+	 * Submit an encoded analytics event (background lane).
+	 *
+	 * @param body encoded form body
+	 * @param event optional event to spool if delivery fails
+	 * @param spool optional spool
+	 * @param pending pending event (removed once done)
+	 * @return true on success (or if spooled for later delivery)
+	 */
+	private Future<Boolean> submitEvent(final byte [] body, final AnalyticsEvent event, final AnalyticsSpool spool, final PendingEvent pending) {
+		return submit(
+			RequestScheduler.Priority.BACKGROUND,
+			analyticsAdmission,
+			new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					if (!pending.start()) {
+						return pending.spilled;
+					}
+					try {
+						return post();
+					} finally {
+						pendingEvents.remove(pending);
+					}
+				}
+
+				/**
+				 * Post the event (spool if failed).
+				 *
+				 * @return true on success (or if spooled for later delivery)
+				 */
+				private boolean post() {
+					final AtomicBoolean success = new AtomicBoolean();
+
+					try {
+						postForm(
+							url + "/analytics",
+							body,
+							body.length,
+							"UTF-8",
+							null,
+							new Callback() {
+								@Override
+								public void beginResponse() throws Exception {
+									success.set(getCode() == 200);
+								}
+
+								@Override
+								public void parseResponse(InputStream is) throws Exception {
+								}
+
+								@Override
+								public void error(Exception e) {
+									ApiCallback callback = ApiClient.this.callback.get();
+
+									if (debug) {
+										e.printStackTrace();
+									}
+									if (callback != null) {
+										callback.error(e);
+									}
+									throw new RuntimeException(e);
+								}
+							}
+						);
+					} catch (RuntimeException e) {
+						if (event != null && spool.append(event)) {
+							return true;
+						}
+						throw e;
 					}
+					if (!success.get() && event != null) {
+						return spool.append(event);
+					}
+					return success.get();
 				}
-			}
+			},
+			new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					pendingEvents.remove(pending);
+					return shedEvent.call();
+				}
+			},
+			"com.boxalino.cem.client.ApiClient.trackEventAsync"
+		);
+	}
 
-			process(
-				request.getMethod(),
-				new URL(url + uri + (request.getQueryString() != null ? ("?" + request.getQueryString()) : "")),
-				headers,
-				request.getInputStream(),
-				new ProxyCallback(response)
-			);
-		} catch (Exception e) {
-			ApiCallback callback = this.callback.get();
+	/**
+	 * Wait until pending async analytics events are done.
+	 *
+	 * @param deadline deadline [ms]
+	 * @return true if done, false if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private boolean awaitPendingEvents(long deadline) throws InterruptedException {
+		while (!pendingEvents.isEmpty()) {
+			long wait = deadline - System.currentTimeMillis();
 
-			if (debug) {
-				e.printStackTrace();
-			}
-			if (callback != null) {
-				callback.error(e);
+			if (wait <= 0) {
+				return false;
 			}
+			Thread.sleep(Math.min(wait, 10));
 		}
+		return true;
 	}
 
 
 	/**
-	 * Load page.
+	 * Apply the sampling and rate limiting policy, if any.
 	 *
-	 * @param uri page uri
-	 * @param context page context
-	 * @return page content
+	 * @param name event name
+	 * @return policy decision
 	 */
-	public Page loadPage(String uri, PageContext context) {
-		return loadPage(uri, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
-	}
+	private EventPolicy.Decision decide(String name) {
+		EventPolicy policy = this.policy;
 
-	/**
-	 * Load page (async).
-	 *
-	 * @param uri page uri
-	 * @param context page context
-	 * @return future page content
-	 */
-	public Future<Page> loadPageAsync(String uri, PageContext context) {
-		return loadPageAsync(uri, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+		return (policy != null ? policy.decide(name) : EventPolicy.Decision.ACCEPT);
 	}
 
-
 	/**
-	 * Load page.
+	 * Count a view in the view aggregator, if any and the view has no visitor
+	 * identity (cem cookies of the request, else of this client): views of an
+	 * identified visitor are tracked raw, as personalization needs them.
 	 *
-	 * @param uri page uri
+	 * @param name event name (productView, categoryView)
+	 * @param id item id
+	 * @param itemName optional item name
 	 * @param request optional http request
-	 * @param response optional http response
-	 * @return page content
+	 * @return true if aggregated, false if to be tracked raw
 	 */
-	public Page loadPage(String uri, HttpServletRequest request, HttpServletResponse response) {
-		return loadPage(uri, new LinkedHashMap<String, String[]>(), request, response);
+	private boolean aggregate(String name, String id, String itemName, HttpServletRequest request) {
+		ViewAggregator viewAggregator = this.viewAggregator;
+
+		if (viewAggregator == null || hasCookies("cem")) {
+			return false;
+		}
+		if (request != null && request.getCookies() != null) {
+			for (javax.servlet.http.Cookie cookie : request.getCookies()) {
+				if (cookie.getName().indexOf("cem") == 0) {
+					return false;
+				}
+			}
+		}
+		return viewAggregator.add(name, id, itemName);
 	}
 
 	/**
-	 * Load page (async).
+	 * Enqueue a view into the pipeline without allocation (captured from the
+	 * request into a preallocated slot, see AnalyticsPipeline), if possible:
+	 * the deduplicator needs the description built by the caller.
 	 *
-	 * @param uri page uri
+	 * @param name event name (productView, categoryView)
+	 * @param id item id
+	 * @param itemName optional item name
 	 * @param request optional http request
-	 * @param response optional http response
-	 * @return future page content
+	 * @return true on success (or sampled out), false if dropped or rate limited, null if not enqueued (no pipeline, deduplicator set)
 	 */
-	public Future<Page> loadPageAsync(String uri, HttpServletRequest request, HttpServletResponse response) {
-		return loadPageAsync(uri, new LinkedHashMap<String, String[]>(), request, response);
-	}
+	private Boolean enqueueView(String name, String id, String itemName, HttpServletRequest request) {
+		AnalyticsPipeline pipeline = this.pipeline;
 
+		if (pipeline == null || deduplicator != null || id == null) {
+			return null;
+		}
 
-	/**
-	 * Load page.
-	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param context page context
-	 * @return page content
-	 */
-	public Page loadPage(String uri, String [][] parameters, PageContext context) {
-		return loadPage(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+		EventPolicy.Decision decision = decide(name);
+
+		if (decision != EventPolicy.Decision.ACCEPT) {
+			return (decision == EventPolicy.Decision.SAMPLED);
+		}
+		return pipeline.offerView(name, id, itemName, undecoded(request), defaultServletUriEncoding);
 	}
 
 	/**
-	 * Load page (async).
+	 * Get the underlying request of a decoded request (decoding deferred to the pipeline flusher).
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param context page context
-	 * @return future page content
+	 * @param request optional http request
+	 * @return undecoded http request
 	 */
-	public Future<Page> loadPageAsync(String uri, String [][] parameters, PageContext context) {
-		return loadPageAsync(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	private static HttpServletRequest undecoded(HttpServletRequest request) {
+		if (request instanceof HttpServletRequestDecoded) {
+			return (HttpServletRequest)((HttpServletRequestDecoded)request).getRequest();
+		}
+		return request;
 	}
 
-
 	/**
-	 * Load page.
+	 * Check if an event duplicates one tracked recently for the same visitor.
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
+	 * The visitor is identified by the cem cookies of the request, else by the
+	 * cem cookies of this client (e.g. assigned to a new visitor by a page load),
+	 * else by the client address and agent of the request. Events without any
+	 * visitor identity are never suppressed (they may come from different
+	 * visitors).
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
 	 * @param request optional http request
-	 * @param response optional http response
-	 * @return page content
+	 * @return true if the event must be suppressed
 	 */
-	public Page loadPage(String uri, String [][] parameters, HttpServletRequest request, HttpServletResponse response) {
-		Map<String, String[]> args = new LinkedHashMap<String, String[]>();
+	private boolean isDuplicate(String name, String description, HttpServletRequest request) {
+		EventDeduplicator deduplicator = this.deduplicator;
 
-		if (parameters != null) {
-			for (String [] parameter : parameters) {
-				for (int i = 1; i < parameter.length; i++) {
-					add(String.class, args, parameter[0], parameter[i]);
+		if (deduplicator == null) {
+			return false;
+		}
+
+		StringBuilder visitor = new StringBuilder();
+
+		if (request != null && request.getCookies() != null) {
+			for (javax.servlet.http.Cookie cookie : request.getCookies()) {
+				if (cookie.getName().indexOf("cem") == 0) {
+					visitor.append(cookie.getName());
+					visitor.append('=');
+					visitor.append(cookie.getValue());
+					visitor.append(';');
 				}
 			}
 		}
-		return loadPage(uri, args, request, response);
+		if (visitor.length() == 0) {
+			for (Cookie cookie : getCookies("cem")) {
+				visitor.append(cookie.getName());
+				visitor.append('=');
+				visitor.append(cookie.getValue());
+				visitor.append(';');
+			}
+		}
+		if (visitor.length() == 0 && request != null) {
+			String address = request.getHeader("X-Forwarded-For");
+			String agent = request.getHeader("User-Agent");
+
+			visitor.append("address=");
+			visitor.append(address != null ? address : request.getRemoteAddr());
+			visitor.append(";agent=");
+			visitor.append(agent != null ? agent : "");
+			visitor.append(';');
+		}
+		if (visitor.length() == 0) {
+			return false;
+		}
+		return !deduplicator.admit(visitor.toString(), name, description);
 	}
 
 	/**
-	 * Load page (async).
+	 * Report an error (stderr if debug, error callback).
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param request optional http request
-	 * @param response optional http response
-	 * @return future page content
+	 * @param e exception
 	 */
-	public Future<Page> loadPageAsync(String uri, String [][] parameters, HttpServletRequest request, HttpServletResponse response) {
-		Map<String, String[]> args = new LinkedHashMap<String, String[]>();
+	void reportError(Exception e) {
+		ApiCallback callback = this.callback.get();
 
-		if (parameters != null) {
-			for (String [] parameter : parameters) {
-				for (int i = 1; i < parameter.length; i++) {
-					add(String.class, args, parameter[0], parameter[i]);
-				}
-			}
+		if (debug) {
+			e.printStackTrace();
+		}
+		if (callback != null) {
+			callback.error(e);
 		}
-		return loadPageAsync(uri, args, request, response);
 	}
 
-
 	/**
-	 * Load page.
+	 * Create a detached copy of this client (same api, credentials, timeouts,
+	 * limiters, callback and page/event settings, but no cookies and no scheduler).
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param context page context
-	 * @return page content
+	 * @return detached client
 	 */
-	public Page loadPage(String uri, Map<String, String[]> parameters, PageContext context) {
-		return loadPage(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	private ApiClient detach() {
+		ApiClient client = new ApiClient(url);
+
+		client.username = username;
+		client.password = password;
+		client.connectTimeout = connectTimeout;
+		client.connectMaxTries = connectMaxTries;
+		client.readTimeout = readTimeout;
+		client.limiter = limiter;
+		client.pageLimiter = pageLimiter;
+		client.analyticsLimiter = analyticsLimiter;
+		client.callback.set(callback.get());
+		client.debug = debug;
+		client.pageFormat = pageFormat;
+		client.lazyPages = lazyPages;
+		client.ackRecord = ackRecord;
+		return client;
 	}
 
 	/**
-	 * Load page (async).
+	 * Build raw event description from a map ("key:value" pairs, url-encoded).
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param context page context
-	 * @return future page content
+	 * @param description event description (map)
+	 * @return event description (raw)
 	 */
-	public Future<Page> loadPageAsync(String uri, Map<String, String[]> parameters, PageContext context) {
-		return loadPageAsync(uri, parameters, (HttpServletRequest)context.getRequest(), (HttpServletResponse)context.getResponse());
+	private static String describe(final Map<String, String> description) {
+		return describe(
+			new EventEncoder.Description() {
+				@Override
+				public void write(EventEncoder encoder) {
+					encoder.pairs(description);
+				}
+			}
+		);
 	}
 
-
 	/**
-	 * Load page
+	 * Build raw event description.
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param request optional http request
-	 * @param response optional http response
-	 * @return page content
+	 * @param description event description writer
+	 * @return event description (raw)
 	 */
-	public Page loadPage(String uri, Map<String, String[]> parameters, HttpServletRequest request, final HttpServletResponse response) {
-		final AtomicReference<Page> page = new AtomicReference<Page>(new Page());
+	private static String describe(EventEncoder.Description description) {
+		EventEncoder encoder = EventEncoder.get();
 
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		applyRequest(request, parameters);
-
-		parameters.put("uri", new String [] { uri });
-		try {
-			postFields(
-				url + "/api/xml/page",
-				parameters,
-				"UTF-8",
-				null,
-				new Callback() {
-					@Override
-					public void beginResponse() throws Exception {
-						if (response != null) {
-							for (Cookie cookie : getCookies()) {
-								if (cookie.getName().indexOf("cem") == 0) {
-									response.addCookie(cookie.toCookie());
-								}
-							}
-						}
-					}
-
-					@Override
-					public void parseResponse(InputStream is) throws Exception {
-						Element element = dbf.newDocumentBuilder().parse(new InputSource(is)).getDocumentElement();
-
-						if (!element.getNodeName().equals("cem")) {
-							throw new IllegalStateException("invalid xml element: " + element.getNodeName());
-						}
-						page.set(new Page(element));
-					}
-
-					@Override
-					public void error(Exception e) {
-						ApiCallback callback = ApiClient.this.callback.get();
+		encoder.beginDescription(false);
+		description.write(encoder);
+		return encoder.toRawString();
+	}
 
-						if (debug) {
-							e.printStackTrace();
-						}
-						if (callback != null) {
-							callback.error(e);
-						}
-						page.set(new Page(e));
-					}
+	/**
+	 * Build add to basket event description ("item" JSON object, optional "widget").
+	 *
+	 * @param item item descriptor
+	 * @param widget optional widget
+	 * @return event description writer
+	 */
+	private static EventEncoder.Description describe(final TransactionItem item, final String widget) {
+		return new EventEncoder.Description() {
+			@Override
+			public void write(EventEncoder encoder) {
+				encoder.beginJson("item");
+				item.encode(encoder);
+				if (widget != null) {
+					encoder.pair("widget", widget);
 				}
-			);
-		} catch (Exception e) {
-			ApiCallback callback = this.callback.get();
-
-			if (debug) {
-				e.printStackTrace();
-			}
-			if (callback != null) {
-				callback.error(e);
 			}
-		}
-		return page.get();
+		};
 	}
 
 	/**
-	 * Load page (async).
+	 * Build purchase event description ("status", "amount" and "items" JSON array).
 	 *
-	 * @param uri page uri
-	 * @param parameters page parameters
-	 * @param request optional http request
-	 * @param response optional http response
-	 * @return future page content
+	 * @param success success status
+	 * @param amount transaction total amount
+	 * @param items items descriptors
+	 * @return event description writer
 	 */
-	public Future<Page> loadPageAsync(String uri, final Map<String, String[]> parameters, HttpServletRequest request, final HttpServletResponse response) {
-		FutureTask<Page> task;
-		Thread thread;
-
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		applyRequest(request, parameters);
-
-		parameters.put("uri", new String [] { uri });
-		task = new FutureTask<Page>(
-			new Callable<Page>() {
-				@Override
-				public Page call() throws Exception {
-					final AtomicReference<Page> page = new AtomicReference<Page>(new Page());
-
-					postFields(
-						url + "/api/xml/page",
-						parameters,
-						"UTF-8",
-						null,
-						new Callback() {
-							@Override
-							public void beginResponse() throws Exception {
-								if (response != null) {
-									for (Cookie cookie : getCookies()) {
-										if (cookie.getName().indexOf("cem") == 0) {
-											response.addCookie(cookie.toCookie());
-										}
-									}
-								}
-							}
-
-							@Override
-							public void parseResponse(InputStream is) throws Exception {
-								Element element = dbf.newDocumentBuilder().parse(new InputSource(is)).getDocumentElement();
-
-								if (!element.getNodeName().equals("cem")) {
-									throw new IllegalStateException("invalid xml element: " + element.getNodeName());
-								}
-								page.set(new Page(element));
-							}
+	private static EventEncoder.Description describe(final boolean success, final double amount, final List<TransactionItem> items) {
+		return new EventEncoder.Description() {
+			@Override
+			public void write(EventEncoder encoder) {
+				encoder.pair("status", success ? "1" : "0");
+				encoder.pair("amount", amount);
+				encoder.beginJson("items");
+				encoder.beginArray();
+				for (TransactionItem item : items) {
+					item.encode(encoder);
+				}
+				encoder.endArray();
+			}
+		};
+	}
 
-							@Override
-							public void error(Exception e) {
-								ApiCallback callback = ApiClient.this.callback.get();
+	/**
+	 * Build raw event description from a list.
+	 *
+	 * @param description event description (list)
+	 * @return event description (raw)
+	 */
+	private static String describe(String [] description) {
+		StringBuilder buffer = new StringBuilder();
 
-								if (debug) {
-									e.printStackTrace();
-								}
-								if (callback != null) {
-									callback.error(e);
-								}
-								page.set(new Page(e));
-							}
-						}
-					);
-					return page.get();
+		for (String item : description) {
+			if (item.length() > 0) {
+				if (buffer.length() > 0) {
+					buffer.append(' ');
 				}
+				buffer.append(item);
 			}
-		);
-		thread = new Thread(task, "com.boxalino.cem.client.ApiClient.loadPageAsync");
-		thread.setDaemon(true);
-		thread.start();
-		return task;
+		}
+		return buffer.toString();
 	}
 
 
 	/**
-	 * Track when a category is viewed.
+	 * Get page api url (according to page format).
 	 *
-	 * @param categoryId category identifier
-	 * @param categoryName optional category name
-	 * @param context page context
-	 * @return true on success
+	 * @return page api url
 	 */
-	public boolean trackCategoryView(String categoryId, String categoryName, PageContext context) {
-		return trackCategoryView(categoryId, categoryName, (HttpServletRequest)context.getRequest());
+	protected String getPageUrl() {
+		return url + (pageFormat == PageFormat.JSON ? "/api/json/page" : "/api/xml/page");
 	}
 
 	/**
-	 * Track when a category is viewed (async).
+	 * Check if a request path is a page api path (xml or json).
 	 *
-	 * @param categoryId category identifier
-	 * @param categoryName optional category name
-	 * @param context page context
-	 * @return true on success
+	 * @param path request path
+	 * @return true if page api path
 	 */
-	public Future<Boolean> trackCategoryViewAsync(String categoryId, String categoryName, PageContext context) {
-		return trackCategoryViewAsync(categoryId, categoryName, (HttpServletRequest)context.getRequest());
+	protected static boolean isPagePath(String path) {
+		return (path.endsWith("/api/xml/page") || path.endsWith("/api/json/page"));
 	}
 
-
 	/**
-	 * Track when a category is viewed.
+	 * Check if a request path is an analytics api path (single events or batches).
 	 *
-	 * @param categoryId category identifier
-	 * @param categoryName optional category name
-	 * @param request optional http request
-	 * @return true on success
+	 * @param path request path
+	 * @return true if analytics api path
 	 */
-	public boolean trackCategoryView(String categoryId, String categoryName, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-
-		description.put("id", categoryId);
-		if (categoryName != null) {
-			description.put("name", categoryName);
-		}
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
-		}
-		return trackEvent("categoryView", description, request);
+	protected static boolean isAnalyticsPath(String path) {
+		return (path.endsWith("/analytics") || path.endsWith("/analytics/batch"));
 	}
 
 	/**
-	 * Track when a category is viewed (async).
+	 * Get concurrency limiter for a request (page, analytics or default).
 	 *
-	 * @param categoryId category identifier
-	 * @param categoryName optional category name
-	 * @param request optional http request
-	 * @return true on success
+	 * @param method http method
+	 * @param url http url
+	 * @return concurrency limiter or null if none
 	 */
-	public Future<Boolean> trackCategoryViewAsync(String categoryId, String categoryName, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
+	@Override
+	protected ConcurrencyLimiter getLimiter(String method, URL url) {
+		String path = url.getPath();
 
-		description.put("id", categoryId);
-		if (categoryName != null) {
-			description.put("name", categoryName);
-		}
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+		if (pageLimiter != null && isPagePath(path)) {
+			return pageLimiter;
 		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
+		if (analyticsLimiter != null && isAnalyticsPath(path)) {
+			return analyticsLimiter;
 		}
-		return trackEventAsync("categoryView", description, request);
+		return super.getLimiter(method, url);
 	}
 
-
 	/**
-	 * Track when an item is viewed.
+	 * Get priority class for a request (page: interactive, analytics: background, other: proxy).
 	 *
-	 * @param itemId item identifier
-	 * @param itemName optional item name
-	 * @param context page context
-	 * @return true on success
+	 * @param method http method
+	 * @param url http url
+	 * @return priority class
 	 */
-	public boolean trackProductView(String itemId, String itemName, PageContext context) {
-		return trackProductView(itemId, itemName, (HttpServletRequest)context.getRequest());
+	@Override
+	protected RequestScheduler.Priority getPriority(String method, URL url) {
+		String path = url.getPath();
+
+		if (isPagePath(path)) {
+			return RequestScheduler.Priority.INTERACTIVE;
+		}
+		if (isAnalyticsPath(path)) {
+			return RequestScheduler.Priority.BACKGROUND;
+		}
+		return RequestScheduler.Priority.PROXY;
 	}
 
 	/**
-	 * Track when an item is viewed (async).
+	 * Submit an asynchronous task (scheduler lane or dedicated daemon thread).
 	 *
-	 * @param itemId item identifier
-	 * @param itemName optional item name
-	 * @param context page context
-	 * @return true on success
+	 * @param priority priority class
+	 * @param admission optional admission controller
+	 * @param callable task
+	 * @param shed result if task is shed by admission controller
+	 * @param name thread name (if no scheduler)
+	 * @return future result
 	 */
-	public Future<Boolean> trackProductViewAsync(String itemId, String itemName, PageContext context) {
-		return trackProductViewAsync(itemId, itemName, (HttpServletRequest)context.getRequest());
+	private <T> Future<T> submit(RequestScheduler.Priority priority, final AdmissionController admission, final Callable<T> callable, final Callable<T> shed, String name) {
+		RequestScheduler scheduler = this.scheduler;
+		Callable<T> admitted = callable;
+
+		if (admission != null) {
+			final long enqueueTime = System.nanoTime();
+
+			admitted = new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					if (!admission.admit(enqueueTime)) {
+						return shed.call();
+					}
+					return callable.call();
+				}
+			};
+		}
+		if (scheduler != null) {
+			return scheduler.submit(priority, admitted);
+		}
+
+		FutureTask<T> task = new FutureTask<T>(admitted);
+		Thread thread = new Thread(task, name);
+
+		thread.setDaemon(true);
+		thread.start();
+		return task;
 	}
 
 
 	/**
-	 * Track when an item is viewed.
+	 * Get the page key of a request (page cache and coalescing).
 	 *
-	 * @param itemId item identifier
-	 * @param itemName optional item name
+	 * @param cache page cache (null = disabled)
+	 * @param coalescer page request coalescing (null = disabled)
+	 * @param uri page uri
+	 * @param parameters page parameters
 	 * @param request optional http request
-	 * @return true on success
+	 * @param response optional http response
+	 * @return page key or null if both are disabled or bypassed (cem cookies in the request, or held by the client without request; or none and a response to assign the visitor cookie to)
 	 */
-	public boolean trackProductView(String itemId, String itemName, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-
-		description.put("id", itemId);
-		if (itemName != null) {
-			description.put("name", itemName);
+	private PageKey getPageKey(PageCache cache, PageCoalescer coalescer, String uri, Map<String, String[]> parameters, HttpServletRequest request, HttpServletResponse response) {
+		if (cache == null && coalescer == null) {
+			return null;
 		}
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+
+		boolean personalized = false;
+
+		if (request != null) {
+			javax.servlet.http.Cookie [] cookies = request.getCookies();
+
+			if (cookies != null) {
+				for (javax.servlet.http.Cookie cookie : cookies) {
+					if (cookie.getName().indexOf("cem") == 0) {
+						personalized = true;
+						break;
+					}
+				}
+			}
+		} else {
+			personalized = hasCookies("cem");
 		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
+		// only the api assigns the visitor cookie: a new visitor with a response gets its own page
+		if (personalized || response != null) {
+			if (cache != null) {
+				cache.bypass();
+			}
+			return null;
 		}
-		return trackEvent("productView", description, request);
+		PageKeyNormalizer pageKeys = this.pageKeys;
+
+		return (pageKeys != null ? pageKeys : PageKeyNormalizer.shared).key(uri, parameters);
 	}
 
 	/**
-	 * Track when an item is viewed (async).
+	 * Wait for a coalesced page request (failures are reported to the callback by the coalescer).
 	 *
-	 * @param itemId item identifier
-	 * @param itemName optional item name
-	 * @param request optional http request
-	 * @return true on success
+	 * @param flight in-flight page request
+	 * @return loaded page (or error page)
 	 */
-	public Future<Boolean> trackProductViewAsync(String itemId, String itemName, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
+	private Page awaitPage(PageCoalescer.Flight flight) {
+		try {
+			return flight.await();
+		} catch (InterruptedException e) {
+			ApiCallback callback = this.callback.get();
 
-		description.put("id", itemId);
-		if (itemName != null) {
-			description.put("name", itemName);
-		}
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
+			Thread.currentThread().interrupt();
+			if (debug) {
+				e.printStackTrace();
+			}
+			if (callback != null) {
+				callback.error(e);
+			}
+			return new Page(e);
 		}
-		return trackEventAsync("productView", description, request);
 	}
 
-
 	/**
-	 * Track when a user logs in.
+	 * Fetch a page from the api.
 	 *
-	 * @param profileId profile identifier
-	 * @param context page context
-	 * @return true on success
+	 * @param page page holder (set to the loaded page or an error page)
+	 * @param parameters page parameters (uri included)
+	 * @param response optional http response (cem cookies are copied)
+	 * @throws Exception if request fails
 	 */
-	public boolean trackLogin(String profileId, PageContext context) {
-		return trackLogin(profileId, (HttpServletRequest)context.getRequest());
+	private void fetchPage(final AtomicReference<Page> page, Map<String, String[]> parameters, final HttpServletResponse response) throws Exception {
+		postFields(
+			getPageUrl(),
+			parameters,
+			"UTF-8",
+			null,
+			new Callback() {
+				@Override
+				public void beginResponse() throws Exception {
+					if (response != null) {
+						for (Cookie cookie : getCookies()) {
+							if (cookie.getName().indexOf("cem") == 0) {
+								response.addCookie(cookie.toCookie());
+							}
+						}
+					}
+				}
+
+				@Override
+				public void parseResponse(InputStream is) throws Exception {
+					page.set(readPage(is));
+				}
+
+				@Override
+				public void error(Exception e) {
+					ApiCallback callback = ApiClient.this.callback.get();
+
+					if (debug) {
+						e.printStackTrace();
+					}
+					if (callback != null) {
+						callback.error(e);
+					}
+					page.set(new Page(e));
+				}
+			}
+		);
 	}
 
 	/**
-	 * Track when a user logs in (async).
+	 * Refresh a stale cached page in background (one refresh per page at a time).
 	 *
-	 * @param profileId profile identifier
-	 * @param context page context
-	 * @return true on success
+	 * The refresh is sent by a copy of this client without cookies, so that no
+	 * visitor identity leaks into the shared page.
+	 *
+	 * @param cache page cache
+	 * @param key cache key
+	 * @param entry cached page
+	 * @param parameters page parameters (uri included)
 	 */
-	public Future<Boolean> trackLoginAsync(String profileId, PageContext context) {
-		return trackLoginAsync(profileId, (HttpServletRequest)context.getRequest());
+	private void refreshPage(final PageCache cache, final PageKey key, final PageCache.Entry entry, Map<String, String[]> parameters) {
+		if (!entry.claimRefresh(cache.ttl)) {
+			return;
+		}
+
+		final ApiClient client = detach();
+		final Map<String, String[]> refreshParameters = new LinkedHashMap<String, String[]>(parameters);
+
+		try {
+			submit(
+				RequestScheduler.Priority.BACKGROUND,
+				null,
+				new Callable<Page>() {
+					@Override
+					public Page call() throws Exception {
+						final AtomicReference<Page> page = new AtomicReference<Page>(new Page());
+
+						try {
+							client.fetchPage(page, refreshParameters, null);
+						} finally {
+							cache.refreshed(key, entry, page.get());
+						}
+						return page.get();
+					}
+				},
+				null,
+				"com.boxalino.cem.client.ApiClient.refreshPage"
+			);
+		} catch (RejectedExecutionException e) {
+			entry.releaseRefresh();
+		}
 	}
 
 
 	/**
-	 * Track when a user logs in.
+	 * Apply request parameters.
 	 *
-	 * @param profileId profile identifier
 	 * @param request optional http request
-	 * @return true on success
+	 * @param parameters request parameters
 	 */
-	public boolean trackLogin(String profileId, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-
-		description.put("id", profileId);
+	private void applyRequest(HttpServletRequest request, Map<String, String[]> parameters) {
+		// apply request
 		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
 			request = new HttpServletRequestDecoded(request);
 		}
-		return trackEvent("login", description, request);
+		if (request != null) {
+			// set cookies
+			javax.servlet.http.Cookie [] cookies = request.getCookies();
+
+			if (cookies != null) {
+				for (javax.servlet.http.Cookie cookie : cookies) {
+					if (cookie.getName().indexOf("cem") == 0) {
+						setCookie(cookie);
+					}
+				}
+			}
+		}
+		applyEnvironment(request, parameters);
 	}
 
 	/**
-	 * Track when a user logs in (async).
+	 * Apply request parameters and environment (without cookies).
 	 *
-	 * @param profileId profile identifier
 	 * @param request optional http request
-	 * @return true on success
+	 * @param parameters request parameters
 	 */
-	public Future<Boolean> trackLoginAsync(String profileId, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
+	@SuppressWarnings("unchecked")
+	private void applyEnvironment(HttpServletRequest request, Map<String, String[]> parameters) {
+		if (request != null) {
+			// append parameters
+			for (Map.Entry<String, String[]> entry : ((Map<String, String[]>)request.getParameterMap()).entrySet()) {
+				if (!parameters.containsKey(entry.getKey())) {
+					parameters.put(entry.getKey(), entry.getValue());
+				}
+			}
 
-		description.put("id", profileId);
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+			// append environment
+			applyEnvironment(
+				parameters,
+				request.isSecure(),
+				request.getHeader("X-Forwarded-For"),
+				request.getRemoteAddr(),
+				request.getHeader("User-Agent"),
+				request.getHeader("Referer"),
+				request.getServerName(),
+				request.getRequestURI()
+			);
+		} else {
+			// append environment
+			applyEnvironment(parameters);
 		}
-		return trackEventAsync("login", description, request);
 	}
 
-
 	/**
-	 * Track when an item is added to the basket.
+	 * Apply empty environment to parameters (no request).
 	 *
-	 * @param item item descriptor
-	 * @param context page context
-	 * @return true on success
+	 * @param parameters request parameters
 	 */
-	public boolean trackAddToBasket(TransactionItem item, PageContext context) {
-		return trackAddToBasket(item, (HttpServletRequest)context.getRequest());
+	static void applyEnvironment(Map<String, String[]> parameters) {
+		parameters.put("connection", new String [] { "http" });
+		parameters.put("clientAddress", new String [] { "" });
+		parameters.put("clientAgent", new String [] { "" });
+		parameters.put("clientReferer", new String [] { "" });
+		parameters.put("serverAddress", new String [] { "" });
+		parameters.put("serverHost", new String [] { "" });
+		parameters.put("serverUri", new String [] { "" });
 	}
 
 	/**
-	 * Track when an item is added to the basket (async).
+	 * Apply request environment to parameters (parameters already set are kept).
 	 *
-	 * @param item item descriptor
-	 * @param context page context
-	 * @return true on success
+	 * @param parameters request parameters
+	 * @param secure secure connection
+	 * @param forwardedFor X-Forwarded-For header or null
+	 * @param remoteAddress remote address
+	 * @param agent User-Agent header or null
+	 * @param referer Referer header or null
+	 * @param serverHost server name
+	 * @param serverUri request uri
 	 */
-	public Future<Boolean> trackAddToBasketAsync(TransactionItem item, PageContext context) {
-		return trackAddToBasketAsync(item, (HttpServletRequest)context.getRequest());
+	static void applyEnvironment(Map<String, String[]> parameters, boolean secure, String forwardedFor, String remoteAddress, String agent, String referer, String serverHost, String serverUri) {
+		parameters.put("connection", new String [] { secure ? "https" : "http" });
+		if (!parameters.containsKey("clientAddress")) {
+			if (forwardedFor != null) {
+				parameters.put("clientAddress", new String [] { forwardedFor });
+			} else {
+				parameters.put("clientAddress", new String [] { remoteAddress });
+			}
+		}
+		if (!parameters.containsKey("clientAgent") && agent != null) {
+			parameters.put("clientAgent", new String [] { agent });
+		}
+		if (!parameters.containsKey("clientReferer") && referer != null) {
+			parameters.put("clientReferer", new String [] { referer });
+		}
+/* SINCE Servlet API 2.4 only:
+		if (!parameters.containsKey("serverAddress")) {
+			parameters.put("serverAddress", new String [] { request.getLocalAddr() });
+		}*/
+		if (!parameters.containsKey("serverHost")) {
+			parameters.put("serverHost", new String [] { serverHost });
+		}
+		if (!parameters.containsKey("serverUri")) {
+			parameters.put("serverUri", new String [] { serverUri });
+		}
 	}
 
-
 	/**
-	 * Track when an item is added to the basket.
+	 * Decode a servlet request parameter value (see HttpServletRequestDecoded).
 	 *
-	 * @param item item descriptor
-	 * @param request optional http request
-	 * @return true on success
+	 * @param value parameter value
+	 * @param encoding servlet uri encoding
+	 * @return decoded value
 	 */
-	public boolean trackAddToBasket(TransactionItem item, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-
-		description.put("item", item.asJson().toJson(true));
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
+	static String decodeParameter(String value, String encoding) {
+		try {
+			return new String(value.getBytes(encoding));
+		} catch (UnsupportedEncodingException e) {
+			return value;
 		}
-		return trackEvent("addToBasket", description, request);
 	}
 
 	/**
-	 * Track when an item is added to the basket (async).
+	 * Fetch proxy headers from request.
 	 *
-	 * @param item item descriptor
-	 * @param request optional http request
-	 * @return true on success
+	 * @param request http request
+	 * @return proxy headers
 	 */
-	public Future<Boolean> trackAddToBasketAsync(TransactionItem item, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
+	@SuppressWarnings("unchecked")
+	private Header [] fetchProxyHeaders(HttpServletRequest request) {
+		List<Header> list = new ArrayList<Header>();
+		Enumeration<String> headerNames = (Enumeration<String>)request.getHeaderNames();
 
-		description.put("item", item.asJson().toJson(true));
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
-		}
-		if (request != null && request.getParameter("widget") != null) {
-			description.put("widget", request.getParameter("widget"));
+		while (headerNames != null && headerNames.hasMoreElements()) {
+			String name = headerNames.nextElement();
+
+			if (!hiddenProxyHeaders.contains(name.toLowerCase())) {
+				Enumeration<String> headerValues = (Enumeration<String>)request.getHeaders(name);
+
+				while (headerValues != null && headerValues.hasMoreElements()) {
+					String value = headerValues.nextElement();
+
+					list.add(new Header(name, value));
+				}
+			}
 		}
-		return trackEventAsync("addToBasket", description, request);
+		return list.toArray(new Header[list.size()]);
 	}
 
 
 	/**
-	 * Track when a checkout is completed.
+	 * Parse a page response (streaming, fills the page without an intermediate document).
 	 *
-	 * @param success success status (true: successful, false: failed)
-	 * @param amount transaction total amount
-	 * @param items items descriptors
-	 * @param context page context
-	 * @return true on success
+	 * @param is response stream
+	 * @return page
+	 * @throws XMLStreamException if xml is malformed
+	 * @throws IllegalStateException if root element is not a page
 	 */
-	public boolean trackPurchase(boolean success, double amount, List<TransactionItem> items, PageContext context) {
-		return trackPurchase(success, amount, items, (HttpServletRequest)context.getRequest());
+	static Page parsePage(InputStream is) throws XMLStreamException {
+		PageBuilder builder = new PageBuilder();
+
+		parsePage(is, builder);
+		return new Page(builder);
 	}
 
 	/**
-	 * Track when a checkout is completed (async).
+	 * Parse a raw page response with lazy blocks (the response is retained and
+	 * each block is decoded on first access; falls back to eager parsing if the
+	 * response cannot be indexed).
 	 *
-	 * @param success success status (true: successful, false: failed)
-	 * @param amount transaction total amount
-	 * @param items items descriptors
-	 * @param context page context
-	 * @return true on success
+	 * @param data raw response
+	 * @return page
+	 * @throws XMLStreamException if xml is malformed
+	 * @throws IllegalStateException if root element is not a page
 	 */
-	public Future<Boolean> trackPurchaseAsync(boolean success, double amount, List<TransactionItem> items, PageContext context) {
-		return trackPurchaseAsync(success, amount, items, (HttpServletRequest)context.getRequest());
-	}
+	static Page parsePage(byte [] data) throws XMLStreamException {
+		PageIndex index = PageIndex.scan(data);
 
+		if (index != null && index.size() > 0) {
+			Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+			PageBuilder builder = new PageBuilder(ids);
+
+			parsePage(new ByteArrayInputStream(index.skeleton()), builder);
+			if (builder.lazyCount == index.size() && index.check()) {
+				builder.blocks = new LazyBlocks(index, ids);
+				return new Page(builder);
+			}
+		}
+		return parsePage(new ByteArrayInputStream(data));
+	}
 
 	/**
-	 * Track when a checkout is completed.
+	 * Read a page response (according to page format and lazy mode).
 	 *
-	 * @param success success status (true: successful, false: failed)
-	 * @param amount transaction total amount
-	 * @param items items descriptors
-	 * @param request optional http request
-	 * @return true on success
+	 * @param is response stream
+	 * @return page
+	 * @throws Exception if response is invalid
 	 */
-	public boolean trackPurchase(boolean success, double amount, List<TransactionItem> items, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-		JsonArray json = new JsonArray();
-
-		for (TransactionItem item : items) {
-			json.addJson(item.asJson());
+	private Page readPage(InputStream is) throws Exception {
+		if (pageFormat == PageFormat.JSON) {
+			return parseJsonPage(is);
+		}
+		if (lazyPages) {
+			return parsePage(PageIndex.read(is));
 		}
-		description.put("status", success ? "1" : "0");
-		description.put("amount", Double.toString(amount));
-		description.put("items", json.toJson(true));
-		return trackEvent("purchaseDone", description, request);
+		return parsePage(is);
 	}
 
 	/**
-	 * Track when a checkout is completed (async).
+	 * Parse a json page response (streaming).
 	 *
-	 * @param success success status (true: successful, false: failed)
-	 * @param amount transaction total amount
-	 * @param items items descriptors
-	 * @param request optional http request
-	 * @return true on success
+	 * @param is response stream (UTF-8)
+	 * @return page
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if json is malformed or not a page
 	 */
-	public Future<Boolean> trackPurchaseAsync(boolean success, double amount, List<TransactionItem> items, HttpServletRequest request) {
-		Map<String, String> description = new LinkedHashMap<String, String>();
-		JsonArray json = new JsonArray();
+	static Page parseJsonPage(InputStream is) throws IOException {
+		PageJsonParser parser = new PageJsonParser(is);
+		PageBuilder builder = new PageBuilder();
 
-		for (TransactionItem item : items) {
-			json.addJson(item.asJson());
+		try {
+			while (parser.next(builder)) {
+			}
+		} finally {
+			parser.close();
 		}
-		description.put("status", success ? "1" : "0");
-		description.put("amount", Double.toString(amount));
-		description.put("items", json.toJson(true));
-		return trackEventAsync("purchaseDone", description, request);
+		if (!builder.begun) {
+			throw new IllegalStateException("missing json page");
+		}
+		return new Page(builder);
 	}
 
-
 	/**
-	 * Track an analytics event.
+	 * Parse a page response into a builder.
 	 *
-	 * @param name event name
-	 * @param description event description (map)
-	 * @param request optional http request
-	 * @return true on success
+	 * @param is response stream
+	 * @param builder page builder
+	 * @throws XMLStreamException if xml is malformed
+	 * @throws IllegalStateException if root element is not a page
 	 */
-	public boolean trackEvent(String name, Map<String, String> description, HttpServletRequest request) {
-		String [] list = new String[description.size()];
-		int i = 0;
-
-		for (Map.Entry<String, String> item : description.entrySet()) {
-			if (item.getKey().length() == 0 || item.getValue().length() == 0) {
-				continue;
-			}
-			try {
-				list[i++] = URLEncoder.encode(item.getKey(), "UTF-8") + ":" + URLEncoder.encode(item.getValue(), "UTF-8");
-			} catch (Exception e) {
-				ApiCallback callback = this.callback.get();
+	private static void parsePage(InputStream is, PageBuilder builder) throws XMLStreamException {
+		PageParser parser = new PageParser(is);
 
-				if (debug) {
-					e.printStackTrace();
-				}
-				if (callback != null) {
-					callback.error(e);
-				}
+		try {
+			while (parser.next(builder)) {
 			}
+		} finally {
+			parser.close();
+		}
+		if (!builder.begun) {
+			throw new IllegalStateException("missing xml element: cem");
 		}
-		return trackEvent(name, Arrays.copyOf(list, i), request);
 	}
 
+
 	/**
-	 * Track an analytics event (async).
+	 * A decoded servlet request (force UTF-8 decoding)
 	 *
-	 * @param name event name
-	 * @param description event description (map)
-	 * @param request optional http request
-	 * @return true on success
+	 * @author nitro
 	 */
-	public Future<Boolean> trackEventAsync(String name, Map<String, String> description, HttpServletRequest request) {
-		String [] list = new String[description.size()];
-		int i = 0;
+	private class HttpServletRequestDecoded extends HttpServletRequestWrapper {
+		/**
+		 * Constructor.
+		 *
+		 * @param request underlying request
+		 */
+		private HttpServletRequestDecoded(HttpServletRequest request) {
+			super(request);
+		}
+
 
-		for (Map.Entry<String, String> item : description.entrySet()) {
-			if (item.getKey().length() == 0 || item.getValue().length() == 0) {
-				continue;
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String getParameter(String name) {
+			String value = super.getParameter(name);
+
+			if (value != null) {
+				return decodeParameter(value, ApiClient.this.defaultServletUriEncoding);
 			}
-			try {
-				list[i++] = URLEncoder.encode(item.getKey(), "UTF-8") + ":" + URLEncoder.encode(item.getValue(), "UTF-8");
-			} catch (Exception e) {
-				ApiCallback callback = this.callback.get();
+			return value;
+		}
 
-				if (debug) {
-					e.printStackTrace();
-				}
-				if (callback != null) {
-					callback.error(e);
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public Map getParameterMap() {
+			Map<String, String[]> map = (Map<String, String[]>)super.getParameterMap();
+
+			if (map != null && map.size() > 0) {
+				Map<String, String[]> tmp = new LinkedHashMap<String, String[]>();
+
+				for (Map.Entry<String, String[]> entry : map.entrySet()) {
+					String [] tmp2 = new String[entry.getValue().length];
+
+					for (int i = 0; i < tmp2.length; i++) {
+						tmp2[i] = decodeParameter(entry.getValue()[i], ApiClient.this.defaultServletUriEncoding);
+					}
+					tmp.put(entry.getKey(), tmp2);
 				}
+				return tmp;
 			}
+			return map;
 		}
-		return trackEventAsync(name, Arrays.copyOf(list, i), request);
-	}
 
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String [] getParameterValues(String name) {
+			String [] values = super.getParameterValues(name);
 
-	/**
-	 * Track an analytics event.
-	 *
-	 * @param name event name
-	 * @param description event description (list)
-	 * @param request optional http request
-	 * @return true on success
-	 */
-	public boolean trackEvent(String name, String [] description, HttpServletRequest request) {
-		StringBuilder buffer = new StringBuilder();
+			if (values != null && values.length > 0) {
+				String [] tmp = new String[values.length];
 
-		for (String item : description) {
-			if (item.length() > 0) {
-				if (buffer.length() > 0) {
-					buffer.append(' ');
+				for (int i = 0; i < values.length; i++) {
+					tmp[i] = decodeParameter(values[i], ApiClient.this.defaultServletUriEncoding);
 				}
-				buffer.append(item);
+				return tmp;
 			}
+			return values;
 		}
-		return trackEvent(name, buffer.toString(), request);
 	}
 
 	/**
-	 * Track an analytics event (async).
+	 * Page item publisher (one request per subscription).
 	 *
-	 * @param name event name
-	 * @param description event description (list)
-	 * @param request optional http request
-	 * @return true on success
+	 * @author nitro
 	 */
-	public Future<Boolean> trackEventAsync(String name, String [] description, HttpServletRequest request) {
-		StringBuilder buffer = new StringBuilder();
+	private class PagePublisher implements Flow.Publisher<PageItem> {
+		/** Request parameters */
+		private final Map<String, String[]> parameters;
 
-		for (String item : description) {
-			if (item.length() > 0) {
-				if (buffer.length() > 0) {
-					buffer.append(' ');
-				}
-				buffer.append(item);
+		/** Optional http response */
+		private final HttpServletResponse response;
+
+		/** Subscribed flag */
+		private final AtomicBoolean subscribed = new AtomicBoolean();
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param parameters request parameters
+		 * @param response optional http response
+		 */
+		private PagePublisher(Map<String, String[]> parameters, HttpServletResponse response) {
+			this.parameters = parameters;
+			this.response = response;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void subscribe(Flow.Subscriber<? super PageItem> subscriber) {
+			PageSubscription subscription = new PageSubscription(subscriber, parameters, response);
+
+			subscriber.onSubscribe(subscription);
+			if (!subscribed.compareAndSet(false, true)) {
+				subscription.fail(new IllegalStateException("page publisher supports a single subscriber"));
+				return;
+			}
+			try {
+				submit(RequestScheduler.Priority.INTERACTIVE, null, subscription, null, "com.boxalino.cem.client.ApiClient.publishPage");
+			} catch (RejectedExecutionException e) {
+				subscription.fail(e);
 			}
 		}
-		return trackEventAsync(name, buffer.toString(), request);
 	}
 
-
 	/**
-	 * Track an analytics event.
+	 * Page item subscription (parses the response while there is demand).
 	 *
-	 * @param name event name
-	 * @param description event description (raw)
-	 * @param request optional http request
-	 * @return true on success
+	 * @author nitro
 	 */
-	public boolean trackEvent(String name, String description, HttpServletRequest request) {
-		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
-		final AtomicBoolean success = new AtomicBoolean();
+	private class PageSubscription implements Flow.Subscription, PageParser.Handler, Callable<Void> {
+		/** Subscriber */
+		private final Flow.Subscriber<? super PageItem> subscriber;
 
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+		/** Request parameters */
+		private final Map<String, String[]> parameters;
+
+		/** Optional http response */
+		private final HttpServletResponse response;
+
+		/** Outstanding demand */
+		private long demand = 0;
+
+		/** Cancelled flag */
+		private boolean cancelled = false;
+
+		/** Terminated flag */
+		private boolean terminated = false;
+
+
+		/**
+		 * Constructor.
+		 *
+		 * @param subscriber subscriber
+		 * @param parameters request parameters
+		 * @param response optional http response
+		 */
+		private PageSubscription(Flow.Subscriber<? super PageItem> subscriber, Map<String, String[]> parameters, HttpServletResponse response) {
+			this.subscriber = subscriber;
+			this.parameters = parameters;
+			this.response = response;
 		}
-		applyRequest(request, parameters);
-		parameters.put("eventName", new String [] { name });
-		parameters.put("eventDescription", new String [] { description });
-		try {
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("non-positive subscription request: " + n));
+				return;
+			}
+			synchronized (this) {
+				demand = (demand + n < 0 ? Long.MAX_VALUE : demand + n);
+				notifyAll();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Void call() throws Exception {
+			final AtomicReference<Exception> error = new AtomicReference<Exception>();
+			final PageFormat format = pageFormat;
+
 			postFields(
-				url + "/analytics",
+				getPageUrl(),
 				parameters,
 				"UTF-8",
 				null,
 				new Callback() {
 					@Override
 					public void beginResponse() throws Exception {
-						success.set(getCode() == 200);
+						if (response != null) {
+							for (Cookie cookie : getCookies()) {
+								if (cookie.getName().indexOf("cem") == 0) {
+									response.addCookie(cookie.toCookie());
+								}
+							}
+						}
 					}
 
 					@Override
 					public void parseResponse(InputStream is) throws Exception {
+						if (format == PageFormat.JSON) {
+							PageJsonParser parser = new PageJsonParser(is);
+
+							try {
+								while (awaitDemand() && parser.next(PageSubscription.this));
+							} finally {
+								parser.close();
+							}
+						} else {
+							PageParser parser = new PageParser(is);
+
+							try {
+								while (awaitDemand() && parser.next(PageSubscription.this));
+							} finally {
+								parser.close();
+							}
+						}
+						complete();
 					}
 
 					@Override
@@ -1367,273 +3483,251 @@ public class ApiClient extends HttpClient {
 						if (callback != null) {
 							callback.error(e);
 						}
+						error.set(e);
 					}
 				}
 			);
-		} catch (Exception e) {
-			ApiCallback callback = this.callback.get();
-
-			if (debug) {
-				e.printStackTrace();
-			}
-			if (callback != null) {
-				callback.error(e);
+			if (error.get() != null) {
+				fail(error.get());
+			} else {
+				complete();
 			}
+			return null;
 		}
-		return success.get();
-	}
 
-	/**
-	 * Track an analytics event (async).
-	 *
-	 * @param name event name
-	 * @param description event description (raw)
-	 * @param request optional http request
-	 * @return true on success
-	 */
-	public Future<Boolean> trackEventAsync(String name, String description, HttpServletRequest request) {
-		final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
-		FutureTask<Boolean> task;
-		Thread thread;
 
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void begin(String version, boolean status, double time) {
+			emit(new PageItem(PageItem.Type.STATUS, null, version, status, time, 0, 0, 0, 0, 0));
 		}
-		applyRequest(request, parameters);
-
-		parameters.put("eventName", new String [] { name });
-		parameters.put("eventDescription", new String [] { description });
-		task = new FutureTask<Boolean>(
-			new Callable<Boolean>() {
-				@Override
-				public Boolean call() throws Exception {
-					final AtomicBoolean success = new AtomicBoolean();
 
-					postFields(
-						url + "/analytics",
-						parameters,
-						"UTF-8",
-						null,
-						new Callback() {
-							@Override
-							public void beginResponse() throws Exception {
-								success.set(getCode() == 200);
-							}
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void context(String context) {
+			emit(new PageItem(PageItem.Type.CONTEXT, null, context));
+		}
 
-							@Override
-							public void parseResponse(InputStream is) throws Exception {
-							}
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void query(String query) {
+			emit(new PageItem(PageItem.Type.QUERY, null, query));
+		}
 
-							@Override
-							public void error(Exception e) {
-								ApiCallback callback = ApiClient.this.callback.get();
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void results(int offset, int total, int pageIndex, int pageCount, int pageSize) {
+			emit(new PageItem(PageItem.Type.RESULTS, null, null, false, 0.0, offset, total, pageIndex, pageCount, pageSize));
+		}
 
-								if (debug) {
-									e.printStackTrace();
-								}
-								if (callback != null) {
-									callback.error(e);
-								}
-								throw new RuntimeException(e);
-							}
-						}
-					);
-					return success.get();
-				}
-			}
-		);
-		thread = new Thread(task, "com.boxalino.cem.client.ApiClient.trackEventAsync");
-		thread.setDaemon(true);
-		thread.start();
-		return task;
-	}
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void result(String id) {
+			emit(new PageItem(PageItem.Type.RESULT, id, null));
+		}
 
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void recommendation(String id) {
+			emit(new PageItem(PageItem.Type.RECOMMENDATION, id, null));
+		}
 
-	/**
-	 * Apply request parameters.
-	 *
-	 * @param request optional http request
-	 * @param parameters request parameters
-	 */
-	@SuppressWarnings("unchecked")
-	private void applyRequest(HttpServletRequest request, Map<String, String[]> parameters) {
-		// apply request
-		if (request != null && !(request instanceof HttpServletRequestDecoded)) {
-			request = new HttpServletRequestDecoded(request);
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void block(String id, String content) {
+			emit(new PageItem(PageItem.Type.BLOCK, id, content));
 		}
-		if (request != null) {
-			// set cookies
-			javax.servlet.http.Cookie [] cookies = request.getCookies();
 
-			if (cookies != null) {
-				for (javax.servlet.http.Cookie cookie : cookies) {
-					if (cookie.getName().indexOf("cem") == 0) {
-						setCookie(cookie);
+
+		/**
+		 * Wait for demand, at most readTimeout: a stalled subscriber fails the
+		 * subscription, releasing the scheduler thread, limiter permit and
+		 * connection.
+		 *
+		 * @return true if demand is available, false if cancelled, terminated or timed out
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		private boolean awaitDemand() throws InterruptedException {
+			int timeout = readTimeout;
+			long deadline = System.currentTimeMillis() + timeout;
+
+			synchronized (this) {
+				while (demand == 0 && !cancelled && !terminated) {
+					long wait = deadline - System.currentTimeMillis();
+
+					if (timeout <= 0) {
+						wait();
+					} else if (wait > 0) {
+						wait(wait);
+					} else {
+						break;
 					}
 				}
+				if (cancelled || terminated) {
+					return false;
+				}
+				if (demand > 0) {
+					return true;
+				}
 			}
+			fail(new TimeoutException("no subscriber demand within " + timeout + "ms"));
+			return false;
+		}
 
-			// append parameters
-			for (Map.Entry<String, String[]> entry : ((Map<String, String[]>)request.getParameterMap()).entrySet()) {
-				if (!parameters.containsKey(entry.getKey())) {
-					parameters.put(entry.getKey(), entry.getValue());
+		/**
+		 * Emit an item (demand must be available).
+		 *
+		 * @param item page item
+		 */
+		private void emit(PageItem item) {
+			synchronized (this) {
+				if (cancelled || terminated) {
+					return;
 				}
+				demand--;
 			}
+			subscriber.onNext(item);
+		}
 
-			// append environment
-			parameters.put("connection", new String [] { request.isSecure() ? "https" : "http" });
-			if (!parameters.containsKey("clientAddress")) {
-				if (request.getHeader("X-Forwarded-For") != null) {
-					parameters.put("clientAddress", new String [] { request.getHeader("X-Forwarded-For") });
-				} else {
-					parameters.put("clientAddress", new String [] { request.getRemoteAddr() });
+		/**
+		 * Signal completion (once).
+		 *
+		 */
+		private void complete() {
+			synchronized (this) {
+				if (cancelled || terminated) {
+					return;
 				}
+				terminated = true;
 			}
-			if (!parameters.containsKey("clientAgent") && request.getHeader("User-Agent") != null) {
-				parameters.put("clientAgent", new String [] { request.getHeader("User-Agent") });
-			}
-			if (!parameters.containsKey("clientReferer") && request.getHeader("Referer") != null) {
-				parameters.put("clientReferer", new String [] { request.getHeader("Referer") });
-			}
-/* SINCE Servlet API 2.4 only:
-			if (!parameters.containsKey("serverAddress")) {
-				parameters.put("serverAddress", new String [] { request.getLocalAddr() });
-			}*/
-			if (!parameters.containsKey("serverHost")) {
-				parameters.put("serverHost", new String [] { request.getServerName() });
-			}
-			if (!parameters.containsKey("serverUri")) {
-				parameters.put("serverUri", new String [] { request.getRequestURI() });
+			subscriber.onComplete();
+		}
+
+		/**
+		 * Signal error (once).
+		 *
+		 * @param e error
+		 */
+		private void fail(Exception e) {
+			synchronized (this) {
+				if (cancelled || terminated) {
+					return;
+				}
+				terminated = true;
+				notifyAll();
 			}
-		} else {
-			// append environment
-			parameters.put("connection", new String [] { "http" });
-			parameters.put("clientAddress", new String [] { "" });
-			parameters.put("clientAgent", new String [] { "" });
-			parameters.put("clientReferer", new String [] { "" });
-			parameters.put("serverAddress", new String [] { "" });
-			parameters.put("serverHost", new String [] { "" });
-			parameters.put("serverUri", new String [] { "" });
+			subscriber.onError(e);
 		}
 	}
 
 	/**
-	 * Fetch proxy headers from request.
+	 * Pending async analytics event (see close)
 	 *
-	 * @param request http request
-	 * @return proxy headers
+	 * @author nitro
 	 */
-	@SuppressWarnings("unchecked")
-	private Header [] fetchProxyHeaders(HttpServletRequest request) {
-		List<Header> list = new ArrayList<Header>();
-		Enumeration<String> headerNames = (Enumeration<String>)request.getHeaderNames();
+	private static class PendingEvent {
+		/** Queued state */
+		private static final int QUEUED = 0;
 
-		while (headerNames != null && headerNames.hasMoreElements()) {
-			String name = headerNames.nextElement();
+		/** Running state */
+		private static final int RUNNING = 1;
 
-			if (!hiddenProxyHeaders.contains(name.toLowerCase())) {
-				Enumeration<String> headerValues = (Enumeration<String>)request.getHeaders(name);
+		/** Abandoned state (closed before running) */
+		private static final int ABANDONED = 2;
 
-				while (headerValues != null && headerValues.hasMoreElements()) {
-					String value = headerValues.nextElement();
 
-					list.add(new Header(name, value));
-				}
-			}
-		}
-		return list.toArray(new Header[list.size()]);
-	}
+		/** Event to spool if not delivered (may be null) */
+		private final AnalyticsEvent event;
 
+		/** Spool (may be null) */
+		private final AnalyticsSpool spool;
 
-	/**
-	 * Visit an xml "array" element.
-	 *
-	 * @param element xml element
-	 * @return array (id)
-	 */
-	private static List<String> visitList(Element element, String tagName, String idAttribute) {
-		List<String> list = new ArrayList<String>();
-		NodeList children = element.getChildNodes();
+		/** State */
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
 
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
+		/** Spilled to spool when abandoned */
+		private volatile boolean spilled = false;
 
-			switch (child.getNodeType()) {
-			case Node.ELEMENT_NODE:
-				if (tagName.equals(child.getNodeName())) {
-					Element childElement = (Element)child;
 
-					list.add(childElement.getAttribute(idAttribute));
-				}
-				break;
-			}
+		/**
+		 * Constructor
+		 *
+		 * @param event event to spool if not delivered (may be null)
+		 * @param spool spool (may be null)
+		 */
+		private PendingEvent(AnalyticsEvent event, AnalyticsSpool spool) {
+			this.event = event;
+			this.spool = spool;
 		}
-		return list;
-	}
 
-	/**
-	 * Visit an xml "map" element.
-	 *
-	 * @param element xml element
-	 * @return map (id => text)
-	 */
-	private static Map<String, String> visitMap(Element element, String tagName, String idAttribute) {
-		Map<String, String> map = new LinkedHashMap<String, String>();
-		NodeList children = element.getChildNodes();
-
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
 
-			switch (child.getNodeType()) {
-			case Node.ELEMENT_NODE:
-				if (tagName.equals(child.getNodeName())) {
-					Element childElement = (Element)child;
+		/**
+		 * Start delivery.
+		 *
+		 * @return true if started, false if abandoned
+		 */
+		private boolean start() {
+			return state.compareAndSet(QUEUED, RUNNING);
+		}
 
-					map.put(childElement.getAttribute(idAttribute), visitTextNodes(childElement));
-				}
-				break;
-			}
+		/**
+		 * Abandon delivery (spill to spool).
+		 *
+		 * @return true if spilled
+		 */
+		private boolean abandon() {
+			state.compareAndSet(QUEUED, ABANDONED);
+			spilled = (event != null && spool != null && spool.append(event));
+			return spilled;
 		}
-		return map;
 	}
 
 	/**
-	 * Visit an xml element and return all direct textual content.
+	 * Analytics event subscriber (events are tracked sequentially on the background lane).
 	 *
-	 * @param element xml element
-	 * @return all textual content
+	 * @author nitro
 	 */
-	private static String visitTextNodes(Element element) {
-		StringBuffer buffer = new StringBuffer();
-		NodeList children = element.getChildNodes();
+	private class EventSubscriber implements Flow.Subscriber<AnalyticsEvent>, Callable<Void> {
+		/** Maximum pending events */
+		private final int window;
 
-		for (int i = 0; i < children.getLength(); i++) {
-			Node child = children.item(i);
+		/** Delivery client (event cookies are set on it, see trackEvent) */
+		private final ApiClient client = detach();
 
-			switch (child.getNodeType()) {
-			case Node.TEXT_NODE:
-			case Node.CDATA_SECTION_NODE:
-				buffer.append(child.getNodeValue());
-				break;
-			}
-		}
-		return buffer.toString().trim();
-	}
+		/** Pending events */
+		private final LinkedList<AnalyticsEvent> queue = new LinkedList<AnalyticsEvent>();
+
+		/** Subscription */
+		private Flow.Subscription subscription = null;
+
+		/** Draining flag */
+		private boolean draining = false;
 
 
-	/**
-	 * A decoded servlet request (force UTF-8 decoding)
-	 *
-	 * @author nitro
-	 */
-	private class HttpServletRequestDecoded extends HttpServletRequestWrapper {
 		/**
 		 * Constructor.
 		 *
-		 * @param request underlying request
+		 * @param window maximum pending events
 		 */
-		private HttpServletRequestDecoded(HttpServletRequest request) {
-			super(request);
+		private EventSubscriber(int window) {
+			if (window <= 0) {
+				throw new IllegalArgumentException("invalid window: " + window);
+			}
+			this.window = window;
 		}
 
 
@@ -1641,65 +3735,81 @@ public class ApiClient extends HttpClient {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public String getParameter(String name) {
-			String value = super.getParameter(name);
-
-			if (value != null) {
-				try {
-					return new String(value.getBytes(ApiClient.this.defaultServletUriEncoding));
-				} catch (UnsupportedEncodingException e) { }
+		public void onSubscribe(Flow.Subscription subscription) {
+			synchronized (this) {
+				if (this.subscription != null) {
+					subscription.cancel();
+					return;
+				}
+				this.subscription = subscription;
 			}
-			return value;
+			subscription.request(window);
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		@SuppressWarnings("unchecked")
-		public Map getParameterMap() {
-			Map<String, String[]> map = (Map<String, String[]>)super.getParameterMap();
-
-			if (map != null && map.size() > 0) {
-				Map<String, String[]> tmp = new LinkedHashMap<String, String[]>();
+		public void onNext(AnalyticsEvent event) {
+			synchronized (this) {
+				queue.addLast(event);
+				if (draining) {
+					return;
+				}
+				draining = true;
+			}
+			try {
+				submit(RequestScheduler.Priority.BACKGROUND, null, this, null, "com.boxalino.cem.client.ApiClient.trackEvents");
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					draining = false;
+				}
+				onError(e);
+			}
+		}
 
-				for (Map.Entry<String, String[]> entry : map.entrySet()) {
-					String [] tmp2 = new String[entry.getValue().length];
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void onError(Throwable throwable) {
+			ApiCallback callback = ApiClient.this.callback.get();
+			Exception e = (throwable instanceof Exception ? (Exception)throwable : new RuntimeException(throwable));
 
-					for (int i = 0; i < tmp2.length; i++) {
-						try {
-							tmp2[i] = new String(entry.getValue()[i].getBytes(ApiClient.this.defaultServletUriEncoding));
-						} catch (UnsupportedEncodingException e) {
-							tmp2[i] = entry.getValue()[i];
-						}
-					}
-					tmp.put(entry.getKey(), tmp2);
-				}
-				return tmp;
+			if (debug) {
+				e.printStackTrace();
+			}
+			if (callback != null) {
+				callback.error(e);
 			}
-			return map;
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		public String [] getParameterValues(String name) {
-			String [] values = super.getParameterValues(name);
+		public void onComplete() {
+		}
 
-			if (values != null && values.length > 0) {
-				String [] tmp = new String[values.length];
 
-				for (int i = 0; i < values.length; i++) {
-					try {
-						tmp[i] = new String(values[i].getBytes(ApiClient.this.defaultServletUriEncoding));
-					} catch (UnsupportedEncodingException e) {
-						tmp[i] = values[i];
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Void call() throws Exception {
+			while (true) {
+				AnalyticsEvent event;
+
+				synchronized (this) {
+					event = queue.poll();
+					if (event == null) {
+						draining = false;
+						return null;
 					}
 				}
-				return tmp;
+				client.trackEvent(event);
+				subscription.request(1);
 			}
-			return values;
 		}
 	}
 
@@ -1746,7 +3856,7 @@ public class ApiClient extends HttpClient {
 		 */
 		@Override
 		public void parseResponse(InputStream is) throws Exception {
-			byte [] buffer = new byte[4096];
+			byte [] buffer = BufferPool.shared.acquire();
 			int br;
 
 			try {
@@ -1764,6 +3874,7 @@ public class ApiClient extends HttpClient {
 				}
 			} finally {
 				is.close();
+				BufferPool.shared.release(buffer);
 			}
 		}
 
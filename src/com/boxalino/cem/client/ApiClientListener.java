@@ -0,0 +1,184 @@
+package com.boxalino.cem.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+
+/**
+ * Web application lifecycle integration.
+ *
+ * On startup, creates the shared analytics delivery of the web application
+ * from the context parameters (pipeline, spool and view aggregator, held by a
+ * delivery client that never sends requests itself) and starts it; on
+ * shutdown (redeploy), drains pending analytics events within a deadline and
+ * spills the rest to the spool, logging what was dropped.
+ *
+ * Clients hold the cookies of their visitor, so they are not shared between
+ * requests: call createClient for every request, it returns a client wired to
+ * the shared delivery (see ApiClient.createClient). Subclasses may configure
+ * the delivery client (createDelivery) and the request clients (configure).
+ *
+ * Context parameters:
+ * - com.boxalino.cem.client.url: api url (required)
+ * - com.boxalino.cem.client.pipeline: "true" to deliver events through a pipeline
+ * - com.boxalino.cem.client.spool: spool directory (optional)
+ * - com.boxalino.cem.client.viewAggregation: "true" to send product and category views as periodic aggregates
+ * - com.boxalino.cem.client.closeTimeout: drain timeout, defaults to 10000 [ms] (also if invalid)
+ *
+ * The listener is available in the context attribute com.boxalino.cem.client.ApiClientListener.
+ *
+ * @author nitro
+ */
+public class ApiClientListener implements ServletContextListener {
+	/** Listener context attribute */
+	public static final String ATTRIBUTE = "com.boxalino.cem.client.ApiClientListener";
+
+	/** Context parameter prefix */
+	private static final String PREFIX = "com.boxalino.cem.client.";
+
+	/** Default drain timeout [ms] */
+	private static final long CLOSE_TIMEOUT = 10000;
+
+
+	/** Delivery client (shared analytics delivery, never used for requests) */
+	private volatile ApiClient delivery = null;
+
+	/** Drain timeout [ms] */
+	private volatile long closeTimeout = CLOSE_TIMEOUT;
+
+
+	/**
+	 * Create a client for one request of a web application.
+	 *
+	 * @param context servlet context
+	 * @return request client or null if none (listener not initialized)
+	 */
+	public static ApiClient createClient(ServletContext context) {
+		ApiClientListener listener = (ApiClientListener)context.getAttribute(ATTRIBUTE);
+
+		return (listener != null ? listener.createClient() : null);
+	}
+
+
+	/**
+	 * Create a client for one request (wired to the shared analytics delivery).
+	 *
+	 * @return request client or null if none (not initialized)
+	 */
+	public ApiClient createClient() {
+		ApiClient delivery = this.delivery;
+
+		if (delivery == null) {
+			return null;
+		}
+
+		ApiClient client = delivery.createClient();
+
+		configure(client);
+		return client;
+	}
+
+	/**
+	 * Create the delivery client from the context parameters.
+	 *
+	 * @param context servlet context
+	 * @param url api url
+	 * @return delivery client
+	 */
+	protected ApiClient createDelivery(ServletContext context, String url) {
+		ApiClient delivery = new ApiClient(url);
+
+		if ("true".equals(context.getInitParameter(PREFIX + "pipeline"))) {
+			delivery.pipeline = new AnalyticsPipeline(url);
+		}
+
+		String directory = context.getInitParameter(PREFIX + "spool");
+
+		if (directory != null) {
+			try {
+				delivery.spool = new AnalyticsSpool(url, new File(directory));
+			} catch (IOException e) {
+				context.log("com.boxalino.cem.client: cannot open spool " + directory, e);
+			}
+			if (delivery.pipeline != null) {
+				delivery.pipeline.spool = delivery.spool;
+			}
+		}
+		if ("true".equals(context.getInitParameter(PREFIX + "viewAggregation"))) {
+			delivery.viewAggregator = new ViewAggregator(url);
+			delivery.viewAggregator.client.spool = delivery.spool;
+		}
+		return delivery;
+	}
+
+	/**
+	 * Configure a request client (called by createClient, does nothing by default).
+	 *
+	 * @param client request client
+	 */
+	protected void configure(ApiClient client) {
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		String url = context.getInitParameter(PREFIX + "url");
+
+		if (url == null) {
+			context.log("com.boxalino.cem.client: no client (missing " + PREFIX + "url)");
+			return;
+		}
+
+		String timeout = context.getInitParameter(PREFIX + "closeTimeout");
+
+		closeTimeout = CLOSE_TIMEOUT;
+		if (timeout != null) {
+			try {
+				closeTimeout = Math.max(Long.parseLong(timeout.trim()), 0);
+			} catch (NumberFormatException e) {
+				context.log("com.boxalino.cem.client: invalid " + PREFIX + "closeTimeout " + timeout + ", using " + CLOSE_TIMEOUT);
+			}
+		}
+
+		ApiClient delivery = createDelivery(context, url);
+
+		delivery.start();
+		this.delivery = delivery;
+		context.setAttribute(ATTRIBUTE, this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		ApiClient delivery = this.delivery;
+
+		if (delivery == null) {
+			return;
+		}
+		context.removeAttribute(ATTRIBUTE);
+		this.delivery = null;
+
+		try {
+			ApiClient.DrainReport report = delivery.close(closeTimeout);
+
+			context.log("com.boxalino.cem.client: closed " + report);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			context.log("com.boxalino.cem.client: interrupted while closing", e);
+		} catch (RuntimeException e) {
+			// never fail the undeployment
+			context.log("com.boxalino.cem.client: cannot close", e);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.boxalino.cem.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Bounded pool of fixed-size byte buffers shared by all clients.
+ *
+ * @author nitro
+ */
+class BufferPool {
+	/** Shared pool (4kB buffers) */
+	static final BufferPool shared = new BufferPool(4096, 256);
+
+
+	/** Buffer size */
+	final int bufferSize;
+
+	/** Maximum pooled buffers */
+	private final int maxPooled;
+
+	/** Pooled buffers */
+	private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	/** Pooled buffer count */
+	private final AtomicInteger pooled = new AtomicInteger();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param bufferSize buffer size
+	 * @param maxPooled maximum pooled buffers
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+
+	/**
+	 * Acquire a buffer
+	 *
+	 * @return pooled or new buffer
+	 */
+	byte [] acquire() {
+		byte [] buffer = buffers.poll();
+
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Release a buffer
+	 *
+	 * @param buffer buffer to release
+	 */
+	void release(byte [] buffer) {
+		if (buffer.length != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
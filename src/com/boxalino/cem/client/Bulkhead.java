@@ -0,0 +1,138 @@
+package com.boxalino.cem.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+
+/**
+ * Tenant bulkhead.
+ *
+ * Each tenant (shop) gets its own bounded connection quotas and executor slice
+ * (request scheduler) and its own concurrency limiters and admission
+ * controllers, while all tenants share the same worker threads and transfer
+ * buffers. A slow tenant exhausts only its own slice.
+ *
+ * <pre>
+ * ApiClient client = new ApiClient(url, Bulkhead.get("shop-a"));
+ * </pre>
+ *
+ * @author nitro
+ */
+public class Bulkhead {
+	/** Shared worker threads */
+	private static final ThreadPoolExecutor executor = RequestScheduler.newExecutor("com.boxalino.cem.client.Bulkhead");
+
+	/** Bulkheads by tenant */
+	private static final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+
+	/**
+	 * Get (or create) a tenant bulkhead
+	 *
+	 * @param tenant tenant identifier (shop name or api url)
+	 * @return tenant bulkhead
+	 */
+	public static Bulkhead get(String tenant) {
+		Bulkhead bulkhead = bulkheads.get(tenant);
+
+		if (bulkhead == null) {
+			bulkhead = new Bulkhead(tenant);
+
+			Bulkhead previous = bulkheads.putIfAbsent(tenant, bulkhead);
+
+			if (previous != null) {
+				bulkhead = previous;
+			}
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * Remove a tenant bulkhead
+	 *
+	 * @param tenant tenant identifier
+	 * @return removed bulkhead or null if none
+	 */
+	public static Bulkhead remove(String tenant) {
+		return bulkheads.remove(tenant);
+	}
+
+	/**
+	 * Get shared worker threads in use (all tenants)
+	 *
+	 * @return active worker threads
+	 */
+	public static int getSharedActiveCount() {
+		return executor.getActiveCount();
+	}
+
+
+	/** Tenant identifier */
+	public final String tenant;
+
+	/** Request scheduler (executor slice and connection quotas) */
+	public final RequestScheduler scheduler;
+
+	/** Page concurrency limiter */
+	public final ConcurrencyLimiter pageLimiter;
+
+	/** Analytics concurrency limiter */
+	public final ConcurrencyLimiter analyticsLimiter;
+
+	/** Page admission controller */
+	public final AdmissionController pageAdmission;
+
+	/** Analytics admission controller */
+	public final AdmissionController analyticsAdmission;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param tenant tenant identifier
+	 */
+	private Bulkhead(String tenant) {
+		this.tenant = tenant;
+		this.scheduler = new RequestScheduler(executor);
+		this.scheduler.setLane(RequestScheduler.Priority.INTERACTIVE, 16, 128, 16);
+		this.scheduler.setLane(RequestScheduler.Priority.PROXY, 8, 128, 8);
+		this.scheduler.setLane(RequestScheduler.Priority.BACKGROUND, 2, 5000, 2);
+		this.pageLimiter = new ConcurrencyLimiter(tenant + "/page", 8, 2, 16);
+		this.analyticsLimiter = new ConcurrencyLimiter(tenant + "/analytics", 2, 1, 4);
+		this.pageAdmission = new AdmissionController(tenant + "/page");
+		this.analyticsAdmission = new AdmissionController(tenant + "/analytics", 1000, 5000);
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{tenant=" + tenant +
+			",scheduler=" + scheduler +
+			",pageLimiter=" + pageLimiter +
+			",analyticsLimiter=" + analyticsLimiter +
+			",pageAdmission=" + pageAdmission +
+			",analyticsAdmission=" + analyticsAdmission + "}"
+		);
+	}
+
+
+	/**
+	 * Apply bulkhead to a client
+	 *
+	 * @param client api client
+	 */
+	public void apply(ApiClient client) {
+		client.scheduler = scheduler;
+		client.pageLimiter = pageLimiter;
+		client.analyticsLimiter = analyticsLimiter;
+		client.pageAdmission = pageAdmission;
+		client.analyticsAdmission = analyticsAdmission;
+	}
+}
@@ -0,0 +1,292 @@
+package com.boxalino.cem.client;
+
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * Adaptive concurrency limiter (AIMD).
+ *
+ * The limit grows by one when a request completes at full utilization with a
+ * latency close to the observed baseline and shrinks multiplicatively when a
+ * request fails or its latency exceeds the baseline by the given tolerance.
+ * Callers above the limit are queued up to a maximum depth and wait time, then
+ * shed with a RejectedExecutionException.
+ *
+ * @author nitro
+ */
+public class ConcurrencyLimiter {
+	/**
+	 * Granted permit
+	 *
+	 * @author nitro
+	 */
+	public final class Permit {
+		/** Acquisition time [ns] */
+		private final long startTime = System.nanoTime();
+
+		/** Released flag */
+		private boolean released = false;
+
+
+		/**
+		 * Constructor
+		 *
+		 */
+		private Permit() {
+		}
+
+
+		/**
+		 * Release permit and record its latency sample.
+		 *
+		 * @param success true if request completed (false if it failed or timed out)
+		 */
+		public void release(boolean success) {
+			synchronized (ConcurrencyLimiter.this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			ConcurrencyLimiter.this.release(System.nanoTime() - startTime, success);
+		}
+	}
+
+
+	/** Limiter name (for metrics) */
+	public final String name;
+
+	/** Minimum limit */
+	public final int minLimit;
+
+	/** Maximum limit */
+	public final int maxLimit;
+
+	/** Maximum queued callers, defaults to 64 */
+	public volatile int maxQueue = 64;
+
+	/** Maximum queue wait, defaults to 250 [ms] */
+	public volatile long maxWait = 250;
+
+	/** Latency tolerance over baseline before decreasing, defaults to 2.0 */
+	public volatile double tolerance = 2.0;
+
+	/** Multiplicative decrease ratio, defaults to 0.9 */
+	public volatile double backoffRatio = 0.9;
+
+	/** Current limit */
+	private double limit;
+
+	/** Requests in flight */
+	private int inFlight = 0;
+
+	/** Queued callers */
+	private int queued = 0;
+
+	/** Baseline latency (smoothed minimum) [ns] */
+	private double baseline = 0;
+
+	/** Completed requests */
+	private long completed = 0;
+
+	/** Failed requests */
+	private long failed = 0;
+
+	/** Rejected (shed) requests */
+	private long rejected = 0;
+
+
+	/**
+	 * Constructor (limit = 10..200, initial = 20)
+	 *
+	 * @param name limiter name
+	 */
+	public ConcurrencyLimiter(String name) {
+		this(name, 20, 10, 200);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param name limiter name
+	 * @param initialLimit initial limit
+	 * @param minLimit minimum limit
+	 * @param maxLimit maximum limit
+	 */
+	public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("invalid limits: " + minLimit + " <= " + initialLimit + " <= " + maxLimit);
+		}
+		this.name = name;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public synchronized String toString() {
+		return (
+			"{name=" + name +
+			",limit=" + (int)limit +
+			",inFlight=" + inFlight +
+			",queued=" + queued +
+			",completed=" + completed +
+			",failed=" + failed +
+			",rejected=" + rejected + "}"
+		);
+	}
+
+
+	/**
+	 * Get current limit
+	 *
+	 * @return current limit
+	 */
+	public synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	/**
+	 * Get requests in flight
+	 *
+	 * @return requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Get queue depth
+	 *
+	 * @return queued callers
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * Get baseline latency
+	 *
+	 * @return baseline latency [ms]
+	 */
+	public synchronized double getBaselineLatency() {
+		return baseline / 1000000.0;
+	}
+
+	/**
+	 * Get completed requests
+	 *
+	 * @return completed requests
+	 */
+	public synchronized long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Get failed requests
+	 *
+	 * @return failed requests
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Get rejected requests
+	 *
+	 * @return rejected requests
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+
+	/**
+	 * Acquire a permit, waiting in queue if the limit is reached.
+	 *
+	 * @return granted permit
+	 * @throws RejectedExecutionException if queue is full or wait timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized Permit acquire() throws InterruptedException {
+		if (inFlight < (int)limit) {
+			inFlight++;
+			return new Permit();
+		}
+		if (queued >= maxQueue) {
+			rejected++;
+			throw new RejectedExecutionException("limiter " + name + " queue is full (" + queued + ")");
+		}
+
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		queued++;
+		try {
+			while (inFlight >= (int)limit) {
+				long wait = deadline - System.currentTimeMillis();
+
+				if (wait <= 0) {
+					rejected++;
+					throw new RejectedExecutionException("limiter " + name + " wait timed out (" + maxWait + "ms)");
+				}
+				wait(wait);
+			}
+		} finally {
+			queued--;
+		}
+		inFlight++;
+		return new Permit();
+	}
+
+	/**
+	 * Try to acquire a permit without waiting.
+	 *
+	 * @return granted permit or null if limit is reached
+	 */
+	public synchronized Permit tryAcquire() {
+		if (inFlight < (int)limit) {
+			inFlight++;
+			return new Permit();
+		}
+		rejected++;
+		return null;
+	}
+
+
+	/**
+	 * Release a permit and adapt limit.
+	 *
+	 * @param latency request latency [ns]
+	 * @param success true if request completed
+	 */
+	private synchronized void release(long latency, boolean success) {
+		boolean saturated = (inFlight >= (int)limit);
+
+		inFlight--;
+		if (success) {
+			completed++;
+
+			// track baseline as a slowly rising minimum
+			if (baseline == 0 || latency < baseline) {
+				baseline = latency;
+			} else {
+				baseline += (latency - baseline) * 0.01;
+			}
+			if (latency > baseline * tolerance) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+			} else if (saturated) {
+				limit = Math.min(maxLimit, limit + 1);
+			}
+		} else {
+			failed++;
+			limit = Math.max(minLimit, limit * backoffRatio);
+		}
+		notifyAll();
+	}
+}
@@ -0,0 +1,132 @@
+package com.boxalino.cem.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded record of acknowledged analytics event ids.
+ *
+ * Ids acknowledged by the server are stored in a fixed, direct-mapped table
+ * of longs (lock-free, no allocation); a newer id may evict an older one with
+ * the same slot. Before an event is sent again (pipeline fallback, spool
+ * replay, caller retry), the record tells whether it was already acknowledged.
+ * The record is best effort: the server deduplicates by event id, the record
+ * only avoids the extra round trips.
+ *
+ * @author nitro
+ */
+public class EventAckRecord {
+	/** Empty slot */
+	private static final long EMPTY = 0;
+
+	/** Shared record (65536 ids) */
+	public static final EventAckRecord shared = new EventAckRecord(65536);
+
+
+	/** Slots */
+	private final AtomicLongArray slots;
+
+	/** Slot mask */
+	private final int mask;
+
+	/** Recorded ids */
+	private final AtomicLong recorded = new AtomicLong();
+
+	/** Acknowledged lookups (skipped resends) */
+	private final AtomicLong hits = new AtomicLong();
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity remembered ids (rounded up to a power of two)
+	 */
+	public EventAckRecord(int capacity) {
+		if (capacity < 2 || capacity > (1 << 28)) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		int size = 1;
+
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicLongArray(size);
+		this.mask = size - 1;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{capacity=" + slots.length() +
+			",recorded=" + recorded.get() +
+			",hits=" + hits.get() + "}"
+		);
+	}
+
+
+	/**
+	 * Get recorded ids
+	 *
+	 * @return recorded ids
+	 */
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * Get acknowledged lookups (skipped resends)
+	 *
+	 * @return acknowledged lookups
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	/**
+	 * Record an acknowledged id.
+	 *
+	 * @param id event id
+	 */
+	public void acknowledge(long id) {
+		if (id != EMPTY) {
+			slots.set(index(id), id);
+			recorded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Check if an id was acknowledged (recently).
+	 *
+	 * @param id event id
+	 * @return true if acknowledged
+	 */
+	public boolean isAcknowledged(long id) {
+		if (id != EMPTY && slots.get(index(id)) == id) {
+			hits.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Get the slot of an id (sequence and node bits are mixed in).
+	 *
+	 * @param id event id
+	 * @return slot index
+	 */
+	private int index(long id) {
+		id ^= (id >>> 33);
+		id *= 0xff51afd7ed558ccdL;
+		id ^= (id >>> 33);
+		return (int)id & mask;
+	}
+}
@@ -0,0 +1,271 @@
+package com.boxalino.cem.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Analytics event coalescing window.
+ *
+ * Events are keyed by visitor (cem* cookies of the request or of the client,
+ * else client address and agent; see ApiClient), event name and description and
+ * remembered as 64-bit fingerprints in a compact, striped, open-addressing hash
+ * set with per-entry timestamps. An event identical to one admitted less than a
+ * window ago is suppressed before it reaches the network; entries older than
+ * the window are reused in place, so memory stays fixed whatever the traffic.
+ *
+ * @author nitro
+ */
+public class EventDeduplicator {
+	/** Maximum probed slots per lookup */
+	private static final int MAX_PROBES = 8;
+
+	/** Empty slot fingerprint */
+	private static final long EMPTY = 0;
+
+
+	/**
+	 * Hash set stripe
+	 *
+	 * @author nitro
+	 */
+	private static class Stripe {
+		/** Fingerprints */
+		private final long [] fingerprints;
+
+		/** Admission times [ms] */
+		private final long [] times;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param capacity slot count (power of two)
+		 */
+		private Stripe(int capacity) {
+			this.fingerprints = new long[capacity];
+			this.times = new long[capacity];
+		}
+	}
+
+
+	/** Coalescing window [ms] */
+	public volatile long window;
+
+	/** Coalesced event names (null = all events) */
+	public volatile Set<String> eventNames;
+
+	/** Stripes */
+	private final Stripe [] stripes;
+
+	/** Stripe slot mask */
+	private final int mask;
+
+	/** Admitted events */
+	private final AtomicLong admitted = new AtomicLong();
+
+	/** Suppressed events */
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/** Suppressed events by name */
+	private final ConcurrentMap<String, AtomicLong> suppressedByName = new ConcurrentHashMap<String, AtomicLong>();
+
+
+	/**
+	 * Constructor (window = 5s, capacity = 65536, productView and categoryView events)
+	 *
+	 */
+	public EventDeduplicator() {
+		this(5000, 65536, new HashSet<String>(Arrays.asList("productView", "categoryView")));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param window coalescing window [ms]
+	 * @param capacity remembered events (rounded up to a power of two)
+	 * @param eventNames coalesced event names (null = all events)
+	 */
+	public EventDeduplicator(long window, int capacity, Set<String> eventNames) {
+		if (capacity < 16 || capacity > (1 << 28)) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		int stripeCount = 16;
+		int size = 1;
+
+		while (size * stripeCount < capacity) {
+			size <<= 1;
+		}
+		this.window = window;
+		this.eventNames = (eventNames != null ? Collections.unmodifiableSet(new HashSet<String>(eventNames)) : null);
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			this.stripes[i] = new Stripe(size);
+		}
+		this.mask = size - 1;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{window=" + window +
+			",admitted=" + admitted.get() +
+			",suppressed=" + suppressed.get() +
+			",suppressedByName=" + suppressedByName + "}"
+		);
+	}
+
+
+	/**
+	 * Get admitted events
+	 *
+	 * @return admitted events
+	 */
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * Get suppressed events
+	 *
+	 * @return suppressed events
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Get suppressed events for an event name
+	 *
+	 * @param name event name
+	 * @return suppressed events
+	 */
+	public long getSuppressed(String name) {
+		AtomicLong counter = suppressedByName.get(name);
+
+		return (counter != null ? counter.get() : 0);
+	}
+
+
+	/**
+	 * Decide if an event must be sent.
+	 *
+	 * @param visitor visitor key (cem* cookies, may be null)
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @return true if admitted, false if identical to an event admitted within the window
+	 */
+	public boolean admit(String visitor, String name, String description) {
+		Set<String> eventNames = this.eventNames;
+
+		if (eventNames != null && !eventNames.contains(name)) {
+			return true;
+		}
+
+		long fingerprint = fingerprint(visitor, name, description);
+		Stripe stripe = stripes[(int)(fingerprint >>> 60)];
+		long now = System.currentTimeMillis();
+		long expiry = now - window;
+
+		synchronized (stripe) {
+			int index = (int)fingerprint & mask;
+			int victim = index;
+
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = (index + i) & mask;
+				long current = stripe.fingerprints[slot];
+
+				if (current == fingerprint && stripe.times[slot] > expiry) {
+					suppress(name);
+					return false;
+				}
+				if (current == EMPTY || current == fingerprint || stripe.times[slot] <= expiry) {
+					victim = slot;
+					break;
+				}
+				if (stripe.times[slot] < stripe.times[victim]) {
+					victim = slot;
+				}
+			}
+			// reuse empty or expired slot, else evict the oldest probed entry
+			stripe.fingerprints[victim] = fingerprint;
+			stripe.times[victim] = now;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+
+	/**
+	 * Count a suppressed event.
+	 *
+	 * @param name event name
+	 */
+	private void suppress(String name) {
+		AtomicLong counter = suppressedByName.get(name);
+
+		if (counter == null) {
+			AtomicLong existing = suppressedByName.putIfAbsent(name, counter = new AtomicLong());
+
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		counter.incrementAndGet();
+		suppressed.incrementAndGet();
+	}
+
+	/**
+	 * Compute event fingerprint (FNV-1a 64 over visitor, name and description, never EMPTY).
+	 *
+	 * @param visitor visitor key
+	 * @param name event name
+	 * @param description event description
+	 * @return fingerprint
+	 */
+	private static long fingerprint(String visitor, String name, String description) {
+		long hash = 0xcbf29ce484222325L;
+
+		hash = hash(hash, visitor);
+		hash = hash(hash, name);
+		hash = hash(hash, description);
+
+		// finalize (spread high bits used for stripe selection)
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		return (hash != EMPTY ? hash : 1);
+	}
+
+	/**
+	 * Hash a string (FNV-1a 64, null-safe, terminated).
+	 *
+	 * @param hash current hash
+	 * @param value string or null
+	 * @return updated hash
+	 */
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				hash ^= value.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+		}
+		hash ^= 0xffff;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+}
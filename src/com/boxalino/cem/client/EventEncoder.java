@@ -0,0 +1,608 @@
+package com.boxalino.cem.client;
+
+import java.util.Map;
+
+
+/**
+ * Single-pass analytics event encoder.
+ *
+ * Writes form fields, event descriptions (url-encoded key:value pairs) and JSON
+ * item payloads straight into a reusable byte buffer in their final wire form:
+ * every character is converted to UTF-8 and url-encoded as many times as its
+ * nesting requires (once for raw descriptions, twice for descriptions inside an
+ * application/x-www-form-urlencoded body), producing exactly what URLEncoder
+ * and JsonWrapper.toJson(true) would, without intermediate strings.
+ *
+ * Instances are not thread-safe, see get() for the per-thread encoder.
+ *
+ * @author nitro
+ */
+class EventEncoder {
+	/**
+	 * Event description writer
+	 *
+	 * @author nitro
+	 */
+	static interface Description {
+		/**
+		 * Write description pairs (see pair(), beginJson(), item()).
+		 *
+		 * @param encoder event encoder
+		 */
+		void write(EventEncoder encoder);
+	}
+
+
+	/** Hexadecimal digits */
+	private static final byte [] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	/** Hexadecimal digits (JSON unicode escapes) */
+	private static final byte [] JSON_HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	/** Characters left unchanged by URLEncoder */
+	private static final boolean [] SAFE = new boolean[128];
+
+	/** Static initializer */
+	static {
+		for (int c = 'a'; c <= 'z'; c++) {
+			SAFE[c] = true;
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			SAFE[c] = true;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			SAFE[c] = true;
+		}
+		SAFE['.'] = true;
+		SAFE['-'] = true;
+		SAFE['*'] = true;
+		SAFE['_'] = true;
+	}
+
+	/** Initial buffer capacity */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Maximum buffer capacity kept between events (large orders release their buffer) */
+	private static final int RETAINED_CAPACITY = 64 * 1024;
+
+	/** Per-thread encoder */
+	private static final ThreadLocal<EventEncoder> encoders = new ThreadLocal<EventEncoder>() {
+		@Override
+		protected EventEncoder initialValue() {
+			return new EventEncoder(INITIAL_CAPACITY);
+		}
+	};
+
+
+	/**
+	 * Get the (reset) encoder of the current thread.
+	 *
+	 * @return event encoder
+	 */
+	static EventEncoder get() {
+		EventEncoder encoder = encoders.get();
+
+		encoder.reset();
+		return encoder;
+	}
+
+
+	/** Buffer */
+	private byte [] buffer;
+
+	/** Buffer length */
+	private int length = 0;
+
+	/** Description encoding level (0 = raw, 1 = form field value) */
+	private int level = 0;
+
+	/** Description pairs written */
+	private int pairs = 0;
+
+	/** JSON separator needed */
+	private boolean separator = false;
+
+	/** Pending high surrogate */
+	private char high = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity initial capacity
+	 */
+	EventEncoder(int capacity) {
+		this.buffer = new byte[capacity];
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{length=" + length +
+			",capacity=" + buffer.length + "}"
+		);
+	}
+
+
+	/**
+	 * Clear encoder (buffer is kept).
+	 *
+	 */
+	void reset() {
+		if (buffer.length > RETAINED_CAPACITY) {
+			buffer = new byte[INITIAL_CAPACITY];
+		}
+		length = 0;
+		level = 0;
+		pairs = 0;
+		separator = false;
+		high = 0;
+	}
+
+	/**
+	 * Get buffer (valid up to length()).
+	 *
+	 * @return buffer
+	 */
+	byte [] buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get encoded length.
+	 *
+	 * @return encoded length
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Get a copy of the encoded content.
+	 *
+	 * @return encoded content
+	 */
+	byte [] toByteArray() {
+		byte [] copy = new byte[length];
+
+		System.arraycopy(buffer, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Get encoded content as a string (ascii).
+	 *
+	 * @return encoded content
+	 */
+	String toRawString() {
+		char [] chars = new char[length];
+
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char)buffer[i];
+		}
+		return new String(chars);
+	}
+
+
+	/**
+	 * Write a form field.
+	 *
+	 * @param key field name
+	 * @param value field value
+	 * @return this encoder
+	 */
+	EventEncoder field(String key, String value) {
+		beginField(key);
+		string(value, 1);
+		return this;
+	}
+
+	/**
+	 * Write form fields.
+	 *
+	 * @param fields fields (name, values)
+	 * @return this encoder
+	 */
+	EventEncoder fields(Map<String, String[]> fields) {
+		for (Map.Entry<String, String[]> entry : fields.entrySet()) {
+			for (String value : entry.getValue()) {
+				field(entry.getKey(), value);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Begin an event description: as eventDescription form field (form = true)
+	 * or as raw description (form = false).
+	 *
+	 * @param form true to write a form field
+	 * @return this encoder
+	 */
+	EventEncoder beginDescription(boolean form) {
+		if (form) {
+			beginField("eventDescription");
+		}
+		level = (form ? 1 : 0);
+		pairs = 0;
+		return this;
+	}
+
+	/**
+	 * Write an event description already in raw form.
+	 *
+	 * @param description raw description
+	 * @return this encoder
+	 */
+	EventEncoder raw(String description) {
+		string(description, level);
+		return this;
+	}
+
+	/**
+	 * Write description pairs (skipped if key or value is empty).
+	 *
+	 * @param description pairs
+	 * @return this encoder
+	 */
+	EventEncoder pairs(Map<String, String> description) {
+		for (Map.Entry<String, String> entry : description.entrySet()) {
+			pair(entry.getKey(), entry.getValue());
+		}
+		return this;
+	}
+
+	/**
+	 * Write a description pair (skipped if key or value is empty).
+	 *
+	 * @param key pair key
+	 * @param value pair value
+	 * @return this encoder
+	 */
+	EventEncoder pair(String key, String value) {
+		if (key.length() == 0 || value.length() == 0) {
+			return this;
+		}
+		beginPair(key);
+		string(value, level + 1);
+		return this;
+	}
+
+	/**
+	 * Write a description pair with a decimal value (Double.toString format).
+	 *
+	 * @param key pair key
+	 * @param value pair value
+	 * @return this encoder
+	 */
+	EventEncoder pair(String key, double value) {
+		beginPair(key);
+		if (value == (long)value && Math.abs(value) < 1e7) {
+			number(value, level + 1);
+			put('.', level + 1);
+			put('0', level + 1);
+		} else {
+			string(Double.toString(value), level + 1);
+		}
+		return this;
+	}
+
+	/**
+	 * Begin a description pair with a JSON value (see beginArray(), item()).
+	 *
+	 * @param key pair key
+	 * @return this encoder
+	 */
+	EventEncoder beginJson(String key) {
+		beginPair(key);
+		separator = false;
+		return this;
+	}
+
+	/**
+	 * Begin a JSON array.
+	 *
+	 * @return this encoder
+	 */
+	EventEncoder beginArray() {
+		jsonSeparator();
+		put('[', level + 1);
+		separator = false;
+		return this;
+	}
+
+	/**
+	 * End a JSON array.
+	 *
+	 * @return this encoder
+	 */
+	EventEncoder endArray() {
+		put(']', level + 1);
+		separator = true;
+		return this;
+	}
+
+	/**
+	 * Write a transaction item as JSON object (keys sorted as JsonObject does).
+	 *
+	 * @param id item identifier
+	 * @param price item price
+	 * @param quantity item quantity
+	 * @param name optional item name
+	 * @param widget optional widget
+	 * @return this encoder
+	 */
+	EventEncoder item(String id, double price, int quantity, String name, String widget) {
+		int level = this.level + 1;
+
+		jsonSeparator();
+		put('{', level);
+		jsonKey("id", level);
+		jsonString(id, level);
+		if (name != null) {
+			put(',', level);
+			jsonKey("name", level);
+			jsonString(name, level);
+		}
+		put(',', level);
+		jsonKey("price", level);
+		number(price, level);
+		put(',', level);
+		jsonKey("quantity", level);
+		number(quantity, level);
+		if (widget != null) {
+			put(',', level);
+			jsonKey("widget", level);
+			jsonString(widget, level);
+		}
+		put('}', level);
+		separator = true;
+		return this;
+	}
+
+
+	/**
+	 * Begin a form field.
+	 *
+	 * @param key field name
+	 */
+	private void beginField(String key) {
+		if (length > 0) {
+			put('&', 0);
+		}
+		string(key, 1);
+		put('=', 0);
+	}
+
+	/**
+	 * Begin a description pair (separator and key).
+	 *
+	 * @param key pair key
+	 */
+	private void beginPair(String key) {
+		if (pairs++ > 0) {
+			put(' ', level);
+		}
+		string(key, level + 1);
+		put(':', level);
+	}
+
+	/**
+	 * Write JSON value separator if needed.
+	 *
+	 */
+	private void jsonSeparator() {
+		if (separator) {
+			put(',', level + 1);
+		}
+	}
+
+	/**
+	 * Write a JSON object key (strict).
+	 *
+	 * @param key key
+	 * @param level encoding level
+	 */
+	private void jsonKey(String key, int level) {
+		jsonString(key, level);
+		put(':', level);
+	}
+
+	/**
+	 * Write a JSON string (JsonWrapper.toJsonString(value, '"') rules, null if none).
+	 *
+	 * @param value string
+	 * @param level encoding level
+	 */
+	private void jsonString(String value, int level) {
+		if (value == null) {
+			string("null", level);
+			return;
+		}
+
+		char p = 0;
+
+		character('"', level);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '\\':
+				character('\\', level);
+				character('\\', level);
+				break;
+
+			case '"':
+				character('\\', level);
+				character('"', level);
+				break;
+
+			case '\b':
+				character('\\', level);
+				character('b', level);
+				break;
+
+			case '\f':
+				character('\\', level);
+				character('f', level);
+				break;
+
+			case '\n':
+				character('\\', level);
+				character('n', level);
+				break;
+
+			case '\r':
+				character('\\', level);
+				character('r', level);
+				break;
+
+			case '\t':
+				character('\\', level);
+				character('t', level);
+				break;
+
+			case '/':
+				if (p == '<') {
+					character('\\', level);
+				}
+				character('/', level);
+				break;
+
+			default:
+				if (c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100)) {
+					character('\\', level);
+					character('u', level);
+					character((char)JSON_HEX[(c >> 12) & 0xf], level);
+					character((char)JSON_HEX[(c >> 8) & 0xf], level);
+					character((char)JSON_HEX[(c >> 4) & 0xf], level);
+					character((char)JSON_HEX[c & 0xf], level);
+					break;
+				}
+				character(c, level);
+				break;
+			}
+			p = c;
+		}
+		character('"', level);
+	}
+
+	/**
+	 * Write a number (JsonNumericValue format: integral values without fraction).
+	 *
+	 * @param value number
+	 * @param level encoding level
+	 */
+	private void number(double value, int level) {
+		if (value == (long)value) {
+			long n = (long)value;
+
+			if (n < 0) {
+				put('-', level);
+			} else {
+				n = -n;
+			}
+
+			// digits of a negative number (Long.MIN_VALUE safe)
+			long divisor = -1;
+
+			while (n / divisor >= 10) {
+				divisor *= 10;
+			}
+			while (divisor != 0) {
+				put('0' + (int)(n / divisor), level);
+				n %= divisor;
+				divisor /= 10;
+			}
+			return;
+		}
+		string(Double.toString(value), level);
+	}
+
+	/**
+	 * Write a string.
+	 *
+	 * @param value string
+	 * @param level encoding level
+	 */
+	private void string(String value, int level) {
+		for (int i = 0; i < value.length(); i++) {
+			character(value.charAt(i), level);
+		}
+		if (high != 0) {
+			// unpaired high surrogate at end of string
+			high = 0;
+			put('?', level);
+		}
+	}
+
+	/**
+	 * Write a character (UTF-8, surrogate pairs combined, unpaired ones replaced by '?').
+	 *
+	 * @param c character
+	 * @param level encoding level
+	 */
+	private void character(char c, int level) {
+		if (high != 0) {
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(high, c);
+
+				high = 0;
+				put(0xf0 | (codePoint >> 18), level);
+				put(0x80 | ((codePoint >> 12) & 0x3f), level);
+				put(0x80 | ((codePoint >> 6) & 0x3f), level);
+				put(0x80 | (codePoint & 0x3f), level);
+				return;
+			}
+			high = 0;
+			put('?', level);
+		}
+		if (c < 0x80) {
+			put(c, level);
+		} else if (c < 0x800) {
+			put(0xc0 | (c >> 6), level);
+			put(0x80 | (c & 0x3f), level);
+		} else if (Character.isHighSurrogate(c)) {
+			high = c;
+		} else if (Character.isLowSurrogate(c)) {
+			put('?', level);
+		} else {
+			put(0xe0 | (c >> 12), level);
+			put(0x80 | ((c >> 6) & 0x3f), level);
+			put(0x80 | (c & 0x3f), level);
+		}
+	}
+
+	/**
+	 * Write a byte url-encoded level times (URLEncoder rules).
+	 *
+	 * @param b byte
+	 * @param level encoding level
+	 */
+	private void put(int b, int level) {
+		b &= 0xff;
+		if (level == 0) {
+			if (length == buffer.length) {
+				byte [] grown = new byte[buffer.length * 2];
+
+				System.arraycopy(buffer, 0, grown, 0, length);
+				buffer = grown;
+			}
+			buffer[length++] = (byte)b;
+		} else if (b < 128 && SAFE[b]) {
+			put(b, level - 1);
+		} else if (b == ' ') {
+			put('+', level - 1);
+		} else {
+			put('%', level - 1);
+			put(HEX[b >> 4], level - 1);
+			put(HEX[b & 0xf], level - 1);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.boxalino.cem.client;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Compact, monotonic, node-unique analytics event id generator.
+ *
+ * Ids are 64-bit longs made of a millisecond timestamp (42 bits since 2010),
+ * a node number (10 bits) and a sequence (12 bits). The timestamp and sequence
+ * are advanced together with a single CAS, so ids of a node are strictly
+ * increasing without locks (bursts above 4096 ids per millisecond borrow from
+ * the next millisecond). Ids are sent in base 36 (at most 13 characters).
+ *
+ * The node number defaults to a hash of the process name (pid@host); set the
+ * system property com.boxalino.cem.client.node (0..1023) to guarantee
+ * uniqueness across nodes.
+ *
+ * @author nitro
+ */
+public class EventIdGenerator {
+	/** Id epoch (2010-01-01T00:00:00Z) [ms] */
+	private static final long EPOCH = 1262304000000L;
+
+	/** Node bits */
+	private static final int NODE_BITS = 10;
+
+	/** Sequence bits */
+	private static final int SEQUENCE_BITS = 12;
+
+	/** Maximum node number */
+	public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+	/** Shared generator (default node) */
+	public static final EventIdGenerator shared = new EventIdGenerator();
+
+
+	/** Node number */
+	public final int node;
+
+	/** Last timestamp and sequence ((time << SEQUENCE_BITS) | sequence) */
+	private final AtomicLong state = new AtomicLong();
+
+
+	/**
+	 * Constructor (default node)
+	 *
+	 */
+	public EventIdGenerator() {
+		this(defaultNode());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param node node number (0..1023)
+	 */
+	public EventIdGenerator(int node) {
+		if (node < 0 || node > MAX_NODE) {
+			throw new IllegalArgumentException("invalid node: " + node);
+		}
+		this.node = node;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{node=" + node +
+			",last=" + format(compose(state.get())) + "}"
+		);
+	}
+
+
+	/**
+	 * Generate the next id.
+	 *
+	 * @return event id (positive, strictly increasing)
+	 */
+	public long next() {
+		while (true) {
+			long current = state.get();
+			long next = Math.max(current + 1, (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS);
+
+			if (state.compareAndSet(current, next)) {
+				return compose(next);
+			}
+		}
+	}
+
+	/**
+	 * Compose an id from timestamp and sequence.
+	 *
+	 * @param state timestamp and sequence
+	 * @return event id
+	 */
+	private long compose(long state) {
+		return ((state >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)) | ((long)node << SEQUENCE_BITS) | (state & ((1 << SEQUENCE_BITS) - 1));
+	}
+
+
+	/**
+	 * Derive a stable id for an event recorded without id (same time and
+	 * content give the same id, so replays stay idempotent). The id carries
+	 * the creation time like generated ids; node and sequence bits are taken
+	 * from a hash of the content.
+	 *
+	 * @param time creation time [ms]
+	 * @param content recorded content
+	 * @return event id (positive)
+	 */
+	public static long derive(long time, byte [] content) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (byte b : content) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		return (Math.max(time - EPOCH, 0) << (NODE_BITS + SEQUENCE_BITS)) | (hash & ((1L << (NODE_BITS + SEQUENCE_BITS)) - 1));
+	}
+
+
+	/**
+	 * Format an id (base 36).
+	 *
+	 * @param id event id
+	 * @return formatted id
+	 */
+	public static String format(long id) {
+		return Long.toString(id, 36);
+	}
+
+	/**
+	 * Parse a formatted id.
+	 *
+	 * @param id formatted id
+	 * @return event id
+	 * @throws NumberFormatException if invalid
+	 */
+	public static long parse(String id) {
+		return Long.parseLong(id, 36);
+	}
+
+	/**
+	 * Get the creation time of an id.
+	 *
+	 * @param id event id
+	 * @return creation time [ms]
+	 */
+	public static long getTime(long id) {
+		return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	/**
+	 * Get the node number of an id.
+	 *
+	 * @param id event id
+	 * @return node number
+	 */
+	public static int getNode(long id) {
+		return (int)(id >>> SEQUENCE_BITS) & MAX_NODE;
+	}
+
+
+	/**
+	 * Get the default node number (system property or process name hash).
+	 *
+	 * @return node number
+	 */
+	private static int defaultNode() {
+		String node = System.getProperty("com.boxalino.cem.client.node");
+
+		if (node != null) {
+			return Integer.parseInt(node.trim());
+		}
+
+		String name;
+
+		try {
+			name = ManagementFactory.getRuntimeMXBean().getName();
+		} catch (RuntimeException e) {
+			name = Long.toString(System.nanoTime());
+		}
+
+		int hash = 0x811c9dc5;
+
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x01000193;
+		}
+		return (hash ^ (hash >>> 10) ^ (hash >>> 20)) & MAX_NODE;
+	}
+}
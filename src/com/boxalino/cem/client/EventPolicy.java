@@ -0,0 +1,396 @@
+package com.boxalino.cem.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Per event name sampling and rate limiting policy.
+ *
+ * Each rule samples events of one name with a fixed probability, then applies a
+ * token bucket rate limit. Buckets are lock-free and striped: the rate and burst
+ * are split across stripes (the burst remainder going to the first stripes),
+ * each stripe being a single padded CAS-updated theoretical arrival time
+ * (GCRA), so concurrent request threads do not contend on one counter. A thread
+ * takes from its own stripe first, then from the other stripes before an event
+ * is limited, so the configured rate and burst are enforced as a whole. Rules
+ * may be replaced at any time; exempt events (purchases by default) always
+ * pass.
+ *
+ * @author nitro
+ */
+public class EventPolicy {
+	/**
+	 * Policy decision
+	 *
+	 * @author nitro
+	 */
+	public static enum Decision {
+		/** Send event */
+		ACCEPT,
+
+		/** Not selected by sampling */
+		SAMPLED,
+
+		/** Rate limit exceeded */
+		LIMITED;
+	}
+
+	/**
+	 * Event rule
+	 *
+	 * @author nitro
+	 */
+	public static class Rule {
+		/** Padding (longs) between stripes against false sharing */
+		private static final int PADDING = 8;
+
+
+		/** Sampling rate (0..1) */
+		public final double sampleRate;
+
+		/** Rate limit (0 = unlimited) [events/s] */
+		public final double rate;
+
+		/** Burst size [events] */
+		public final int burst;
+
+		/** Emission interval per stripe [ns] */
+		private final long interval;
+
+		/** Burst tolerances by stripe [ns] */
+		private final long [] tolerances;
+
+		/** Theoretical arrival times per stripe [ns] (padded) */
+		private final AtomicLongArray arrivals;
+
+		/** Stripe mask */
+		private final int mask;
+
+		/** Accepted events */
+		private final AtomicLong accepted;
+
+		/** Sampled out events */
+		private final AtomicLong sampled;
+
+		/** Rate limited events */
+		private final AtomicLong limited;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param sampleRate sampling rate (0..1)
+		 * @param rate rate limit (0 = unlimited) [events/s]
+		 * @param burst burst size [events]
+		 * @param stripes stripe count (power of two)
+		 * @param previous replaced rule (counters are kept) or null
+		 */
+		private Rule(double sampleRate, double rate, int burst, int stripes, Rule previous) {
+			if (sampleRate < 0 || sampleRate > 1 || rate < 0 || burst < 1) {
+				throw new IllegalArgumentException("invalid rule: " + sampleRate + "/" + rate + "/" + burst);
+			}
+			this.sampleRate = sampleRate;
+			this.rate = rate;
+			this.burst = burst;
+			if (rate > 0) {
+				// fewer stripes than burst tokens would round the burst up
+				while (stripes > 1 && stripes > burst) {
+					stripes >>= 1;
+				}
+				this.interval = Math.round(1e9 * stripes / rate);
+			} else {
+				stripes = 1;
+				this.interval = 0;
+			}
+			this.tolerances = new long[stripes];
+			for (int i = 0; i < stripes; i++) {
+				// burst remainder to the first stripes
+				this.tolerances[i] = this.interval * (burst / stripes + (i < burst % stripes ? 1 : 0) - 1);
+			}
+			this.mask = stripes - 1;
+			this.arrivals = new AtomicLongArray(stripes * PADDING);
+			this.accepted = (previous != null ? previous.accepted : new AtomicLong());
+			this.sampled = (previous != null ? previous.sampled : new AtomicLong());
+			this.limited = (previous != null ? previous.limited : new AtomicLong());
+
+			long now = System.nanoTime();
+
+			for (int i = 0; i < stripes; i++) {
+				this.arrivals.set(i * PADDING, now);
+			}
+		}
+
+
+		/**
+		 * Return a string representation of this object for debug purpose.
+		 *
+		 * @return string representation
+		 */
+		@Override
+		public String toString() {
+			return (
+				"{sampleRate=" + sampleRate +
+				",rate=" + rate +
+				",burst=" + burst +
+				",accepted=" + accepted.get() +
+				",sampled=" + sampled.get() +
+				",limited=" + limited.get() + "}"
+			);
+		}
+
+
+		/**
+		 * Get accepted events
+		 *
+		 * @return accepted events
+		 */
+		public long getAccepted() {
+			return accepted.get();
+		}
+
+		/**
+		 * Get sampled out events
+		 *
+		 * @return sampled out events
+		 */
+		public long getSampled() {
+			return sampled.get();
+		}
+
+		/**
+		 * Get rate limited events
+		 *
+		 * @return rate limited events
+		 */
+		public long getLimited() {
+			return limited.get();
+		}
+
+
+		/**
+		 * Take a token from a stripe (GCRA).
+		 *
+		 * @param stripe stripe index
+		 * @return true if a token was available
+		 */
+		private boolean take(int stripe) {
+			int index = stripe * PADDING;
+
+			while (true) {
+				long now = System.nanoTime();
+				long arrival = arrivals.get(index);
+				long start = (arrival - now > 0 ? arrival : now);
+
+				if (start - now > tolerances[stripe]) {
+					return false;
+				}
+				if (arrivals.compareAndSet(index, arrival, start + interval)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Decide for an event.
+		 *
+		 * @param random thread random
+		 * @param stripe thread stripe
+		 * @return decision
+		 */
+		private Decision decide(Random random, long stripe) {
+			if (sampleRate < 1 && random.nextDouble() >= sampleRate) {
+				sampled.incrementAndGet();
+				return Decision.SAMPLED;
+			}
+			if (interval > 0 && !acquire(stripe)) {
+				limited.incrementAndGet();
+				return Decision.LIMITED;
+			}
+			accepted.incrementAndGet();
+			return Decision.ACCEPT;
+		}
+
+		/**
+		 * Take a token, from the thread stripe first, then from the other
+		 * stripes (tokens left idle by other threads).
+		 *
+		 * @param stripe thread stripe
+		 * @return true if a token was available
+		 */
+		private boolean acquire(long stripe) {
+			for (int i = 0; i <= mask; i++) {
+				if (take((int)(stripe + i) & mask)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+
+	/** Thread random (sampling) */
+	private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+
+	/** Exempt event names (never sampled nor limited) */
+	public volatile Set<String> exemptEvents;
+
+	/** Stripe count (power of two) */
+	private final int stripes;
+
+	/** Rules by event name */
+	private final ConcurrentMap<String, Rule> rules = new ConcurrentHashMap<String, Rule>();
+
+	/** Default rule (events without rule), null = accept */
+	private volatile Rule defaultRule = null;
+
+
+	/**
+	 * Constructor (purchaseDone events exempt)
+	 *
+	 */
+	public EventPolicy() {
+		this(new HashSet<String>(Arrays.asList("purchaseDone")));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param exemptEvents exempt event names
+	 */
+	public EventPolicy(Set<String> exemptEvents) {
+		int stripes = 1;
+
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+			stripes <<= 1;
+		}
+		this.stripes = stripes;
+		this.exemptEvents = Collections.unmodifiableSet(new HashSet<String>(exemptEvents));
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{rules=" + rules +
+			",defaultRule=" + defaultRule + "}"
+		);
+	}
+
+
+	/**
+	 * Set or replace the rule of an event name (counters are kept).
+	 *
+	 * @param name event name
+	 * @param sampleRate sampling rate (0..1)
+	 * @param rate rate limit (0 = unlimited) [events/s]
+	 * @param burst burst size [events]
+	 */
+	public void setRule(String name, double sampleRate, double rate, int burst) {
+		rules.put(name, new Rule(sampleRate, rate, burst, stripes, rules.get(name)));
+	}
+
+	/**
+	 * Remove the rule of an event name.
+	 *
+	 * @param name event name
+	 */
+	public void removeRule(String name) {
+		rules.remove(name);
+	}
+
+	/**
+	 * Set or replace the default rule (events without rule).
+	 *
+	 * @param sampleRate sampling rate (0..1)
+	 * @param rate rate limit (0 = unlimited) [events/s]
+	 * @param burst burst size [events]
+	 */
+	public void setDefaultRule(double sampleRate, double rate, int burst) {
+		defaultRule = new Rule(sampleRate, rate, burst, stripes, defaultRule);
+	}
+
+	/**
+	 * Remove the default rule (events without rule are accepted).
+	 *
+	 */
+	public void removeDefaultRule() {
+		defaultRule = null;
+	}
+
+	/**
+	 * Get the rule of an event name (with its counters).
+	 *
+	 * @param name event name
+	 * @return rule or null if none
+	 */
+	public Rule getRule(String name) {
+		return rules.get(name);
+	}
+
+	/**
+	 * Get the default rule (with its counters).
+	 *
+	 * @return default rule or null if none
+	 */
+	public Rule getDefaultRule() {
+		return defaultRule;
+	}
+
+	/**
+	 * Get all rules (snapshot).
+	 *
+	 * @return rules by event name
+	 */
+	public Map<String, Rule> getRules() {
+		return Collections.unmodifiableMap(new TreeMap<String, Rule>(rules));
+	}
+
+
+	/**
+	 * Decide if an event must be sent.
+	 *
+	 * @param name event name
+	 * @return decision
+	 */
+	public Decision decide(String name) {
+		if (exemptEvents.contains(name)) {
+			return Decision.ACCEPT;
+		}
+
+		Rule rule = rules.get(name);
+
+		if (rule == null) {
+			rule = defaultRule;
+			if (rule == null) {
+				return Decision.ACCEPT;
+			}
+		}
+
+		long id = Thread.currentThread().getId();
+
+		return rule.decide(random.get(), (int)(id ^ (id >>> 16)) * 0x9e3779b9 >>> 26);
+	}
+}
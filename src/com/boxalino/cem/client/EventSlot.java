@@ -0,0 +1,310 @@
+package com.boxalino.cem.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * Mutable analytics event slot of the pipeline ring buffers.
+ *
+ * A slot captures an event from its servlet request by reference (request
+ * strings, parameter values not decoded yet) into arrays reused from one
+ * event to the next, so that enqueuing an event allocates nothing once the
+ * arrays fit. The flusher builds the AnalyticsEvent (decoded parameters,
+ * environment, raw description) when it takes the slot, see toEvent.
+ *
+ * @author nitro
+ */
+class EventSlot {
+	/** Slot factory */
+	static final MpscRingBuffer.Factory<EventSlot> factory = new MpscRingBuffer.Factory<EventSlot>() {
+		@Override
+		public EventSlot create() {
+			return new EventSlot();
+		}
+	};
+
+
+	/** Enqueued event (null if captured from a request) */
+	private AnalyticsEvent event = null;
+
+	/** Event id */
+	private long id;
+
+	/** Creation time [ms] */
+	private long time;
+
+	/** Event name */
+	private String name;
+
+	/** Event description (raw, null if a view) */
+	private String description;
+
+	/** Viewed item id (view) */
+	private String viewId;
+
+	/** Viewed item name (view, optional) */
+	private String viewName;
+
+	/** Widget parameter (view, not decoded) */
+	private String widget;
+
+	/** Servlet uri encoding (parameter decoding) */
+	private String encoding;
+
+	/** Captured from a request */
+	private boolean request;
+
+	/** Secure connection */
+	private boolean secure;
+
+	/** X-Forwarded-For header */
+	private String forwardedFor;
+
+	/** Remote address */
+	private String remoteAddress;
+
+	/** User-Agent header */
+	private String agent;
+
+	/** Referer header */
+	private String referer;
+
+	/** Server name */
+	private String serverHost;
+
+	/** Request uri */
+	private String serverUri;
+
+	/** Parameter names */
+	private String [] parameterNames = new String[8];
+
+	/** Parameter values (not decoded) */
+	private String [][] parameterValues = new String[8][];
+
+	/** Parameter count */
+	private int parameters = 0;
+
+	/** Visitor cookie (cem*) names, values, domains, paths and comments (5 per cookie) */
+	private String [] cookieStrings = new String[4 * 5];
+
+	/** Visitor cookie versions and maximum ages (2 per cookie) */
+	private int [] cookieInts = new int[4 * 2];
+
+	/** Visitor cookie secure flags */
+	private boolean [] cookieSecure = new boolean[4];
+
+	/** Cookie count */
+	private int cookieCount = 0;
+
+
+	/**
+	 * Set an event created earlier.
+	 *
+	 * @param event analytics event
+	 */
+	void set(AnalyticsEvent event) {
+		this.event = event;
+	}
+
+	/**
+	 * Capture an event from a servlet request.
+	 *
+	 * @param name event name
+	 * @param description event description (raw)
+	 * @param request optional http request (not decoded)
+	 * @param encoding servlet uri encoding
+	 */
+	void capture(String name, String description, HttpServletRequest request, String encoding) {
+		capture(name, request, encoding);
+		this.description = description;
+	}
+
+	/**
+	 * Capture a view ("id", optional "name" and "widget" description) from a servlet request.
+	 *
+	 * @param name event name (productView, categoryView)
+	 * @param id item id
+	 * @param itemName optional item name
+	 * @param request optional http request (not decoded)
+	 * @param encoding servlet uri encoding
+	 */
+	void captureView(String name, String id, String itemName, HttpServletRequest request, String encoding) {
+		capture(name, request, encoding);
+		this.viewId = id;
+		this.viewName = itemName;
+		this.widget = (request != null ? request.getParameter("widget") : null);
+	}
+
+	/**
+	 * Build the event and clear this slot (consumer).
+	 *
+	 * @return analytics event
+	 */
+	AnalyticsEvent toEvent() {
+		AnalyticsEvent event = this.event;
+
+		if (event != null) {
+			this.event = null;
+			return event;
+		}
+
+		Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+		List<HttpClient.Cookie> cookies = new ArrayList<HttpClient.Cookie>(cookieCount);
+		String description = this.description;
+
+		for (int i = 0; i < cookieCount; i++) {
+			cookies.add(
+				new HttpClient.Cookie(
+					cookieStrings[i * 5],
+					cookieStrings[i * 5 + 1],
+					cookieStrings[i * 5 + 2],
+					null,
+					cookieStrings[i * 5 + 3],
+					cookieStrings[i * 5 + 4],
+					null,
+					cookieInts[i * 2],
+					cookieInts[i * 2 + 1],
+					false,
+					cookieSecure[i]
+				)
+			);
+		}
+		if (request) {
+			for (int i = 0; i < this.parameters; i++) {
+				String [] values = new String[parameterValues[i].length];
+
+				for (int j = 0; j < values.length; j++) {
+					values[j] = ApiClient.decodeParameter(parameterValues[i][j], encoding);
+				}
+				parameters.put(parameterNames[i], values);
+				parameterNames[i] = null;
+				parameterValues[i] = null;
+			}
+			ApiClient.applyEnvironment(parameters, secure, forwardedFor, remoteAddress, agent, referer, serverHost, serverUri);
+		} else {
+			ApiClient.applyEnvironment(parameters);
+		}
+		if (description == null) {
+			EventEncoder encoder = EventEncoder.get();
+
+			encoder.beginDescription(false);
+			if (viewId != null) {
+				encoder.pair("id", viewId);
+			}
+			if (viewName != null) {
+				encoder.pair("name", viewName);
+			}
+			if (widget != null) {
+				encoder.pair("widget", ApiClient.decodeParameter(widget, encoding));
+			}
+			description = encoder.toRawString();
+		}
+		event = new AnalyticsEvent(id, name, description, parameters, cookies, time);
+		clear();
+		return event;
+	}
+
+
+	/**
+	 * Capture the request environment.
+	 *
+	 * @param name event name
+	 * @param request optional http request (not decoded)
+	 * @param encoding servlet uri encoding
+	 */
+	@SuppressWarnings("unchecked")
+	private void capture(String name, HttpServletRequest request, String encoding) {
+		this.event = null;
+		this.id = EventIdGenerator.shared.next();
+		this.time = System.currentTimeMillis();
+		this.name = name;
+		this.encoding = encoding;
+		this.request = (request != null);
+		this.parameters = 0;
+		this.cookieCount = 0;
+		if (request == null) {
+			return;
+		}
+		this.secure = request.isSecure();
+		this.forwardedFor = request.getHeader("X-Forwarded-For");
+		this.remoteAddress = request.getRemoteAddr();
+		this.agent = request.getHeader("User-Agent");
+		this.referer = request.getHeader("Referer");
+		this.serverHost = request.getServerName();
+		this.serverUri = request.getRequestURI();
+		for (Map.Entry<String, String[]> entry : ((Map<String, String[]>)request.getParameterMap()).entrySet()) {
+			if (parameters == parameterNames.length) {
+				String [] names = new String[parameters * 2];
+				String [][] values = new String[parameters * 2][];
+
+				System.arraycopy(parameterNames, 0, names, 0, parameters);
+				System.arraycopy(parameterValues, 0, values, 0, parameters);
+				parameterNames = names;
+				parameterValues = values;
+			}
+			parameterNames[parameters] = entry.getKey();
+			parameterValues[parameters] = entry.getValue();
+			parameters++;
+		}
+
+		javax.servlet.http.Cookie [] requestCookies = request.getCookies();
+
+		if (requestCookies != null) {
+			for (javax.servlet.http.Cookie cookie : requestCookies) {
+				if (cookie.getName().indexOf("cem") != 0) {
+					continue;
+				}
+				if (cookieCount == cookieSecure.length) {
+					String [] strings = new String[cookieCount * 2 * 5];
+					int [] ints = new int[cookieCount * 2 * 2];
+					boolean [] secure = new boolean[cookieCount * 2];
+
+					System.arraycopy(cookieStrings, 0, strings, 0, cookieCount * 5);
+					System.arraycopy(cookieInts, 0, ints, 0, cookieCount * 2);
+					System.arraycopy(cookieSecure, 0, secure, 0, cookieCount);
+					cookieStrings = strings;
+					cookieInts = ints;
+					cookieSecure = secure;
+				}
+				cookieStrings[cookieCount * 5] = cookie.getName();
+				cookieStrings[cookieCount * 5 + 1] = cookie.getValue();
+				cookieStrings[cookieCount * 5 + 2] = cookie.getDomain();
+				cookieStrings[cookieCount * 5 + 3] = cookie.getPath();
+				cookieStrings[cookieCount * 5 + 4] = cookie.getComment();
+				cookieInts[cookieCount * 2] = cookie.getVersion();
+				cookieInts[cookieCount * 2 + 1] = cookie.getMaxAge();
+				cookieSecure[cookieCount] = cookie.getSecure();
+				cookieCount++;
+			}
+		}
+	}
+
+	/**
+	 * Clear references (request strings are not retained by idle slots).
+	 *
+	 */
+	private void clear() {
+		name = null;
+		description = null;
+		viewId = null;
+		viewName = null;
+		widget = null;
+		encoding = null;
+		forwardedFor = null;
+		remoteAddress = null;
+		agent = null;
+		referer = null;
+		serverHost = null;
+		serverUri = null;
+		for (int i = 0; i < cookieCount * 5; i++) {
+			cookieStrings[i] = null;
+		}
+		parameters = 0;
+		cookieCount = 0;
+	}
+}
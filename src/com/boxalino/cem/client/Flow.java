@@ -0,0 +1,89 @@
+package com.boxalino.cem.client;
+
+
+/**
+ * Reactive streams interfaces.
+ *
+ * Mirrors java.util.concurrent.Flow (Java 9+) method by method so that
+ * publishers and subscribers can be adapted with a trivial wrapper, while the
+ * client itself stays compatible with older runtimes.
+ *
+ * @author nitro
+ */
+public final class Flow {
+	/**
+	 * Producer of items received by subscribers
+	 *
+	 * @author nitro
+	 */
+	public static interface Publisher<T> {
+		/**
+		 * Add a subscriber
+		 *
+		 * @param subscriber subscriber
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items
+	 *
+	 * @author nitro
+	 */
+	public static interface Subscriber<T> {
+		/**
+		 * Called before any other method for a given subscription
+		 *
+		 * @param subscription new subscription
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next item
+		 *
+		 * @param item item
+		 */
+		public void onNext(T item);
+
+		/**
+		 * Called on unrecoverable error (terminal)
+		 *
+		 * @param throwable error
+		 */
+		public void onError(Throwable throwable);
+
+		/**
+		 * Called when no more items will be emitted (terminal)
+		 *
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * Link between a publisher and a subscriber
+	 *
+	 * @author nitro
+	 */
+	public static interface Subscription {
+		/**
+		 * Add demand for items
+		 *
+		 * @param n number of items (must be &gt; 0)
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop receiving items
+		 *
+		 */
+		public void cancel();
+	}
+
+
+	/**
+	 * Constructor
+	 *
+	 */
+	private Flow() {
+	}
+}
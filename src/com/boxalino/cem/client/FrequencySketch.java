@@ -0,0 +1,122 @@
+package com.boxalino.cem.client;
+
+
+/**
+ * Count-min sketch of access frequencies with aging (TinyLFU).
+ *
+ * Frequencies are 4-bit counters (saturating at 15), 16 per long; an item
+ * maps to one counter in each of 4 rows (a long per row, chosen by index
+ * spreading), its frequency is the minimum of these counters. After sample
+ * size increments all counters are halved, so that past popularity fades.
+ * Not thread-safe (callers synchronize).
+ *
+ * @author nitro
+ */
+class FrequencySketch {
+	/** Row seeds */
+	private static final long [] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	/** Counter mask after halving (clears the high bit of each counter) */
+	private static final long HALF_MASK = 0x7777777777777777L;
+
+
+	/** Counters (16 per long) */
+	private final long [] table;
+
+	/** Table index mask */
+	private final int mask;
+
+	/** Increments before aging */
+	private final int sampleSize;
+
+	/** Increments since last aging */
+	private int size = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity maximum tracked items (cache capacity)
+	 */
+	FrequencySketch(int capacity) {
+		int length = 8;
+
+		while (length < capacity && length < (1 << 26)) {
+			length <<= 1;
+		}
+		this.table = new long[length];
+		this.mask = length - 1;
+		this.sampleSize = (int)Math.min(10L * Math.max(capacity, 1), Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Get estimated frequency of an item.
+	 *
+	 * @param hash item hash
+	 * @return estimated frequency (0 to 15)
+	 */
+	int frequency(long hash) {
+		int frequency = 15;
+
+		for (int i = 0; i < 4; i++) {
+			long h = spread(hash, i);
+			int counter = (int)(table[(int)h & mask] >>> ((h >>> 60) << 2)) & 0xf;
+
+			if (counter < frequency) {
+				frequency = counter;
+			}
+		}
+		return frequency;
+	}
+
+	/**
+	 * Count an access to an item (halves all counters every sample size increments).
+	 *
+	 * @param hash item hash
+	 */
+	void increment(long hash) {
+		boolean added = false;
+
+		for (int i = 0; i < 4; i++) {
+			long h = spread(hash, i);
+			int index = (int)h & mask;
+			int shift = (int)((h >>> 60) << 2);
+
+			if (((table[index] >>> shift) & 0xf) < 15) {
+				table[index] += (1L << shift);
+				added = true;
+			}
+		}
+		if (added && ++size >= sampleSize) {
+			age();
+		}
+	}
+
+
+	/**
+	 * Halve all counters.
+	 *
+	 */
+	private void age() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & HALF_MASK;
+		}
+		size >>>= 1;
+	}
+
+	/**
+	 * Spread an item hash for a row (64-bit mix).
+	 *
+	 * @param hash item hash
+	 * @param row row index
+	 * @return row hash (low bits select the long, high 4 bits the counter)
+	 */
+	private static long spread(long hash, int row) {
+		long h = (hash + SEEDS[row]) * 0x9e3779b97f4a7c15L;
+
+		h ^= (h >>> 32);
+		h *= 0xff51afd7ed558ccdL;
+		return h ^ (h >>> 29);
+	}
+}
@@ -22,6 +22,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -514,6 +515,12 @@ public class HttpClient {
 	/** Read timeout, defaults to 15000 [ms] */
 	public int readTimeout = 15000;
 
+	/** Concurrency limiter, defaults to null (unlimited) */
+	public ConcurrencyLimiter limiter = null;
+
+	/** Request scheduler (connection quotas), defaults to null (unlimited) */
+	public RequestScheduler scheduler = null;
+
 	/** Request headers */
 	private final Map<String, Header[]> requestHeaders = new LinkedHashMap<String, Header[]>();
 
@@ -725,6 +732,51 @@ public class HttpClient {
 		cookies.remove(name);
 	}
 
+	/**
+	 * Check for cookies by name prefix
+	 *
+	 * @param prefix cookie name prefix
+	 * @return true if a cookie name starts with the prefix, false otherwise
+	 */
+	public boolean hasCookies(String prefix) {
+		for (String name : cookies.keySet()) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get cookies by name prefix (local and remote)
+	 *
+	 * @param prefix cookie name prefix
+	 * @return cookies
+	 */
+	public List<Cookie> getCookies(String prefix) {
+		List<Cookie> list = new ArrayList<Cookie>();
+
+		for (Map.Entry<String, Cookie> entry : cookies.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				list.add(entry.getValue());
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Remove cookies by name prefix
+	 *
+	 * @param prefix cookie name prefix
+	 */
+	public void removeCookies(String prefix) {
+		for (Iterator<String> it = cookies.keySet().iterator(); it.hasNext(); ) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
 
 	/**
 	 * Do a GET request
@@ -936,6 +988,37 @@ public class HttpClient {
 		return responseCode;
 	}
 
+	/**
+	 * Do a POST request with an encoded form body
+	 *
+	 * @param url http url
+	 * @param body application/x-www-form-urlencoded body
+	 * @param length body length
+	 * @param charset request character set
+	 * @param headers optional http headers
+	 * @param callback optional response callback
+	 * @return last http code
+	 */
+	public int postForm(String url, byte [] body, int length, String charset, Header [] headers, Callback callback) {
+		try {
+			headers = add(Header.class, headers, new Header("Content-Type", "application/x-www-form-urlencoded; charset=" + charset));
+			process(
+				"POST",
+				HttpClient.buildURL(url),
+				headers,
+				new ByteArrayInputStream(body, 0, length),
+				callback
+			);
+		} catch (Exception e) {
+			if (callback != null) {
+				callback.error(e);
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+		return responseCode;
+	}
+
 
 	/**
 	 * Process http request
@@ -948,8 +1031,88 @@ public class HttpClient {
 	 * @throws Exception if any error occurs
 	 */
 	public void process(String method, URL url, Header [] headers, InputStream is, Callback callback) throws Exception {
+		ConcurrencyLimiter limiter = getLimiter(method, url);
+		ConcurrencyLimiter.Permit permit = (limiter != null ? limiter.acquire() : null);
+		boolean success = false;
+
+		try {
+			RequestScheduler scheduler = this.scheduler;
+
+			if (scheduler != null) {
+				RequestScheduler.Priority priority = getPriority(method, url);
+
+				scheduler.acquireConnection(priority);
+				try {
+					execute(method, url, headers, is, callback);
+				} finally {
+					scheduler.releaseConnection(priority);
+				}
+			} else {
+				execute(method, url, headers, is, callback);
+			}
+			success = (responseCode > 0 && responseCode < 500);
+		} finally {
+			if (permit != null) {
+				permit.release(success);
+			}
+		}
+	}
+
+	/**
+	 * Get priority class for a request
+	 *
+	 * @param method http method
+	 * @param url http url
+	 * @return priority class
+	 */
+	protected RequestScheduler.Priority getPriority(String method, URL url) {
+		return RequestScheduler.Priority.INTERACTIVE;
+	}
+
+	/**
+	 * Get concurrency limiter for a request
+	 *
+	 * @param method http method
+	 * @param url http url
+	 * @return concurrency limiter or null if none
+	 */
+	protected ConcurrencyLimiter getLimiter(String method, URL url) {
+		return limiter;
+	}
+
+	/**
+	 * Execute http request
+	 *
+	 * @param method http method
+	 * @param url http url
+	 * @param headers optional request headers
+	 * @param is optional request body
+	 * @param callback optional response callback
+	 * @throws Exception if any error occurs
+	 */
+	private void execute(String method, URL url, Header [] headers, InputStream is, Callback callback) throws Exception {
+		byte [] buffer = BufferPool.shared.acquire();
+
+		try {
+			execute(method, url, headers, is, callback, buffer);
+		} finally {
+			BufferPool.shared.release(buffer);
+		}
+	}
+
+	/**
+	 * Execute http request
+	 *
+	 * @param method http method
+	 * @param url http url
+	 * @param headers optional request headers
+	 * @param is optional request body
+	 * @param callback optional response callback
+	 * @param buffer transfer buffer
+	 * @throws Exception if any error occurs
+	 */
+	private void execute(String method, URL url, Header [] headers, InputStream is, Callback callback, byte [] buffer) throws Exception {
 		long beginTime = System.currentTimeMillis();
-		byte[] buffer = new byte[4096];
 		int s;
 
 		time = 0;
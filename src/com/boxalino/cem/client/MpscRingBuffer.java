@@ -0,0 +1,620 @@
+package com.boxalino.cem.client;
+
+import java.util.Collection;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Bounded lock-free multi-producer ring buffer (sequenced slots).
+ *
+ * Slots are preallocated and reused: producers claim a position with a CAS on
+ * the tail sequence, store the element and publish the slot sequence; the
+ * consumer claims with a CAS on the head sequence (so that producers applying
+ * the drop-oldest policy may evict). Head and tail sequences are padded to
+ * avoid false sharing. The buffer allocates no node per element (unlike a
+ * linked queue; only the BLOCK policy may allocate while waiting for space).
+ *
+ * By default slots hold element references (offer, poll). Built with a slot
+ * factory, slots are mutable elements allocated once: producers claim a
+ * slot, write it in place and publish it (claim, get, publish), the consumer
+ * takes it, reads it and releases it (take, get, release), so that nothing is
+ * allocated per element. Evicted elements (DROP_OLDEST) may be handed to an
+ * evictor before their slot is reused.
+ *
+ * @author nitro
+ */
+public class MpscRingBuffer<E> {
+	/**
+	 * Overflow policy (buffer full)
+	 *
+	 * @author nitro
+	 */
+	public static enum OverflowPolicy {
+		/** Evict oldest element */
+		DROP_OLDEST,
+
+		/** Reject new element */
+		DROP_NEWEST,
+
+		/** Wait for space (with timeout), then reject */
+		BLOCK;
+	}
+
+	/**
+	 * Consumer wait strategy (buffer empty)
+	 *
+	 * @author nitro
+	 */
+	public static enum WaitStrategy {
+		/** Spin (lowest latency, burns a core) */
+		BUSY_SPIN,
+
+		/** Spin with Thread.yield() */
+		YIELDING,
+
+		/** Park for short periods */
+		SLEEPING,
+
+		/** Block on a condition signaled by producers */
+		BLOCKING;
+	}
+
+	/**
+	 * Mutable slot factory
+	 *
+	 * @author nitro
+	 */
+	public static interface Factory<E> {
+		/**
+		 * Create a slot.
+		 *
+		 * @return slot
+		 */
+		E create();
+	}
+
+	/**
+	 * Evicted element handler (DROP_OLDEST policy)
+	 *
+	 * @author nitro
+	 */
+	public static interface Evictor<E> {
+		/**
+		 * Handle an evicted element (called before its slot is reused).
+		 *
+		 * @param element evicted element (or slot)
+		 * @return true if handled (kept elsewhere, not counted as dropped)
+		 */
+		boolean evict(E element);
+	}
+
+	/**
+	 * Sequence padded against false sharing
+	 *
+	 * @author nitro
+	 */
+	@SuppressWarnings("serial")
+	private static class PaddedSequence extends AtomicLong {
+		/** Padding */
+		public volatile long p1, p2, p3, p4, p5, p6 = 7L;
+
+
+		/**
+		 * Constructor
+		 *
+		 */
+		private PaddedSequence() {
+			super(0);
+		}
+
+
+		/**
+		 * Prevent padding elimination
+		 *
+		 * @return padding sum
+		 */
+		public long sumPaddingToPreventOptimisation() {
+			return p1 + p2 + p3 + p4 + p5 + p6;
+		}
+	}
+
+
+	/** Overflow policy */
+	public final OverflowPolicy overflowPolicy;
+
+	/** Wait strategy */
+	public final WaitStrategy waitStrategy;
+
+	/** Block timeout (BLOCK policy) [ms] */
+	public volatile long blockTimeout;
+
+	/** Evicted element handler (DROP_OLDEST policy), defaults to null (evicted elements are dropped) */
+	public volatile Evictor<? super E> evictor = null;
+
+	/** Capacity (power of two) */
+	private final int capacity;
+
+	/** Index mask */
+	private final int mask;
+
+	/** Slots (element references or mutable slots) */
+	private final Object [] slots;
+
+	/** Mutable slots (created by a factory) */
+	private final boolean mutable;
+
+	/** Slot sequences */
+	private final AtomicLongArray sequences;
+
+	/** Producer sequence */
+	private final PaddedSequence tail = new PaddedSequence();
+
+	/** Consumer sequence */
+	private final PaddedSequence head = new PaddedSequence();
+
+	/** Dropped elements */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** Blocking strategy lock */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Blocking strategy condition (not empty / not full) */
+	private final Condition signal = lock.newCondition();
+
+	/** Waiting threads (blocking strategy / policy) */
+	private volatile int waiters = 0;
+
+
+	/**
+	 * Constructor (drop newest, blocking wait)
+	 *
+	 * @param capacity minimum capacity (rounded up to a power of two)
+	 */
+	public MpscRingBuffer(int capacity) {
+		this(capacity, OverflowPolicy.DROP_NEWEST, 0, WaitStrategy.BLOCKING);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity minimum capacity (rounded up to a power of two)
+	 * @param overflowPolicy overflow policy
+	 * @param blockTimeout block timeout (BLOCK policy) [ms]
+	 * @param waitStrategy consumer wait strategy
+	 */
+	public MpscRingBuffer(int capacity, OverflowPolicy overflowPolicy, long blockTimeout, WaitStrategy waitStrategy) {
+		this(capacity, overflowPolicy, blockTimeout, waitStrategy, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity minimum capacity (rounded up to a power of two)
+	 * @param overflowPolicy overflow policy
+	 * @param blockTimeout block timeout (BLOCK policy) [ms]
+	 * @param waitStrategy consumer wait strategy
+	 * @param factory mutable slot factory (null for element references)
+	 */
+	public MpscRingBuffer(int capacity, OverflowPolicy overflowPolicy, long blockTimeout, WaitStrategy waitStrategy, Factory<? extends E> factory) {
+		if (capacity < 2 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		int size = 1;
+
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+		if (factory != null) {
+			for (int i = 0; i < size; i++) {
+				this.slots[i] = factory.create();
+			}
+		}
+		this.mutable = (factory != null);
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeout = blockTimeout;
+		this.waitStrategy = waitStrategy;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{capacity=" + capacity +
+			",size=" + size() +
+			",dropped=" + dropped.get() +
+			",overflowPolicy=" + overflowPolicy +
+			",waitStrategy=" + waitStrategy + "}"
+		);
+	}
+
+
+	/**
+	 * Get capacity
+	 *
+	 * @return capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get current size (approximation under contention)
+	 *
+	 * @return element count
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+
+		return (int)Math.max(0, Math.min(size, capacity));
+	}
+
+	/**
+	 * Check if empty (approximation under contention)
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return (tail.get() == head.get());
+	}
+
+	/**
+	 * Get dropped elements (evicted and not handled by the evictor, rejected or timed out)
+	 *
+	 * @return dropped elements
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+
+	/**
+	 * Offer an element according to the overflow policy (element references).
+	 *
+	 * @param element element (not null)
+	 * @return true if stored, false if dropped
+	 * @throws IllegalStateException if slots are mutable (see claim)
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		if (mutable) {
+			throw new IllegalStateException("mutable slots: use claim and publish");
+		}
+
+		long sequence = claim();
+
+		if (sequence < 0) {
+			return false;
+		}
+		slots[(int)sequence & mask] = element;
+		publish(sequence);
+		return true;
+	}
+
+	/**
+	 * Poll an element (non-blocking, element references).
+	 *
+	 * @return element or null if empty
+	 * @throws IllegalStateException if slots are mutable (see take)
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		if (mutable) {
+			throw new IllegalStateException("mutable slots: use take and release");
+		}
+
+		long sequence = take();
+
+		if (sequence < 0) {
+			return null;
+		}
+
+		int index = (int)sequence & mask;
+		E element = (E)slots[index];
+
+		slots[index] = null;
+		release(sequence);
+		return element;
+	}
+
+	/**
+	 * Poll an element, waiting according to the wait strategy (element references).
+	 *
+	 * @param timeout maximum wait
+	 * @param unit timeout unit
+	 * @return element or null if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		E element;
+
+		while ((element = poll()) == null) {
+			long wait = deadline - System.nanoTime();
+
+			if (wait <= 0) {
+				return null;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			await(wait, true);
+		}
+		return element;
+	}
+
+	/**
+	 * Drain available elements (element references).
+	 *
+	 * @param collection target collection
+	 * @param max maximum elements
+	 * @return drained elements
+	 */
+	public int drainTo(Collection<? super E> collection, int max) {
+		int i = 0;
+		E element;
+
+		while (i < max && (element = poll()) != null) {
+			collection.add(element);
+			i++;
+		}
+		return i;
+	}
+
+
+	/**
+	 * Claim a slot according to the overflow policy: write it (see get), then
+	 * publish it.
+	 *
+	 * @return slot sequence or -1 if dropped
+	 */
+	public long claim() {
+		long sequence = tryClaim();
+
+		if (sequence >= 0) {
+			return sequence;
+		}
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			do {
+				long evicted = take();
+
+				if (evicted >= 0) {
+					evict(evicted);
+				}
+			} while ((sequence = tryClaim()) < 0);
+			return sequence;
+
+		case BLOCK:
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+
+			while ((sequence = tryClaim()) < 0) {
+				long wait = deadline - System.nanoTime();
+
+				if (wait <= 0 || Thread.currentThread().isInterrupted()) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				await(Math.min(wait, 1000000L), false);
+			}
+			return sequence;
+
+		default:
+			dropped.incrementAndGet();
+			return -1;
+		}
+	}
+
+	/**
+	 * Publish a claimed slot (visible to the consumer).
+	 *
+	 * @param sequence slot sequence (see claim)
+	 */
+	public void publish(long sequence) {
+		sequences.set((int)sequence & mask, sequence + 1);
+		if (waiters > 0) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Take the next published slot (non-blocking): read it (see get), then
+	 * release it.
+	 *
+	 * @return slot sequence or -1 if empty
+	 */
+	public long take() {
+		long position = head.get();
+
+		while (true) {
+			int index = (int)position & mask;
+			long difference = sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					return position;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				return -1;
+			} else {
+				position = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Take the next published slot, waiting according to the wait strategy.
+	 *
+	 * @param timeout maximum wait
+	 * @param unit timeout unit
+	 * @return slot sequence or -1 if timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long take(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long sequence;
+
+		while ((sequence = take()) < 0) {
+			long wait = deadline - System.nanoTime();
+
+			if (wait <= 0) {
+				return -1;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			await(wait, true);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Release a taken slot (reusable by producers).
+	 *
+	 * @param sequence slot sequence (see take)
+	 */
+	public void release(long sequence) {
+		sequences.set((int)sequence & mask, sequence + capacity);
+		if (waiters > 0) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Get the element of a claimed or taken slot.
+	 *
+	 * @param sequence slot sequence
+	 * @return element (mutable slot or element reference)
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E)slots[(int)sequence & mask];
+	}
+
+
+	/**
+	 * Try to claim a slot.
+	 *
+	 * @return slot sequence or -1 if full
+	 */
+	private long tryClaim() {
+		long position = tail.get();
+
+		while (true) {
+			int index = (int)position & mask;
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					return position;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return -1;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Evict a taken slot (DROP_OLDEST policy).
+	 *
+	 * @param sequence slot sequence
+	 */
+	private void evict(long sequence) {
+		Evictor<? super E> evictor = this.evictor;
+		boolean handled = false;
+
+		try {
+			handled = (evictor != null && evictor.evict(get(sequence)));
+		} finally {
+			if (!mutable) {
+				slots[(int)sequence & mask] = null;
+			}
+			release(sequence);
+			if (!handled) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Wait according to wait strategy.
+	 *
+	 * @param nanos maximum wait [ns]
+	 * @param consumer true if waiting for an element, false if waiting for space
+	 */
+	private void await(long nanos, boolean consumer) {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			if (!consumer) {
+				// never spin producers (request threads)
+				Thread.yield();
+			}
+			break;
+
+		case YIELDING:
+			Thread.yield();
+			break;
+
+		case SLEEPING:
+			LockSupport.parkNanos(Math.min(nanos, 100000L));
+			break;
+
+		case BLOCKING:
+			lock.lock();
+			try {
+				waiters++;
+				try {
+					// re-check after publishing waiters (producers check waiters after publishing)
+					if (consumer ? isEmpty() : (tail.get() - head.get() >= capacity)) {
+						signal.awaitNanos(nanos);
+					}
+				} finally {
+					waiters--;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				lock.unlock();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Wake up blocked threads.
+	 *
+	 */
+	private void wakeup() {
+		lock.lock();
+		try {
+			signal.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
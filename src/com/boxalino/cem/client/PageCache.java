@@ -0,0 +1,520 @@
+package com.boxalino.cem.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Page cache.
+ *
+ * Successful pages are kept in process, keyed on the page key (128-bit hash
+ * of the normalized page uri and parameters, see PageKeyNormalizer). A page
+ * younger than the ttl is served as is; a page younger than ttl + stale
+ * period is served stale while a single background request refreshes it;
+ * older pages are dropped.
+ *
+ * At most capacity pages are kept, with a W-TinyLFU admission and eviction
+ * policy: new pages enter a small window LRU (1% of capacity); pages leaving
+ * the window compete with the least recently used page of the main region for
+ * admission, the page with the higher estimated access frequency (count-min
+ * sketch with aging) is kept. The main region is a segmented LRU: pages hit in
+ * probation are promoted to the protected segment (80% of the main region).
+ * Popular pages stay resident while one-off queries and crawler scans pass
+ * through the window.
+ *
+ * Cached pages are shared between anonymous visitors only: ApiClient bypasses
+ * the cache when (personalizing) cem cookies are present. A page served from
+ * the cache sets no cem cookie (only the api assigns visitor cookies), so
+ * ApiClient also bypasses the cache for a request without cem cookie when a
+ * response is given: the new visitor gets its cookie from the api. Cached
+ * pages are served to loads without response (e.g. prerendering, widgets).
+ *
+ * @author nitro
+ */
+public class PageCache {
+	/** Window region */
+	private static final int WINDOW = 0;
+
+	/** Main region, probation segment */
+	private static final int PROBATION = 1;
+
+	/** Main region, protected segment */
+	private static final int PROTECTED = 2;
+
+
+	/**
+	 * Cached page
+	 *
+	 * @author nitro
+	 */
+	static class Entry {
+		/** Page */
+		final ApiClient.Page page;
+
+		/** Load time [ms] */
+		final long time;
+
+		/** Cache key */
+		private final PageKey key;
+
+		/** Background refresh in progress */
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		/** Region (WINDOW, PROBATION, PROTECTED) */
+		private int region;
+
+		/** Previous entry in region (less recently used) */
+		private Entry previous = this;
+
+		/** Next entry in region (more recently used) */
+		private Entry next = this;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param key cache key (null for a region head)
+		 * @param page page
+		 * @param time load time [ms]
+		 */
+		private Entry(PageKey key, ApiClient.Page page, long time) {
+			this.key = key;
+			this.page = page;
+			this.time = time;
+		}
+
+
+		/**
+		 * Check if the page must be refreshed (stale) and claim the refresh.
+		 *
+		 * @param ttl time to live [ms]
+		 * @return true if stale and no other refresh is in progress, false otherwise
+		 */
+		boolean claimRefresh(long ttl) {
+			return (System.currentTimeMillis() - time >= ttl && refreshing.compareAndSet(false, true));
+		}
+
+		/**
+		 * Release a refresh claim (refresh failed, the stale page is served until it expires).
+		 *
+		 */
+		void releaseRefresh() {
+			refreshing.set(false);
+		}
+	}
+
+
+	/** Time to live (pages served without refresh) [ms] */
+	public volatile long ttl;
+
+	/** Stale period after the ttl (pages served while refreshed in background) [ms] */
+	public volatile long stale;
+
+	/** Maximum cached pages */
+	private final int capacity;
+
+	/** Cached pages */
+	private final Map<PageKey, Entry> entries = new HashMap<PageKey, Entry>();
+
+	/** Access frequencies */
+	private final FrequencySketch sketch;
+
+	/** Region heads (circular lists, least recently used first) */
+	private final Entry [] regions = { new Entry(null, null, 0), new Entry(null, null, 0), new Entry(null, null, 0) };
+
+	/** Region sizes */
+	private final int [] sizes = new int[3];
+
+	/** Maximum window region size */
+	private final int maxWindow;
+
+	/** Maximum protected segment size */
+	private final int maxProtected;
+
+	/** Fresh hits */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Stale hits (served while refreshed) */
+	private final AtomicLong staleHits = new AtomicLong();
+
+	/** Misses (absent or expired) */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Bypassed lookups (personalized requests, new visitors) */
+	private final AtomicLong bypassed = new AtomicLong();
+
+	/** Evictions (capacity, rejected candidates included) */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** Pages leaving the window not admitted to the main region (less frequent than the main region victim) */
+	private final AtomicLong rejections = new AtomicLong();
+
+	/** Expirations (older than ttl + stale period) */
+	private final AtomicLong expirations = new AtomicLong();
+
+	/** Background refreshes */
+	private final AtomicLong refreshes = new AtomicLong();
+
+	/** Failed background refreshes */
+	private final AtomicLong refreshFailures = new AtomicLong();
+
+
+	/**
+	 * Constructor (ttl = 60s, stale = 300s, capacity = 10000)
+	 *
+	 */
+	public PageCache() {
+		this(60000, 300000, 10000);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param ttl time to live (pages served without refresh) [ms]
+	 * @param stale stale period after the ttl (pages served while refreshed in background) [ms]
+	 * @param capacity maximum cached pages
+	 */
+	public PageCache(long ttl, long stale, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		this.ttl = ttl;
+		this.stale = stale;
+		this.capacity = capacity;
+		this.sketch = new FrequencySketch(capacity);
+		this.maxWindow = Math.max(capacity / 100, 1);
+		this.maxProtected = (capacity - maxWindow) * 8 / 10;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{ttl=" + ttl +
+			",stale=" + stale +
+			",capacity=" + capacity +
+			",size=" + getSize() +
+			",hits=" + hits.get() +
+			",staleHits=" + staleHits.get() +
+			",misses=" + misses.get() +
+			",bypassed=" + bypassed.get() +
+			",evictions=" + evictions.get() +
+			",rejections=" + rejections.get() +
+			",expirations=" + expirations.get() +
+			",refreshes=" + refreshes.get() +
+			",refreshFailures=" + refreshFailures.get() + "}"
+		);
+	}
+
+
+	/**
+	 * Get maximum cached pages
+	 *
+	 * @return maximum cached pages
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get cached pages
+	 *
+	 * @return cached pages
+	 */
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Get fresh hits
+	 *
+	 * @return fresh hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get stale hits (served while refreshed)
+	 *
+	 * @return stale hits
+	 */
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+
+	/**
+	 * Get misses (absent or expired)
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get bypassed lookups (personalized requests, new visitors)
+	 *
+	 * @return bypassed lookups
+	 */
+	public long getBypassed() {
+		return bypassed.get();
+	}
+
+	/**
+	 * Get evictions (capacity, rejected candidates included)
+	 *
+	 * @return evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get pages leaving the window not admitted to the main region
+	 *
+	 * @return rejected pages
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * Get expirations (older than ttl + stale period)
+	 *
+	 * @return expirations
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Get background refreshes
+	 *
+	 * @return background refreshes
+	 */
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	/**
+	 * Get failed background refreshes
+	 *
+	 * @return failed background refreshes
+	 */
+	public long getRefreshFailures() {
+		return refreshFailures.get();
+	}
+
+
+	/**
+	 * Remove all cached pages.
+	 *
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			for (int i = 0; i < regions.length; i++) {
+				regions[i].previous = regions[i];
+				regions[i].next = regions[i];
+				sizes[i] = 0;
+			}
+		}
+	}
+
+
+	/**
+	 * Look up a page.
+	 *
+	 * @param key cache key
+	 * @return cached page (fresh or stale) or null if absent or expired
+	 */
+	Entry get(PageKey key) {
+		long now = System.currentTimeMillis();
+		long ttl = this.ttl;
+		Entry entry;
+
+		synchronized (entries) {
+			sketch.increment(key.low);
+			entry = entries.get(key);
+			if (entry != null && now - entry.time >= ttl + stale) {
+				remove(entry);
+				expirations.incrementAndGet();
+				entry = null;
+			} else if (entry != null) {
+				touch(entry);
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else if (now - entry.time < ttl) {
+			hits.incrementAndGet();
+		} else {
+			staleHits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Store a page (successful pages only).
+	 *
+	 * @param key cache key
+	 * @param page loaded page
+	 * @return true if stored, false if not cacheable
+	 */
+	boolean put(PageKey key, ApiClient.Page page) {
+		if (page.error != null || !page.apiStatus) {
+			return false;
+		}
+		Entry entry = new Entry(key, page, System.currentTimeMillis());
+
+		synchronized (entries) {
+			Entry current = entries.put(key, entry);
+
+			if (current != null) {
+				// replace in place (a refreshed page keeps its region)
+				unlink(current);
+				link(entry, current.region);
+			} else {
+				link(entry, WINDOW);
+				sizes[WINDOW]++;
+				evict();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Count a bypassed lookup (personalized request, new visitor).
+	 *
+	 */
+	void bypass() {
+		bypassed.incrementAndGet();
+	}
+
+	/**
+	 * Complete a background refresh (the page is stored, or the stale page is served until it expires).
+	 *
+	 * @param key cache key
+	 * @param entry refreshed entry
+	 * @param page loaded page
+	 */
+	void refreshed(PageKey key, Entry entry, ApiClient.Page page) {
+		if (put(key, page)) {
+			refreshes.incrementAndGet();
+		} else {
+			refreshFailures.incrementAndGet();
+			entry.releaseRefresh();
+		}
+	}
+
+
+	/**
+	 * Record a hit (window and protected pages move to the most recently used
+	 * position, probation pages are promoted to the protected segment).
+	 *
+	 * @param entry cached page
+	 */
+	private void touch(Entry entry) {
+		int region = entry.region;
+
+		unlink(entry);
+		if (region == PROBATION) {
+			sizes[PROBATION]--;
+			sizes[PROTECTED]++;
+			region = PROTECTED;
+		}
+		link(entry, region);
+
+		// demote least recently used protected pages
+		while (sizes[PROTECTED] > maxProtected) {
+			Entry demoted = regions[PROTECTED].next;
+
+			unlink(demoted);
+			sizes[PROTECTED]--;
+			link(demoted, PROBATION);
+			sizes[PROBATION]++;
+		}
+	}
+
+	/**
+	 * Move pages leaving the window to the main region, evict pages beyond capacity.
+	 *
+	 */
+	private void evict() {
+		while (sizes[WINDOW] > maxWindow) {
+			Entry candidate = regions[WINDOW].next;
+
+			unlink(candidate);
+			sizes[WINDOW]--;
+			link(candidate, PROBATION);
+			sizes[PROBATION]++;
+			if (entries.size() <= capacity) {
+				continue;
+			}
+
+			// admission: keep the more frequent of the candidate and the main region victim
+			Entry victim = regions[PROBATION].next;
+
+			if (victim == candidate && sizes[PROTECTED] > 0) {
+				victim = regions[PROTECTED].next;
+			}
+			if (victim != candidate && sketch.frequency(candidate.key.low) > sketch.frequency(victim.key.low)) {
+				remove(victim);
+			} else {
+				remove(candidate);
+				rejections.incrementAndGet();
+			}
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove a cached page.
+	 *
+	 * @param entry cached page
+	 */
+	private void remove(Entry entry) {
+		entries.remove(entry.key);
+		unlink(entry);
+		sizes[entry.region]--;
+	}
+
+	/**
+	 * Append an entry to a region (most recently used position).
+	 *
+	 * @param entry cached page
+	 * @param region region (WINDOW, PROBATION, PROTECTED)
+	 */
+	private void link(Entry entry, int region) {
+		Entry head = regions[region];
+
+		entry.region = region;
+		entry.previous = head.previous;
+		entry.next = head;
+		head.previous.next = entry;
+		head.previous = entry;
+	}
+
+	/**
+	 * Unlink an entry from its region.
+	 *
+	 * @param entry cached page
+	 */
+	private static void unlink(Entry entry) {
+		entry.previous.next = entry.next;
+		entry.next.previous = entry.previous;
+		entry.previous = entry;
+		entry.next = entry;
+	}
+}
@@ -0,0 +1,303 @@
+package com.boxalino.cem.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Page request coalescing (single-flight).
+ *
+ * Concurrent identical page requests (same page key, see PageKeyNormalizer)
+ * share one in-flight api request and one parsed page: the first
+ * request is sent, the following ones wait for its outcome (page and error
+ * are handed to every waiter and failures are reported to the error callback
+ * of every waiter). At most maxWaiters requests wait for one in-flight
+ * request, further identical requests are sent on their own.
+ *
+ * Like the page cache, coalescing applies to anonymous visitors only:
+ * ApiClient sends requests with (personalizing) cem cookies on their own.
+ *
+ * @author nitro
+ */
+public class PageCoalescer {
+	/**
+	 * In-flight page request (future shared by all waiters)
+	 *
+	 * @author nitro
+	 */
+	static class Flight implements Future<ApiClient.Page> {
+		/** Completion latch */
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		/** Waiters */
+		private final AtomicInteger waiters = new AtomicInteger();
+
+		/** Loaded page (or error page) */
+		private volatile ApiClient.Page page = null;
+
+		/** Request error (null if none) */
+		private volatile Exception error = null;
+
+		/** Waiter error callbacks (null once completed) */
+		private List<ApiClient.ApiCallback> callbacks = new ArrayList<ApiClient.ApiCallback>();
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isDone() {
+			return (done.getCount() == 0);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ApiClient.Page get() throws InterruptedException, ExecutionException {
+			done.await();
+			return getPage();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ApiClient.Page get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getPage();
+		}
+
+
+		/**
+		 * Wait for the request outcome.
+		 *
+		 * @return loaded page (or error page)
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		ApiClient.Page await() throws InterruptedException {
+			done.await();
+			return page;
+		}
+
+		/**
+		 * Register a waiter error callback.
+		 *
+		 * @param callback error callback (called with the request error or error page exception)
+		 * @return true if registered, false if already completed
+		 */
+		private synchronized boolean listen(ApiClient.ApiCallback callback) {
+			if (callbacks == null) {
+				return false;
+			}
+			callbacks.add(callback);
+			return true;
+		}
+
+		/**
+		 * Get the request outcome (after completion).
+		 *
+		 * @return loaded page
+		 * @throws ExecutionException if the request failed
+		 */
+		private ApiClient.Page getPage() throws ExecutionException {
+			if (error != null) {
+				throw new ExecutionException(error);
+			}
+			return page;
+		}
+	}
+
+
+	/** Maximum waiters per in-flight request (further identical requests are sent on their own) */
+	public volatile int maxWaiters;
+
+	/** In-flight requests by key */
+	private final ConcurrentMap<PageKey, Flight> flights = new ConcurrentHashMap<PageKey, Flight>();
+
+	/** Requests sent (in-flight requests started) */
+	private final AtomicLong leaders = new AtomicLong();
+
+	/** Requests served by another in-flight request */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/** Requests sent on their own (waiter limit reached) */
+	private final AtomicLong overflows = new AtomicLong();
+
+	/** In-flight requests completed with an error (handed to all waiters) */
+	private final AtomicLong failures = new AtomicLong();
+
+
+	/**
+	 * Constructor (maxWaiters = 256)
+	 *
+	 */
+	public PageCoalescer() {
+		this(256);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxWaiters maximum waiters per in-flight request
+	 */
+	public PageCoalescer(int maxWaiters) {
+		if (maxWaiters < 0) {
+			throw new IllegalArgumentException("invalid maxWaiters: " + maxWaiters);
+		}
+		this.maxWaiters = maxWaiters;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{maxWaiters=" + maxWaiters +
+			",inFlight=" + flights.size() +
+			",leaders=" + leaders.get() +
+			",coalesced=" + coalesced.get() +
+			",overflows=" + overflows.get() +
+			",failures=" + failures.get() + "}"
+		);
+	}
+
+
+	/**
+	 * Get in-flight requests
+	 *
+	 * @return in-flight requests
+	 */
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * Get requests sent (in-flight requests started)
+	 *
+	 * @return requests sent
+	 */
+	public long getLeaders() {
+		return leaders.get();
+	}
+
+	/**
+	 * Get requests served by another in-flight request
+	 *
+	 * @return coalesced requests
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Get requests sent on their own (waiter limit reached)
+	 *
+	 * @return overflowed requests
+	 */
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	/**
+	 * Get in-flight requests completed with an error
+	 *
+	 * @return failed requests
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+
+	/**
+	 * Join the in-flight request for a key, or start it.
+	 *
+	 * @param key request key
+	 * @param flight new request (started if no request is in flight for the key)
+	 * @param callback error callback of the caller (called if the joined request fails, may be null)
+	 * @return flight if started (the caller sends it and completes it), the in-flight request to wait for, or null if its waiter limit is reached (the caller sends its own request)
+	 */
+	Flight join(PageKey key, Flight flight, ApiClient.ApiCallback callback) {
+		Flight current = flights.putIfAbsent(key, flight);
+
+		if (current == null) {
+			leaders.incrementAndGet();
+			return flight;
+		}
+		if (current.waiters.incrementAndGet() > maxWaiters) {
+			current.waiters.decrementAndGet();
+			overflows.incrementAndGet();
+			return null;
+		}
+		coalesced.incrementAndGet();
+		if (callback != null && !current.listen(callback)) {
+			Exception failure = (current.error != null ? current.error : current.page.error);
+
+			if (failure != null) {
+				callback.error(failure);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Complete a started request (wakes all waiters, failures are reported to their callbacks).
+	 *
+	 * @param key request key
+	 * @param flight started request
+	 * @param page loaded page (or error page)
+	 * @param error request error (null if none)
+	 */
+	void complete(PageKey key, Flight flight, ApiClient.Page page, Exception error) {
+		Exception failure = (error != null ? error : page.error);
+		List<ApiClient.ApiCallback> callbacks;
+
+		flights.remove(key, flight);
+		flight.page = page;
+		flight.error = error;
+		synchronized (flight) {
+			callbacks = flight.callbacks;
+			flight.callbacks = null;
+		}
+		flight.done.countDown();
+		if (failure != null) {
+			failures.incrementAndGet();
+			for (ApiClient.ApiCallback callback : callbacks) {
+				callback.error(failure);
+			}
+		}
+	}
+}
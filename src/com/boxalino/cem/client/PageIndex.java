@@ -0,0 +1,773 @@
+package com.boxalino.cem.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+
+/**
+ * Offset index of the blocks of a raw /api/xml/page response (lazy pages).
+ *
+ * A single byte scan (no character decoding) locates the content of each
+ * /cem/blocks/block element. The page is then parsed without the block
+ * contents (skeleton), and each block is decoded from the retained bytes on
+ * first access only.
+ *
+ * Blocks of UTF-8 responses can also be copied to an output stream straight
+ * from the response bytes (entities and CDATA sections resolved, same content
+ * as the decoded block), without any intermediate string.
+ *
+ * Responses the scanner cannot handle (non ASCII compatible encoding, document
+ * type declaration, namespace declaration outside the blocks, malformed
+ * markup) are not indexed and must be parsed eagerly. Block contents are
+ * checked when indexed (see check), so that a lazy block decodes as its
+ * eagerly parsed counterpart.
+ *
+ * @author nitro
+ */
+class PageIndex {
+	/** Block element prefix (decoding) */
+	private static final byte [] OPEN = { '<', 'b', '>' };
+
+	/** Block element suffix (decoding) */
+	private static final byte [] CLOSE = { '<', '/', 'b', '>' };
+
+
+	/**
+	 * Output stream dropping leading and trailing whitespace (same as
+	 * String.trim(), but on UTF-8 bytes; a null stream discards everything)
+	 *
+	 * @author nitro
+	 */
+	private static class TrimmedOutputStream extends OutputStream {
+		/** Target stream (null = discard) */
+		private final OutputStream os;
+
+		/** Content started flag */
+		private boolean started = false;
+
+		/** Pending whitespace (written only if followed by content) */
+		private byte [] pending = new byte[16];
+
+		/** Pending whitespace length */
+		private int pendingLength = 0;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param os target stream (null = discard)
+		 */
+		private TrimmedOutputStream(OutputStream os) {
+			this.os = os;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte [] { (byte)b }, 0, 1);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void write(byte [] b, int off, int len) throws IOException {
+			int end = off + len;
+
+			if (!started) {
+				while (off < end && b[off] >= 0 && b[off] <= ' ') {
+					off++;
+				}
+				if (off == end) {
+					return;
+				}
+				started = true;
+			}
+
+			int last = end - 1;
+
+			while (last >= off && b[last] >= 0 && b[last] <= ' ') {
+				last--;
+			}
+			if (last >= off) {
+				if (os != null) {
+					if (pendingLength > 0) {
+						os.write(pending, 0, pendingLength);
+					}
+					os.write(b, off, last + 1 - off);
+				}
+				pendingLength = 0;
+			}
+			off = Math.max(off, last + 1);
+			if (end - off > pending.length - pendingLength) {
+				byte [] grown = new byte[Math.max(pending.length * 2, pendingLength + end - off)];
+
+				System.arraycopy(pending, 0, grown, 0, pendingLength);
+				pending = grown;
+			}
+			System.arraycopy(b, off, pending, pendingLength, end - off);
+			pendingLength += end - off;
+		}
+	}
+
+
+	/** Raw response */
+	private final byte [] data;
+
+	/** Document encoding */
+	private final String encoding;
+
+	/** Block content start offsets */
+	private int [] starts = new int[8];
+
+	/** Block content end offsets (exclusive) */
+	private int [] ends = new int[8];
+
+	/** Indexed blocks */
+	private int count = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param data raw response
+	 * @param encoding document encoding
+	 */
+	private PageIndex(byte [] data, String encoding) {
+		this.data = data;
+		this.encoding = encoding;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{length=" + data.length +
+			",encoding=" + encoding +
+			",blocks=" + count + "}"
+		);
+	}
+
+
+	/**
+	 * Get indexed blocks
+	 *
+	 * @return indexed blocks (in document order)
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Get the response without block contents (block elements are kept empty).
+	 *
+	 * @return skeleton response
+	 */
+	byte [] skeleton() {
+		int length = data.length;
+
+		for (int i = 0; i < count; i++) {
+			length -= ends[i] - starts[i];
+		}
+
+		byte [] skeleton = new byte[length];
+		int offset = 0;
+		int position = 0;
+
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(data, offset, skeleton, position, starts[i] - offset);
+			position += starts[i] - offset;
+			offset = ends[i];
+		}
+		System.arraycopy(data, offset, skeleton, position, data.length - offset);
+		return skeleton;
+	}
+
+	/**
+	 * Get the raw response.
+	 *
+	 * @return raw response
+	 */
+	byte [] data() {
+		return data;
+	}
+
+	/**
+	 * Check the blocks (supported content: entities, CDATA sections, comments,
+	 * processing instructions and properly nested elements).
+	 *
+	 * @return true if all blocks can be decoded lazily
+	 */
+	boolean check() {
+		try {
+			for (int i = 0; i < count; i++) {
+				if (!copy(starts[i], ends[i], new TrimmedOutputStream(null))) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Decode a block (direct textual content, trimmed).
+	 *
+	 * @param index block index (in document order)
+	 * @return block content
+	 * @throws XMLStreamException if block content is malformed
+	 */
+	String block(int index) throws XMLStreamException {
+		PageParser parser = new PageParser(
+			new SequenceInputStream(
+				new ByteArrayInputStream(OPEN),
+				new SequenceInputStream(
+					new ByteArrayInputStream(data, starts[index], ends[index] - starts[index]),
+					new ByteArrayInputStream(CLOSE)
+				)
+			),
+			encoding
+		);
+
+		try {
+			return parser.readElement();
+		} finally {
+			parser.close();
+		}
+	}
+
+
+	/**
+	 * Copy a block to an output stream (direct textual content, trimmed, UTF-8).
+	 * Nothing is written if the block cannot be copied from the response bytes
+	 * (response not UTF-8, unsupported or malformed content).
+	 *
+	 * @param index block index (in document order)
+	 * @param os output stream
+	 * @return true if copied, false if the block must be decoded instead
+	 * @throws IOException if an I/O error occurs
+	 */
+	boolean write(int index, OutputStream os) throws IOException {
+		if (!encoding.equals("UTF-8") && !encoding.equals("UTF8") && !encoding.equals("US-ASCII") && !encoding.equals("ASCII")) {
+			return false;
+		}
+		if (!copy(starts[index], ends[index], new TrimmedOutputStream(null))) {
+			return false;
+		}
+		return copy(starts[index], ends[index], new TrimmedOutputStream(os));
+	}
+
+
+	/**
+	 * Read a response stream.
+	 *
+	 * @param is response stream
+	 * @return raw response
+	 * @throws IOException if an I/O error occurs
+	 */
+	static byte [] read(InputStream is) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(16384);
+		byte [] chunk = new byte[8192];
+		int s;
+
+		while ((s = is.read(chunk)) >= 0) {
+			buffer.write(chunk, 0, s);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Index the blocks of a raw response.
+	 *
+	 * @param data raw response
+	 * @return block index or null if the response cannot be indexed
+	 */
+	static PageIndex scan(byte [] data) {
+		int offset = 0;
+
+		if (data.length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf) {
+			offset = 3;
+		}
+
+		PageIndex index = new PageIndex(data, "UTF-8");
+		int depth = 0;
+		boolean blocks = false;
+		boolean block = false;
+
+		while (offset < data.length) {
+			byte b = data[offset];
+
+			if (b == 0) {
+				// UTF-16 / UTF-32
+				return null;
+			}
+			if (b != '<') {
+				offset++;
+				continue;
+			}
+			if (matches(data, offset, "<?")) {
+				int end = indexOf(data, offset + 2, "?>");
+
+				if (end < 0) {
+					return null;
+				}
+				if (matches(data, offset, "<?xml") && end > offset + 5 && data[offset + 5] <= ' ') {
+					String encoding = declaredEncoding(data, offset + 5, end);
+
+					if (encoding == null) {
+						return null;
+					}
+					index = new PageIndex(data, encoding);
+				}
+				offset = end + 2;
+				continue;
+			}
+			if (matches(data, offset, "<!--")) {
+				int end = indexOf(data, offset + 4, "-->");
+
+				if (end < 0) {
+					return null;
+				}
+				offset = end + 3;
+				continue;
+			}
+			if (matches(data, offset, "<![CDATA[")) {
+				int end = indexOf(data, offset + 9, "]]>");
+
+				if (end < 0) {
+					return null;
+				}
+				offset = end + 3;
+				continue;
+			}
+			if (matches(data, offset, "<!")) {
+				// document type declaration (entities)
+				return null;
+			}
+
+			int end = tagEnd(data, offset + 1);
+
+			if (end < 0) {
+				return null;
+			}
+			if (data[offset + 1] == '/') {
+				if (depth == 3 && block) {
+					index.ends[index.count - 1] = offset;
+					block = false;
+				} else if (depth == 2) {
+					blocks = false;
+				} else if (depth <= 0) {
+					return null;
+				}
+				depth--;
+				offset = end + 1;
+				continue;
+			}
+
+			boolean empty = (data[end - 1] == '/');
+			int nameStart = offset + 1;
+			int nameEnd = nameStart;
+
+			if (depth < 3 && declaresNamespace(data, offset + 1, end)) {
+				// prefixes declared outside the blocks would be unbound in a block
+				return null;
+			}
+
+			while (nameEnd < end && data[nameEnd] > ' ' && data[nameEnd] != '/') {
+				if (data[nameEnd] == ':') {
+					nameStart = nameEnd + 1;
+				}
+				nameEnd++;
+			}
+			depth++;
+			if (depth == 2) {
+				blocks = equals(data, nameStart, nameEnd, "blocks");
+			} else if (depth == 3 && blocks && equals(data, nameStart, nameEnd, "block")) {
+				index.add(end + 1);
+				block = !empty;
+			}
+			if (empty) {
+				depth--;
+			}
+			offset = end + 1;
+		}
+		return (depth == 0 ? index : null);
+	}
+
+
+	/**
+	 * Copy direct textual content (entities and CDATA sections resolved, line
+	 * ends normalized, nested elements skipped).
+	 *
+	 * @param start content start offset
+	 * @param end content end offset (exclusive)
+	 * @param os trimmed output stream
+	 * @return true if copied, false if content is not supported
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean copy(int start, int end, OutputStream os) throws IOException {
+		int [] names = null;
+		int level = 0;
+		int run = start;
+		int offset = start;
+
+		while (offset < end) {
+			byte b = data[offset];
+
+			if (b != '<' && b != '&') {
+				offset++;
+				continue;
+			}
+			if (level == 0) {
+				text(run, offset, os);
+			}
+			if (b == '&') {
+				int semicolon = offset + 1;
+
+				while (semicolon < end && semicolon - offset <= 10 && data[semicolon] != ';') {
+					semicolon++;
+				}
+				if (semicolon >= end || data[semicolon] != ';') {
+					return false;
+				}
+
+				int c = reference(offset + 1, semicolon);
+
+				if (c < 0) {
+					return false;
+				}
+				if (level == 0) {
+					character(c, os);
+				}
+				offset = semicolon + 1;
+			} else if (matches(data, offset, "<![CDATA[")) {
+				int close = indexOf(data, offset + 9, "]]>");
+
+				if (close < 0 || close + 3 > end) {
+					return false;
+				}
+				if (level == 0) {
+					text(offset + 9, close, os);
+				}
+				offset = close + 3;
+			} else if (matches(data, offset, "<!--") || matches(data, offset, "<?")) {
+				boolean comment = (data[offset + 1] == '!');
+				int close = indexOf(data, offset + 2, comment ? "-->" : "?>");
+
+				if (close < 0 || close + (comment ? 3 : 2) > end) {
+					return false;
+				}
+				offset = close + (comment ? 3 : 2);
+			} else {
+				int close = tagEnd(data, offset + 1);
+
+				if (close < 0 || close >= end || data[offset + 1] == '!') {
+					return false;
+				}
+				if (data[offset + 1] == '/') {
+					if (--level < 0 || !sameName(names[level], offset + 2)) {
+						return false;
+					}
+				} else if (data[close - 1] != '/') {
+					if (names == null || level == names.length) {
+						int [] grown = new int[Math.max(level * 2, 8)];
+
+						if (names != null) {
+							System.arraycopy(names, 0, grown, 0, level);
+						}
+						names = grown;
+					}
+					names[level++] = offset + 1;
+				}
+				offset = close + 1;
+			}
+			run = offset;
+		}
+		if (level == 0) {
+			text(run, end, os);
+		}
+		return (level == 0);
+	}
+
+	/**
+	 * Check if a start tag and an end tag have the same element name.
+	 *
+	 * @param start start tag name offset
+	 * @param end end tag name offset
+	 * @return true if same name
+	 */
+	private boolean sameName(int start, int end) {
+		while (true) {
+			byte a = data[start++];
+			byte b = data[end++];
+			boolean aEnd = (a <= ' ' && a >= 0) || a == '/' || a == '>';
+			boolean bEnd = (b <= ' ' && b >= 0) || b == '>';
+
+			if (aEnd || bEnd) {
+				return (aEnd && bEnd);
+			}
+			if (a != b) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Copy character data (CR LF and CR are normalized to LF).
+	 *
+	 * @param start start offset
+	 * @param end end offset (exclusive)
+	 * @param os output stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void text(int start, int end, OutputStream os) throws IOException {
+		int run = start;
+
+		for (int i = start; i < end; i++) {
+			if (data[i] == '\r') {
+				os.write(data, run, i - run);
+				os.write('\n');
+				if (i + 1 < end && data[i + 1] == '\n') {
+					i++;
+				}
+				run = i + 1;
+			}
+		}
+		if (end > run) {
+			os.write(data, run, end - run);
+		}
+	}
+
+	/**
+	 * Resolve a predefined entity or character reference.
+	 *
+	 * @param start name start offset (after '&')
+	 * @param end name end offset (';')
+	 * @return code point or -1 if not supported
+	 */
+	private int reference(int start, int end) {
+		if (equals(data, start, end, "lt")) {
+			return '<';
+		} else if (equals(data, start, end, "gt")) {
+			return '>';
+		} else if (equals(data, start, end, "amp")) {
+			return '&';
+		} else if (equals(data, start, end, "quot")) {
+			return '"';
+		} else if (equals(data, start, end, "apos")) {
+			return '\'';
+		} else if (end - start < 2 || data[start] != '#') {
+			return -1;
+		}
+
+		boolean hex = (data[start + 1] == 'x');
+		int c = 0;
+
+		for (int i = start + (hex ? 2 : 1); i < end; i++) {
+			int digit = Character.digit((char)data[i], hex ? 16 : 10);
+
+			if (digit < 0 || data[i] < 0) {
+				return -1;
+			}
+			c = c * (hex ? 16 : 10) + digit;
+		}
+		if (
+			(c < 0x20 && c != 0x09 && c != 0x0a && c != 0x0d) ||
+			(c >= 0xd800 && c <= 0xdfff) || c == 0xfffe || c == 0xffff || c > 0x10ffff
+		) {
+			return -1;
+		}
+		return c;
+	}
+
+	/**
+	 * Write a code point (UTF-8).
+	 *
+	 * @param c code point
+	 * @param os output stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void character(int c, OutputStream os) throws IOException {
+		if (c < 0x80) {
+			os.write(new byte [] { (byte)c }, 0, 1);
+		} else if (c < 0x800) {
+			os.write(new byte [] { (byte)(0xc0 | (c >> 6)), (byte)(0x80 | (c & 0x3f)) }, 0, 2);
+		} else if (c < 0x10000) {
+			os.write(new byte [] { (byte)(0xe0 | (c >> 12)), (byte)(0x80 | ((c >> 6) & 0x3f)), (byte)(0x80 | (c & 0x3f)) }, 0, 3);
+		} else {
+			os.write(new byte [] { (byte)(0xf0 | (c >> 18)), (byte)(0x80 | ((c >> 12) & 0x3f)), (byte)(0x80 | ((c >> 6) & 0x3f)), (byte)(0x80 | (c & 0x3f)) }, 0, 4);
+		}
+	}
+
+
+	/**
+	 * Add a block (empty until its end tag is found).
+	 *
+	 * @param start content start offset
+	 */
+	private void add(int start) {
+		if (count == starts.length) {
+			int [] grown = new int[count * 2];
+
+			System.arraycopy(starts, 0, grown, 0, count);
+			starts = grown;
+			grown = new int[count * 2];
+			System.arraycopy(ends, 0, grown, 0, count);
+			ends = grown;
+		}
+		starts[count] = start;
+		ends[count] = start;
+		count++;
+	}
+
+
+	/**
+	 * Get the encoding of an xml declaration (ASCII compatible encodings only).
+	 *
+	 * @param data raw response
+	 * @param start declaration attributes start
+	 * @param end declaration end
+	 * @return encoding, "UTF-8" if none or null if not supported
+	 */
+	private static String declaredEncoding(byte [] data, int start, int end) {
+		int offset = indexOf(data, start, "encoding");
+
+		if (offset < 0 || offset >= end) {
+			return "UTF-8";
+		}
+		offset += 8;
+		while (offset < end && (data[offset] <= ' ' || data[offset] == '=')) {
+			offset++;
+		}
+		if (offset >= end || (data[offset] != '"' && data[offset] != '\'')) {
+			return null;
+		}
+
+		byte quote = data[offset++];
+		StringBuilder encoding = new StringBuilder();
+
+		while (offset < end && data[offset] != quote) {
+			encoding.append((char)(data[offset++] & 0x7f));
+		}
+
+		String name = encoding.toString().trim().toUpperCase();
+
+		if (
+			name.equals("UTF-8") || name.equals("UTF8") || name.equals("US-ASCII") || name.equals("ASCII") ||
+			name.startsWith("ISO-8859-") || name.startsWith("WINDOWS-125")
+		) {
+			return name;
+		}
+		return null;
+	}
+
+	/**
+	 * Check if a start tag declares a namespace (xmlns attribute).
+	 *
+	 * @param data raw response
+	 * @param start tag name offset
+	 * @param end tag end offset ('>')
+	 * @return true if a namespace is declared
+	 */
+	private static boolean declaresNamespace(byte [] data, int start, int end) {
+		for (int i = start; i + 5 <= end; i++) {
+			if (data[i] == 'x' && data[i - 1] <= ' ' && matches(data, i, "xmlns")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the end of a tag (quoted attribute values may contain '>').
+	 *
+	 * @param data raw response
+	 * @param offset tag name offset
+	 * @return offset of '>' or -1 if none
+	 */
+	private static int tagEnd(byte [] data, int offset) {
+		byte quote = 0;
+
+		for (; offset < data.length; offset++) {
+			byte b = data[offset];
+
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Check if an ASCII token is found at an offset.
+	 *
+	 * @param data raw response
+	 * @param offset offset
+	 * @param token ASCII token
+	 * @return true if found
+	 */
+	private static boolean matches(byte [] data, int offset, String token) {
+		if (offset + token.length() > data.length) {
+			return false;
+		}
+		for (int i = 0; i < token.length(); i++) {
+			if (data[offset + i] != token.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a byte range equals an ASCII name.
+	 *
+	 * @param data raw response
+	 * @param start range start
+	 * @param end range end (exclusive)
+	 * @param name ASCII name
+	 * @return true if equal
+	 */
+	private static boolean equals(byte [] data, int start, int end, String name) {
+		return (end - start == name.length() && matches(data, start, name));
+	}
+
+	/**
+	 * Find an ASCII token.
+	 *
+	 * @param data raw response
+	 * @param offset search start
+	 * @param token ASCII token
+	 * @return token offset or -1 if none
+	 */
+	private static int indexOf(byte [] data, int offset, String token) {
+		byte first = (byte)token.charAt(0);
+
+		for (int i = offset; i + token.length() <= data.length; i++) {
+			if (data[i] == first && matches(data, i, token)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,386 @@
+package com.boxalino.cem.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import com.boxalino.cem.client.json.JsonReader;
+
+
+/**
+ * Streaming (pull) parser for /api/json/page responses.
+ *
+ * The json page is an object with the same content as the xml page:
+ *
+ * {
+ *   "version": "1.2.3", "status": true, "totalTime": 1.5,
+ *   "context": "...", "query": "...",
+ *   "results": { "offset": 0, "total": 3, "pageIndex": 0, "pageCount": 1, "pageSize": 10, "items": [ "a", "b", "c" ] },
+ *   "recommendations": [ "r1" ],
+ *   "blocks": { "top": "&lt;div&gt;...&lt;/div&gt;" }
+ * }
+ *
+ * Result and recommendation items are identifiers or objects with an "id"
+ * property. The version, status and totalTime properties (and the result page
+ * attributes) are expected before the other properties; textual content is
+ * trimmed like the xml content. Unknown properties are skipped.
+ *
+ * Each call to next() reads tokens until exactly one page item has been
+ * reported to the handler (same items and order as PageParser).
+ *
+ * @author nitro
+ */
+class PageJsonParser {
+	/**
+	 * Parser position
+	 *
+	 * @author nitro
+	 */
+	private static enum State {
+		/** Before the root object */
+		START,
+
+		/** Root object properties */
+		ROOT,
+
+		/** Result page object properties */
+		RESULTS,
+
+		/** Result items array */
+		RESULT_ITEMS,
+
+		/** Recommendation items array */
+		RECOMMENDATIONS,
+
+		/** Blocks object properties */
+		BLOCKS,
+
+		/** After the root object */
+		DONE;
+	}
+
+
+	/** Underlying tokenizer */
+	private final JsonReader reader;
+
+	/** Parser position */
+	private State state = State.START;
+
+	/** Root element reported */
+	private boolean begun = false;
+
+	/** Pending root property (read before the root was reported) */
+	private String pending = null;
+
+	/** API version */
+	private String version = "";
+
+	/** API status */
+	private boolean status = false;
+
+	/** API processing time */
+	private double time = 0.0;
+
+	/** Result page attributes reported */
+	private boolean results = false;
+
+	/** Result page attributes (offset, total, pageIndex, pageCount, pageSize) */
+	private final int [] attributes = new int[5];
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param is response stream (UTF-8)
+	 * @throws IOException if reader cannot be created
+	 */
+	PageJsonParser(InputStream is) throws IOException {
+		this.reader = new JsonReader(new InputStreamReader(is, "UTF-8"));
+	}
+
+
+	/**
+	 * Release the parser (not the stream)
+	 *
+	 */
+	void close() {
+		state = State.DONE;
+	}
+
+	/**
+	 * Parse next page item.
+	 *
+	 * @param handler item handler
+	 * @return true if an item was reported, false at end of document
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if json is malformed or not a page
+	 */
+	boolean next(PageParser.Handler handler) throws IOException {
+		while (true) {
+			switch (state) {
+			case START:
+				if (reader.next() != JsonReader.Token.BEGIN_OBJECT) {
+					throw new IllegalStateException("invalid json page: " + reader);
+				}
+				state = State.ROOT;
+				break;
+
+			case ROOT:
+				String name = pending;
+
+				if (name == null) {
+					if (reader.next() == JsonReader.Token.END_OBJECT) {
+						state = State.DONE;
+						if (begin(handler)) {
+							return true;
+						}
+						break;
+					}
+					name = reader.getString();
+					if (header(name)) {
+						break;
+					}
+					if (begin(handler)) {
+						pending = name;
+						return true;
+					}
+				}
+				pending = null;
+				if (name.equals("context")) {
+					handler.context(readText());
+					return true;
+				}
+				if (name.equals("query")) {
+					handler.query(readText());
+					return true;
+				}
+				if (name.equals("results")) {
+					expect(JsonReader.Token.BEGIN_OBJECT);
+					state = State.RESULTS;
+				} else if (name.equals("recommendations")) {
+					expect(JsonReader.Token.BEGIN_ARRAY);
+					state = State.RECOMMENDATIONS;
+				} else if (name.equals("blocks")) {
+					expect(JsonReader.Token.BEGIN_OBJECT);
+					state = State.BLOCKS;
+				} else {
+					reader.skipValue();
+				}
+				break;
+
+			case RESULTS:
+				if (reader.next() == JsonReader.Token.END_OBJECT) {
+					state = State.ROOT;
+					if (reportResults(handler)) {
+						return true;
+					}
+					break;
+				}
+				if (reader.is("items")) {
+					if (reader.next() != JsonReader.Token.BEGIN_ARRAY) {
+						throw new IllegalStateException("invalid json result items: " + reader);
+					}
+					state = State.RESULT_ITEMS;
+					if (reportResults(handler)) {
+						return true;
+					}
+					break;
+				}
+
+				int attribute = attribute();
+
+				if (attribute < 0) {
+					reader.skipValue();
+				} else if (reader.next() == JsonReader.Token.NUMBER) {
+					attributes[attribute] = reader.getInteger();
+				} else {
+					throw new IllegalStateException("invalid json result attribute: " + reader);
+				}
+				break;
+
+			case RESULT_ITEMS:
+			case RECOMMENDATIONS:
+				String id = readItem();
+
+				if (id == null) {
+					state = (state == State.RESULT_ITEMS ? State.RESULTS : State.ROOT);
+					break;
+				}
+				if (state == State.RESULT_ITEMS) {
+					handler.result(id);
+				} else {
+					handler.recommendation(id);
+				}
+				return true;
+
+			case BLOCKS:
+				if (reader.next() == JsonReader.Token.END_OBJECT) {
+					state = State.ROOT;
+					break;
+				}
+
+				String block = reader.getString();
+
+				if (reader.next() == JsonReader.Token.STRING) {
+					handler.block(block, reader.getString().trim());
+					return true;
+				}
+				if (reader.getToken() == JsonReader.Token.BEGIN_OBJECT || reader.getToken() == JsonReader.Token.BEGIN_ARRAY) {
+					throw new IllegalStateException("invalid json block: " + reader);
+				}
+				break;
+
+			default:
+				if (reader.getToken() != JsonReader.Token.END) {
+					// no content after the root object
+					reader.next();
+				}
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Read a root header property (version, status, totalTime) if not yet reported.
+	 *
+	 * @param name property name
+	 * @return true if read, false if not a header property
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean header(String name) throws IOException {
+		if (begun) {
+			return false;
+		}
+		if (name.equals("version")) {
+			version = readText();
+		} else if (name.equals("status")) {
+			status = Boolean.parseBoolean(readText());
+		} else if (name.equals("totalTime")) {
+			if (reader.next() != JsonReader.Token.NUMBER) {
+				throw new IllegalStateException("invalid json page totalTime: " + reader);
+			}
+			time = reader.getDouble();
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Report the root element (once).
+	 *
+	 * @param handler item handler
+	 * @return true if reported, false if already reported
+	 */
+	private boolean begin(PageParser.Handler handler) {
+		if (begun) {
+			return false;
+		}
+		begun = true;
+		handler.begin(version, status, time);
+		return true;
+	}
+
+	/**
+	 * Report the result page attributes (once).
+	 *
+	 * @param handler item handler
+	 * @return true if reported, false if already reported
+	 */
+	private boolean reportResults(PageParser.Handler handler) {
+		if (results) {
+			return false;
+		}
+		results = true;
+		handler.results(attributes[0], attributes[1], attributes[2], attributes[3], attributes[4]);
+		return true;
+	}
+
+	/**
+	 * Get the index of the current result page attribute name.
+	 *
+	 * @return attribute index or -1 if unknown
+	 */
+	private int attribute() {
+		if (reader.is("offset")) {
+			return 0;
+		} else if (reader.is("total")) {
+			return 1;
+		} else if (reader.is("pageIndex")) {
+			return 2;
+		} else if (reader.is("pageCount")) {
+			return 3;
+		} else if (reader.is("pageSize")) {
+			return 4;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check that the next token opens the expected container.
+	 *
+	 * @param token expected token
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if another token is found
+	 */
+	private void expect(JsonReader.Token token) throws IOException {
+		if (reader.next() != token) {
+			throw new IllegalStateException("invalid json page content: " + reader);
+		}
+	}
+
+	/**
+	 * Read a textual property value (trimmed, "" for null).
+	 *
+	 * @return textual content
+	 * @throws IOException if an I/O error occurs
+	 */
+	private String readText() throws IOException {
+		switch (reader.next()) {
+		case STRING:
+		case NUMBER:
+		case BOOLEAN:
+			return reader.getString().trim();
+
+		case NULL:
+			return "";
+
+		default:
+			throw new IllegalStateException("invalid json text: " + reader);
+		}
+	}
+
+	/**
+	 * Read an array item identifier (string, number or object with "id").
+	 *
+	 * @return identifier or null at end of array
+	 * @throws IOException if an I/O error occurs
+	 */
+	private String readItem() throws IOException {
+		switch (reader.next()) {
+		case END_ARRAY:
+			return null;
+
+		case STRING:
+		case NUMBER:
+			return reader.getString();
+
+		case BEGIN_OBJECT:
+			String id = "";
+
+			while (reader.next() != JsonReader.Token.END_OBJECT) {
+				if (reader.is("id")) {
+					reader.next();
+					id = reader.getString();
+				} else {
+					reader.skipValue();
+				}
+			}
+			return id;
+
+		default:
+			throw new IllegalStateException("invalid json item: " + reader);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.boxalino.cem.client;
+
+
+/**
+ * Page request key (128-bit hash of the normalized page uri and parameters).
+ *
+ * Built by PageKeyNormalizer; identifies identical anonymous page requests for
+ * the page cache and request coalescing, and selects a stable bucket for
+ * routing (e.g. to cache shards or api nodes).
+ *
+ * @author nitro
+ */
+public class PageKey {
+	/** High 64 bits */
+	public final long high;
+
+	/** Low 64 bits */
+	public final long low;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param high high 64 bits
+	 * @param low low 64 bits
+	 */
+	public PageKey(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation (32 hex digits)
+	 */
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", high, low);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PageKey)) {
+			return false;
+		}
+
+		PageKey key = (PageKey)o;
+
+		return (high == key.high && low == key.low);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return (int)(low ^ (low >>> 32));
+	}
+
+
+	/**
+	 * Select a routing bucket.
+	 *
+	 * @param buckets bucket count
+	 * @return bucket index (0 to buckets - 1, stable for a key)
+	 */
+	public int bucket(int buckets) {
+		return (int)((high >>> 1) % buckets);
+	}
+}
@@ -0,0 +1,376 @@
+package com.boxalino.cem.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Page key normalizer.
+ *
+ * Hashes a page request into a 128-bit PageKey (two 64-bit lanes) without
+ * building a string key:
+ * - the uri is kept as sent
+ * - parameters are filtered (allow list, deny list with "prefix*" entries;
+ *   the default deny list holds the per-visitor environment, tracking tags
+ *   and session ids) and hashed independently of their order (per-parameter
+ *   hashes are summed, which canonicalizes like sorting by name)
+ * - values are kept as sent (lower case for case-insensitive parameters), in
+ *   order unless unordered values are enabled (compared as sets)
+ * Keys are strict by default: requests the api may answer differently never
+ * share a page. Loose normalization is opt-in (see looseText): the uri is
+ * trimmed and its repeated and trailing slashes are removed, values are
+ * trimmed, inner whitespace is collapsed and empty values are dropped (so
+ * "?q=" and no q are the same page).
+ *
+ * @author nitro
+ */
+public class PageKeyNormalizer {
+	/** Default deny list (per-visitor environment, tracking tags, session ids) */
+	public static final Set<String> DENIED = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+		"clientAddress", "clientAgent", "clientReferer", "serverAddress",
+		"utm_*", "gclid", "gclsrc", "dclid", "fbclid", "msclkid", "yclid", "mc_cid", "mc_eid", "_ga", "_gl",
+		"jsessionid", "JSESSIONID", "PHPSESSID", "sid", "sessionid"
+	)));
+
+	/** Shared normalizer (default settings, strict) */
+	public static final PageKeyNormalizer shared = new PageKeyNormalizer();
+
+
+	/** Parameters marker (outside the char range) */
+	private static final int PARAMETER = 0x10000;
+
+	/** Parameter name end marker (outside the char range) */
+	private static final int NAME = 0x10001;
+
+	/** High lane multiplier (FNV-1a 64 prime) */
+	private static final long HIGH_PRIME = 0x100000001b3L;
+
+	/** Low lane multiplier */
+	private static final long LOW_PRIME = 0xc6a4a7935bd1e995L;
+
+
+	/**
+	 * 128-bit hash state
+	 *
+	 * @author nitro
+	 */
+	private static class Hash {
+		/** High lane */
+		private long high;
+
+		/** Low lane */
+		private long low;
+
+
+		/**
+		 * Constructor
+		 *
+		 */
+		private Hash() {
+			reset();
+		}
+
+
+		/**
+		 * Reset to the initial state.
+		 *
+		 */
+		private void reset() {
+			high = 0xcbf29ce484222325L;
+			low = 0x84222325cbf29ce4L;
+		}
+
+		/**
+		 * Add a character (or marker).
+		 *
+		 * @param c character or marker
+		 */
+		private void add(int c) {
+			high = (high ^ c) * HIGH_PRIME;
+			low = Long.rotateLeft((low + c) * LOW_PRIME, 31);
+		}
+
+		/**
+		 * Add a string.
+		 *
+		 * @param str string
+		 */
+		private void add(String str) {
+			for (int i = 0; i < str.length(); i++) {
+				add(str.charAt(i));
+			}
+		}
+
+		/**
+		 * Add a 128-bit value.
+		 *
+		 * @param h high 64 bits
+		 * @param l low 64 bits
+		 */
+		private void add(long h, long l) {
+			high = mix(high ^ h);
+			low = mix(low ^ l);
+		}
+	}
+
+
+	/** Parameters included in keys (null = all parameters not denied) */
+	public final Set<String> allowedParameters;
+
+	/** Parameters excluded from keys ("prefix*" entries match name prefixes) */
+	public final Set<String> deniedParameters;
+
+	/** Parameters with case-insensitive values (lower case in keys) */
+	public final Set<String> caseInsensitiveParameters;
+
+	/** Multi-valued parameters compared as sets (value order ignored) */
+	public final boolean unorderedValues;
+
+	/** Loose uri and values (trimmed, slashes and whitespace collapsed, empty values dropped) */
+	public final boolean looseText;
+
+	/** Denied name prefixes */
+	private final String [] deniedPrefixes;
+
+
+	/**
+	 * Constructor (all parameters not in the default deny list, case-sensitive, ordered values, strict text)
+	 *
+	 */
+	public PageKeyNormalizer() {
+		this(null, DENIED, null, false, false);
+	}
+
+	/**
+	 * Constructor (strict text)
+	 *
+	 * @param allowedParameters parameters included in keys (null = all parameters not denied)
+	 * @param deniedParameters parameters excluded from keys ("prefix*" entries match name prefixes, may be null)
+	 * @param caseInsensitiveParameters parameters with case-insensitive values (may be null)
+	 * @param unorderedValues multi-valued parameters compared as sets (value order ignored)
+	 */
+	public PageKeyNormalizer(Set<String> allowedParameters, Set<String> deniedParameters, Set<String> caseInsensitiveParameters, boolean unorderedValues) {
+		this(allowedParameters, deniedParameters, caseInsensitiveParameters, unorderedValues, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param allowedParameters parameters included in keys (null = all parameters not denied)
+	 * @param deniedParameters parameters excluded from keys ("prefix*" entries match name prefixes, may be null)
+	 * @param caseInsensitiveParameters parameters with case-insensitive values (may be null)
+	 * @param unorderedValues multi-valued parameters compared as sets (value order ignored)
+	 * @param looseText loose uri and values (trimmed, slashes and whitespace collapsed, empty values dropped)
+	 */
+	public PageKeyNormalizer(Set<String> allowedParameters, Set<String> deniedParameters, Set<String> caseInsensitiveParameters, boolean unorderedValues, boolean looseText) {
+		List<String> prefixes = new ArrayList<String>();
+
+		this.allowedParameters = (allowedParameters != null ? Collections.unmodifiableSet(new HashSet<String>(allowedParameters)) : null);
+		this.deniedParameters = Collections.unmodifiableSet(deniedParameters != null ? new HashSet<String>(deniedParameters) : new HashSet<String>());
+		this.caseInsensitiveParameters = Collections.unmodifiableSet(caseInsensitiveParameters != null ? new HashSet<String>(caseInsensitiveParameters) : new HashSet<String>());
+		this.unorderedValues = unorderedValues;
+		this.looseText = looseText;
+		for (String name : this.deniedParameters) {
+			if (name.endsWith("*")) {
+				prefixes.add(name.substring(0, name.length() - 1));
+			}
+		}
+		this.deniedPrefixes = prefixes.toArray(new String[prefixes.size()]);
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{allowedParameters=" + allowedParameters +
+			",deniedParameters=" + deniedParameters +
+			",caseInsensitiveParameters=" + caseInsensitiveParameters +
+			",unorderedValues=" + unorderedValues +
+			",looseText=" + looseText + "}"
+		);
+	}
+
+
+	/**
+	 * Check if a parameter is part of keys.
+	 *
+	 * @param name parameter name
+	 * @return true if included, false if excluded
+	 */
+	public boolean accept(String name) {
+		if (name.equals("uri") || deniedParameters.contains(name)) {
+			return false;
+		}
+		for (String prefix : deniedPrefixes) {
+			if (name.startsWith(prefix)) {
+				return false;
+			}
+		}
+		return (allowedParameters == null || allowedParameters.contains(name));
+	}
+
+	/**
+	 * Build the key of a page request.
+	 *
+	 * @param uri page uri
+	 * @param parameters page parameters (uri parameter ignored)
+	 * @return page key
+	 */
+	public PageKey key(String uri, Map<String, String[]> parameters) {
+		Hash hash = new Hash();
+		Hash value = new Hash();
+		long high = 0;
+		long low = 0;
+
+		for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+			String name = entry.getKey();
+			boolean lowerCase;
+			long valuesHigh = 0;
+			long valuesLow = 0;
+			int n = 0;
+
+			if (name == null || entry.getValue() == null || !accept(name)) {
+				continue;
+			}
+			lowerCase = caseInsensitiveParameters.contains(name);
+			for (String v : entry.getValue()) {
+				value.reset();
+				if (v == null || !addValue(value, v, lowerCase, looseText)) {
+					continue;
+				}
+				if (unorderedValues) {
+					// commutative combination
+					valuesHigh += mix(value.high);
+					valuesLow += mix(value.low);
+				} else {
+					valuesHigh = mix(valuesHigh ^ value.high) + n;
+					valuesLow = mix(valuesLow ^ value.low) + n;
+				}
+				n++;
+			}
+			if (n == 0) {
+				continue;
+			}
+
+			// parameters are combined commutatively (order independent like sorted names, without sorting)
+			hash.reset();
+			hash.add(name);
+			hash.add(NAME);
+			hash.add(valuesHigh + n, valuesLow + n);
+			high += mix(hash.high);
+			low += mix(hash.low);
+		}
+		hash.reset();
+		addUri(hash, uri, looseText);
+		hash.add(PARAMETER);
+		hash.add(high, low);
+		return new PageKey(mix(hash.high), mix(hash.low));
+	}
+
+
+	/**
+	 * Add a uri (as sent, or loose: trimmed, repeated and trailing slashes removed).
+	 *
+	 * @param hash hash state
+	 * @param uri page uri (may be null)
+	 * @param loose loose uri
+	 */
+	private static void addUri(Hash hash, String uri, boolean loose) {
+		int start = 0;
+		int end = (uri != null ? uri.length() : 0);
+		boolean slash = false;
+		boolean empty = true;
+
+		if (!loose) {
+			if (uri != null) {
+				hash.add(uri);
+			}
+			return;
+		}
+
+		while (start < end && uri.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && uri.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		for (int i = start; i < end; i++) {
+			char c = uri.charAt(i);
+
+			if (c == '/') {
+				slash = true;
+				continue;
+			}
+			if (slash) {
+				hash.add('/');
+				slash = false;
+			}
+			hash.add(c);
+			empty = false;
+		}
+		if (slash && empty) {
+			hash.add('/');
+		}
+	}
+
+	/**
+	 * Add a value (as sent, or loose: trimmed, inner whitespace collapsed; optionally lower case).
+	 *
+	 * @param hash hash state
+	 * @param value parameter value
+	 * @param lowerCase lower case value
+	 * @param loose loose value
+	 * @return true if added, false if empty (loose)
+	 */
+	private static boolean addValue(Hash hash, String value, boolean lowerCase, boolean loose) {
+		boolean space = false;
+		boolean empty = true;
+
+		if (!loose) {
+			for (int i = 0; i < value.length(); i++) {
+				hash.add(lowerCase ? Character.toLowerCase(value.charAt(i)) : value.charAt(i));
+			}
+			return true;
+		}
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			if (Character.isWhitespace(c)) {
+				space = !empty;
+				continue;
+			}
+			if (space) {
+				hash.add(' ');
+				space = false;
+			}
+			hash.add(lowerCase ? Character.toLowerCase(c) : c);
+			empty = false;
+		}
+		return !empty;
+	}
+
+	/**
+	 * Mix 64 bits (murmur3 finalizer).
+	 *
+	 * @param h value
+	 * @return mixed value
+	 */
+	private static long mix(long h) {
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+}
@@ -0,0 +1,290 @@
+package com.boxalino.cem.client;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+
+/**
+ * Streaming (pull) parser for /api/xml/page responses.
+ *
+ * Each call to next() advances the underlying StAX reader until exactly one
+ * page item has been reported to the handler, so callers control how far the
+ * response is consumed.
+ *
+ * @author nitro
+ */
+class PageParser {
+	/**
+	 * Page item handler
+	 *
+	 * @author nitro
+	 */
+	static interface Handler {
+		/**
+		 * Called for the root element
+		 *
+		 * @param version api version
+		 * @param status api status
+		 * @param time api processing time
+		 */
+		void begin(String version, boolean status, double time);
+
+		/**
+		 * Called for the search context
+		 *
+		 * @param context encoded search context
+		 */
+		void context(String context);
+
+		/**
+		 * Called for the search query
+		 *
+		 * @param query search query
+		 */
+		void query(String query);
+
+		/**
+		 * Called for the result page attributes
+		 *
+		 * @param offset result page offset
+		 * @param total total results
+		 * @param pageIndex result page index
+		 * @param pageCount result page count
+		 * @param pageSize result page size
+		 */
+		void results(int offset, int total, int pageIndex, int pageCount, int pageSize);
+
+		/**
+		 * Called for each result
+		 *
+		 * @param id result identifier
+		 */
+		void result(String id);
+
+		/**
+		 * Called for each recommendation
+		 *
+		 * @param id recommendation identifier
+		 */
+		void recommendation(String id);
+
+		/**
+		 * Called for each block
+		 *
+		 * @param id block identifier
+		 * @param content block content
+		 */
+		void block(String id, String content);
+	}
+
+
+	/** StAX input factory */
+	private static final XMLInputFactory xif;
+
+	/** Static initializer */
+	static {
+		xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.IS_VALIDATING, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+
+	/** Underlying reader */
+	private final XMLStreamReader reader;
+
+	/** Current element path (root = 1) */
+	private int depth = 0;
+
+	/** Current container element at depth 2 (results, recommendations, blocks) */
+	private String container = null;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param is response stream
+	 * @throws XMLStreamException if reader cannot be created
+	 */
+	PageParser(InputStream is) throws XMLStreamException {
+		this.reader = xif.createXMLStreamReader(is);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param is response stream
+	 * @param encoding response encoding
+	 * @throws XMLStreamException if reader cannot be created
+	 */
+	PageParser(InputStream is, String encoding) throws XMLStreamException {
+		this.reader = xif.createXMLStreamReader(is, encoding);
+	}
+
+
+	/**
+	 * Close underlying reader (not the stream)
+	 *
+	 */
+	void close() {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+		}
+	}
+
+	/**
+	 * Parse next page item.
+	 *
+	 * @param handler item handler
+	 * @return true if an item was reported, false at end of document
+	 * @throws XMLStreamException if xml is malformed
+	 * @throws IllegalStateException if root element is not a page
+	 */
+	boolean next(Handler handler) throws XMLStreamException {
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				String name = reader.getLocalName();
+
+				depth++;
+				switch (depth) {
+				case 1:
+					if (!"cem".equals(name)) {
+						throw new IllegalStateException("invalid xml element: " + name);
+					}
+					handler.begin(
+						attribute("version"),
+						Boolean.parseBoolean(attribute("status")),
+						Double.parseDouble(attribute("totalTime"))
+					);
+					return true;
+
+				case 2:
+					if ("context".equals(name)) {
+						handler.context(readText());
+						return true;
+					}
+					if ("query".equals(name)) {
+						handler.query(readText());
+						return true;
+					}
+					if ("results".equals(name)) {
+						container = name;
+						handler.results(
+							Integer.parseInt(attribute("offset")),
+							Integer.parseInt(attribute("total")),
+							Integer.parseInt(attribute("pageIndex")),
+							Integer.parseInt(attribute("pageCount")),
+							Integer.parseInt(attribute("pageSize"))
+						);
+						return true;
+					}
+					if ("recommendations".equals(name) || "blocks".equals(name)) {
+						container = name;
+					} else {
+						container = null;
+					}
+					break;
+
+				case 3:
+					if ("results".equals(container) && "result".equals(name)) {
+						handler.result(attribute("id"));
+						return true;
+					}
+					if ("recommendations".equals(container) && "recommendation".equals(name)) {
+						handler.recommendation(attribute("id"));
+						return true;
+					}
+					if ("blocks".equals(container) && "block".equals(name)) {
+						String id = attribute("id");
+
+						handler.block(id, readText());
+						return true;
+					}
+					break;
+				}
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth == 2) {
+					container = null;
+				}
+				depth--;
+				break;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Read direct textual content of the root element (trimmed).
+	 *
+	 * @return textual content
+	 * @throws XMLStreamException if xml is malformed
+	 */
+	String readElement() throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				return readText();
+			}
+		}
+		throw new XMLStreamException("unexpected end of document");
+	}
+
+
+	/**
+	 * Get attribute of current element.
+	 *
+	 * @param name attribute name
+	 * @return attribute value or "" if none
+	 */
+	private String attribute(String name) {
+		String value = reader.getAttributeValue(null, name);
+
+		return (value != null ? value : "");
+	}
+
+	/**
+	 * Read direct textual content of current element up to its end (trimmed).
+	 *
+	 * @return textual content
+	 * @throws XMLStreamException if xml is malformed
+	 */
+	private String readText() throws XMLStreamException {
+		StringBuilder buffer = new StringBuilder();
+		int level = 0;
+
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (level == 0) {
+					buffer.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				break;
+
+			case XMLStreamConstants.START_ELEMENT:
+				level++;
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				if (level == 0) {
+					depth--;
+					return buffer.toString().trim();
+				}
+				level--;
+				break;
+			}
+		}
+		throw new XMLStreamException("unexpected end of document");
+	}
+}
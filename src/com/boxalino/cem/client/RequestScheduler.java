@@ -0,0 +1,449 @@
+package com.boxalino.cem.client;
+
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Priority request scheduler.
+ *
+ * Each priority class owns an executor slice (maximum running tasks and queue)
+ * and a connection quota. Lanes are dispatched in priority order and the
+ * background lane is strictly deprioritized: it does not start tasks nor open
+ * connections while higher priority work is waiting. Tasks rejected by the
+ * backing executor stay queued and are dispatched again after retryDelay.
+ *
+ * @author nitro
+ */
+public class RequestScheduler {
+	/**
+	 * Request priority class
+	 *
+	 * @author nitro
+	 */
+	public static enum Priority {
+		/** Interactive page loads (user-visible critical path) */
+		INTERACTIVE,
+
+		/** Proxy passthrough */
+		PROXY,
+
+		/** Background analytics */
+		BACKGROUND;
+	}
+
+	/**
+	 * Priority lane state
+	 *
+	 * @author nitro
+	 */
+	private static class Lane {
+		/** Queued tasks */
+		private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+
+		/** Maximum running tasks */
+		private int maxRunning;
+
+		/** Maximum queued tasks */
+		private int maxQueued;
+
+		/** Maximum open connections */
+		private int maxConnections;
+
+		/** Running tasks */
+		private int running = 0;
+
+		/** Open connections */
+		private int connections = 0;
+
+		/** Callers waiting for a connection */
+		private int connectionWaiters = 0;
+
+		/** Rejected tasks or connections */
+		private long rejected = 0;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param maxRunning maximum running tasks
+		 * @param maxQueued maximum queued tasks
+		 * @param maxConnections maximum open connections
+		 */
+		private Lane(int maxRunning, int maxQueued, int maxConnections) {
+			this.maxRunning = maxRunning;
+			this.maxQueued = maxQueued;
+			this.maxConnections = maxConnections;
+		}
+	}
+
+
+	/**
+	 * Create a backing executor with daemon threads.
+	 *
+	 * @param name thread name prefix
+	 * @return backing executor
+	 */
+	public static ThreadPoolExecutor newExecutor(final String name) {
+		return new ThreadPoolExecutor(
+			0,
+			Integer.MAX_VALUE,
+			60,
+			TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				/** Thread counter */
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+
+					thread.setDaemon(true);
+					return thread;
+				}
+			}
+		);
+	}
+
+
+	/** Maximum connection wait, defaults to 1000 [ms] */
+	public volatile long connectionWait = 1000;
+
+	/** Dispatch retry delay (task rejected by the backing executor), defaults to 10 [ms] */
+	public volatile long retryDelay = 10;
+
+	/** Backing executor */
+	private final Executor executor;
+
+	/** Dispatch retry timer (created on first rejection) */
+	private Timer retryTimer = null;
+
+	/** Dispatch retry scheduled */
+	private boolean retryScheduled = false;
+
+	/** Lanes (by priority ordinal) */
+	private final Lane [] lanes;
+
+
+	/**
+	 * Constructor (own backing executor)
+	 *
+	 */
+	public RequestScheduler() {
+		this(newExecutor("com.boxalino.cem.client.RequestScheduler"));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param executor backing executor (must not queue tasks)
+	 */
+	public RequestScheduler(Executor executor) {
+		this.executor = executor;
+		this.lanes = new Lane[Priority.values().length];
+		this.lanes[Priority.INTERACTIVE.ordinal()] = new Lane(32, 256, 32);
+		this.lanes[Priority.PROXY.ordinal()] = new Lane(16, 256, 16);
+		this.lanes[Priority.BACKGROUND.ordinal()] = new Lane(4, 10000, 4);
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder buffer = new StringBuilder();
+
+		buffer.append('{');
+		for (Priority priority : Priority.values()) {
+			Lane lane = lanes[priority.ordinal()];
+
+			if (buffer.length() > 1) {
+				buffer.append(',');
+			}
+			buffer.append(priority);
+			buffer.append("={queued=" + lane.queue.size());
+			buffer.append(",running=" + lane.running);
+			buffer.append(",connections=" + lane.connections);
+			buffer.append(",rejected=" + lane.rejected + "}");
+		}
+		buffer.append('}');
+		return buffer.toString();
+	}
+
+
+	/**
+	 * Configure a lane
+	 *
+	 * @param priority priority class
+	 * @param maxRunning maximum running tasks
+	 * @param maxQueued maximum queued tasks
+	 * @param maxConnections maximum open connections
+	 */
+	public void setLane(Priority priority, int maxRunning, int maxQueued, int maxConnections) {
+		synchronized (this) {
+			Lane lane = lanes[priority.ordinal()];
+
+			lane.maxRunning = maxRunning;
+			lane.maxQueued = maxQueued;
+			lane.maxConnections = maxConnections;
+			notifyAll();
+		}
+		dispatch();
+	}
+
+	/**
+	 * Get queued tasks
+	 *
+	 * @param priority priority class
+	 * @return queued tasks
+	 */
+	public synchronized int getQueued(Priority priority) {
+		return lanes[priority.ordinal()].queue.size();
+	}
+
+	/**
+	 * Get running tasks
+	 *
+	 * @param priority priority class
+	 * @return running tasks
+	 */
+	public synchronized int getRunning(Priority priority) {
+		return lanes[priority.ordinal()].running;
+	}
+
+	/**
+	 * Get open connections
+	 *
+	 * @param priority priority class
+	 * @return open connections
+	 */
+	public synchronized int getConnections(Priority priority) {
+		return lanes[priority.ordinal()].connections;
+	}
+
+	/**
+	 * Get rejected tasks or connections
+	 *
+	 * @param priority priority class
+	 * @return rejected count
+	 */
+	public synchronized long getRejected(Priority priority) {
+		return lanes[priority.ordinal()].rejected;
+	}
+
+
+	/**
+	 * Submit a task.
+	 *
+	 * @param priority priority class
+	 * @param callable task
+	 * @return future result
+	 * @throws RejectedExecutionException if lane queue is full
+	 */
+	public <T> Future<T> submit(Priority priority, Callable<T> callable) {
+		FutureTask<T> task = new FutureTask<T>(callable);
+
+		execute(priority, task);
+		return task;
+	}
+
+	/**
+	 * Execute a task.
+	 *
+	 * @param priority priority class
+	 * @param task task
+	 * @throws RejectedExecutionException if lane queue is full
+	 */
+	public void execute(Priority priority, Runnable task) {
+		synchronized (this) {
+			Lane lane = lanes[priority.ordinal()];
+
+			if (lane.queue.size() >= lane.maxQueued) {
+				lane.rejected++;
+				throw new RejectedExecutionException(priority + " lane queue is full (" + lane.queue.size() + ")");
+			}
+			lane.queue.addLast(task);
+		}
+		dispatch();
+	}
+
+
+	/**
+	 * Acquire a connection slot.
+	 *
+	 * @param priority priority class
+	 * @throws RejectedExecutionException if wait timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquireConnection(Priority priority) throws InterruptedException {
+		Lane lane = lanes[priority.ordinal()];
+		long deadline = System.currentTimeMillis() + connectionWait;
+
+		lane.connectionWaiters++;
+		try {
+			while (!canConnect(priority)) {
+				long wait = deadline - System.currentTimeMillis();
+
+				if (wait <= 0) {
+					lane.rejected++;
+					throw new RejectedExecutionException(priority + " connection wait timed out (" + connectionWait + "ms)");
+				}
+				wait(wait);
+			}
+		} finally {
+			lane.connectionWaiters--;
+		}
+		lane.connections++;
+	}
+
+	/**
+	 * Release a connection slot.
+	 *
+	 * @param priority priority class
+	 */
+	public synchronized void releaseConnection(Priority priority) {
+		lanes[priority.ordinal()].connections--;
+		notifyAll();
+	}
+
+
+	/**
+	 * Check if a connection can be opened (lock held).
+	 *
+	 * @param priority priority class
+	 * @return true if allowed
+	 */
+	private boolean canConnect(Priority priority) {
+		Lane lane = lanes[priority.ordinal()];
+
+		if (lane.connections >= lane.maxConnections) {
+			return false;
+		}
+		if (priority == Priority.BACKGROUND) {
+			for (int i = 0; i < priority.ordinal(); i++) {
+				if (lanes[i].connectionWaiters > 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a lane can start a task (lock held).
+	 *
+	 * @param priority priority class
+	 * @return true if allowed
+	 */
+	private boolean canRun(Priority priority) {
+		Lane lane = lanes[priority.ordinal()];
+
+		if (lane.queue.isEmpty() || lane.running >= lane.maxRunning) {
+			return false;
+		}
+		if (priority == Priority.BACKGROUND) {
+			for (int i = 0; i < priority.ordinal(); i++) {
+				if (!lanes[i].queue.isEmpty()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Dispatch queued tasks to the backing executor in priority order.
+	 *
+	 */
+	private void dispatch() {
+		while (true) {
+			Runnable task = null;
+			Lane lane = null;
+
+			synchronized (this) {
+				for (Priority priority : Priority.values()) {
+					if (canRun(priority)) {
+						lane = lanes[priority.ordinal()];
+						task = lane.queue.removeFirst();
+						lane.running++;
+						break;
+					}
+				}
+			}
+			if (task == null) {
+				return;
+			}
+
+			final Runnable _task = task;
+			final Lane _lane = lane;
+
+			try {
+				executor.execute(
+					new Runnable() {
+						@Override
+						public void run() {
+							try {
+								_task.run();
+							} finally {
+								synchronized (RequestScheduler.this) {
+									_lane.running--;
+								}
+								dispatch();
+							}
+						}
+					}
+				);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					_lane.running--;
+					_lane.queue.addFirst(_task);
+					scheduleRetry();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Schedule a dispatch retry, unless one is scheduled (lock held).
+	 *
+	 */
+	private void scheduleRetry() {
+		if (retryScheduled) {
+			return;
+		}
+		if (retryTimer == null) {
+			retryTimer = new Timer("com.boxalino.cem.client.RequestScheduler-retry", true);
+		}
+		retryScheduled = true;
+		retryTimer.schedule(
+			new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (RequestScheduler.this) {
+						retryScheduled = false;
+					}
+					dispatch();
+				}
+			},
+			Math.max(retryDelay, 1)
+		);
+	}
+}
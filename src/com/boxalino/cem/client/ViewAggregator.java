@@ -0,0 +1,441 @@
+package com.boxalino.cem.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.boxalino.cem.client.json.JsonArray;
+import com.boxalino.cem.client.json.JsonObject;
+
+
+/**
+ * View counter pre-aggregation.
+ *
+ * Instead of one analytics event per product or category view, views are
+ * counted per item in a striped open-addressing hash map keyed by a 64-bit
+ * fingerprint (parallel primitive arrays, no boxing; the item id is stored
+ * once per distinct item) and flushed periodically as aggregate events
+ * ("productViewAggregate", "categoryViewAggregate") listing the counts of the
+ * period. Views that do not fit (stripe full) are rejected, so that the caller
+ * tracks them raw.
+ *
+ * Aggregates carry no visitor: ApiClient only aggregates views without visitor
+ * identity (no cem cookie), views of identified visitors are tracked raw for
+ * personalization.
+ *
+ * The flusher is started by start(); close sends the pending aggregates and
+ * is final: views added afterwards are rejected (tracked raw by the caller).
+ *
+ * @author nitro
+ */
+public class ViewAggregator {
+	/** Stripe count */
+	private static final int STRIPES = 16;
+
+	/** Aggregate event name suffix */
+	private static final String SUFFIX = "Aggregate";
+
+
+	/**
+	 * Hash map stripe
+	 *
+	 * @author nitro
+	 */
+	private static class Stripe {
+		/** Fingerprints (0 = empty) */
+		private long [] keys;
+
+		/** View counts */
+		private int [] counts;
+
+		/** Event names */
+		private String [] eventNames;
+
+		/** Item ids */
+		private String [] ids;
+
+		/** Item names (first seen) */
+		private String [] names;
+
+		/** Used slots */
+		private int size = 0;
+
+
+		/**
+		 * Constructor
+		 *
+		 * @param capacity slot count (power of two)
+		 */
+		private Stripe(int capacity) {
+			this.keys = new long[capacity];
+			this.counts = new int[capacity];
+			this.eventNames = new String[capacity];
+			this.ids = new String[capacity];
+			this.names = new String[capacity];
+		}
+	}
+
+
+	/** Delivery client (pipeline, spool, timeouts and callback may be configured) */
+	public final ApiClient client;
+
+	/** Flush interval, defaults to 60000 [ms] */
+	public volatile long interval = 60000;
+
+	/** Maximum items per aggregate event, defaults to 500 */
+	public volatile int maxItems = 500;
+
+	/** Stripes */
+	private final Stripe [] stripes;
+
+	/** Stripe slot mask */
+	private final int mask;
+
+	/** Maximum used slots per stripe (load factor 0.75) */
+	private final int maxSize;
+
+	/** Period start [ms] */
+	private volatile long periodStart = System.currentTimeMillis();
+
+	/** Running flag */
+	private volatile boolean running = false;
+
+	/** Closed flag (set once by close) */
+	private volatile boolean closed = false;
+
+	/** Flusher thread */
+	private Thread flusher = null;
+
+	/** Aggregated views */
+	private final AtomicLong views = new AtomicLong();
+
+	/** Rejected views (stripe full) */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Sent aggregate events */
+	private final AtomicLong sent = new AtomicLong();
+
+	/** Failed aggregate events */
+	private final AtomicLong failed = new AtomicLong();
+
+
+	/**
+	 * Constructor (capacity = 65536 items per period)
+	 *
+	 * @param url api url
+	 */
+	public ViewAggregator(String url) {
+		this(url, 65536);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param url api url
+	 * @param capacity distinct items per period (rounded up)
+	 */
+	public ViewAggregator(String url, int capacity) {
+		if (capacity < STRIPES || capacity > (1 << 26)) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		int size = 2;
+
+		while (size * STRIPES * 3 / 4 < capacity) {
+			size <<= 1;
+		}
+		this.client = new ApiClient(url);
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe(size);
+		}
+		this.mask = size - 1;
+		this.maxSize = size * 3 / 4;
+	}
+
+
+	/**
+	 * Return a string representation of this object for debug purpose.
+	 *
+	 * @return string representation
+	 */
+	@Override
+	public String toString() {
+		return (
+			"{url=" + client.url +
+			",interval=" + interval +
+			",views=" + views.get() +
+			",rejected=" + rejected.get() +
+			",sent=" + sent.get() +
+			",failed=" + failed.get() + "}"
+		);
+	}
+
+
+	/**
+	 * Get aggregated views
+	 *
+	 * @return aggregated views
+	 */
+	public long getViews() {
+		return views.get();
+	}
+
+	/**
+	 * Get rejected views (tracked raw)
+	 *
+	 * @return rejected views
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Get sent aggregate events
+	 *
+	 * @return sent aggregate events
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Get failed aggregate events
+	 *
+	 * @return failed aggregate events
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+
+	/**
+	 * Start background flusher (if not running)
+	 *
+	 * @throws IllegalStateException if closed
+	 */
+	public synchronized void start() {
+		if (closed) {
+			throw new IllegalStateException("aggregator closed");
+		}
+		if (running) {
+			return;
+		}
+		running = true;
+		flusher = new Thread(
+			new Runnable() {
+				@Override
+				public void run() {
+					loop();
+				}
+			},
+			"com.boxalino.cem.client.ViewAggregator"
+		);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stop background flusher and send pending aggregates
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		Thread thread;
+
+		synchronized (this) {
+			closed = true;
+			running = false;
+			thread = flusher;
+			flusher = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+		flush();
+	}
+
+
+	/**
+	 * Count a view (sent by the flusher once started).
+	 *
+	 * @param eventName event name (productView, categoryView)
+	 * @param id item identifier
+	 * @param name optional item name
+	 * @return true if counted, false if rejected (track raw)
+	 */
+	public boolean add(String eventName, String id, String name) {
+		if (eventName == null || id == null || closed) {
+			return false;
+		}
+
+		long key = fingerprint(eventName, id);
+		Stripe stripe = stripes[(int)(key >>> 60)];
+
+		synchronized (stripe) {
+			int slot = (int)key & mask;
+
+			while (stripe.keys[slot] != 0) {
+				if (stripe.keys[slot] == key && stripe.ids[slot].equals(id) && stripe.eventNames[slot].equals(eventName)) {
+					if (stripe.counts[slot] < Integer.MAX_VALUE) {
+						stripe.counts[slot]++;
+					}
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (stripe.keys[slot] == 0) {
+				if (stripe.size >= maxSize) {
+					rejected.incrementAndGet();
+					return false;
+				}
+				stripe.keys[slot] = key;
+				stripe.counts[slot] = 1;
+				stripe.eventNames[slot] = eventName;
+				stripe.ids[slot] = id;
+				stripe.names[slot] = name;
+				stripe.size++;
+			}
+		}
+		views.incrementAndGet();
+		if (closed) {
+			// raced with close: send what its final flush missed
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Send the aggregates of the current period and start a new period.
+	 *
+	 */
+	public void flush() {
+		long start = periodStart;
+		long end = System.currentTimeMillis();
+		Map<String, JsonArray> items = new LinkedHashMap<String, JsonArray>();
+
+		periodStart = end;
+		for (Stripe stripe : stripes) {
+			long [] keys;
+			int [] counts;
+			String [] eventNames;
+			String [] ids;
+			String [] names;
+
+			synchronized (stripe) {
+				if (stripe.size == 0) {
+					continue;
+				}
+				keys = stripe.keys;
+				counts = stripe.counts;
+				eventNames = stripe.eventNames;
+				ids = stripe.ids;
+				names = stripe.names;
+				stripe.keys = new long[keys.length];
+				stripe.counts = new int[keys.length];
+				stripe.eventNames = new String[keys.length];
+				stripe.ids = new String[keys.length];
+				stripe.names = new String[keys.length];
+				stripe.size = 0;
+			}
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == 0) {
+					continue;
+				}
+
+				JsonArray array = items.get(eventNames[i]);
+
+				if (array == null || array.size() >= Math.max(maxItems, 1)) {
+					if (array != null) {
+						send(eventNames[i], start, end, array);
+					}
+					items.put(eventNames[i], array = new JsonArray());
+				}
+
+				JsonObject item = new JsonObject();
+
+				item.setString("id", ids[i]);
+				if (names[i] != null) {
+					item.setString("name", names[i]);
+				}
+				item.setInteger("count", counts[i]);
+				array.addJson(item);
+			}
+		}
+		for (Map.Entry<String, JsonArray> entry : items.entrySet()) {
+			send(entry.getKey(), start, end, entry.getValue());
+		}
+	}
+
+
+	/**
+	 * Flusher loop.
+	 *
+	 */
+	private void loop() {
+		while (running) {
+			try {
+				Thread.sleep(Math.max(periodStart + interval - System.currentTimeMillis(), 1));
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				client.reportError(e);
+			}
+		}
+	}
+
+	/**
+	 * Send an aggregate event.
+	 *
+	 * @param eventName aggregated event name
+	 * @param start period start [ms]
+	 * @param end period end [ms]
+	 * @param items aggregated items
+	 */
+	private void send(String eventName, long start, long end, JsonArray items) {
+		Map<String, String> description = new LinkedHashMap<String, String>();
+
+		description.put("from", Long.toString(start));
+		description.put("to", Long.toString(end));
+		description.put("items", items.toJson(true));
+		synchronized (client) {
+			if (client.trackEvent(eventName + SUFFIX, description, null)) {
+				sent.incrementAndGet();
+			} else {
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Compute item fingerprint (FNV-1a 64 over event name and id, never 0).
+	 *
+	 * @param eventName event name
+	 * @param id item identifier
+	 * @return fingerprint
+	 */
+	private static long fingerprint(String eventName, String id) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < eventName.length(); i++) {
+			hash ^= eventName.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= 0xffff;
+		hash *= 0x100000001b3L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		// finalize (spread high bits used for stripe selection)
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		return (hash != 0 ? hash : 1);
+	}
+}
@@ -0,0 +1,509 @@
+package com.boxalino.cem.client.json;
+
+import java.io.IOException;
+import java.io.Reader;
+
+
+/**
+ * Streaming (pull) json tokenizer
+ *
+ * Reads json source from a character stream one token at a time, without
+ * building JsonWrapper trees, so large documents are parsed in constant
+ * memory (apart from the current token).
+ *
+ * @author nitro
+ */
+public class JsonReader {
+	/**
+	 * Json token
+	 *
+	 * @author nitro
+	 */
+	public static enum Token {
+		/** Object start ('{') */
+		BEGIN_OBJECT,
+
+		/** Object end ('}') */
+		END_OBJECT,
+
+		/** Array start ('[') */
+		BEGIN_ARRAY,
+
+		/** Array end (']') */
+		END_ARRAY,
+
+		/** Object property name */
+		NAME,
+
+		/** String literal */
+		STRING,
+
+		/** Numeric literal */
+		NUMBER,
+
+		/** Boolean literal */
+		BOOLEAN,
+
+		/** Null literal */
+		NULL,
+
+		/** End of source */
+		END;
+	}
+
+
+	/** Json source */
+	private final Reader reader;
+
+	/** Read buffer */
+	private final char [] buffer = new char[8192];
+
+	/** Read buffer position */
+	private int position = 0;
+
+	/** Read buffer limit */
+	private int limit = 0;
+
+	/** Source offset of read buffer start */
+	private long offset = 0;
+
+	/** Current token text (name, string, number or literal) */
+	private final StringBuilder text = new StringBuilder();
+
+	/** Current token */
+	private Token token = null;
+
+	/** Container stack (true = object) */
+	private boolean [] stack = new boolean[16];
+
+	/** Container depth */
+	private int depth = 0;
+
+	/** Value completed in current container (separator expected) */
+	private boolean completed = false;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param reader json source
+	 */
+	public JsonReader(Reader reader) {
+		this.reader = reader;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "@" + (offset + position) + " " + token + (token == Token.NAME || token == Token.STRING || token == Token.NUMBER ? " " + text : "");
+	}
+
+
+	/**
+	 * Get current token
+	 *
+	 * @return current token or null if none
+	 */
+	public Token getToken() {
+		return token;
+	}
+
+	/**
+	 * Get container depth
+	 *
+	 * @return container depth (0 = top level)
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Get current token text
+	 *
+	 * @return name, string value, number or literal text
+	 */
+	public String getString() {
+		return text.toString();
+	}
+
+	/**
+	 * Check if current token text matches a string (without allocation)
+	 *
+	 * @param str string to match
+	 * @return true if match, false otherwise
+	 */
+	public boolean is(String str) {
+		if (text.length() != str.length()) {
+			return false;
+		}
+		for (int i = 0; i < str.length(); i++) {
+			if (text.charAt(i) != str.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get current token as boolean
+	 *
+	 * @return true for a true literal, false otherwise
+	 */
+	public boolean getBoolean() {
+		return (token == Token.BOOLEAN && is("true"));
+	}
+
+	/**
+	 * Get current token as integer
+	 *
+	 * @return integer value
+	 * @throws IllegalStateException if current token is not an integer
+	 */
+	public int getInteger() {
+		try {
+			return Integer.parseInt(getString());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("invalid integer value (" + this + ")");
+		}
+	}
+
+	/**
+	 * Get current token as double
+	 *
+	 * @return double value
+	 * @throws IllegalStateException if current token is not a number
+	 */
+	public double getDouble() {
+		try {
+			return Double.parseDouble(getString());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("invalid numeric value (" + this + ")");
+		}
+	}
+
+
+	/**
+	 * Read next token
+	 *
+	 * @return next token (END at end of source)
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if source contains an error
+	 */
+	public Token next() throws IOException {
+		int c = skipWhitespace();
+
+		if (completed) {
+			if (depth == 0) {
+				if (c >= 0) {
+					throw new IllegalStateException("unexpected characters after json value (" + this + ")");
+				}
+				return (token = Token.END);
+			}
+			if (c == ',') {
+				position++;
+				completed = false;
+				c = skipWhitespace();
+				if (c == '}' || c == ']') {
+					throw new IllegalStateException("missing value after ',' (" + this + ")");
+				}
+			} else if (c != '}' && c != ']') {
+				throw new IllegalStateException("missing ',' between values (" + this + ")");
+			}
+		}
+		if (c < 0) {
+			if (depth > 0) {
+				throw new IllegalStateException("unclosed " + (stack[depth - 1] ? "object" : "array") + " literal in json source (" + this + ")");
+			}
+			return (token = Token.END);
+		}
+		position++;
+		switch (c) {
+		case '{':
+			push(true);
+			return (token = Token.BEGIN_OBJECT);
+
+		case '[':
+			push(false);
+			return (token = Token.BEGIN_ARRAY);
+
+		case '}':
+		case ']':
+			if (depth == 0 || stack[depth - 1] != (c == '}') || (stack[depth - 1] && token == Token.NAME)) {
+				throw new IllegalStateException("unexpected '" + (char)c + "' (" + this + ")");
+			}
+			depth--;
+			completed = true;
+			return (token = (c == '}' ? Token.END_OBJECT : Token.END_ARRAY));
+
+		case '"':
+			readString();
+			if (depth > 0 && stack[depth - 1] && token != Token.NAME) {
+				c = skipWhitespace();
+				if (c != ':') {
+					throw new IllegalStateException("object property must be followed by ':' (" + this + ")");
+				}
+				position++;
+				return (token = Token.NAME);
+			}
+			completed = true;
+			return (token = Token.STRING);
+
+		default:
+			if (depth > 0 && stack[depth - 1] && token != Token.NAME) {
+				throw new IllegalStateException("object property name expected (" + this + ")");
+			}
+			position--;
+			readLiteral();
+			completed = true;
+			if (is("true") || is("false")) {
+				return (token = Token.BOOLEAN);
+			}
+			if (is("null")) {
+				return (token = Token.NULL);
+			}
+			if (!isNumber()) {
+				throw new IllegalStateException("invalid literal (" + this + ")");
+			}
+			return (token = Token.NUMBER);
+		}
+	}
+
+	/**
+	 * Skip the next value (nested objects and arrays included)
+	 *
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if source contains an error
+	 */
+	public void skipValue() throws IOException {
+		int level = 0;
+
+		do {
+			switch (next()) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				level++;
+				break;
+
+			case END_OBJECT:
+			case END_ARRAY:
+				level--;
+				break;
+
+			case END:
+				throw new IllegalStateException("unexpected end of source");
+			}
+		} while (level > 0 || token == Token.NAME);
+	}
+
+	/**
+	 * Close json source
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		reader.close();
+	}
+
+
+	/**
+	 * Push a container
+	 *
+	 * @param object true for an object, false for an array
+	 */
+	private void push(boolean object) {
+		if (depth == stack.length) {
+			boolean [] grown = new boolean[depth * 2];
+
+			System.arraycopy(stack, 0, grown, 0, depth);
+			stack = grown;
+		}
+		stack[depth++] = object;
+		completed = false;
+	}
+
+	/**
+	 * Peek next character (fills read buffer)
+	 *
+	 * @return next character or -1 at end of source
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int peek() throws IOException {
+		if (position < limit) {
+			return buffer[position];
+		}
+		offset += limit;
+		position = 0;
+		limit = 0;
+
+		int s;
+
+		while ((s = reader.read(buffer)) == 0);
+		if (s < 0) {
+			return -1;
+		}
+		limit = s;
+		return buffer[0];
+	}
+
+	/**
+	 * Skip whitespace
+	 *
+	 * @return next character or -1 at end of source
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int skipWhitespace() throws IOException {
+		int c = peek();
+
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			position++;
+			c = peek();
+		}
+		return c;
+	}
+
+	/**
+	 * Read a string literal (opening quote consumed)
+	 *
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalStateException if source contains an error
+	 */
+	private void readString() throws IOException {
+		text.setLength(0);
+		while (true) {
+			int start = position;
+
+			// copy plain characters in bulk
+			while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+				position++;
+			}
+			text.append(buffer, start, position - start);
+
+			int c = peek();
+
+			if (c < 0) {
+				throw new IllegalStateException("unclosed string literal in json source (" + this + ")");
+			}
+			if (c == '"') {
+				position++;
+				return;
+			}
+			if (c != '\\') {
+				continue;
+			}
+			position++;
+			c = peek();
+			position++;
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				text.append((char)c);
+				break;
+
+			case 'b':
+				text.append('\b');
+				break;
+
+			case 'f':
+				text.append('\f');
+				break;
+
+			case 'n':
+				text.append('\n');
+				break;
+
+			case 'r':
+				text.append('\r');
+				break;
+
+			case 't':
+				text.append('\t');
+				break;
+
+			case 'u':
+				int value = 0;
+
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit((char)peek(), 16);
+
+					if (digit < 0) {
+						throw new IllegalStateException("invalid unicode escape sequence (" + this + ")");
+					}
+					value = (value << 4) | digit;
+					position++;
+				}
+				text.append((char)value);
+				break;
+
+			default:
+				throw new IllegalStateException("invalid escape sequence (" + this + ")");
+			}
+		}
+	}
+
+	/**
+	 * Read a literal (number, boolean, null)
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void readLiteral() throws IOException {
+		text.setLength(0);
+
+		int c = peek();
+
+		while ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+			text.append((char)c);
+			position++;
+			c = peek();
+		}
+	}
+
+	/**
+	 * Check if current token text is a valid json number
+	 *
+	 * @return true if it is a number, false otherwise
+	 */
+	private boolean isNumber() {
+		int i = 0;
+		int length = text.length();
+
+		if (i < length && text.charAt(i) == '-') {
+			i++;
+		}
+
+		int digits = i;
+
+		while (i < length && Character.isDigit(text.charAt(i))) {
+			i++;
+		}
+		if (i == digits) {
+			return false;
+		}
+		if (i < length && text.charAt(i) == '.') {
+			digits = ++i;
+			while (i < length && Character.isDigit(text.charAt(i))) {
+				i++;
+			}
+			if (i == digits) {
+				return false;
+			}
+		}
+		if (i < length && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+				i++;
+			}
+			digits = i;
+			while (i < length && Character.isDigit(text.charAt(i))) {
+				i++;
+			}
+			if (i == digits) {
+				return false;
+			}
+		}
+		return (i == length);
+	}
+}